@@ -47,6 +47,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.problems.Problem;
 import com.intellij.problems.WolfTheProblemSolver;
 import com.intellij.psi.*;
+import com.intellij.psi.impl.source.tree.ChameleonParser;
 import com.intellij.psi.search.PsiTodoSearchHelper;
 import com.intellij.psi.search.TodoItem;
 import com.intellij.psi.util.PsiUtilCore;
@@ -188,6 +189,10 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
     final DaemonCodeAnalyzerEx daemonCodeAnalyzer = DaemonCodeAnalyzerEx.getInstanceEx(myProject);
     final HighlightVisitor[] filteredVisitors = getHighlightVisitors(getFile());
     try {
+      if (isWholeFileHighlighting()) {
+        // the whole tree is going to be visited, parse its chameleons concurrently instead of one by one while dividing
+        ChameleonParser.parseAll(getFile(), progress);
+      }
       List<Divider.DividedElements> dividedElements = new ArrayList<>();
       Divider.divideInsideAndOutsideAllRoots(getFile(), myRestrictRange, myPriorityRange, SHOULD_HIGHLIGHT_FILTER,
                                              new CommonProcessors.CollectProcessor<>(dividedElements));
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang.impl;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
+import consulo.lang.LanguageVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The lexemes of the text of a file, kept in the file tree so the next reparse of the file relexes only around the change.
+ * The lexer is restarted at the closest lexeme before the change it was in the initial state at, and the lexemes
+ * after the change are reused once the lexer gets to the start of one of them in the initial state again, the same way
+ * {@code LexerEditorHighlighter} updates its segments.
+ */
+class LexemeCache {
+  private static final Key<SoftReference<LexemeCache>> LEXEME_CACHE = Key.create("LEXEME_CACHE");
+
+  // the lexemes are reused only by the same lexer for the same language version
+  final Class<? extends Lexer> myLexerClass;
+  final LanguageVersion myLanguageVersion;
+  final CharSequence myText;
+  final int[] myLexStarts;
+  final IElementType[] myLexTypes;
+  // the lexemes the lexer was in the initial state at the start of
+  final BitSet myRestartable;
+
+  LexemeCache(@NotNull Class<? extends Lexer> lexerClass,
+              @NotNull LanguageVersion languageVersion,
+              @NotNull CharSequence text,
+              @NotNull int[] lexStarts,
+              @NotNull IElementType[] lexTypes,
+              @NotNull BitSet restartable) {
+    myLexerClass = lexerClass;
+    myLanguageVersion = languageVersion;
+    myText = text;
+    myLexStarts = lexStarts;
+    myLexTypes = lexTypes;
+    myRestartable = restartable;
+  }
+
+  /**
+   * @return the lexemes cached in the node if they were lexed from the text by the same kind of lexer for the language version
+   */
+  @Nullable
+  static LexemeCache get(@NotNull ASTNode node, @NotNull CharSequence text, @NotNull Lexer lexer, @NotNull LanguageVersion languageVersion) {
+    SoftReference<LexemeCache> ref = node.getUserData(LEXEME_CACHE);
+    LexemeCache cache = ref == null ? null : ref.get();
+    if (cache == null || cache.myLexerClass != lexer.getClass() || !cache.myLanguageVersion.equals(languageVersion)) return null;
+    return cache.myText == text || StringUtil.equals(cache.myText, text) ? cache : null;
+  }
+
+  void put(@NotNull ASTNode node) {
+    node.putUserData(LEXEME_CACHE, new SoftReference<>(this));
+  }
+
+  int getLexemeCount() {
+    return myLexTypes.length;
+  }
+
+  /**
+   * @return the lexemes of the text, with the cached lexemes of the unchanged parts of it reused, or null if they can't be reused
+   */
+  @Nullable
+  LexemeCache relex(@NotNull Lexer lexer, @NotNull CharSequence text) {
+    assert lexer.getClass() == myLexerClass : lexer + " vs " + myLexerClass;
+    int oldCount = getLexemeCount();
+    if (oldCount == 0) return null;
+
+    int prefix = StringUtil.commonPrefixLength(myText, text);
+    int suffix = Math.min(StringUtil.commonSuffixLength(myText, text), Math.min(myText.length(), text.length()) - prefix);
+    int shift = text.length() - myText.length();
+
+    // a lexer looks ahead past the end of a lexeme, so the two lexemes before the changed one are relexed as well
+    int changed = findLexemeAt(prefix);
+    int restart = myRestartable.previousSetBit(Math.max(changed - 2, 0));
+    if (restart < 0) return null;
+
+    int[] lexStarts = new int[Math.max(10, oldCount + Math.max(shift, 0) / 5) + 1];
+    IElementType[] lexTypes = new IElementType[lexStarts.length - 1];
+    BitSet restartable = myRestartable.get(0, restart);
+    System.arraycopy(myLexStarts, 0, lexStarts, 0, restart);
+    System.arraycopy(myLexTypes, 0, lexTypes, 0, restart);
+
+    int unchangedStart = text.length() - suffix;
+    int i = restart;
+    int offset = myLexStarts[restart];
+    lexer.start(text, offset, text.length(), 0);
+    while (true) {
+      IElementType type = lexer.getTokenType();
+      if (type == null) break;
+
+      if (i % 20 == 0) ProgressIndicatorProvider.checkCanceled();
+
+      int tokenStart = lexer.getTokenStart();
+      if (tokenStart < offset) return null; // broken token sequence, it's reported by the full lexing
+
+      boolean initialState = lexer.getState() == 0;
+      if (initialState && tokenStart >= unchangedStart) {
+        int reused = findRestartableLexeme(tokenStart - shift);
+        if (reused >= 0) {
+          int reusedCount = oldCount - reused;
+          lexStarts = ArrayUtil.realloc(lexStarts, i + reusedCount + 1);
+          lexTypes = ArrayUtil.realloc(lexTypes, i + reusedCount, IElementType.ARRAY_FACTORY);
+          for (int j = 0; j < reusedCount; j++) {
+            lexStarts[i + j] = myLexStarts[reused + j] + shift;
+          }
+          System.arraycopy(myLexTypes, reused, lexTypes, i, reusedCount);
+          for (int j = myRestartable.nextSetBit(reused); j >= 0; j = myRestartable.nextSetBit(j + 1)) {
+            restartable.set(i + j - reused);
+          }
+          i += reusedCount;
+          break;
+        }
+      }
+
+      if (i >= lexTypes.length) {
+        lexStarts = ArrayUtil.realloc(lexStarts, i * 3 / 2 + 1);
+        lexTypes = ArrayUtil.realloc(lexTypes, i * 3 / 2, IElementType.ARRAY_FACTORY);
+      }
+      lexStarts[i] = offset = tokenStart;
+      lexTypes[i] = type;
+      if (initialState) restartable.set(i);
+      i++;
+      lexer.advance();
+    }
+
+    lexStarts = ArrayUtil.realloc(lexStarts, i + 1);
+    lexStarts[i] = text.length();
+    return new LexemeCache(myLexerClass, myLanguageVersion, text, lexStarts, ArrayUtil.realloc(lexTypes, i, IElementType.ARRAY_FACTORY),
+                           restartable);
+  }
+
+  // the index of the lexeme the offset is in
+  private int findLexemeAt(int offset) {
+    int index = Arrays.binarySearch(myLexStarts, 0, getLexemeCount(), offset);
+    return index >= 0 ? index : Math.max(-index - 2, 0);
+  }
+
+  private int findRestartableLexeme(int offset) {
+    int index = Arrays.binarySearch(myLexStarts, 0, getLexemeCount(), offset);
+    if (index < 0) return -1;
+    // the first one of the empty lexemes at the offset
+    while (index > 0 && myLexStarts[index - 1] == offset) index--;
+    return myRestartable.get(index) ? index : -1;
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiErrorElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.TokenType;
@@ -45,6 +46,7 @@ import com.intellij.util.diff.FlyweightCapableTreeStructure;
 import com.intellij.util.diff.ShallowNodeComparator;
 import com.intellij.util.text.CharArrayUtil;
 import consulo.lang.LanguageVersion;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -52,6 +54,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 
@@ -67,6 +71,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   private static final Key<LazyParseableTokensCache> LAZY_PARSEABLE_TOKENS = Key.create("LAZY_PARSEABLE_TOKENS");
 
+  private static final boolean INCREMENTAL_RELEXING = SystemProperties.getBooleanProperty("idea.incremental.relexing", true);
+
   private static TokenSet ourAnyLanguageWhitespaceTokens = TokenSet.EMPTY;
 
   private final Project myProject;
@@ -77,7 +83,9 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   private IElementType[] myLexTypes;
   private int myCurrentLexeme;
 
-  private final MyList myProduction = new MyList();
+  private final MarkerPool myPool = new MarkerPool(this);
+  private final MarkerOptionalData myOptionalData = new MarkerOptionalData();
+  private final MarkerProduction myProduction = new MarkerProduction(myPool, myOptionalData);
 
   private final Lexer myLexer;
   private final TokenSet myWhitespaces;
@@ -102,32 +110,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   private final TIntObjectHashMap<LazyParseableToken> myChameleonCache = new TIntObjectHashMap<>();
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
-    @NotNull
-    @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
-
-    @Override
-    public void cleanup(@NotNull final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
-
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @NotNull
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
-
-    @Override
-    public void cleanup(@NotNull final DoneMarker doneMarker) {
-      doneMarker.clean();
-    }
-  });
-
   public static void registerWhitespaceToken(@NotNull IElementType type) {
     ourAnyLanguageWhitespaceTokens = TokenSet.orSet(ourAnyLanguageWhitespaceTokens, TokenSet.create(type));
   }
@@ -247,10 +229,26 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       }
     }
 
+    ASTNode cacheNode = getLexemeCacheNode(parentCachingNode);
+    if (cacheNode != null && myOriginalTree != null) {
+      LexemeCache cachedLexemes = LexemeCache.get(myOriginalTree, myLastCommittedText, myLexer, myLanguageVersion);
+      LexemeCache relexed = cachedLexemes == null ? null : cachedLexemes.relex(myLexer, myText);
+      if (relexed != null) {
+        // the builder changes the lexeme types when remapping, so the cached arrays are copied
+        myLexStarts = relexed.myLexStarts.clone();
+        myLexTypes = relexed.myLexTypes.clone();
+        myLexemeCount = relexed.getLexemeCount();
+        clearCachedTokenType();
+        relexed.put(cacheNode);
+        return;
+      }
+    }
+
     int approxLexCount = Math.max(10, myText.length() / 5);
 
     myLexStarts = new int[approxLexCount];
     myLexTypes = new IElementType[approxLexCount];
+    BitSet restartable = cacheNode != null ? new BitSet() : null;
 
     myLexer.start(myText);
     int i = 0;
@@ -260,6 +258,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       if (type == null) break;
 
       if (i % 20 == 0) ProgressIndicatorProvider.checkCanceled();
+      if (restartable != null && myLexer.getState() == 0) restartable.set(i);
 
       if (i >= myLexTypes.length - 1) {
         resizeLexemes(i * 3 / 2);
@@ -290,6 +289,10 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
     myLexemeCount = i;
     clearCachedTokenType();
+    if (cacheNode != null) {
+      new LexemeCache(myLexer.getClass(), myLanguageVersion, myText, Arrays.copyOf(myLexStarts, i + 1), Arrays.copyOf(myLexTypes, i),
+                      restartable).put(cacheNode);
+    }
 
     //noinspection ConstantConditions
     if (doLexingOptimizationCorrectionCheck && lexemeCount != -1) {
@@ -303,6 +306,21 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   }
 
+  /**
+   * @return the file tree to keep the lexemes in for the next reparse of the file, if any: it's kept on reparses
+   * and on the first parse of a file which has a document, other files (e.g. the indexed ones) aren't likely to be reparsed
+   */
+  @Nullable
+  private ASTNode getLexemeCacheNode(@Nullable Object parentCachingNode) {
+    if (!INCREMENTAL_RELEXING) return null;
+    if (myOriginalTree != null) return myOriginalTree instanceof FileElement ? myOriginalTree : null;
+    return parentCachingNode instanceof FileElement && hasCachedDocument() ? (ASTNode)parentCachingNode : null;
+  }
+
+  private boolean hasCachedDocument() {
+    return myProject != null && myFile != null && PsiDocumentManager.getInstance(myProject).getCachedDocument(myFile) != null;
+  }
+
   @Override
   public Project getProject() {
     return myProject;
@@ -318,8 +336,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   public LighterASTNode getLatestDoneMarker() {
     int index = myProduction.size() - 1;
     while (index >= 0) {
-      ProductionMarker marker = myProduction.get(index);
-      if (marker instanceof DoneMarker) return ((DoneMarker)marker).myStart;
+      int id = myProduction.get(index);
+      if (id < 0) return myPool.get(-id);
       --index;
     }
     return null;
@@ -330,12 +348,20 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   public abstract static class ProductionMarker extends Node {
+    // the index of the marker in the marker pool of the builder, the production refers to the markers by it
+    protected final int myId;
+    protected PsiBuilderImpl myBuilder;
     protected int myLexemeIndex;
-    protected WhitespacesAndCommentsBinder myEdgeTokenBinder;
     protected ProductionMarker myParent;
     protected ProductionMarker myNext;
 
+    ProductionMarker(int id, @NotNull PsiBuilderImpl builder) {
+      myId = id;
+      myBuilder = builder;
+    }
+
     public void clean() {
+      myBuilder = null;
       myLexemeIndex = 0;
       myParent = myNext = null;
     }
@@ -354,28 +380,28 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   private static class StartMarker extends ProductionMarker implements Marker {
-    private PsiBuilderImpl myBuilder;
     private IElementType myType;
-    private DoneMarker myDoneMarker;
-    private Throwable myDebugAllocationPosition;
+    // the lexeme index of the done production of the marker, or -1 if the marker isn't done
+    private int myDoneLexeme = -1;
     private ProductionMarker myFirstChild;
     private ProductionMarker myLastChild;
     private int myHC = -1;
 
-    private StartMarker() {
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_LEFT_BINDER;
+    private StartMarker(int id, @NotNull PsiBuilderImpl builder) {
+      super(id, builder);
     }
 
     @Override
     public void clean() {
       super.clean();
-      myBuilder = null;
       myType = null;
-      myDoneMarker = null;
-      myDebugAllocationPosition = null;
+      myDoneLexeme = -1;
       myFirstChild = myLastChild = null;
       myHC = -1;
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_LEFT_BINDER;
+    }
+
+    private boolean isDone() {
+      return myDoneLexeme != -1;
     }
 
     @Override
@@ -396,12 +422,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
           lexIdx = lastLeaf;
           hc += child.hc();
           if (child instanceof StartMarker) {
-            lexIdx = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+            lexIdx = ((StartMarker)child).myDoneLexeme;
           }
           child = child.myNext;
         }
 
-        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneMarker.myLexemeIndex]; i++) {
+        for (int i = builder.myLexStarts[lexIdx]; i < builder.myLexStarts[myDoneLexeme]; i++) {
           hc += bufArray != null ? bufArray[i] : buf.charAt(i);
         }
 
@@ -418,12 +444,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
     @Override
     public int getEndOffset() {
-      return myBuilder.myLexStarts[myDoneMarker.myLexemeIndex] + myBuilder.myOffset;
+      return myBuilder.myLexStarts[myDoneLexeme] + myBuilder.myOffset;
     }
 
     @Override
     public int getEndIndex() {
-      return myDoneMarker.myLexemeIndex;
+      return myDoneLexeme;
     }
 
     public void addChild(@NotNull ProductionMarker node) {
@@ -473,8 +499,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
     @Override
     public void doneBefore(@NotNull final IElementType type, @NotNull final Marker before, final String errorMessage) {
+      myBuilder.checkNotStale(this);
+      myBuilder.checkNotStale(before);
       StartMarker marker = (StartMarker)before;
-      myBuilder.myProduction.add(myBuilder.myProduction.lastIndexOf(marker), new ErrorItem(myBuilder, errorMessage, marker.myLexemeIndex));
+      ErrorItem errorItem = myBuilder.myPool.allocateErrorItem();
+      errorItem.myMessage = errorMessage;
+      errorItem.myLexemeIndex = marker.myLexemeIndex;
+      myBuilder.myProduction.insert(myBuilder.myProduction.lastIndexOf(marker.myId), errorItem.myId);
       doneBefore(type, before);
     }
 
@@ -503,20 +534,21 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
     @Override
     public void setCustomEdgeTokenBinders(final WhitespacesAndCommentsBinder left, final WhitespacesAndCommentsBinder right) {
+      myBuilder.checkNotStale(this);
       if (left != null) {
-        myEdgeTokenBinder = left;
+        myBuilder.myOptionalData.assignBinder(myId, left, false);
       }
 
       if (right != null) {
-        if (myDoneMarker == null) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
-        myDoneMarker.myEdgeTokenBinder = right;
+        if (!isDone()) throw new IllegalArgumentException("Cannot set right-edge processor for unclosed marker");
+        myBuilder.myOptionalData.assignBinder(myId, right, true);
       }
     }
 
     @Override
     public String toString() {
-      if (myBuilder == null) return "<dropped>";
-      boolean isDone = myDoneMarker != null;
+      if (myBuilder == null || myBuilder.myPool.get(myId) != this) return "<dropped>";
+      boolean isDone = isDone();
       CharSequence originalText = myBuilder.getOriginalText();
       int startOffset = getStartOffset() - myBuilder.myOffset;
       int endOffset = isDone ? getEndOffset() - myBuilder.myOffset : myBuilder.getCurrentOffset();
@@ -527,12 +559,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   @NotNull
   private Marker precede(final StartMarker marker) {
-    int idx = myProduction.lastIndexOf(marker);
+    checkNotStale(marker);
+    int idx = myProduction.lastIndexOf(marker.myId);
     if (idx < 0) {
       LOG.error("Cannot precede dropped or rolled-back marker");
     }
     StartMarker pre = createMarker(marker.myLexemeIndex);
-    myProduction.add(idx, pre);
+    myProduction.insert(idx, pre.myId);
     return pre;
   }
 
@@ -662,73 +695,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   }
 
-  private static class DoneMarker extends ProductionMarker {
-    private StartMarker myStart;
-    private boolean myCollapse;
-
-    DoneMarker() {
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
-    }
-
-    DoneMarker(final StartMarker marker, final int currentLexeme) {
-      this();
-      myLexemeIndex = currentLexeme;
-      myStart = marker;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myStart = null;
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
-    }
-
-    @Override
-    public int hc() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @NotNull
-    @Override
-    public IElementType getTokenType() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getEndOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-
-    @Override
-    public int getStartOffset() {
-      throw new UnsupportedOperationException("Shall not be called on this kind of markers");
-    }
-  }
-
-  private static class DoneWithErrorMarker extends DoneMarker {
-    private String myMessage;
-
-    private DoneWithErrorMarker(@NotNull StartMarker marker, final int currentLexeme, final String message) {
-      super(marker, currentLexeme);
-      myMessage = message;
-    }
-
-    @Override
-    public void clean() {
-      super.clean();
-      myMessage = null;
-    }
-  }
-
   private static class ErrorItem extends ProductionMarker {
-    private final PsiBuilderImpl myBuilder;
     private String myMessage;
 
-    ErrorItem(final PsiBuilderImpl builder, final String message, final int idx) {
-      myBuilder = builder;
-      myMessage = message;
-      myLexemeIndex = idx;
-      myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    ErrorItem(int id, @NotNull PsiBuilderImpl builder) {
+      super(id, builder);
     }
 
     @Override
@@ -919,18 +890,17 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
     StartMarker marker = createMarker(myCurrentLexeme);
 
-    myProduction.add(marker);
+    myProduction.add(marker.myId);
     return marker;
   }
 
   @NotNull
   private StartMarker createMarker(final int lexemeIndex) {
-    StartMarker marker = START_MARKERS.alloc();
+    StartMarker marker = myPool.allocateStartMarker();
     marker.myLexemeIndex = lexemeIndex;
-    marker.myBuilder = this;
 
     if (myDebugMode) {
-      marker.myDebugAllocationPosition = new Throwable("Created at the following trace.");
+      myOptionalData.notifyAllocated(marker.myId);
     }
     return marker;
   }
@@ -945,14 +915,14 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   private void rollbackTo(@NotNull Marker marker) {
+    checkNotStale(marker);
     myCurrentLexeme = ((StartMarker)marker).myLexemeIndex;
     myTokenTypeChecked = true;
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("The marker must be added before rolled back to.");
     }
-    myProduction.removeRange(idx, myProduction.size());
-    START_MARKERS.recycle((StartMarker)marker);
+    myProduction.rollbackTo(idx);
     clearCachedTokenType();
   }
 
@@ -961,13 +931,14 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
    */
   public boolean hasErrorsAfter(@NotNull Marker marker) {
     assert marker instanceof StartMarker;
-    int idx = myProduction.lastIndexOf(marker);
+    checkNotStale(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("The marker must be added before checked for errors.");
     }
     for (int i = idx + 1; i < myProduction.size(); ++i) {
-      ProductionMarker m = myProduction.get(i);
-      if (m instanceof ErrorItem || m instanceof DoneWithErrorMarker) {
+      int id = myProduction.get(i);
+      if (id > 0 ? myPool.get(id) instanceof ErrorItem : myOptionalData.isDoneWithError(-id)) {
         return true;
       }
     }
@@ -975,68 +946,69 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
   }
 
   public void drop(@NotNull Marker marker) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
-      myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+    checkNotStale(marker);
+    StartMarker startMarker = (StartMarker)marker;
+    if (startMarker.isDone()) {
+      myProduction.remove(myProduction.lastIndexOf(-startMarker.myId));
     }
-    final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
-    if (!removed) {
+    int idx = myProduction.lastIndexOf(startMarker.myId);
+    if (idx < 0) {
       LOG.error("The marker must be added before it is dropped.");
     }
-    START_MARKERS.recycle((StartMarker)marker);
+    else {
+      myProduction.remove(idx);
+    }
+    myPool.freeMarker(startMarker);
   }
 
   public void error(@NotNull Marker marker, String message) {
     doValidityChecks(marker, null);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, myCurrentLexeme, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexeme = myCurrentLexeme;
+    myOptionalData.setDoneError(startMarker.myId, message);
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) myOptionalData.assignBinder(startMarker.myId, WhitespacesBinders.DEFAULT_RIGHT_BINDER, false);
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(-startMarker.myId);
   }
 
   private void errorBefore(@NotNull Marker marker, String message, @NotNull Marker before) {
     doValidityChecks(marker, before);
 
-    @SuppressWarnings("SuspiciousMethodCalls") int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf(((StartMarker)before).myId);
 
-    DoneWithErrorMarker doneMarker = new DoneWithErrorMarker((StartMarker)marker, ((StartMarker)before).myLexemeIndex, message);
-    boolean tieToTheLeft = isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexeme = ((StartMarker)before).myLexemeIndex;
+    myOptionalData.setDoneError(startMarker.myId, message);
+    boolean tieToTheLeft = isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) myOptionalData.assignBinder(startMarker.myId, WhitespacesBinders.DEFAULT_RIGHT_BINDER, false);
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.insert(beforeIndex, -startMarker.myId);
   }
 
   public void done(@NotNull Marker marker) {
     doValidityChecks(marker, null);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myStart = (StartMarker)marker;
-    doneMarker.myLexemeIndex = myCurrentLexeme;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() && isEmpty(((StartMarker)marker).myLexemeIndex, myCurrentLexeme);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexeme = myCurrentLexeme;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() && isEmpty(startMarker.myLexemeIndex, myCurrentLexeme);
+    if (tieToTheLeft) myOptionalData.assignBinder(startMarker.myId, WhitespacesBinders.DEFAULT_RIGHT_BINDER, false);
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(doneMarker);
+    myProduction.add(-startMarker.myId);
   }
 
   public void doneBefore(@NotNull Marker marker, @NotNull Marker before) {
     doValidityChecks(marker, before);
 
-    @SuppressWarnings("SuspiciousMethodCalls") int beforeIndex = myProduction.lastIndexOf(before);
+    int beforeIndex = myProduction.lastIndexOf(((StartMarker)before).myId);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
-    doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
-    doneMarker.myStart = (StartMarker)marker;
-    boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() && isEmpty(((StartMarker)marker).myLexemeIndex, ((StartMarker)before).myLexemeIndex);
-    if (tieToTheLeft) ((StartMarker)marker).myEdgeTokenBinder = WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    StartMarker startMarker = (StartMarker)marker;
+    startMarker.myDoneLexeme = ((StartMarker)before).myLexemeIndex;
+    boolean tieToTheLeft = startMarker.myType.isLeftBound() && isEmpty(startMarker.myLexemeIndex, ((StartMarker)before).myLexemeIndex);
+    if (tieToTheLeft) myOptionalData.assignBinder(startMarker.myId, WhitespacesBinders.DEFAULT_RIGHT_BINDER, false);
 
-    ((StartMarker)marker).myDoneMarker = doneMarker;
-    myProduction.add(beforeIndex, doneMarker);
+    myProduction.insert(beforeIndex, -startMarker.myId);
   }
 
   private boolean isEmpty(final int startIdx, final int endIdx) {
@@ -1049,27 +1021,28 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   public void collapse(@NotNull Marker marker) {
     done(marker);
-    ((StartMarker)marker).myDoneMarker.myCollapse = true;
+    myOptionalData.markCollapsed(((StartMarker)marker).myId);
   }
 
   @SuppressWarnings("ThrowableResultOfMethodCallIgnored")
   private void doValidityChecks(@NotNull Marker marker, @Nullable final Marker before) {
-    final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
-    if (doneMarker != null) {
+    checkNotStale(marker);
+    if (before != null) checkNotStale(before);
+
+    if (((StartMarker)marker).isDone()) {
       LOG.error("Marker already done.");
     }
 
     if (!myDebugMode) return;
 
-    int idx = myProduction.lastIndexOf(marker);
+    int idx = myProduction.lastIndexOf(((StartMarker)marker).myId);
     if (idx < 0) {
       LOG.error("Marker has never been added.");
     }
 
     int endIdx = myProduction.size();
     if (before != null) {
-      //noinspection SuspiciousMethodCalls
-      endIdx = myProduction.lastIndexOf(before);
+      endIdx = myProduction.lastIndexOf(((StartMarker)before).myId);
       if (endIdx < 0) {
         LOG.error("'Before' marker has never been added.");
       }
@@ -1079,12 +1052,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
 
     for (int i = endIdx - 1; i > idx; i--) {
-      Object item = myProduction.get(i);
+      int id = myProduction.get(i);
+      ProductionMarker item = id > 0 ? myPool.get(id) : null;
       if (item instanceof StartMarker) {
         StartMarker otherMarker = (StartMarker)item;
-        if (otherMarker.myDoneMarker == null) {
-          final Throwable debugAllocOther = otherMarker.myDebugAllocationPosition;
-          final Throwable debugAllocThis = ((StartMarker)marker).myDebugAllocationPosition;
+        if (!otherMarker.isDone()) {
+          final Throwable debugAllocOther = myOptionalData.getAllocationTrace(otherMarker.myId);
+          final Throwable debugAllocThis = myOptionalData.getAllocationTrace(((StartMarker)marker).myId);
           if (debugAllocOther != null) {
             Throwable currentTrace = new Throwable();
             ExceptionUtil.makeStackTraceRelative(debugAllocThis, currentTrace).printStackTrace(System.err);
@@ -1096,13 +1070,24 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     }
   }
 
+  // in debug mode the pool doesn't hand out a dropped or rolled back marker again, so it can't alias the marker reusing its id
+  private void checkNotStale(@NotNull Marker marker) {
+    if (myDebugMode && myPool.get(((StartMarker)marker).myId) != marker) {
+      LOG.error("The marker was dropped or rolled back.");
+    }
+  }
+
   @Override
   public void error(String messageText) {
-    final ProductionMarker lastMarker = myProduction.get(myProduction.size() - 1);
+    int lastId = myProduction.get(myProduction.size() - 1);
+    ProductionMarker lastMarker = lastId > 0 ? myPool.get(lastId) : null;
     if (lastMarker instanceof ErrorItem && lastMarker.myLexemeIndex == myCurrentLexeme) {
       return;
     }
-    myProduction.add(new ErrorItem(this, messageText, myCurrentLexeme));
+    ErrorItem errorItem = myPool.allocateErrorItem();
+    errorItem.myMessage = messageText;
+    errorItem.myLexemeIndex = myCurrentLexeme;
+    myProduction.add(errorItem.myId);
   }
 
   @Override
@@ -1203,7 +1188,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       LOG.error("Parser produced no markers. Text:\n" + myText);
     }
     // build tree only once to avoid threading issues in read-only PSI
-    StartMarker rootMarker = (StartMarker)myProduction.get(0);
+    StartMarker rootMarker = (StartMarker)myPool.get(myProduction.get(0));
     if (rootMarker.myFirstChild != null) return rootMarker;
 
     myTokenTypeChecked = true;
@@ -1218,10 +1203,19 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     int maxDepth = 0;
     int curDepth = 0;
     for (int i = 1; i < myProduction.size(); i++) {
-      final ProductionMarker item = myProduction.get(i);
+      int id = myProduction.get(i);
 
       if (curNode == null) LOG.error("Unexpected end of the production");
 
+      if (id < 0) {
+        StartMarker doneMarker = (StartMarker)myPool.get(-id);
+        assertMarkersBalanced(doneMarker == curNode, doneMarker);
+        curNode = nodes.pop();
+        curDepth--;
+        continue;
+      }
+
+      final ProductionMarker item = myPool.get(id);
       item.myParent = curNode;
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
@@ -1232,11 +1226,6 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         curDepth++;
         if (curDepth > maxDepth) maxDepth = curDepth;
       }
-      else if (item instanceof DoneMarker) {
-        assertMarkersBalanced(((DoneMarker)item).myStart == curNode, item);
-        curNode = nodes.pop();
-        curDepth--;
-      }
       else if (item instanceof ErrorItem) {
         int curToken = item.myLexemeIndex;
         if (curToken == lastErrorIndex) continue;
@@ -1250,8 +1239,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       LOG.error("Tokens " + missed + " were not inserted into the tree. " + (myFile != null ? myFile.getLanguage() + ", " : "") + "Text:\n" + myText);
     }
 
-    if (rootMarker.myDoneMarker.myLexemeIndex < myLexemeCount) {
-      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneMarker.myLexemeIndex, myLexemeCount);
+    if (rootMarker.myDoneLexeme < myLexemeCount) {
+      final List<IElementType> missed = ContainerUtil.newArrayList(myLexTypes, rootMarker.myDoneLexeme, myLexemeCount);
       LOG.error("Tokens " + missed + " are outside of root element \"" + rootMarker.myType + "\". Text:\n" + myText);
     }
 
@@ -1286,28 +1275,30 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     int lastIndex = 0;
 
     for (int i = 1, size = myProduction.size() - 1; i < size; i++) {
-      ProductionMarker item = myProduction.get(i);
-      if (item instanceof StartMarker) {
-        assertMarkersBalanced(((StartMarker)item).myDoneMarker != null, item);
+      int id = myProduction.get(i);
+      if (id > 0 && myPool.get(id) instanceof StartMarker) {
+        assertMarkersBalanced(((StartMarker)myPool.get(id)).isDone(), myPool.get(id));
       }
 
-      boolean recursive = item.myEdgeTokenBinder instanceof WhitespacesAndCommentsBinder.RecursiveBinder;
-      int prevProductionLexIndex = recursive ? 0 : myProduction.get(i - 1).myLexemeIndex;
-      int wsStartIndex = Math.max(item.myLexemeIndex, lastIndex);
+      WhitespacesAndCommentsBinder binder = myProduction.getBinder(i);
+      boolean recursive = binder instanceof WhitespacesAndCommentsBinder.RecursiveBinder;
+      int prevProductionLexIndex = recursive ? 0 : myProduction.getLexemeIndex(i - 1);
+      int lexemeIndex = myProduction.getLexemeIndex(i);
+      int wsStartIndex = Math.max(lexemeIndex, lastIndex);
       while (wsStartIndex > prevProductionLexIndex && whitespaceOrComment(myLexTypes[wsStartIndex - 1])) wsStartIndex--;
-      int wsEndIndex = item.myLexemeIndex;
+      int wsEndIndex = lexemeIndex;
       while (wsEndIndex < myLexemeCount && whitespaceOrComment(myLexTypes[wsEndIndex])) wsEndIndex++;
 
       if (wsStartIndex != wsEndIndex) {
         wsTokens.configure(wsStartIndex, wsEndIndex);
         tokenTextGetter.configure(wsStartIndex);
         boolean atEnd = wsStartIndex == 0 || wsEndIndex == myLexemeCount;
-        item.myLexemeIndex = wsStartIndex + item.myEdgeTokenBinder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+        lexemeIndex = wsStartIndex + binder.getEdgePosition(wsTokens, atEnd, tokenTextGetter);
+        myProduction.setLexemeIndex(i, lexemeIndex);
         if (recursive) {
           for (int k = i - 1; k > 1; k--) {
-            ProductionMarker prev = myProduction.get(k);
-            if (prev.myLexemeIndex >= item.myLexemeIndex) {
-              prev.myLexemeIndex = item.myLexemeIndex;
+            if (myProduction.getLexemeIndex(k) >= lexemeIndex) {
+              myProduction.setLexemeIndex(k, lexemeIndex);
             }
             else {
               break;
@@ -1315,11 +1306,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
           }
         }
       }
-      else if (item.myLexemeIndex < wsStartIndex) {
-        item.myLexemeIndex = wsStartIndex;
+      else if (lexemeIndex < wsStartIndex) {
+        lexemeIndex = wsStartIndex;
+        myProduction.setLexemeIndex(i, lexemeIndex);
       }
 
-      lastIndex = item.myLexemeIndex;
+      lastIndex = lexemeIndex;
     }
   }
 
@@ -1376,22 +1368,31 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     CompositeElement curNode = rootNode;
 
     int lexIndex = rootMarker.myLexemeIndex;
-    ProductionMarker item = rootMarker.myFirstChild != null ? rootMarker.myFirstChild : rootMarker.myDoneMarker;
+    ProductionMarker item = rootMarker.myFirstChild;
     while (true) {
-      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
+      if (item == null) {
+        // the children of the current marker are over, continue after its done production
+        lexIndex = insertLeaves(lexIndex, curMarker.myDoneLexeme, curNode);
+        if (curMarker == rootMarker) break;
+
+        item = curMarker.myNext;
+        curMarker = (StartMarker)curMarker.myParent;
+        curNode = curNode.getTreeParent();
+        continue;
+      }
 
-      if (item == rootMarker.myDoneMarker) break;
+      lexIndex = insertLeaves(lexIndex, item.myLexemeIndex, curNode);
 
       if (item instanceof StartMarker) {
         final StartMarker marker = (StartMarker)item;
-        if (!marker.myDoneMarker.myCollapse) {
+        if (!myOptionalData.isCollapsed(marker.myId)) {
           curMarker = marker;
 
           final CompositeElement childNode = createComposite(marker);
           curNode.rawAddChildrenWithoutNotifications(childNode);
           curNode = childNode;
 
-          item = marker.myFirstChild != null ? marker.myFirstChild : marker.myDoneMarker;
+          item = marker.myFirstChild;
           continue;
         }
         else {
@@ -1402,13 +1403,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         final CompositeElement errorElement = Factory.createErrorElement(((ErrorItem)item).myMessage);
         curNode.rawAddChildrenWithoutNotifications(errorElement);
       }
-      else if (item instanceof DoneMarker) {
-        curMarker = (StartMarker)((DoneMarker)item).myStart.myParent;
-        curNode = curNode.getTreeParent();
-        item = ((DoneMarker)item).myStart;
-      }
 
-      item = item.myNext != null ? item.myNext : curMarker.myDoneMarker;
+      item = item.myNext;
     }
   }
 
@@ -1431,16 +1427,16 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
 
   private int collapseLeaves(@NotNull CompositeElement ast, @NotNull StartMarker startMarker) {
     final int start = myLexStarts[startMarker.myLexemeIndex];
-    final int end = myLexStarts[startMarker.myDoneMarker.myLexemeIndex];
+    final int end = myLexStarts[startMarker.myDoneLexeme];
     final IElementType markerType = startMarker.myType;
     final TreeElement leaf = createLeaf(markerType, start, end);
     if (markerType instanceof ILazyParseableElementType &&
         ((ILazyParseableElementType)markerType).reuseCollapsedTokens() &&
-        startMarker.myLexemeIndex < startMarker.myDoneMarker.myLexemeIndex) {
-      final int length = startMarker.myDoneMarker.myLexemeIndex - startMarker.myLexemeIndex;
+        startMarker.myLexemeIndex < startMarker.myDoneLexeme) {
+      final int length = startMarker.myDoneLexeme - startMarker.myLexemeIndex;
       final int[] relativeStarts = new int[length + 1];
       final IElementType[] types = new IElementType[length];
-      for (int i = startMarker.myLexemeIndex; i < startMarker.myDoneMarker.myLexemeIndex; i++) {
+      for (int i = startMarker.myLexemeIndex; i < startMarker.myDoneLexeme; i++) {
         relativeStarts[i - startMarker.myLexemeIndex] = myLexStarts[i] - start;
         types[i - startMarker.myLexemeIndex] = myLexTypes[i];
       }
@@ -1448,15 +1444,14 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       leaf.putUserData(LAZY_PARSEABLE_TOKENS, new LazyParseableTokensCache(relativeStarts, types));
     }
     ast.rawAddChildrenWithoutNotifications(leaf);
-    return startMarker.myDoneMarker.myLexemeIndex;
+    return startMarker.myDoneLexeme;
   }
 
   @NotNull
   private static CompositeElement createComposite(@NotNull StartMarker marker) {
     final IElementType type = marker.myType;
     if (type == TokenType.ERROR_ELEMENT) {
-      String message = marker.myDoneMarker instanceof DoneWithErrorMarker ? ((DoneWithErrorMarker)marker.myDoneMarker).myMessage : null;
-      return Factory.createErrorElement(message);
+      return Factory.createErrorElement(marker.myBuilder.myOptionalData.getDoneError(marker.myId));
     }
 
     if (type == null) {
@@ -1471,8 +1466,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     if (node instanceof ErrorItem) return ((ErrorItem)node).myMessage;
     if (node instanceof StartMarker) {
       final StartMarker marker = (StartMarker)node;
-      if (marker.myType == TokenType.ERROR_ELEMENT && marker.myDoneMarker instanceof DoneWithErrorMarker) {
-        return ((DoneWithErrorMarker)marker.myDoneMarker).myMessage;
+      if (marker.myType == TokenType.ERROR_ELEMENT) {
+        return marker.myBuilder.myOptionalData.getDoneError(marker.myId);
       }
     }
 
@@ -1675,8 +1670,8 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
       while (child != null) {
         lexIndex = insertLeaves(lexIndex, child.myLexemeIndex, marker.myBuilder, marker);
 
-        if (child instanceof StartMarker && ((StartMarker)child).myDoneMarker.myCollapse) {
-          int lastIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+        if (child instanceof StartMarker && marker.myBuilder.myOptionalData.isCollapsed(child.myId)) {
+          int lastIndex = ((StartMarker)child).myDoneLexeme;
           insertLeaf(child.getTokenType(), marker.myBuilder, child.myLexemeIndex, lastIndex, true, marker);
         }
         else {
@@ -1685,12 +1680,12 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
         }
 
         if (child instanceof StartMarker) {
-          lexIndex = ((StartMarker)child).myDoneMarker.myLexemeIndex;
+          lexIndex = ((StartMarker)child).myDoneLexeme;
         }
         child = child.myNext;
       }
 
-      insertLeaves(lexIndex, marker.myDoneMarker.myLexemeIndex, marker.myBuilder, marker);
+      insertLeaves(lexIndex, marker.myDoneLexeme, marker.myBuilder, marker);
       into.set(nodes == null ? LighterASTNode.EMPTY_ARRAY : nodes);
       nodes = null;
 
@@ -1867,15 +1862,166 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder {
     return ASTFactory.leaf(type, myLanguageVersion, text);
   }
 
-  private static class MyList extends ArrayList<ProductionMarker> {
-    // make removeRange method available.
-    @Override
-    protected void removeRange(final int fromIndex, final int toIndex) {
-      super.removeRange(fromIndex, toIndex);
+  /**
+   * The markers of the builder, indexed by their ids. The ids of the dropped and rolled back markers are reused
+   * by the next markers of the same kind, so parsing a file allocates about as many markers as its tree is deep and wide,
+   * not as many as the parser tried.
+   */
+  private static class MarkerPool extends ArrayList<ProductionMarker> {
+    private final PsiBuilderImpl myBuilder;
+    private final TIntArrayList myFreeStartMarkers = new TIntArrayList();
+    private final TIntArrayList myFreeErrorItems = new TIntArrayList();
+
+    private MarkerPool(@NotNull PsiBuilderImpl builder) {
+      super(256);
+      myBuilder = builder;
+      add(null); // the ids start with 1 so they can be negated in the production
+    }
+
+    @NotNull
+    private StartMarker allocateStartMarker() {
+      if (!myFreeStartMarkers.isEmpty()) {
+        StartMarker marker = (StartMarker)get(myFreeStartMarkers.remove(myFreeStartMarkers.size() - 1));
+        marker.myBuilder = myBuilder;
+        return marker;
+      }
+      StartMarker marker = new StartMarker(size(), myBuilder);
+      add(marker);
+      return marker;
     }
 
-    private MyList() {
+    @NotNull
+    private ErrorItem allocateErrorItem() {
+      if (!myFreeErrorItems.isEmpty()) {
+        ErrorItem item = (ErrorItem)get(myFreeErrorItems.remove(myFreeErrorItems.size() - 1));
+        item.myBuilder = myBuilder;
+        return item;
+      }
+      ErrorItem item = new ErrorItem(size(), myBuilder);
+      add(item);
+      return item;
+    }
+
+    private void freeMarker(@NotNull ProductionMarker marker) {
+      myBuilder.myOptionalData.clean(marker.myId);
+      marker.clean();
+      if (marker instanceof StartMarker) {
+        if (myBuilder.myDebugMode) {
+          // the stale marker keeps the builder to report its use, the id goes on with a new one
+          set(marker.myId, new StartMarker(marker.myId, myBuilder));
+          marker.myBuilder = myBuilder;
+        }
+        myFreeStartMarkers.add(marker.myId);
+      }
+      else {
+        myFreeErrorItems.add(marker.myId);
+      }
+    }
+  }
+
+  /**
+   * The production of the builder: the id of a marker or an error item where it starts, the negated id of a marker where it's done.
+   */
+  private static class MarkerProduction extends TIntArrayList {
+    private final MarkerPool myPool;
+    private final MarkerOptionalData myOptionalData;
+
+    private MarkerProduction(@NotNull MarkerPool pool, @NotNull MarkerOptionalData optionalData) {
       super(256);
+      myPool = pool;
+      myOptionalData = optionalData;
+    }
+
+    private void rollbackTo(int index) {
+      for (int i = size() - 1; i >= index; i--) {
+        int id = get(i);
+        if (id > 0) {
+          myPool.freeMarker(myPool.get(id));
+        }
+      }
+      remove(index, size() - index);
+    }
+
+    private int getLexemeIndex(int index) {
+      int id = get(index);
+      return id > 0 ? myPool.get(id).myLexemeIndex : ((StartMarker)myPool.get(-id)).myDoneLexeme;
+    }
+
+    private void setLexemeIndex(int index, int lexemeIndex) {
+      int id = get(index);
+      if (id > 0) {
+        myPool.get(id).myLexemeIndex = lexemeIndex;
+      }
+      else {
+        ((StartMarker)myPool.get(-id)).myDoneLexeme = lexemeIndex;
+      }
+    }
+
+    @NotNull
+    private WhitespacesAndCommentsBinder getBinder(int index) {
+      int id = get(index);
+      WhitespacesAndCommentsBinder binder = myOptionalData.getBinder(Math.abs(id), id < 0);
+      if (binder != null) return binder;
+      return id > 0 && myPool.get(id) instanceof StartMarker ? WhitespacesBinders.DEFAULT_LEFT_BINDER : WhitespacesBinders.DEFAULT_RIGHT_BINDER;
+    }
+  }
+
+  /**
+   * The data only a few of the markers have, kept aside of the markers by their ids.
+   */
+  private static class MarkerOptionalData {
+    private final BitSet myCollapsed = new BitSet();
+    // messages of the markers done with an error, the message may be null
+    private final TIntObjectHashMap<String> myDoneErrors = new TIntObjectHashMap<>();
+    private final TIntObjectHashMap<WhitespacesAndCommentsBinder> myLeftBinders = new TIntObjectHashMap<>();
+    private final TIntObjectHashMap<WhitespacesAndCommentsBinder> myRightBinders = new TIntObjectHashMap<>();
+    private final TIntObjectHashMap<Throwable> myDebugAllocations = new TIntObjectHashMap<>();
+
+    private void clean(int id) {
+      myCollapsed.clear(id);
+      if (!myDoneErrors.isEmpty()) myDoneErrors.remove(id);
+      if (!myLeftBinders.isEmpty()) myLeftBinders.remove(id);
+      if (!myRightBinders.isEmpty()) myRightBinders.remove(id);
+      if (!myDebugAllocations.isEmpty()) myDebugAllocations.remove(id);
+    }
+
+    private void markCollapsed(int id) {
+      myCollapsed.set(id);
+    }
+
+    private boolean isCollapsed(int id) {
+      return myCollapsed.get(id);
+    }
+
+    private void setDoneError(int id, @Nullable String message) {
+      myDoneErrors.put(id, message);
+    }
+
+    private boolean isDoneWithError(int id) {
+      return myDoneErrors.containsKey(id);
+    }
+
+    @Nullable
+    private String getDoneError(int id) {
+      return myDoneErrors.get(id);
+    }
+
+    private void assignBinder(int id, @NotNull WhitespacesAndCommentsBinder binder, boolean right) {
+      (right ? myRightBinders : myLeftBinders).put(id, binder);
+    }
+
+    @Nullable
+    private WhitespacesAndCommentsBinder getBinder(int id, boolean right) {
+      return (right ? myRightBinders : myLeftBinders).get(id);
+    }
+
+    private void notifyAllocated(int id) {
+      myDebugAllocations.put(id, new Throwable("Created at the following trace."));
+    }
+
+    @Nullable
+    private Throwable getAllocationTrace(int id) {
+      return myDebugAllocations.get(id);
     }
   }
 
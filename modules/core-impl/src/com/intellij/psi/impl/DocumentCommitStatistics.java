@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Background document commits: the depth of the queue, sampled whenever a document is queued, and the distribution of the latency
+ * from queueing a document to applying its commit in EDT, in buckets of powers of two milliseconds.
+ * Commits cancelled by a write action or a newer change of the document are counted apart from the failed ones.
+ */
+public class DocumentCommitStatistics {
+  // bucket 0 is below 1 ms, bucket i is [2^(i-1), 2^i) ms, the last one is open-ended
+  private static final int BUCKETS = 20;
+
+  private final AtomicLong myQueuedCount = new AtomicLong();
+  private final AtomicLong myDepthSum = new AtomicLong();
+  private final AtomicInteger myMaxDepth = new AtomicInteger();
+  private final AtomicLong myCommittedCount = new AtomicLong();
+  private final AtomicLong myFailedCount = new AtomicLong();
+  private final AtomicLong myCancelledCount = new AtomicLong();
+  private final AtomicLongArray myLatencies = new AtomicLongArray(BUCKETS);
+
+  public void queued(int depth) {
+    myQueuedCount.incrementAndGet();
+    myDepthSum.addAndGet(depth);
+    int maxDepth;
+    while (depth > (maxDepth = myMaxDepth.get()) && !myMaxDepth.compareAndSet(maxDepth, depth)) ;
+  }
+
+  public void committed(long latencyNanos) {
+    myCommittedCount.incrementAndGet();
+    myLatencies.incrementAndGet(getBucket(TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+  }
+
+  public void failed() {
+    myFailedCount.incrementAndGet();
+  }
+
+  public void cancelled() {
+    myCancelledCount.incrementAndGet();
+  }
+
+  private static int getBucket(long millis) {
+    return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+  }
+
+  public long getQueuedCount() {
+    return myQueuedCount.get();
+  }
+
+  public int getMaxQueueDepth() {
+    return myMaxDepth.get();
+  }
+
+  public double getAverageQueueDepth() {
+    long queued = myQueuedCount.get();
+    return queued == 0 ? 0 : (double)myDepthSum.get() / queued;
+  }
+
+  public long getCommittedCount() {
+    return myCommittedCount.get();
+  }
+
+  public long getFailedCount() {
+    return myFailedCount.get();
+  }
+
+  public long getCancelledCount() {
+    return myCancelledCount.get();
+  }
+
+  /**
+   * @return the number of commits per latency bucket, bucket 0 is below 1 ms, bucket i is from 2^(i-1) to 2^i ms
+   */
+  @NotNull
+  public long[] getLatencyHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = myLatencies.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * @return the upper bound in milliseconds of the bucket the percentile of the latencies is in, or 0 if nothing was committed
+   */
+  public long getLatencyPercentile(double percentile) {
+    long[] histogram = getLatencyHistogram();
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    if (total == 0) return 0;
+
+    long rank = (long)Math.ceil(total * percentile / 100);
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += histogram[i];
+      if (cumulative >= rank) return 1L << i;
+    }
+    return 1L << BUCKETS - 1;
+  }
+
+  @Override
+  public String toString() {
+    return getQueuedCount() + " queued, depth average " + String.format("%.1f", getAverageQueueDepth()) + ", max " + getMaxQueueDepth() +
+           "; " + getCommittedCount() + " committed, " + getFailedCount() + " failed, " + getCancelledCount() +
+           " cancelled; latency p50 <" + getLatencyPercentile(50) +
+           " ms, p90 <" + getLatencyPercentile(90) + " ms, p99 <" + getLatencyPercentile(99) + " ms";
+  }
+}
@@ -49,10 +49,12 @@ import com.intellij.psi.text.BlockSupport;
 import com.intellij.util.ExceptionUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.HashSetQueue;
 import com.intellij.util.ui.UIUtil;
+import gnu.trove.TLongObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -63,6 +65,7 @@ import javax.swing.*;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -76,15 +79,26 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.DocumentCommitThread");
   private static final String SYNC_COMMIT_REASON = "Sync commit";
 
-  private final ExecutorService executor = new BoundedTaskExecutor("Document committing pool", PooledThreadExecutor.INSTANCE, 1, this);
+  // the documents are independent, so different documents are committed in parallel, a document by one thread at a time
+  private final int myCommitThreads =
+    SystemProperties.getIntProperty("idea.document.commit.threads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+  private final ExecutorService executor = new BoundedTaskExecutor("Document committing pool", PooledThreadExecutor.INSTANCE, myCommitThreads, this);
   private final Object lock = new Object();
   private final HashSetQueue<CommitTask> documentsToCommit = new HashSetQueue<>();      // guarded by lock
   private final HashSetQueue<CommitTask> documentsToApplyInEDT = new HashSetQueue<>();  // guarded by lock
   private final ApplicationEx myApplication;
   private volatile boolean isDisposed;
-  private CommitTask currentTask; // guarded by lock
+  private final Set<CommitTask> runningTasks = new HashSet<>(); // guarded by lock
+  private long nextTaskSequence; // the order the tasks are polled in, guarded by lock
   private boolean myEnabled; // true if we can do commits. set to false temporarily during the write action.  guarded by lock
 
+  private final Object publishLock = new Object();
+  // the tasks committed in background by their sequence, waiting for the tasks polled before them, guarded by publishLock
+  private final TLongObjectHashMap<Pair<CommitTask, Runnable>> finishedTasks = new TLongObjectHashMap<>();
+  private long nextPublishedSequence; // guarded by publishLock
+  private final DocumentCommitStatistics myStatistics = new DocumentCommitStatistics();
+
   public static DocumentCommitThread getInstance() {
     return (DocumentCommitThread)ServiceManager.getService(DocumentCommitProcessor.class);
   }
@@ -144,8 +158,13 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     }
   }
 
+  // cancels the commits in progress
   private void cancel(@NonNls @NotNull Object reason) {
-    startNewTask(null, reason);
+    synchronized (lock) {
+      for (CommitTask task : runningTasks) {
+        task.cancel(reason, this);
+      }
+    }
   }
 
   @Override
@@ -174,6 +193,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
                                                          lastCommittedText);
 
       documentsToCommit.offer(newTask);
+      myStatistics.queued(documentsToCommit.size());
       log(project, "Queued", newTask, reason);
 
       wakeUpQueue();
@@ -272,8 +292,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
       log(commitTask.project, "Removed from EDT apply queue (sync commit called)", commitTask);
     }
     documentsToApplyInEDT.clear();
-    CommitTask task = currentTask;
-    if (task != null) {
+    for (CommitTask task : runningTasks) {
       cancelAndRemoveFromDocsToCommit(task, reason);
     }
     cancel("Sync commit intervened");
@@ -288,11 +307,13 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     }
   }
 
+  // under lock
   private void cancelAndRemoveCurrentTask(@NotNull CommitTask newTask, @NotNull Object reason) {
-    CommitTask currentTask = this.currentTask;
-    if (currentTask != null && currentTask.equals(newTask)) {
-      cancelAndRemoveFromDocsToCommit(currentTask, reason);
-      cancel(reason);
+    for (CommitTask runningTask : runningTasks) {
+      if (runningTask.equals(newTask)) {
+        cancelAndRemoveFromDocsToCommit(runningTask, reason);
+        runningTask.cancel(reason, this);
+      }
     }
   }
 
@@ -336,14 +357,17 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
   private boolean pollQueue() {
     assert !myApplication.isDispatchThread() : Thread.currentThread();
     boolean success = false;
+    boolean cancelled = false;
     Document document = null;
     Project project = null;
     CommitTask task = null;
     Object failureReason = null;
+    long sequence = -1;
+    Runnable finishRunnable = null;
     try {
       ProgressIndicator indicator;
       synchronized (lock) {
-        if (!myEnabled || (task = documentsToCommit.poll()) == null) {
+        if (!myEnabled || (task = pollTask()) == null) {
           return false;
         }
 
@@ -360,7 +384,8 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
           return true; // document has been marked as removed, e.g. by synchronous commit
         }
 
-        startNewTask(task, "Pulled new task");
+        runningTasks.add(task);
+        sequence = nextTaskSequence++;
 
         // transfer to documentsToApplyInEDT
         documentsToApplyInEDT.add(task);
@@ -368,33 +393,46 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
 
       if (indicator.isCanceled()) {
         success = false;
+        cancelled = true;
       }
       else {
         final CommitTask commitTask = task;
         final Ref<Pair<Runnable, Object>> result = new Ref<>();
         ProgressManager.getInstance().executeProcessUnderProgress(() -> result.set(commitUnderProgress(commitTask, false)), indicator);
-        final Runnable finishRunnable = result.get().first;
+        finishRunnable = result.get().first;
         success = finishRunnable != null;
+        cancelled = !success && indicator.isCanceled();
         failureReason = result.get().second;
-
-        if (success) {
-          assert !myApplication.isDispatchThread();
-          TransactionGuardImpl guard = (TransactionGuardImpl)TransactionGuard.getInstance();
-          guard.submitTransaction(project, task.myCreationContext, finishRunnable);
-        }
       }
     }
     catch (ProcessCanceledException e) {
-      cancel(e + " (cancel reason: "+((UserDataHolder)task.indicator).getUserData(CANCEL_REASON)+")"); // leave queue unchanged
+      task.cancel(e + " (cancel reason: "+((UserDataHolder)task.indicator).getUserData(CANCEL_REASON)+")", this); // leave queue unchanged
       success = false;
+      cancelled = true;
       failureReason = e;
     }
     catch (Throwable e) {
-      cancel(e);
+      if (task != null) {
+        task.cancel(e, this);
+      }
       failureReason = ExceptionUtil.getThrowableText(e);
     }
 
+    if (sequence >= 0) {
+      publish(sequence, task, success ? finishRunnable : null);
+      synchronized (lock) {
+        runningTasks.remove(task); // do not cancel, it's being invokeLatered
+      }
+    }
+
     if (!success && task != null) {
+      // a write action or a newer commit of the document cancels the task, it's not a failure of committing
+      if (cancelled) {
+        myStatistics.cancelled();
+      }
+      else {
+        myStatistics.failed();
+      }
       final Project finalProject = project;
       final Document finalDocument = document;
       Object finalFailureReason = failureReason;
@@ -413,13 +451,39 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
         }
       });
     }
-    synchronized (lock) {
-      currentTask = null; // do not cancel, it's being invokeLatered
-    }
 
     return true;
   }
 
+  // under lock: the first queued task whose document isn't being committed by another thread
+  @Nullable
+  private CommitTask pollTask() {
+    for (HashSetQueue.PositionalIterator<CommitTask> iterator = documentsToCommit.iterator(); iterator.hasNext(); ) {
+      CommitTask task = iterator.next();
+      if (!runningTasks.contains(task)) {
+        iterator.remove();
+        return task;
+      }
+    }
+    return null;
+  }
+
+  // the commits are finished in EDT in the order their tasks were polled in, not in the order the threads complete them
+  private void publish(long sequence, @NotNull CommitTask task, @Nullable Runnable finishRunnable) {
+    assert !myApplication.isDispatchThread();
+    synchronized (publishLock) {
+      finishedTasks.put(sequence, Pair.create(task, finishRunnable));
+      Pair<CommitTask, Runnable> next;
+      while ((next = finishedTasks.remove(nextPublishedSequence)) != null) {
+        nextPublishedSequence++;
+        if (next.second != null) {
+          TransactionGuardImpl guard = (TransactionGuardImpl)TransactionGuard.getInstance();
+          guard.submitTransaction(next.first.project, next.first.myCreationContext, next.second);
+        }
+      }
+    }
+  }
+
   @Override
   public void commitSynchronously(@NotNull Document document, @NotNull Project project, @NotNull PsiFile psiFile) {
     assert !isDisposed;
@@ -480,16 +544,6 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     return new StandardProgressIndicatorBase();
   }
 
-  private void startNewTask(@Nullable CommitTask task, @NotNull Object reason) {
-    synchronized (lock) { // sync to prevent overwriting
-      CommitTask cur = currentTask;
-      if (cur != null) {
-        cur.cancel(reason, this);
-      }
-      currentTask = task;
-    }
-  }
-
   // returns (finish commit Runnable (to be invoked later in EDT), null) on success or (null, failure reason) on failure
   @NotNull
   private Pair<Runnable, Object> commitUnderProgress(@NotNull final CommitTask task, final boolean synchronously) {
@@ -601,6 +655,9 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
         assert !documentManager.isInUncommittedSet(document);
       }
       if (success) {
+        if (!synchronously) {
+          myStatistics.committed(System.nanoTime() - task.myCreationNanos);
+        }
         log(project, "Commit finished", task);
       }
       else {
@@ -624,6 +681,29 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     };
   }
 
+  /**
+   * @return the number of the documents waiting to be committed in background
+   */
+  public int getQueueDepth() {
+    synchronized (lock) {
+      return documentsToCommit.size();
+    }
+  }
+
+  /**
+   * @return the number of the documents being committed in background at the moment
+   */
+  public int getRunningCount() {
+    synchronized (lock) {
+      return runningTasks.size();
+    }
+  }
+
+  @NotNull
+  public DocumentCommitStatistics getStatistics() {
+    return myStatistics;
+  }
+
   boolean isEnabled() {
     synchronized (lock) {
       return myEnabled;
@@ -645,7 +725,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
   }
 
   private static final Key<Object> CANCEL_REASON = Key.create("CANCEL_REASON");
-  private class CommitTask {
+  class CommitTask {
     @NotNull private final Document document;
     @NotNull final Project project;
     private final int modificationSequence; // store initial document modification sequence here to check if it changed later before commit in EDT
@@ -658,6 +738,7 @@ public class DocumentCommitThread implements Runnable, Disposable, DocumentCommi
     @Nullable final TransactionId myCreationContext;
     private final CharSequence myLastCommittedText;
     @NotNull final List<Pair<PsiFileImpl, FileASTNode>> myOldFileNodes;
+    private final long myCreationNanos = System.nanoTime();
 
     CommitTask(@NotNull final Project project,
                @NotNull final Document document,
@@ -18,6 +18,7 @@ package com.intellij.psi.impl.source;
 
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.CharTable;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.StringFactory;
 import gnu.trove.TIntObjectHashMap;
@@ -34,7 +35,20 @@ public class CharTableImpl implements CharTable {
   private static final int INTERN_THRESHOLD = 40; // 40 or more characters long tokens won't be interned.
 
   private static final StringHashToCharSequencesMap STATIC_ENTRIES = newStaticSet();
+  // the same identifiers are used across many files, the tables of all the files may share their texts
+  private static final SharedTokenInterner SHARED_ENTRIES = SystemProperties.getBooleanProperty("idea.shared.char.table", false)
+                                                            ? new SharedTokenInterner(SystemProperties.getIntProperty("idea.shared.char.table.capacity", 64 * 1024))
+                                                            : null;
   private final StringHashToCharSequencesMap entries = new StringHashToCharSequencesMap(10, 0.9f);
+  @Nullable private final SharedTokenInterner mySharedEntries;
+
+  public CharTableImpl() {
+    this(SHARED_ENTRIES);
+  }
+
+  CharTableImpl(@Nullable SharedTokenInterner sharedEntries) {
+    mySharedEntries = sharedEntries;
+  }
 
   @NotNull
   @Override
@@ -54,9 +68,23 @@ public class CharTableImpl implements CharTable {
       return interned;
     }
 
+    if (mySharedEntries == null) {
+      synchronized(entries) {
+        // We need to create separate string just to prevent referencing all character data when original is string or char sequence over string
+        return entries.getOrAddSubSequenceWithHashCode(hashCode, text, startOffset, endOffset);
+      }
+    }
+
+    synchronized(entries) {
+      interned = entries.getSubSequenceWithHashCode(hashCode, text, startOffset, endOffset);
+      if (interned != null) {
+        return interned;
+      }
+    }
+    String shared = mySharedEntries.intern(hashCode, text, startOffset, endOffset);
     synchronized(entries) {
-      // We need to create separate string just to prevent referencing all character data when original is string or char sequence over string
-      return entries.getOrAddSubSequenceWithHashCode(hashCode, text, startOffset, endOffset);
+      // the substring of the whole shared text is the shared text itself
+      return entries.getOrAddSubSequenceWithHashCode(hashCode, shared, 0, shared.length());
     }
   }
 
@@ -82,7 +110,7 @@ public class CharTableImpl implements CharTable {
   }
 
   @NotNull
-  private static String createSequence(@NotNull CharSequence text, int startOffset, int endOffset) {
+  static String createSequence(@NotNull CharSequence text, int startOffset, int endOffset) {
     if (text instanceof String) {
       return ((String)text).substring(startOffset, endOffset);
     }
@@ -230,13 +258,13 @@ public class CharTableImpl implements CharTable {
       Object o = get(hashCode);
       if (o == null) return null;
       if (o instanceof CharSequence) {
-        if (charSequenceSubSequenceEquals((CharSequence)o, sequence, startOffset, endOffset)) {
+        if (subSequenceEquals((CharSequence)o, sequence, startOffset, endOffset)) {
           return (CharSequence)o;
         }
         return null;
       } else if (o instanceof CharSequence[]) {
         for(CharSequence cs:(CharSequence[])o) {
-          if (charSequenceSubSequenceEquals(cs, sequence, startOffset, endOffset)) {
+          if (subSequenceEquals(cs, sequence, startOffset, endOffset)) {
             return cs;
           }
         }
@@ -246,15 +274,6 @@ public class CharTableImpl implements CharTable {
       return null;
     }
 
-    private static boolean charSequenceSubSequenceEquals(CharSequence cs, CharSequence baseSequence, int startOffset, int endOffset) {
-      if (cs.length() != endOffset - startOffset) return false;
-      if (cs == baseSequence && startOffset == 0) return true;
-      for(int i = 0, len = cs.length(); i < len; ++i) {
-        if (cs.charAt(i) != baseSequence.charAt(startOffset + i)) return false;
-      }
-      return true;
-    }
-
     CharSequence get(CharSequence sequence) {
       return get(sequence, 0, sequence.length());
     }
@@ -278,14 +297,14 @@ public class CharTableImpl implements CharTable {
         Object value = _values[index];
         if (value instanceof CharSequence) {
           CharSequence existingSequence = (CharSequence)value;
-          if (charSequenceSubSequenceEquals(existingSequence, sequence, startOffset, endOffset)) {
+          if (subSequenceEquals(existingSequence, sequence, startOffset, endOffset)) {
             return existingSequence;
           }
           put(hashCode, new CharSequence[] {existingSequence, addedSequence = createSequence(sequence, startOffset, endOffset)});
         } else if (value instanceof CharSequence[]) {
           CharSequence[] existingSequenceArray = (CharSequence[])value;
           for(CharSequence cs:existingSequenceArray) {
-            if (charSequenceSubSequenceEquals(cs, sequence, startOffset, endOffset)) {
+            if (subSequenceEquals(cs, sequence, startOffset, endOffset)) {
               return cs;
             }
           }
@@ -301,6 +320,15 @@ public class CharTableImpl implements CharTable {
     }
   }
 
+  static boolean subSequenceEquals(CharSequence cs, CharSequence baseSequence, int startOffset, int endOffset) {
+    if (cs.length() != endOffset - startOffset) return false;
+    if (cs == baseSequence && startOffset == 0) return true;
+    for(int i = 0, len = cs.length(); i < len; ++i) {
+      if (cs.charAt(i) != baseSequence.charAt(startOffset + i)) return false;
+    }
+    return true;
+  }
+
   private static int subSequenceHashCode(CharSequence sequence, int startOffset, int endOffset) {
     if (startOffset == 0 && endOffset == sequence.length()) {
       return StringUtil.stringHashCode(sequence);
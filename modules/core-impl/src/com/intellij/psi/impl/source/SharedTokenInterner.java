@@ -0,0 +1,176 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source;
+
+import com.intellij.openapi.util.LowMemoryWatcher;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Interns the token texts of the char tables of all the files, so an identifier used in thousands of files is kept once.
+ * The texts are referenced weakly and the interner is split into stripes with a lock each. A stripe is cleared when it
+ * grows over its share of the capacity or when the memory is low: the texts interned before stay valid,
+ * they just aren't shared with the ones interned after.
+ */
+class SharedTokenInterner {
+  private static final int STRIPES = 16;
+
+  private final Stripe[] myStripes = new Stripe[STRIPES];
+  private final int myStripeCapacity;
+  // LowMemoryWatcher relies on field holding it
+  @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})
+  private final LowMemoryWatcher myLowMemoryWatcher;
+
+  SharedTokenInterner(int capacity) {
+    for (int i = 0; i < STRIPES; i++) {
+      myStripes[i] = new Stripe();
+    }
+    myStripeCapacity = Math.max(capacity / STRIPES, 1);
+    myLowMemoryWatcher = LowMemoryWatcher.register(this::clear);
+  }
+
+  /**
+   * @param hashCode the {@link com.intellij.openapi.util.text.StringUtil#stringHashCode} of the text
+   */
+  @NotNull
+  String intern(int hashCode, @NotNull CharSequence text, int startOffset, int endOffset) {
+    Stripe stripe = myStripes[hashCode & (STRIPES - 1)];
+    synchronized (stripe) {
+      return stripe.intern(hashCode, text, startOffset, endOffset, myStripeCapacity);
+    }
+  }
+
+  int size() {
+    int size = 0;
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        stripe.processQueue();
+        size += stripe.mySize;
+      }
+    }
+    return size;
+  }
+
+  void clear() {
+    for (Stripe stripe : myStripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  private static class TextRef extends WeakReference<String> {
+    private final int myHashCode;
+
+    TextRef(@NotNull String text, int hashCode, @NotNull ReferenceQueue<String> queue) {
+      super(text, queue);
+      myHashCode = hashCode;
+    }
+  }
+
+  private static class Stripe {
+    // a TextRef or an array of them per hash code
+    private final TIntObjectHashMap<Object> myRefs = new TIntObjectHashMap<>();
+    private final ReferenceQueue<String> myQueue = new ReferenceQueue<>();
+    private int mySize;
+
+    @NotNull
+    private String intern(int hashCode, @NotNull CharSequence text, int startOffset, int endOffset, int capacity) {
+      processQueue();
+
+      Object value = myRefs.get(hashCode);
+      if (value instanceof TextRef) {
+        String existing = find((TextRef)value, text, startOffset, endOffset);
+        if (existing != null) return existing;
+      }
+      else if (value != null) {
+        for (TextRef ref : (TextRef[])value) {
+          String existing = find(ref, text, startOffset, endOffset);
+          if (existing != null) return existing;
+        }
+      }
+
+      if (mySize >= capacity) {
+        clear();
+        value = null;
+      }
+
+      String added = CharTableImpl.createSequence(text, startOffset, endOffset);
+      TextRef ref = new TextRef(added, hashCode, myQueue);
+      if (value == null) {
+        myRefs.put(hashCode, ref);
+      }
+      else if (value instanceof TextRef) {
+        myRefs.put(hashCode, new TextRef[]{(TextRef)value, ref});
+      }
+      else {
+        TextRef[] refs = (TextRef[])value;
+        TextRef[] newRefs = new TextRef[refs.length + 1];
+        System.arraycopy(refs, 0, newRefs, 0, refs.length);
+        newRefs[refs.length] = ref;
+        myRefs.put(hashCode, newRefs);
+      }
+      mySize++;
+      return added;
+    }
+
+    @Nullable
+    private static String find(@NotNull TextRef ref, @NotNull CharSequence text, int startOffset, int endOffset) {
+      String existing = ref.get();
+      return existing != null && CharTableImpl.subSequenceEquals(existing, text, startOffset, endOffset) ? existing : null;
+    }
+
+    // the references enqueued after the stripe was cleared are not in the map anymore and are skipped
+    private void processQueue() {
+      TextRef ref;
+      while ((ref = (TextRef)myQueue.poll()) != null) {
+        Object value = myRefs.get(ref.myHashCode);
+        if (value == ref) {
+          myRefs.remove(ref.myHashCode);
+          mySize--;
+        }
+        else if (value instanceof TextRef[]) {
+          TextRef[] refs = (TextRef[])value;
+          int index = -1;
+          for (int i = 0; i < refs.length; i++) {
+            if (refs[i] == ref) index = i;
+          }
+          if (index < 0) continue;
+
+          if (refs.length == 2) {
+            myRefs.put(ref.myHashCode, refs[1 - index]);
+          }
+          else {
+            TextRef[] newRefs = new TextRef[refs.length - 1];
+            System.arraycopy(refs, 0, newRefs, 0, index);
+            System.arraycopy(refs, index + 1, newRefs, index, newRefs.length - index);
+            myRefs.put(ref.myHashCode, newRefs);
+          }
+          mySize--;
+        }
+      }
+    }
+
+    private void clear() {
+      myRefs.clear();
+      mySize = 0;
+    }
+  }
+}
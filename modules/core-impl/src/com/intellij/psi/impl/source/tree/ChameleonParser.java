@@ -0,0 +1,122 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.tree;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.SystemProperties;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the collapsed chameleons ({@link LazyParseableElement}s) of a file up front, the independent ones concurrently,
+ * so the code walking the whole tree right after (e.g. highlighting) doesn't parse them one by one on its own thread.
+ * The chameleons are parsed level by level: the ones revealed by parsing the outer chameleons go into the next round.
+ */
+public class ChameleonParser {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.tree.ChameleonParser");
+  private static final boolean ourConcurrent = SystemProperties.getBooleanProperty("idea.concurrent.chameleon.parsing", true);
+  // the chameleons of less text in total are parsed faster than the tasks are scheduled
+  private static final int MIN_CONCURRENT_TEXT_LENGTH = 16 * 1024;
+
+  private ChameleonParser() {
+  }
+
+  /**
+   * Parses the chameleons of all the roots of the view provider of the file.
+   */
+  public static void parseAll(@NotNull PsiFile file, @NotNull ProgressIndicator indicator) {
+    for (PsiFile root : file.getViewProvider().getAllFiles()) {
+      ASTNode node = root.getNode();
+      if (node instanceof FileElement) {
+        parseAll((FileElement)node, indicator);
+      }
+    }
+  }
+
+  /**
+   * Parses the chameleons of the file tree, must be called in a read action.
+   * If a write action comes before they are all parsed, the rest of them stay collapsed and are parsed on access as usual.
+   */
+  public static void parseAll(@NotNull FileElement file, @NotNull ProgressIndicator indicator) {
+    parseAll(file, indicator, JobLauncher.getInstance());
+  }
+
+  static void parseAll(@NotNull FileElement file, @NotNull ProgressIndicator indicator, @NotNull JobLauncher launcher) {
+    ApplicationManager.getApplication().assertReadAccessAllowed();
+
+    file.getFirstChildNode();
+    List<LazyParseableElement> chameleons = new ArrayList<>();
+    collectCollapsed(file, chameleons);
+    while (!chameleons.isEmpty()) {
+      indicator.checkCanceled();
+      if (ourConcurrent && chameleons.size() > 1 && getTextLength(chameleons) >= MIN_CONCURRENT_TEXT_LENGTH) {
+        boolean completed = launcher.invokeConcurrentlyUnderProgress(chameleons, indicator, true, chameleon -> {
+          chameleon.getFirstChildNode();
+          return true;
+        });
+        if (!completed) {
+          LOG.debug("Chameleon parsing interrupted in " + file);
+          return;
+        }
+      }
+      else {
+        for (LazyParseableElement chameleon : chameleons) {
+          chameleon.getFirstChildNode();
+        }
+      }
+
+      List<LazyParseableElement> nested = new ArrayList<>();
+      for (LazyParseableElement chameleon : chameleons) {
+        collectCollapsed(chameleon, nested);
+      }
+      chameleons = nested;
+    }
+  }
+
+  // walks the parsed part of the tree only, so nothing is parsed while collecting
+  static void collectCollapsed(@NotNull CompositeElement root, @NotNull List<LazyParseableElement> result) {
+    TreeElement element = root.rawFirstChild();
+    while (element != null) {
+      if (element instanceof LazyParseableElement && !((LazyParseableElement)element).isParsed()) {
+        result.add((LazyParseableElement)element);
+      }
+      else if (element instanceof CompositeElement && ((CompositeElement)element).rawFirstChild() != null) {
+        element = ((CompositeElement)element).rawFirstChild();
+        continue;
+      }
+
+      while (element != root && element.getTreeNext() == null) {
+        element = element.getTreeParent();
+      }
+      element = element == root ? null : element.getTreeNext();
+    }
+  }
+
+  private static int getTextLength(@NotNull List<LazyParseableElement> chameleons) {
+    int length = 0;
+    for (LazyParseableElement chameleon : chameleons) {
+      length += chameleon.getTextLength();
+    }
+    return length;
+  }
+}
@@ -26,14 +26,17 @@ import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.*;
 import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.CommonProcessors;
 import com.intellij.util.Consumer;
 import com.intellij.util.Processor;
 import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -110,6 +113,37 @@ public abstract class FileBasedIndex implements BaseComponent {
                                                                @Nullable Condition<V> valueChecker,
                                                                @NotNull Processor<VirtualFile> processor);
 
+  /**
+   * Processes the files satisfying all the queries, which may be against different indices.
+   * Implementations may evaluate the queries in parallel and process the files in any order.
+   *
+   * @return false if processor.process() returned false; true otherwise or if processor was not called at all
+   */
+  public boolean processFilesContainingAllKeys(@NotNull Collection<AllKeysQuery<?, ?>> queries,
+                                               @NotNull GlobalSearchScope filter,
+                                               @NotNull Processor<VirtualFile> processor) {
+    Set<VirtualFile> files = null;
+    for (AllKeysQuery<?, ?> query : queries) {
+      Set<VirtualFile> queryFiles = collectFilesContainingAllKeys(query, filter);
+      if (files == null) {
+        files = queryFiles;
+      }
+      else {
+        files.retainAll(queryFiles);
+      }
+      if (files.isEmpty()) return true;
+    }
+    return files == null || ContainerUtil.process(files, processor);
+  }
+
+  @NotNull
+  private <K, V> Set<VirtualFile> collectFilesContainingAllKeys(@NotNull AllKeysQuery<K, V> query, @NotNull GlobalSearchScope filter) {
+    Set<VirtualFile> files = new HashSet<VirtualFile>();
+    processFilesContainingAllKeys(query.getIndexId(), query.getDataKeys(), filter, query.getValueChecker(),
+                                  new CommonProcessors.CollectProcessor<VirtualFile>(files));
+    return files;
+  }
+
   /**
    * @param project it is guaranteed to return data which is up-to-date withing the project
    *                Keys obtained from the files which do not belong to the project specified may not be up-to-date or even exist
@@ -192,6 +226,37 @@ public abstract class FileBasedIndex implements BaseComponent {
     boolean process(VirtualFile file, V value);
   }
 
+  /**
+   * A term of {@link #processFilesContainingAllKeys(Collection, GlobalSearchScope, Processor)}: the files having all the keys in the index,
+   * with values accepted by the checker.
+   */
+  public static final class AllKeysQuery<K, V> {
+    @NotNull private final ID<K, V> myIndexId;
+    @NotNull private final Collection<K> myDataKeys;
+    @Nullable private final Condition<V> myValueChecker;
+
+    public AllKeysQuery(@NotNull ID<K, V> indexId, @NotNull Collection<K> dataKeys, @Nullable Condition<V> valueChecker) {
+      myIndexId = indexId;
+      myDataKeys = dataKeys;
+      myValueChecker = valueChecker;
+    }
+
+    @NotNull
+    public ID<K, V> getIndexId() {
+      return myIndexId;
+    }
+
+    @NotNull
+    public Collection<K> getDataKeys() {
+      return myDataKeys;
+    }
+
+    @Nullable
+    public Condition<V> getValueChecker() {
+      return myValueChecker;
+    }
+  }
+
   /**
    * Author: dmitrylomov
    */
@@ -35,6 +35,7 @@ import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import consulo.annotations.RequiredReadAction;
 import gnu.trove.TIntArrayList;
@@ -42,6 +43,8 @@ import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
@@ -286,6 +289,57 @@ public class LowLevelSearchUtil {
     return true;
   }
 
+  /**
+   * @return a searcher for {@link #cacheTextOccurrences} to find the occurrences of all the given searchers in one pass,
+   * or null if less than two of them can be searched so
+   */
+  @Nullable
+  static MultiStringSearcher createMultiSearcher(@NotNull Collection<StringSearcher> searchers) {
+    List<StringSearcher> applicable = new ArrayList<>();
+    for (StringSearcher searcher : searchers) {
+      if (MultiStringSearcher.isApplicable(searcher) && !applicable.contains(searcher)) {
+        applicable.add(searcher);
+      }
+    }
+    return applicable.size() < 2 ? null : new MultiStringSearcher(applicable);
+  }
+
+  /**
+   * Finds the occurrences of the searchers in the whole text in one pass and caches them, so the following
+   * {@link #getTextOccurrencesInScope} calls for these searchers don't scan the text once per searcher.
+   * The multi searcher can be reused for many texts.
+   */
+  static void cacheTextOccurrences(@NotNull CharSequence text,
+                                   @NotNull MultiStringSearcher multiSearcher,
+                                   @Nullable ProgressIndicator progress) {
+    List<StringSearcher> searchers = multiSearcher.getSearchers();
+    Map<StringSearcher, int[]> cachedMap = cache.get(text);
+    if (cachedMap != null && ContainerUtil.and(searchers, searcher -> hasOccurrencesInWholeText(text, cachedMap.get(searcher)))) {
+      return;
+    }
+
+    if (progress != null) progress.checkCanceled();
+    int[][] occurrences = multiSearcher.findAllOccurrences(text, 0, text.length());
+    Map<StringSearcher, int[]> map = cachedMap != null ? cachedMap : ConcurrencyUtil.cacheOrGet(cache, text, ContainerUtil.createConcurrentSoftMap());
+    for (int i = 0; i < searchers.size(); i++) {
+      StringSearcher searcher = searchers.get(i);
+      if (hasOccurrencesInWholeText(text, map.get(searcher))) continue;
+      TIntArrayList checked = new TIntArrayList(occurrences[i].length + 2);
+      checked.add(0);
+      checked.add(text.length());
+      for (int index : occurrences[i]) {
+        if (checkJavaIdentifier(text, 0, text.length(), searcher, index)) {
+          checked.add(index);
+        }
+      }
+      map.put(searcher, checked.toNativeArray());
+    }
+  }
+
+  private static boolean hasOccurrencesInWholeText(@NotNull CharSequence text, @Nullable int[] cachedOccurrences) {
+    return cachedOccurrences != null && cachedOccurrences[0] == 0 && cachedOccurrences[1] >= text.length();
+  }
+
   private static int[] getTextOccurrences(@NotNull CharSequence text,
                                           int startOffset,
                                           int endOffset,
@@ -53,6 +53,7 @@ import com.intellij.util.codeInsight.CommentUtilCore;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.text.MultiStringSearcher;
 import com.intellij.util.text.StringSearcher;
 import gnu.trove.THashMap;
 import gnu.trove.THashSet;
@@ -61,6 +62,10 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -68,6 +73,7 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.search.PsiSearchHelperImpl");
   private final PsiManagerEx myManager;
   private final DumbService myDumbService;
+  private final TextSearchStatistics myStatistics = new TextSearchStatistics();
 
   public enum Options {
     PROCESS_INJECTED_PSI, CASE_SENSITIVE_SEARCH, PROCESS_ONLY_JAVA_IDENTIFIERS_IF_POSSIBLE
@@ -302,13 +308,19 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
                                       @NotNull final ProgressIndicator progress,
                                       @NotNull final Processor<? super PsiFile> localProcessor) {
     myManager.startBatchFilesProcessingMode();
+    TextSearchStatistics statistics = new TextSearchStatistics();
+    ContentPrefetcher prefetcher = new ContentPrefetcher(files, progress, statistics);
+    long started = System.nanoTime();
     try {
       final AtomicInteger counter = new AtomicInteger(alreadyProcessedFiles);
       final AtomicBoolean canceled = new AtomicBoolean(false);
 
-      return processFilesConcurrentlyDespiteWriteActions(myManager.getProject(), files, progress, vfile -> {
+      prefetcher.start();
+      return processFilesConcurrentlyDespiteWriteActions(myManager.getProject(), files, progress, statistics, vfile -> {
         TooManyUsagesStatus.getFrom(progress).pauseProcessingIfTooManyUsages();
         processVirtualFile(vfile, progress, localProcessor, canceled);
+        prefetcher.fileProcessed();
+        statistics.fileScanned(vfile.getLength());
         if (progress.isRunning()) {
           double fraction = (double)counter.incrementAndGet() / totalSize;
           progress.setFraction(fraction);
@@ -317,10 +329,88 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       });
     }
     finally {
+      prefetcher.stop();
+      statistics.timeSpent(System.nanoTime() - started);
+      myStatistics.add(statistics);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Text search: " + statistics);
+      }
       myManager.finishBatchFilesProcessingMode();
     }
   }
 
+  /**
+   * @return the throughput of all the text occurrence searches in candidate files of the project so far
+   */
+  @NotNull
+  public TextSearchStatistics getStatistics() {
+    return myStatistics;
+  }
+
+  /**
+   * Loads the contents of the files into VFS on a pooled thread, at most {@link #PREFETCH_AHEAD} files ahead of the threads
+   * scanning them, so the scanning threads rarely wait for the disk while holding a read action.
+   * It only reads the files in their order and stops when the search is finished or cancelled.
+   */
+  static class ContentPrefetcher implements Runnable {
+    static final int PREFETCH_AHEAD = 64;
+
+    private final List<VirtualFile> myFiles;
+    private final ProgressIndicator myProgress;
+    private final TextSearchStatistics myStatistics;
+    private final Semaphore myPermits = new Semaphore(PREFETCH_AHEAD);
+    private volatile boolean myStopped;
+    private Future<?> myFuture;
+
+    ContentPrefetcher(@NotNull List<VirtualFile> files, @NotNull ProgressIndicator progress, @NotNull TextSearchStatistics statistics) {
+      myFiles = files;
+      myProgress = progress;
+      myStatistics = statistics;
+    }
+
+    private boolean isStopped() {
+      return myStopped || myProgress.isCanceled();
+    }
+
+    void start() {
+      if (myFiles.size() > 1) {
+        myFuture = ApplicationManager.getApplication().executeOnPooledThread(this);
+      }
+    }
+
+    void fileProcessed() {
+      myPermits.release();
+    }
+
+    void stop() {
+      myStopped = true;
+      if (myFuture != null) myFuture.cancel(false);
+    }
+
+    @Override
+    public void run() {
+      FileDocumentManager documentManager = FileDocumentManager.getInstance();
+      try {
+        for (VirtualFile file : myFiles) {
+          while (!myPermits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+            if (isStopped()) return;
+          }
+          if (isStopped()) return;
+          if (!file.isValid() || file.isDirectory() || documentManager.getCachedDocument(file) != null) continue;
+          try {
+            // cache bytes in vfs
+            file.contentsToByteArray();
+            myStatistics.filePrefetched();
+          }
+          catch (IOException ignored) {
+          }
+        }
+      }
+      catch (InterruptedException ignored) {
+      }
+    }
+  }
+
   // Tries to run {@code localProcessor} for each file in {@code files} concurrently on ForkJoinPool.
   // When encounters write action request, stops all threads, waits for write action to finish and re-starts all threads again.
   // {@localProcessor} must be as idempotent as possible.
@@ -328,6 +418,14 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
                                                                     @NotNull List<VirtualFile> files,
                                                                     @NotNull final ProgressIndicator progress,
                                                                     @NotNull final Processor<VirtualFile> localProcessor) {
+    return processFilesConcurrentlyDespiteWriteActions(project, files, progress, null, localProcessor);
+  }
+
+  private static boolean processFilesConcurrentlyDespiteWriteActions(@NotNull Project project,
+                                                                     @NotNull List<VirtualFile> files,
+                                                                     @NotNull final ProgressIndicator progress,
+                                                                     @Nullable TextSearchStatistics statistics,
+                                                                     @NotNull final Processor<VirtualFile> localProcessor) {
     ApplicationEx app = (ApplicationEx)ApplicationManager.getApplication();
     final AtomicBoolean canceled = new AtomicBoolean(false);
 
@@ -367,6 +465,9 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       if (failedFiles.isEmpty()) {
         break;
       }
+      if (statistics != null) {
+        statistics.filesYielded(failedList.size());
+      }
       // we failed to run read action in job launcher thread
       // run read action in our thread instead to wait for a write action to complete and resume parallel processing
       DumbService.getInstance(project).runReadActionInSmartMode(EmptyRunnable.getInstance());
@@ -692,10 +793,19 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
                                     int totalSize,
                                     int alreadyProcessedFiles) {
     List<VirtualFile> files = new ArrayList<>(candidateFiles.keySet());
+    // scan a file once for all the words rather than once per word, with a searcher built once for each distinct set of requests
+    ConcurrentMap<Set<RequestWithProcessor>, Optional<MultiStringSearcher>> multiSearchers = ContainerUtil.newConcurrentMap();
 
     return processPsiFileRoots(files, totalSize, alreadyProcessedFiles, progress, psiRoot -> {
       final VirtualFile vfile = psiRoot.getVirtualFile();
-      for (final RequestWithProcessor singleRequest : candidateFiles.get(vfile)) {
+      Collection<RequestWithProcessor> requests = candidateFiles.get(vfile);
+      if (requests.size() > 1 && !(psiRoot instanceof PsiCompiledElement)) {
+        MultiStringSearcher multiSearcher = multiSearchers.computeIfAbsent(new HashSet<>(requests), PsiSearchHelperImpl::createMultiSearcher).orElse(null);
+        if (multiSearcher != null) {
+          LowLevelSearchUtil.cacheTextOccurrences(psiRoot.getViewProvider().getContents(), multiSearcher, progress);
+        }
+      }
+      for (final RequestWithProcessor singleRequest : requests) {
         Processor<PsiElement> localProcessor = localProcessors.get(singleRequest);
         if (!localProcessor.process(psiRoot)) {
           return false;
@@ -874,7 +984,7 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     for (Map.Entry<Set<IdIndexEntry>, Collection<RequestWithProcessor>> entry : globals.entrySet()) {
       for (RequestWithProcessor singleRequest : entry.getValue()) {
         PsiSearchRequest primitive = singleRequest.request;
-        StringSearcher searcher = new StringSearcher(primitive.word, primitive.caseSensitive, true, false);
+        StringSearcher searcher = createSearcher(primitive);
         BulkOccurrenceProcessor adapted = adaptProcessor(primitive, singleRequest.refProcessor);
 
         Processor<PsiElement> localProcessor = localProcessor(adapted, progress, searcher);
@@ -885,6 +995,20 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     }
   }
 
+  @NotNull
+  private static Optional<MultiStringSearcher> createMultiSearcher(@NotNull Collection<RequestWithProcessor> requests) {
+    List<StringSearcher> searchers = new ArrayList<>(requests.size());
+    for (RequestWithProcessor singleRequest : requests) {
+      searchers.add(createSearcher(singleRequest.request));
+    }
+    return Optional.ofNullable(LowLevelSearchUtil.createMultiSearcher(searchers));
+  }
+
+  @NotNull
+  private static StringSearcher createSearcher(@NotNull PsiSearchRequest request) {
+    return new StringSearcher(request.word, request.caseSensitive, true, false);
+  }
+
   private static void registerRequest(@NotNull Collection<RequestWithProcessor> collection,
                                       @NotNull PsiSearchRequest primitive,
                                       @NotNull Processor<PsiReference> processor) {
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.search;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the text occurrence search over the candidate files: the files and bytes scanned, the time spent,
+ * the contents prefetched ahead of the scanning threads and the files given up to a pending write action and retried.
+ */
+public class TextSearchStatistics {
+  private final AtomicLong myFileCount = new AtomicLong();
+  private final AtomicLong myByteCount = new AtomicLong();
+  private final AtomicLong myPrefetchedCount = new AtomicLong();
+  private final AtomicLong myYieldedCount = new AtomicLong();
+  private final AtomicLong myTimeNanos = new AtomicLong();
+
+  public void fileScanned(long length) {
+    myFileCount.incrementAndGet();
+    myByteCount.addAndGet(length);
+  }
+
+  public void filePrefetched() {
+    myPrefetchedCount.incrementAndGet();
+  }
+
+  public void filesYielded(int count) {
+    myYieldedCount.addAndGet(count);
+  }
+
+  public void timeSpent(long nanos) {
+    myTimeNanos.addAndGet(nanos);
+  }
+
+  void add(@NotNull TextSearchStatistics statistics) {
+    myFileCount.addAndGet(statistics.getFileCount());
+    myByteCount.addAndGet(statistics.getByteCount());
+    myPrefetchedCount.addAndGet(statistics.getPrefetchedCount());
+    myYieldedCount.addAndGet(statistics.getYieldedCount());
+    myTimeNanos.addAndGet(statistics.getTimeNanos());
+  }
+
+  public long getFileCount() {
+    return myFileCount.get();
+  }
+
+  public long getByteCount() {
+    return myByteCount.get();
+  }
+
+  public long getPrefetchedCount() {
+    return myPrefetchedCount.get();
+  }
+
+  public long getYieldedCount() {
+    return myYieldedCount.get();
+  }
+
+  public long getTimeNanos() {
+    return myTimeNanos.get();
+  }
+
+  public double getFilesPerSecond() {
+    long time = getTimeNanos();
+    return time == 0 ? 0 : getFileCount() * 1e9 / time;
+  }
+
+  public double getBytesPerSecond() {
+    long time = getTimeNanos();
+    return time == 0 ? 0 : getByteCount() * 1e9 / time;
+  }
+
+  @Override
+  public String toString() {
+    return getFileCount() + " files, " + getByteCount() / 1024 + " KB in " + getTimeNanos() / 1000000 + " ms (" +
+           String.format("%.0f", getFilesPerSecond()) + " files/s, " + String.format("%.0f", getBytesPerSecond() / 1024) + " KB/s), " +
+           getPrefetchedCount() + " prefetched, " + getYieldedCount() + " yielded to write actions";
+  }
+}
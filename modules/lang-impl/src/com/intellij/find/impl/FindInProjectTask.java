@@ -21,6 +21,7 @@ import com.intellij.find.FindBundle;
 import com.intellij.find.FindModel;
 import com.intellij.find.findInProject.FindInProjectManager;
 import com.intellij.find.ngrams.TrigramIndex;
+import com.intellij.find.ngrams.TrigramQuery;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ApplicationNamesInfo;
 import com.intellij.openapi.application.ReadAction;
@@ -41,7 +42,6 @@ import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileFilter;
@@ -80,6 +80,7 @@ class FindInProjectTask {
   private static final Logger LOG = Logger.getInstance("#com.intellij.find.impl.FindInProjectTask");
   private static final int FILES_SIZE_LIMIT = 70 * 1024 * 1024; // megabytes.
   private static final int SINGLE_FILE_SIZE_LIMIT = 5 * 1024 * 1024; // megabytes.
+  private static final int MAX_TRIGRAM_CONJUNCTIONS = 64;
   private final FindModel myFindModel;
   private final Project myProject;
   private final PsiManager myPsiManager;
@@ -96,6 +97,9 @@ class FindInProjectTask {
   private final AtomicBoolean myWarningShown = new AtomicBoolean();
   private final AtomicLong myTotalFilesSize = new AtomicLong();
   private final String myStringToFindInIndices;
+  // files containing one of the trigram sets from TrigramIndex, null if the index can't narrow the search
+  @Nullable
+  private final List<int[]> myTrigramConjunctions;
 
   FindInProjectTask(@NotNull final FindModel findModel, @NotNull final Project project, @NotNull Set<VirtualFile> filesToScanInitially) {
     myFindModel = findModel;
@@ -123,6 +127,18 @@ class FindInProjectTask {
     }
 
     myStringToFindInIndices = stringToFind;
+    myTrigramConjunctions = TrigramIndex.ENABLED ? computeTrigramConjunctions() : null;
+  }
+
+  @Nullable
+  private List<int[]> computeTrigramConjunctions() {
+    TrigramQuery query = TrigramQuery.forTrigrams(TrigramQuery.getTrigrams(myStringToFindInIndices).toArray());
+    if (myFindModel.isRegularExpressions() && Registry.is("idea.regexp.search.uses.indices")) {
+      // the required trigrams of the whole pattern, not only of its top level characters
+      TrigramQuery regExpQuery = TrigramQuery.forRegExp(myFindModel.getStringToFind());
+      if (!regExpQuery.isAll()) query = regExpQuery;
+    }
+    return query.toConjunctions(MAX_TRIGRAM_CONJUNCTIONS);
   }
 
   public void findUsages(@NotNull Processor<UsageInfo> consumer, @NotNull FindUsagesProcessPresentation processPresentation) {
@@ -259,7 +275,7 @@ class FindInProjectTask {
     final GlobalSearchScope globalCustomScope = customScope == null ? null : GlobalSearchScopeUtil.toGlobalSearchScope(customScope, myProject);
 
     final ProjectFileIndex fileIndex = ProjectFileIndex.SERVICE.getInstance(myProject);
-    final boolean hasTrigrams = hasTrigrams(myStringToFindInIndices);
+    final boolean hasTrigrams = myTrigramConjunctions != null;
 
     class EnumContentIterator implements ContentIterator {
       private final Set<VirtualFile> myFiles = new LinkedHashSet<>();
@@ -368,32 +384,22 @@ class FindInProjectTask {
     // a local scope may be over a non-indexed file
     if (myFindModel.getCustomScope() instanceof LocalSearchScope) return false;
 
+    if (myTrigramConjunctions != null) return true;
+
     String text = myStringToFindInIndices;
     if (StringUtil.isEmptyOrSpaces(text)) return false;
 
-    if (hasTrigrams(text)) return true;
-
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
 
     return myFindModel.isWholeWordsOnly() && text.indexOf('$') < 0 && !StringUtil.getWordsInStringLongestFirst(text).isEmpty();
   }
 
-  private static boolean hasTrigrams(@NotNull String text) {
-    return TrigramIndex.ENABLED && !TrigramBuilder.processTrigrams(text, new TrigramBuilder.TrigramProcessor() {
-      @Override
-      public boolean execute(int value) {
-        return false;
-      }
-    });
-  }
-
-
   @NotNull
   private Set<VirtualFile> getFilesForFastWordSearch() {
     String stringToFind = myStringToFindInIndices;
 
-    if (stringToFind.isEmpty() || DumbService.getInstance(myProject).isDumb()) {
+    if (stringToFind.isEmpty() && myTrigramConjunctions == null || DumbService.getInstance(myProject).isDumb()) {
       return Collections.emptySet();
     }
 
@@ -407,30 +413,28 @@ class FindInProjectTask {
     final GlobalSearchScope scope = GlobalSearchScopeUtil.toGlobalSearchScope(FindInProjectUtil.getScopeFromModel(myProject, myFindModel), myProject);
     ProjectFileIndex index = ProjectFileIndex.SERVICE.getInstance(myProject);
 
-    if (TrigramIndex.ENABLED) {
-      final Set<Integer> keys = ContainerUtil.newTroveSet();
-      TrigramBuilder.processTrigrams(stringToFind, new TrigramBuilder.TrigramProcessor() {
-        @Override
-        public boolean execute(int value) {
-          keys.add(value);
-          return true;
+    if (myTrigramConjunctions != null) {
+      final Set<VirtualFile> hits = new LinkedHashSet<>();
+      ApplicationManager.getApplication().runReadAction(() -> {
+        for (int[] conjunction : myTrigramConjunctions) {
+          Set<Integer> keys = ContainerUtil.newTroveSet();
+          for (int trigram : conjunction) {
+            keys.add(trigram);
+          }
+          FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, Processors.cancelableCollectProcessor(hits), scope);
         }
       });
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(myTrigramConjunctions.size() + " trigram conjunctions of " + myFindModel.getStringToFind() + " matched " + hits.size() + " files");
+      }
 
-      if (!keys.isEmpty()) {
-        final List<VirtualFile> hits = new ArrayList<>();
-        ApplicationManager.getApplication().runReadAction(() -> {
-          FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, Processors.cancelableCollectProcessor(hits), scope);
-        });
-
-        for (VirtualFile hit : hits) {
-          if (myFileMask.value(hit)) {
-            resultFiles.add(hit);
-          }
+      for (VirtualFile hit : hits) {
+        if (myFileMask.value(hit)) {
+          resultFiles.add(hit);
         }
-
-        return resultFiles.stream().filter(it -> !index.isExcluded(it)).collect(Collectors.toSet());
       }
+
+      return resultFiles.stream().filter(it -> !index.isExcluded(it)).collect(Collectors.toSet());
     }
 
     PsiSearchHelperImpl helper = (PsiSearchHelperImpl)PsiSearchHelper.SERVICE.getInstance(myProject);
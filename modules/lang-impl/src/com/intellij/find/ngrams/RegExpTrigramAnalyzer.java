@@ -0,0 +1,655 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Computes the trigrams required by a java.util.regex pattern, in the way of Russ Cox's codesearch: for every subexpression
+ * the analysis tracks the set of exact strings it matches or, if there are too many, the sets of prefixes and suffixes of
+ * its matches together with the trigram query they imply.
+ * <p/>
+ * Strings are kept the way {@link com.intellij.openapi.util.text.TrigramBuilder} sees text: lower-cased, with every
+ * character which can't be part of an identifier replaced by a space, since trigrams never span such characters.
+ * Anything the analyzer doesn't understand is treated as an unknown string, which only weakens the query.
+ */
+class RegExpTrigramAnalyzer {
+  private static final char SEPARATOR = ' ';
+  private static final int MAX_EXACT = 7;
+  private static final int MAX_SET = 20;
+  private static final int MAX_EXACT_LENGTH = 16;
+  private static final int MAX_CLASS = 100;
+
+  private final String myPattern;
+  private int myIndex;
+
+  private RegExpTrigramAnalyzer(@NotNull String pattern) {
+    myPattern = pattern;
+  }
+
+  @NotNull
+  static TrigramQuery analyze(@NotNull String regexp) {
+    try {
+      Pattern.compile(regexp);
+    }
+    catch (PatternSyntaxException e) {
+      return TrigramQuery.ALL;
+    }
+
+    try {
+      RegExpTrigramAnalyzer analyzer = new RegExpTrigramAnalyzer(regexp);
+      Info info = analyzer.parseAlternation();
+      if (analyzer.myIndex != regexp.length()) return TrigramQuery.ALL;
+      info.simplify(true);
+      info.addExact();
+      return info.match;
+    }
+    catch (UnsupportedSyntaxException e) {
+      return TrigramQuery.ALL;
+    }
+    catch (StackOverflowError e) {
+      return TrigramQuery.ALL;
+    }
+  }
+
+  private static class UnsupportedSyntaxException extends Exception {
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static class Info {
+    boolean canEmpty;
+    // strings the expression matches, or null if there are too many
+    Set<String> exact;
+    // when exact is unknown: every match starts with one of the prefixes and ends with one of the suffixes
+    Set<String> prefix = new LinkedHashSet<String>();
+    Set<String> suffix = new LinkedHashSet<String>();
+    TrigramQuery match = TrigramQuery.ALL;
+
+    void addExact() {
+      if (exact != null) match = match.and(andTrigrams(exact));
+    }
+
+    void simplify(boolean force) {
+      if (exact != null && (exact.size() > MAX_EXACT || force || minLength(exact) >= MAX_EXACT_LENGTH)) {
+        addExact();
+        for (String s : exact) {
+          if (s.length() < 3) {
+            prefix.add(s);
+            suffix.add(s);
+          }
+          else {
+            prefix.add(s.substring(0, 2));
+            suffix.add(s.substring(s.length() - 2));
+          }
+        }
+        exact = null;
+      }
+      if (exact == null) {
+        prefix = simplifySet(prefix, false);
+        suffix = simplifySet(suffix, true);
+      }
+    }
+
+    @NotNull
+    private Set<String> simplifySet(@NotNull Set<String> set, boolean isSuffix) {
+      match = match.and(andTrigrams(set));
+      // shorter prefixes (suffixes) are implied by the match, and the set shrinks as they get shorter
+      for (int n = 3; n == 3 || set.size() > MAX_SET; n--) {
+        Set<String> shorter = new LinkedHashSet<String>();
+        for (String s : set) {
+          if (s.length() >= n) s = isSuffix ? s.substring(s.length() - n + 1) : s.substring(0, n - 1);
+          shorter.add(s);
+        }
+        set = shorter;
+      }
+      return set;
+    }
+  }
+
+  // one of the strings is present
+  @NotNull
+  private static TrigramQuery andTrigrams(@NotNull Set<String> strings) {
+    List<TIntHashSet> alternatives = new ArrayList<TIntHashSet>();
+    for (String s : strings) {
+      TIntHashSet trigrams = TrigramQuery.getTrigrams(s);
+      if (trigrams.isEmpty()) return TrigramQuery.ALL;
+      alternatives.add(trigrams);
+    }
+
+    TrigramQuery result = TrigramQuery.NONE;
+    for (int i = 0; i < alternatives.size(); i++) {
+      if (!isImplied(alternatives, i)) {
+        result = result.or(TrigramQuery.forTrigrams(alternatives.get(i).toArray()));
+      }
+    }
+    return result;
+  }
+
+  // an alternative requiring all trigrams of another one is redundant
+  private static boolean isImplied(@NotNull List<TIntHashSet> alternatives, int index) {
+    TIntHashSet trigrams = alternatives.get(index);
+    for (int i = 0; i < alternatives.size(); i++) {
+      TIntHashSet other = alternatives.get(i);
+      if (i != index && trigrams.containsAll(other.toArray()) && (other.size() < trigrams.size() || i < index)) return true;
+    }
+    return false;
+  }
+
+  private static int minLength(@NotNull Set<String> strings) {
+    int result = Integer.MAX_VALUE;
+    for (String s : strings) {
+      result = Math.min(result, s.length());
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Set<String> cross(@NotNull Set<String> left, @NotNull Set<String> right) {
+    Set<String> result = new LinkedHashSet<String>();
+    for (String l : left) {
+      for (String r : right) {
+        result.add(l + r);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Set<String> union(@NotNull Set<String> left, @NotNull Set<String> right) {
+    Set<String> result = new LinkedHashSet<String>(left);
+    result.addAll(right);
+    return result;
+  }
+
+  @NotNull
+  private static Info emptyString() {
+    Info info = new Info();
+    info.canEmpty = true;
+    info.exact = Collections.singleton("");
+    return info;
+  }
+
+  @NotNull
+  private static Info anyChar() {
+    Info info = new Info();
+    info.prefix.add("");
+    info.suffix.add("");
+    return info;
+  }
+
+  @NotNull
+  private static Info anyMatch() {
+    Info info = anyChar();
+    info.canEmpty = true;
+    return info;
+  }
+
+  @NotNull
+  private static Info exact(@NotNull Set<String> strings) {
+    Info info = new Info();
+    info.exact = strings;
+    info.simplify(false);
+    return info;
+  }
+
+  @NotNull
+  private static Info literal(int codePoint) {
+    return exact(Collections.singleton(String.valueOf(normalize(codePoint))));
+  }
+
+  private static char normalize(int codePoint) {
+    if (Character.isSupplementaryCodePoint(codePoint)) return SEPARATOR;
+    char c = (char)codePoint;
+    return Character.isJavaIdentifierPart(c) ? StringUtil.toLowerCase(c) : SEPARATOR;
+  }
+
+  @NotNull
+  private static Info concat(@NotNull Info x, @NotNull Info y) {
+    Info xy = new Info();
+    xy.canEmpty = x.canEmpty && y.canEmpty;
+    xy.match = x.match.and(y.match);
+    if (x.exact != null && y.exact != null) {
+      xy.exact = cross(x.exact, y.exact);
+    }
+    else {
+      if (x.exact != null) {
+        xy.prefix = cross(x.exact, y.prefix);
+      }
+      else {
+        xy.prefix = x.canEmpty ? union(x.prefix, y.exact != null ? y.exact : y.prefix) : x.prefix;
+      }
+      if (y.exact != null) {
+        xy.suffix = cross(x.suffix, y.exact);
+      }
+      else {
+        xy.suffix = y.canEmpty ? union(y.suffix, x.exact != null ? x.exact : x.suffix) : y.suffix;
+      }
+    }
+
+    // a match of x is immediately followed by a match of y, so one of the joined strings has to be present
+    if (x.exact == null && y.exact == null && x.suffix.size() <= MAX_SET && y.prefix.size() <= MAX_SET) {
+      xy.match = xy.match.and(andTrigrams(cross(x.suffix, y.prefix)));
+    }
+    xy.simplify(false);
+    return xy;
+  }
+
+  @NotNull
+  private static Info alternate(@NotNull Info x, @NotNull Info y) {
+    Info xy = new Info();
+    if (x.exact != null && y.exact != null) {
+      xy.exact = union(x.exact, y.exact);
+    }
+    else if (x.exact != null) {
+      xy.prefix = union(x.exact, y.prefix);
+      xy.suffix = union(x.exact, y.suffix);
+      x.addExact();
+    }
+    else if (y.exact != null) {
+      xy.prefix = union(x.prefix, y.exact);
+      xy.suffix = union(x.suffix, y.exact);
+      y.addExact();
+    }
+    else {
+      xy.prefix = union(x.prefix, y.prefix);
+      xy.suffix = union(x.suffix, y.suffix);
+    }
+    xy.canEmpty = x.canEmpty || y.canEmpty;
+    xy.match = x.match.or(y.match);
+    xy.simplify(false);
+    return xy;
+  }
+
+  @NotNull
+  private static Info plus(@NotNull Info x) {
+    // there's at least one match of x, so prefixes and suffixes stay the same
+    if (x.exact != null) {
+      x.prefix = x.exact;
+      x.suffix = new LinkedHashSet<String>(x.exact);
+      x.exact = null;
+    }
+    x.simplify(false);
+    return x;
+  }
+
+  // regexp ::= concatenation ('|' concatenation)*
+  @NotNull
+  private Info parseAlternation() throws UnsupportedSyntaxException {
+    Info result = parseConcatenation();
+    while (peek() == '|') {
+      myIndex++;
+      result = alternate(result, parseConcatenation());
+    }
+    return result;
+  }
+
+  @NotNull
+  private Info parseConcatenation() throws UnsupportedSyntaxException {
+    Info result = emptyString();
+    while (myIndex < myPattern.length() && peek() != '|' && peek() != ')') {
+      Info atom;
+      if (myPattern.startsWith("\\Q", myIndex)) {
+        myIndex += 2;
+        int end = myPattern.indexOf("\\E", myIndex);
+        String quoted = myPattern.substring(myIndex, end < 0 ? myPattern.length() : end);
+        myIndex = end < 0 ? myPattern.length() : end + 2;
+        if (quoted.isEmpty()) continue;
+
+        // a quantifier after \E applies to the last quoted character only
+        int last = quoted.offsetByCodePoints(quoted.length(), -1);
+        for (int i = 0; i < last; i = quoted.offsetByCodePoints(i, 1)) {
+          result = concat(result, literal(quoted.codePointAt(i)));
+        }
+        atom = literal(quoted.codePointAt(last));
+      }
+      else {
+        atom = parseAtom();
+      }
+      result = concat(result, parseQuantifiers(atom));
+    }
+    return result;
+  }
+
+  @NotNull
+  private Info parseQuantifiers(@NotNull Info atom) throws UnsupportedSyntaxException {
+    while (myIndex < myPattern.length()) {
+      char c = peek();
+      int min;
+      int max;
+      if (c == '*' || c == '+' || c == '?') {
+        myIndex++;
+        min = c == '+' ? 1 : 0;
+        max = c == '?' ? 1 : -1;
+      }
+      else if (c == '{') {
+        int end = myPattern.indexOf('}', myIndex);
+        if (end < 0) throw new UnsupportedSyntaxException();
+        String bounds = myPattern.substring(myIndex + 1, end);
+        myIndex = end + 1;
+        int comma = bounds.indexOf(',');
+        try {
+          min = Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+          max = comma < 0 ? min : bounds.substring(comma + 1).trim().isEmpty() ? -1 : Integer.parseInt(bounds.substring(comma + 1).trim());
+        }
+        catch (NumberFormatException e) {
+          throw new UnsupportedSyntaxException();
+        }
+      }
+      else {
+        return atom;
+      }
+      // lazy and possessive quantifiers match the same strings
+      if (peek() == '?' || peek() == '+') myIndex++;
+
+      if (max == 0) {
+        atom = emptyString();
+      }
+      else if (min == 0) {
+        atom = max == 1 ? alternate(atom, emptyString()) : anyMatch();
+      }
+      else if (min != 1 || max != 1) {
+        atom = plus(atom);
+      }
+    }
+    return atom;
+  }
+
+  @NotNull
+  private Info parseAtom() throws UnsupportedSyntaxException {
+    int c = myPattern.codePointAt(myIndex);
+    myIndex += Character.charCount(c);
+    switch (c) {
+      case '(':
+        return parseGroup();
+      case '[':
+        Set<String> strings = parseClass();
+        return strings == null ? anyChar() : exact(strings);
+      case '.':
+        return anyChar();
+      case '^':
+      case '$':
+        return emptyString();
+      case '\\':
+        return parseEscape();
+      case '*':
+      case '+':
+      case '?':
+      case '{':
+        throw new UnsupportedSyntaxException();
+      default:
+        return literal(c);
+    }
+  }
+
+  @NotNull
+  private Info parseGroup() throws UnsupportedSyntaxException {
+    boolean lookaround = false;
+    if (peek() == '?') {
+      myIndex++;
+      char c = next();
+      if (c == '=' || c == '!') {
+        lookaround = true;
+      }
+      else if (c == '<' && (peek() == '=' || peek() == '!')) {
+        myIndex++;
+        lookaround = true;
+      }
+      else if (c == '<') {
+        int end = myPattern.indexOf('>', myIndex);
+        if (end < 0) throw new UnsupportedSyntaxException();
+        myIndex = end + 1;
+      }
+      else if (c != ':' && c != '>') {
+        // inline flags: (?idmsux-idmsux) or (?idmsux-idmsux:X)
+        boolean on = true;
+        while (c != ')' && c != ':') {
+          if (c == '-') {
+            on = false;
+          }
+          else if (c == 'x' && on) {
+            // whitespace and comments in the pattern
+            throw new UnsupportedSyntaxException();
+          }
+          c = next();
+        }
+        if (c == ')') return emptyString();
+      }
+    }
+
+    Info info = parseAlternation();
+    if (next() != ')') throw new UnsupportedSyntaxException();
+    // lookarounds don't consume text, ignoring them only weakens the query
+    return lookaround ? emptyString() : info;
+  }
+
+  @NotNull
+  private Info parseEscape() throws UnsupportedSyntaxException {
+    char c = next();
+    switch (c) {
+      case 'b':
+        if (peek() == '{') throw new UnsupportedSyntaxException();
+        // fallthrough
+      case 'B':
+      case 'A':
+      case 'G':
+      case 'z':
+      case 'Z':
+        return emptyString();
+      case 'k':
+        skipName('<', '>');
+        return anyMatch();
+      case 'p':
+      case 'P':
+      case 'N':
+        if (peek() == '{') {
+          skipName('{', '}');
+        }
+        else {
+          next();
+        }
+        return anyChar();
+      case 'd':
+      case 'D':
+      case 's':
+      case 'S':
+      case 'w':
+      case 'W':
+      case 'h':
+      case 'H':
+      case 'v':
+      case 'V':
+      case 'R':
+      case 'X':
+        return anyChar();
+      default:
+        if (c >= '1' && c <= '9') {
+          // back reference
+          while (peek() >= '0' && peek() <= '9') myIndex++;
+          return anyMatch();
+        }
+        myIndex--;
+        return literal(parseCharacterEscape());
+    }
+  }
+
+  // the character denoted by the escape, the backslash is already consumed
+  private int parseCharacterEscape() throws UnsupportedSyntaxException {
+    char c = next();
+    switch (c) {
+      case 't': return '\t';
+      case 'n': return '\n';
+      case 'r': return '\r';
+      case 'f': return '\f';
+      case 'a': return '\u0007';
+      case 'e': return '\u001B';
+      case 'c': return next() ^ 64;
+      case '0':
+        int value = 0;
+        for (int i = 0; i < 3 && peek() >= '0' && peek() <= '7' && (i < 2 || value < 32); i++) {
+          value = value * 8 + next() - '0';
+        }
+        return value;
+      case 'x':
+        if (peek() == '{') {
+          int end = myPattern.indexOf('}', myIndex);
+          if (end < 0) throw new UnsupportedSyntaxException();
+          String hex = myPattern.substring(myIndex + 1, end);
+          myIndex = end + 1;
+          return parseHex(hex);
+        }
+        return parseHex(nextChars(2));
+      case 'u':
+        return parseHex(nextChars(4));
+      default:
+        if (Character.isLetterOrDigit(c)) throw new UnsupportedSyntaxException();
+        return c;
+    }
+  }
+
+  private static int parseHex(@NotNull String hex) throws UnsupportedSyntaxException {
+    try {
+      return Integer.parseInt(hex, 16);
+    }
+    catch (NumberFormatException e) {
+      throw new UnsupportedSyntaxException();
+    }
+  }
+
+  @NotNull
+  private String nextChars(int count) throws UnsupportedSyntaxException {
+    if (myIndex + count > myPattern.length()) throw new UnsupportedSyntaxException();
+    myIndex += count;
+    return myPattern.substring(myIndex - count, myIndex);
+  }
+
+  private void skipName(char open, char close) throws UnsupportedSyntaxException {
+    if (next() != open) throw new UnsupportedSyntaxException();
+    int end = myPattern.indexOf(close, myIndex);
+    if (end < 0) throw new UnsupportedSyntaxException();
+    myIndex = end + 1;
+  }
+
+  /**
+   * Parses a character class after the opening bracket.
+   *
+   * @return the class characters, or null if the class is negated, too large or too complex to enumerate
+   */
+  @Nullable
+  private Set<String> parseClass() throws UnsupportedSyntaxException {
+    boolean enumerable = true;
+    if (peek() == '^') {
+      myIndex++;
+      enumerable = false;
+    }
+
+    Set<String> strings = new LinkedHashSet<String>();
+    int size = 0;
+    boolean first = true;
+    while (true) {
+      if (myIndex >= myPattern.length()) throw new UnsupportedSyntaxException();
+      char c = peek();
+      if (c == ']' && !first) {
+        myIndex++;
+        break;
+      }
+      first = false;
+
+      if (c == '[') {
+        myIndex++;
+        parseClass();
+        enumerable = false;
+        continue;
+      }
+      if (myPattern.startsWith("&&", myIndex)) {
+        myIndex += 2;
+        enumerable = false;
+        continue;
+      }
+      if (myPattern.startsWith("\\Q", myIndex)) {
+        myIndex += 2;
+        int end = myPattern.indexOf("\\E", myIndex);
+        String quoted = myPattern.substring(myIndex, end < 0 ? myPattern.length() : end);
+        myIndex = end < 0 ? myPattern.length() : end + 2;
+        for (int i = 0; i < quoted.length(); i = quoted.offsetByCodePoints(i, 1)) {
+          strings.add(String.valueOf(normalize(quoted.codePointAt(i))));
+          size++;
+        }
+        continue;
+      }
+
+      int from = parseClassCharacter();
+      if (from < 0) {
+        enumerable = false;
+        continue;
+      }
+      int to = from;
+      if (peek() == '-' && myIndex + 1 < myPattern.length() && myPattern.charAt(myIndex + 1) != ']') {
+        myIndex++;
+        to = parseClassCharacter();
+        if (to < 0) throw new UnsupportedSyntaxException();
+      }
+      size += to - from + 1;
+      for (int ch = from; ch <= to && size <= MAX_CLASS; ch++) {
+        strings.add(String.valueOf(normalize(ch)));
+      }
+    }
+
+    return enumerable && size <= MAX_CLASS && !strings.isEmpty() ? strings : null;
+  }
+
+  // a code point, or -1 for a predefined class
+  private int parseClassCharacter() throws UnsupportedSyntaxException {
+    int c = myPattern.codePointAt(myIndex);
+    myIndex += Character.charCount(c);
+    if (c != '\\') return c;
+
+    char escaped = peek();
+    if ("dDsSwWhHvV".indexOf(escaped) >= 0) {
+      myIndex++;
+      return -1;
+    }
+    if (escaped == 'p' || escaped == 'P') {
+      myIndex++;
+      if (peek() == '{') {
+        skipName('{', '}');
+      }
+      else {
+        next();
+      }
+      return -1;
+    }
+    return parseCharacterEscape();
+  }
+
+  private char peek() {
+    return myIndex < myPattern.length() ? myPattern.charAt(myIndex) : 0;
+  }
+
+  private char next() throws UnsupportedSyntaxException {
+    if (myIndex >= myPattern.length()) throw new UnsupportedSyntaxException();
+    return myPattern.charAt(myIndex++);
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Boolean combination of {@link TrigramIndex} keys which a file must contain to possibly match a search,
+ * e.g. <code>"abc" AND ("bcd" OR "bce")</code>. Queries are built with {@link #forRegExp(String)}.
+ */
+public class TrigramQuery {
+  public static final TrigramQuery ALL = new TrigramQuery(Op.ALL, new int[0], Collections.<TrigramQuery>emptyList());
+  public static final TrigramQuery NONE = new TrigramQuery(Op.NONE, new int[0], Collections.<TrigramQuery>emptyList());
+
+  private enum Op {ALL, NONE, AND, OR}
+
+  private final Op myOp;
+  // sorted; all of them are required for AND, one of them for OR
+  private final int[] myTrigrams;
+  private final List<TrigramQuery> mySubs;
+
+  private TrigramQuery(@NotNull Op op, @NotNull int[] trigrams, @NotNull List<TrigramQuery> subs) {
+    myOp = op;
+    myTrigrams = trigrams;
+    mySubs = subs;
+  }
+
+  /**
+   * @return the trigrams which a file containing a match of the java.util.regex pattern must have,
+   * or {@link #ALL} if nothing can be said about the pattern
+   */
+  @NotNull
+  public static TrigramQuery forRegExp(@NotNull String regexp) {
+    return RegExpTrigramAnalyzer.analyze(regexp);
+  }
+
+  /**
+   * @return query requiring all the trigrams
+   */
+  @NotNull
+  public static TrigramQuery forTrigrams(@NotNull int[] trigrams) {
+    return trigrams.length == 0 ? ALL : create(Op.AND, trigrams.clone(), Collections.<TrigramQuery>emptyList());
+  }
+
+  /**
+   * @return the index keys of the text
+   */
+  @NotNull
+  public static TIntHashSet getTrigrams(@NotNull CharSequence text) {
+    final TIntHashSet trigrams = new TIntHashSet();
+    TrigramBuilder.processTrigrams(text, new TrigramBuilder.TrigramProcessor() {
+      @Override
+      public boolean execute(int value) {
+        trigrams.add(value);
+        return true;
+      }
+    });
+    return trigrams;
+  }
+
+  @NotNull
+  private static TrigramQuery create(@NotNull Op op, @NotNull int[] trigrams, @NotNull List<TrigramQuery> subs) {
+    Arrays.sort(trigrams);
+    if (trigrams.length == 1 && subs.isEmpty()) op = Op.AND;
+    return new TrigramQuery(op, trigrams, subs);
+  }
+
+  public boolean isAll() {
+    return myOp == Op.ALL;
+  }
+
+  @NotNull
+  public TrigramQuery and(@NotNull TrigramQuery query) {
+    return combine(Op.AND, query);
+  }
+
+  @NotNull
+  public TrigramQuery or(@NotNull TrigramQuery query) {
+    return combine(Op.OR, query);
+  }
+
+  @NotNull
+  private TrigramQuery combine(@NotNull Op op, @NotNull TrigramQuery query) {
+    Op absorbing = op == Op.AND ? Op.NONE : Op.ALL;
+    Op neutral = op == Op.AND ? Op.ALL : Op.NONE;
+    if (myOp == absorbing || query.myOp == neutral || equals(query)) return this;
+    if (query.myOp == absorbing || myOp == neutral) return query;
+
+    TIntHashSet trigrams = new TIntHashSet();
+    Set<TrigramQuery> subs = new LinkedHashSet<TrigramQuery>();
+    for (TrigramQuery q : new TrigramQuery[]{this, query}) {
+      // a single trigram is both a conjunction and a disjunction
+      if (q.myOp == op || q.mySubs.isEmpty() && q.myTrigrams.length == 1) {
+        trigrams.addAll(q.myTrigrams);
+        subs.addAll(q.mySubs);
+      }
+      else {
+        subs.add(q);
+      }
+    }
+    return create(op, trigrams.toArray(), new ArrayList<TrigramQuery>(subs));
+  }
+
+  /**
+   * Expands the query into a disjunction of trigram conjunctions, e.g. <code>"abc" AND ("bcd" OR "bce")</code> into
+   * <code>("abc" AND "bcd") OR ("abc" AND "bce")</code>. Conjunctions which don't fit into the limit are weakened,
+   * so a file satisfying the query always satisfies one of the conjunctions.
+   *
+   * @return the conjunctions, or null if every file satisfies the query
+   */
+  @Nullable
+  public List<int[]> toConjunctions(int limit) {
+    List<int[]> result;
+    switch (myOp) {
+      case ALL:
+        return null;
+      case NONE:
+        return Collections.emptyList();
+      case OR:
+        result = new ArrayList<int[]>();
+        for (int trigram : myTrigrams) {
+          result.add(new int[]{trigram});
+        }
+        for (TrigramQuery sub : mySubs) {
+          List<int[]> conjunctions = sub.toConjunctions(limit);
+          if (conjunctions == null) return null;
+          result.addAll(conjunctions);
+        }
+        return result.size() > limit ? null : result;
+      default:
+        List<List<int[]>> expanded = new ArrayList<List<int[]>>();
+        for (TrigramQuery sub : mySubs) {
+          List<int[]> conjunctions = sub.toConjunctions(limit);
+          if (conjunctions == null) continue;
+          if (conjunctions.isEmpty()) return conjunctions;
+          expanded.add(conjunctions);
+        }
+        // the most selective parts first, the ones which would exceed the limit are dropped
+        Collections.sort(expanded, new Comparator<List<int[]>>() {
+          @Override
+          public int compare(List<int[]> o1, List<int[]> o2) {
+            return o1.size() - o2.size();
+          }
+        });
+
+        result = Collections.singletonList(myTrigrams);
+        for (List<int[]> conjunctions : expanded) {
+          if ((long)result.size() * conjunctions.size() > limit) break;
+          List<int[]> product = new ArrayList<int[]>(result.size() * conjunctions.size());
+          for (int[] left : result) {
+            for (int[] right : conjunctions) {
+              TIntHashSet trigrams = new TIntHashSet(left);
+              trigrams.addAll(right);
+              product.add(trigrams.toArray());
+            }
+          }
+          result = product;
+        }
+        return result.size() == 1 && result.get(0).length == 0 ? null : result;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    TrigramQuery query = (TrigramQuery)o;
+    return myOp == query.myOp && Arrays.equals(myTrigrams, query.myTrigrams) && mySubs.equals(query.mySubs);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * myOp.hashCode() + Arrays.hashCode(myTrigrams)) + mySubs.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    if (myOp == Op.ALL || myOp == Op.NONE) return myOp.name();
+
+    StringBuilder builder = new StringBuilder();
+    String separator = myOp == Op.AND ? " AND " : " OR ";
+    for (int trigram : myTrigrams) {
+      if (builder.length() > 0) builder.append(separator);
+      builder.append('"').append(trigramToString(trigram)).append('"');
+    }
+    for (TrigramQuery sub : mySubs) {
+      if (builder.length() > 0) builder.append(separator);
+      builder.append('(').append(sub).append(')');
+    }
+    return builder.toString();
+  }
+
+  // exact for the Latin-1 trigrams only, as the index keys of other characters overlap
+  @NotNull
+  private static String trigramToString(int trigram) {
+    return new String(new char[]{(char)((trigram >> 16) & 0xFF), (char)((trigram >> 8) & 0xFF), (char)(trigram & 0xFF)});
+  }
+}
@@ -28,10 +28,7 @@ import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -80,7 +77,7 @@ public class StubSerializationHelper {
 
   public void serialize(@NotNull Stub rootStub, @NotNull OutputStream stream) throws IOException {
     BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
-    FileLocalStringEnumerator storage = new FileLocalStringEnumerator(true);
+    FileLocalStringEnumerator storage = new FileLocalStringEnumerator();
     StubOutputStream stubOutputStream = new StubOutputStream(out, storage);
     boolean doDefaultSerialization = true;
 
@@ -120,18 +117,10 @@ public class StubSerializationHelper {
 
   @NotNull
   public Stub deserialize(@NotNull InputStream stream) throws IOException, SerializerNotFoundException {
-    FileLocalStringEnumerator storage = new FileLocalStringEnumerator(false);
+    if (!stream.markSupported()) stream = new BufferedInputStream(stream);
+    FileLocalStringTable storage = new FileLocalStringTable(myStringInterner);
     StubInputStream inputStream = new StubInputStream(stream, storage);
-    final int numberOfStrings = DataInputOutputUtil.readINT(inputStream);
-    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-    storage.myStrings.ensureCapacity(numberOfStrings);
-
-    int i = 0;
-    while(i < numberOfStrings) {
-      String s = myStringInterner.get(IOUtil.readUTFFast(buffer, inputStream));
-      storage.myStrings.add(s);
-      ++i;
-    }
+    storage.read(stream, inputStream);
 
     final int stubFilesCount = DataInputOutputUtil.readINT(inputStream);
     if (stubFilesCount <= 0) {
@@ -199,19 +188,93 @@ public class StubSerializationHelper {
     return myIdToSerializer.get(id);
   }
 
-  private static class FileLocalStringEnumerator implements AbstractStringEnumerator {
-    private final TObjectIntHashMap<String> myEnumerates;
-    private final ArrayList<String> myStrings = new ArrayList<>();
+  /**
+   * The strings of a deserialized stub tree. The short ASCII strings, which are most of them, are kept as bytes
+   * and decoded when a stub asks for its {@link com.intellij.util.io.StringRef}, as a lookup visits few of the stubs of a tree.
+   */
+  static class FileLocalStringTable implements AbstractStringEnumerator {
+    private final RecentStringInterner myStringInterner;
+    private String[] myStrings;
+    private byte[] myBytes;
+    private int[] myOffsets;
+
+    FileLocalStringTable(@NotNull RecentStringInterner stringInterner) {
+      myStringInterner = stringInterner;
+    }
+
+    /**
+     * @param stream the stream of the data, supporting marks
+     */
+    void read(@NotNull InputStream stream, @NotNull DataInputStream data) throws IOException {
+      int numberOfStrings = DataInputOutputUtil.readINT(data);
+      myStrings = new String[numberOfStrings];
+      myOffsets = new int[numberOfStrings + 1];
+      BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+      byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
+      for (int i = 0; i < numberOfStrings; i++) {
+        myOffsets[i] = bytes.size();
+        stream.mark(1);
+        int length = 0xFF & (int)data.readByte();
+        if (length == 0xFF) { // long or not ASCII
+          stream.reset();
+          myStrings[i] = myStringInterner.get(IOUtil.readUTFFast(buffer, data));
+        }
+        else if (length == 0) {
+          myStrings[i] = "";
+        }
+        else {
+          data.readFully(buffer, 0, length);
+          bytes.write(buffer, 0, length);
+        }
+      }
+      myOffsets[numberOfStrings] = bytes.size();
+      myBytes = bytes.getInternalBuffer();
+    }
+
+    @Override
+    public int enumerate(@Nullable String value) throws IOException {
+      if (value == null) return 0;
+      assert false : "enumerate possible only when writing stub";
+      return 0;
+    }
+
+    @Override
+    public String valueOf(int idx) throws IOException {
+      if (idx == 0) return null;
+      String string = myStrings[idx - 1];
+      if (string == null) {
+        int offset = myOffsets[idx - 1];
+        // racing threads decode equal strings
+        myStrings[idx - 1] = string = myStringInterner.get(new String(myBytes, offset, myOffsets[idx] - offset, IOUtil.US_ASCII));
+      }
+      return string;
+    }
 
-    FileLocalStringEnumerator(boolean forSavingStub) {
-      if (forSavingStub) myEnumerates = new TObjectIntHashMap<>();
-      else myEnumerates = null;
+    @Override
+    public void markCorrupted() {
     }
 
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public boolean isDirty() {
+      return false;
+    }
+
+    @Override
+    public void force() {
+    }
+  }
+
+  private static class FileLocalStringEnumerator implements AbstractStringEnumerator {
+    private final TObjectIntHashMap<String> myEnumerates = new TObjectIntHashMap<>();
+    private final ArrayList<String> myStrings = new ArrayList<>();
+
     @Override
     public int enumerate(@Nullable String value) throws IOException {
       if (value == null) return 0;
-      assert myEnumerates != null; // enumerate possible only when writing stub
       int i = myEnumerates.get(value);
       if (i == 0) {
         myEnumerates.put(value, i = myStrings.size() + 1);
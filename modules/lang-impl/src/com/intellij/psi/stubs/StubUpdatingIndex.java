@@ -28,6 +28,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.ContentHashesUtil;
 import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
 import com.intellij.psi.tree.IFileElementType;
 import com.intellij.psi.tree.IStubFileElementType;
@@ -37,11 +38,13 @@ import com.intellij.util.indexing.*;
 import com.intellij.util.indexing.impl.*;
 import com.intellij.util.io.*;
 import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.io.DataOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 
 /*
@@ -50,7 +53,7 @@ import java.util.*;
 public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtension<Integer, SerializedStubTree, FileContent>
         implements PsiDependentIndex, CustomInputsIndexFileBasedIndexExtension<Integer> {
   static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubUpdatingIndex");
-  private static final int VERSION = 32  + (PersistentHashMapValueStorage.COMPRESSION_ENABLED ? 1 : 0);
+  private static final int VERSION = 33  + (PersistentHashMapValueStorage.COMPRESSION_ENABLED ? 1 : 0);
 
   // todo remove once we don't need this for stub-ast mismatch debug info
   private static final FileAttribute INDEXED_STAMP = new FileAttribute("stubIndexStamp", 2, true);
@@ -136,6 +139,10 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
             stubIndex.serializeIndexValue(out, stubIndexKey, map);
           }
         }
+
+        byte[] stubTreeHash = ((StubUpdatingIndexKeys)value).myStubTreeHash;
+        DataInputOutputUtil.writeINT(out, stubTreeHash != null ? stubTreeHash.length : 0);
+        if (stubTreeHash != null) out.write(stubTreeHash);
       }
 
       @Override
@@ -158,6 +165,12 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
           }
           integers.myStubIndicesValueMap = stubIndicesValueMap;
         }
+
+        int stubTreeHashLength = DataInputOutputUtil.readINT(in);
+        if (stubTreeHashLength > 0) {
+          integers.myStubTreeHash = new byte[stubTreeHashLength];
+          in.readFully(integers.myStubTreeHash);
+        }
         return integers;
       }
     };
@@ -166,6 +179,8 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
   static class StubUpdatingIndexKeys extends AbstractSet<Integer> {
     private final Set<Integer> myBackingMap;
     private Map<StubIndexKey, Map<Object, StubIdList>> myStubIndicesValueMap = Collections.emptyMap();
+    // the hash of the serialized stub tree, the stub indices aren't updated for the same tree
+    byte[] myStubTreeHash;
 
     StubUpdatingIndexKeys(Set<Integer> backingMap) {
       myBackingMap = backingMap;
@@ -234,7 +249,9 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
           SerializedStubTree serializedStubTree = new SerializedStubTree(bytes.getInternalBuffer(), bytes.size(), rootStub, file.getLength(), contentLength);
           result.put(key, serializedStubTree);
           try {
-            ((StubUpdatingIndexKeys)result.keySet()).myStubIndicesValueMap = calcStubIndicesValueMap(serializedStubTree, key);
+            StubUpdatingIndexKeys keys = (StubUpdatingIndexKeys)result.keySet();
+            keys.myStubIndicesValueMap = calcStubIndicesValueMap(serializedStubTree, key);
+            keys.myStubTreeHash = calcStubTreeHash(bytes);
           } catch (StorageException ex) {
             throw new RuntimeException(ex);
           }
@@ -245,6 +262,13 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     };
   }
 
+  @NotNull
+  private static byte[] calcStubTreeHash(@NotNull BufferExposingByteArrayOutputStream bytes) {
+    MessageDigest messageDigest = ContentHashesUtil.HASHER_CACHE.getValue();
+    messageDigest.update(bytes.getInternalBuffer(), 0, bytes.size());
+    return messageDigest.digest();
+  }
+
   private static void check(Stub stub, Stub stub2) {
     assert stub.getStubType() == stub2.getStubType();
     List<? extends Stub> stubs = stub.getChildrenStubs();
@@ -332,6 +356,12 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     return new MyIndex(extension, storage);
   }
 
+  static boolean isSameStubTree(@Nullable Collection<Integer> oldKeys, @NotNull Collection<Integer> newKeys) {
+    if (!(oldKeys instanceof StubUpdatingIndexKeys) || !(newKeys instanceof StubUpdatingIndexKeys)) return false;
+    byte[] oldHash = ((StubUpdatingIndexKeys)oldKeys).myStubTreeHash;
+    return oldHash != null && Arrays.equals(oldHash, ((StubUpdatingIndexKeys)newKeys).myStubTreeHash) && oldKeys.equals(newKeys);
+  }
+
   private static void updateStubIndices(@NotNull final Collection<StubIndexKey> indexKeys,
                                         final int inputId,
                                         @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
@@ -343,6 +373,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
 
       final Map<Object, StubIdList> _oldMap = oldMap != null ? oldMap : Collections.emptyMap();
       final Map<Object, StubIdList> _newMap = newMap != null ? newMap : Collections.emptyMap();
+      if (_oldMap.equals(_newMap)) continue;
 
       stubIndex.updateIndex(key, inputId, _oldMap, _newMap);
     }
@@ -424,6 +455,19 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
         };
       }
 
+      @Override
+      public void updateForwardIndex() throws IOException {
+        if (!isStubTreeUnchanged()) super.updateForwardIndex();
+      }
+
+      /**
+       * Most of the changes of a file, e.g. in method bodies, don't change its stubs. The tree is still written as it keeps
+       * the content length, but the stub indices and the forward data of the file are up to date.
+       */
+      boolean isStubTreeUnchanged() {
+        return isSameStubTree(oldStubIndexKeys, getNewData().keySet());
+      }
+
       public Map<StubIndexKey, Map<Object, StubIdList>> getOldStubIndicesValueMap() {
         if (oldStubIndexKeys instanceof StubUpdatingIndexKeys) {
           return ((StubUpdatingIndexKeys)oldStubIndexKeys).myStubIndicesValueMap;
@@ -470,6 +514,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
           getWriteLock().lock();
 
           super.updateWithMap(inputId, updateData);
+          if (stubUpdatingData.isStubTreeUnchanged()) return;
 
           final Map<StubIndexKey, Map<Object, StubIdList>> previousStubIndicesValueMap = stubUpdatingData.getOldStubIndicesValueMap();
 
@@ -491,6 +536,25 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       }
     }
 
+    @Override
+    protected void updateWithMaps(@NotNull TIntArrayList inputIds,
+                                  @NotNull List<UpdateData<Integer, SerializedStubTree>> updateData) throws StorageException {
+      // the same lock order as updateWithMap, which is called for each of the inputs
+      final StubIndexImpl stubIndex = getStubIndex();
+      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
+      for (StubIndexKey key : allStubIndices) {
+        stubIndex.getWriteLock(key).lock();
+      }
+      try {
+        super.updateWithMaps(inputIds, updateData);
+      }
+      finally {
+        for (StubIndexKey key : allStubIndices) {
+          stubIndex.getWriteLock(key).unlock();
+        }
+      }
+    }
+
     private StubIndexImpl getStubIndex() {
       StubIndexImpl index = myStubIndex;
       if (index == null) {
@@ -69,6 +69,21 @@ class ContentHashesSupport {
     return messageDigest.digest();
   }
 
+  /**
+   * @return the hash of the content and its file type, the same one the bulk indexing calculates for the snapshot mappings
+   */
+  static byte[] calcContentHash(@NotNull FileContentImpl content) {
+    byte[] hash = content.getHash();
+    if (hash == null) {
+      FileType fileType = content.getFileType();
+      hash = content.getFileTypeWithoutSubstitution().isBinary()
+             ? calcContentHash(content.getContent(), fileType)
+             : calcContentHashWithFileType(content.getContent(), content.getCharset(), fileType);
+      content.setHash(hash);
+    }
+    return hash;
+  }
+
   static int calcContentHashIdWithFileType(@NotNull byte[] bytes, @Nullable Charset charset, @NotNull FileType fileType) throws IOException {
     return enumerateHash(calcContentHashWithFileType(bytes, charset, fileType));
   }
@@ -17,6 +17,7 @@
 package com.intellij.util.indexing;
 
 import com.intellij.AppTopics;
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.history.LocalHistory;
 import com.intellij.ide.plugins.PluginManager;
 import com.intellij.lang.ASTNode;
@@ -35,6 +36,7 @@ import com.intellij.openapi.fileTypes.*;
 import com.intellij.openapi.fileTypes.impl.FileTypeManagerImpl;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
 import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
@@ -75,6 +77,7 @@ import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.gist.GistManager;
 import com.intellij.util.gist.GistManagerImpl;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import com.intellij.util.indexing.impl.InvertedIndexValueIterator;
 import com.intellij.util.indexing.impl.MapReduceIndex;
 import com.intellij.util.io.DataOutputStream;
@@ -85,7 +88,6 @@ import com.intellij.util.messages.MessageBusConnection;
 import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import gnu.trove.TIntArrayList;
-import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
@@ -113,6 +115,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.FileBasedIndexImpl");
   private static final String CORRUPTION_MARKER_NAME = "corruption.marker";
   private static final NotificationGroup NOTIFICATIONS = new NotificationGroup("Indexing", NotificationDisplayType.BALLOON, false);
+  private static final boolean PARALLEL_ALL_KEYS_QUERIES = SystemProperties.getBooleanProperty("idea.indices.parallel.all.keys.queries", true);
 
   private final List<ID<?, ?>> myIndicesForDirectories = new SmartList<>();
 
@@ -822,15 +825,26 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                         @Nullable final VirtualFile restrictToFile,
                                         @NotNull final GlobalSearchScope filter,
                                         @NotNull ThrowableConvertor<UpdatableIndex<K, V, FileContent>, R, StorageException> computable) {
+    return processExceptions(indexId, restrictToFile, filter, true, computable);
+  }
+
+  @Nullable
+  private <K, V, R> R processExceptions(@NotNull final ID<K, V> indexId,
+                                        @Nullable final VirtualFile restrictToFile,
+                                        @NotNull final GlobalSearchScope filter,
+                                        boolean ensureUpToDate,
+                                        @NotNull ThrowableConvertor<UpdatableIndex<K, V, FileContent>, R, StorageException> computable) {
     try {
       waitUntilIndicesAreInitialized();
       final UpdatableIndex<K, V, FileContent> index = getIndex(indexId);
       if (index == null) {
         return null;
       }
-      final Project project = filter.getProject();
-      //assert project != null : "GlobalSearchScope#getProject() should be not-null for all index queries";
-      ensureUpToDate(indexId, project, filter, restrictToFile);
+      if (ensureUpToDate) {
+        final Project project = filter.getProject();
+        //assert project != null : "GlobalSearchScope#getProject() should be not-null for all index queries";
+        ensureUpToDate(indexId, project, filter, restrictToFile);
+      }
 
       myAccessValidator.checkAccessingIndexDuringOtherIndexProcessing(indexId);
 
@@ -924,9 +938,112 @@ public class FileBasedIndexImpl extends FileBasedIndex {
                                                       @NotNull final GlobalSearchScope filter,
                                                       @Nullable Condition<V> valueChecker,
                                                       @NotNull final Processor<VirtualFile> processor) {
+    return processFilesContainingAllKeys(Collections.singletonList(new AllKeysQuery<>(indexId, dataKeys, valueChecker)), filter, processor);
+  }
+
+  /**
+   * Looks the keys of each index up under a single read lock of it, starting from the key with the fewest files, and then streams
+   * the files from the smallest of the results which are contained in the rest of them. The indices are looked up in parallel if
+   * there are several of them, otherwise each one only among the files found in the previous ones.
+   */
+  @Override
+  public boolean processFilesContainingAllKeys(@NotNull Collection<AllKeysQuery<?, ?>> queries,
+                                               @NotNull GlobalSearchScope filter,
+                                               @NotNull Processor<VirtualFile> processor) {
+    Map<ID<?, ?>, IndexTerm> termsByIndex = new LinkedHashMap<>();
+    for (AllKeysQuery<?, ?> query : queries) {
+      // no file contains all of no keys
+      if (query.getDataKeys().isEmpty()) return true;
+      termsByIndex.computeIfAbsent(query.getIndexId(), IndexTerm::new).myQueries.add(query);
+    }
+    if (termsByIndex.isEmpty()) return true;
+
     ProjectIndexableFilesFilter filesSet = projectIndexableFiles(filter.getProject());
-    final TIntHashSet set = collectFileIdsContainingAllKeys(indexId, dataKeys, filter, valueChecker, filesSet);
-    return set != null && processVirtualFiles(set, filter, processor);
+    List<IndexTerm> terms = new ArrayList<>(termsByIndex.values());
+    for (IndexTerm term : terms) {
+      // in this thread, as it indexes unsaved documents and is not reentrant
+      ensureUpToDate(term.myIndexId, filter.getProject(), filter);
+    }
+
+    if (terms.size() > 1 && PARALLEL_ALL_KEYS_QUERIES) {
+      // stops at the first index without files, as nothing is found then
+      JobLauncher.getInstance().invokeConcurrentlyUnderProgress(terms, ProgressIndicatorProvider.getGlobalProgressIndicator(), true,
+                                                                term -> term.evaluate(this, filter, null) && !term.myIds.isEmpty());
+    }
+
+    RoaringIdSet smallest = null;
+    for (IndexTerm term : terms) {
+      if (!term.myEvaluated) continue;
+      if (term.myIds == null) return false;
+      if (term.myIds.isEmpty()) return true;
+      if (smallest == null || term.myIds.size() < smallest.size()) smallest = term.myIds;
+    }
+    // sequentially, or the rest of them if the read action couldn't be taken in parallel, among the files found so far
+    for (IndexTerm term : terms) {
+      if (term.myEvaluated) continue;
+      if (!term.evaluate(this, filter, smallest)) return false;
+      if (term.myIds.isEmpty()) return true;
+      smallest = term.myIds;
+    }
+
+    List<RoaringIdSet> postingLists = new ArrayList<>(terms.size());
+    for (IndexTerm term : terms) {
+      postingLists.add(term.myIds);
+    }
+    postingLists.sort(Comparator.comparingInt(RoaringIdSet::size));
+
+    final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
+    nextId:
+    for (ValueContainer.IntIterator iterator = postingLists.get(0).intIterator(); iterator.hasNext(); ) {
+      final int id = iterator.next();
+      for (int i = 1; i < postingLists.size(); i++) {
+        if (!postingLists.get(i).contains(id)) continue nextId;
+      }
+      if (filesSet != null && !filesSet.containsFileId(id)) continue;
+
+      ProgressManager.checkCanceled();
+      VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
+      if (file != null && filter.accept(file) && !processor.process(file)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // the queries against a single index, evaluated under one read lock of it to see a consistent snapshot
+  private static class IndexTerm {
+    private final ID<?, ?> myIndexId;
+    private final List<AllKeysQuery<?, ?>> myQueries = new ArrayList<>();
+    private volatile boolean myEvaluated;
+    // null if the index couldn't be read
+    private volatile RoaringIdSet myIds;
+
+    private IndexTerm(@NotNull ID<?, ?> indexId) {
+      myIndexId = indexId;
+    }
+
+    private boolean evaluate(@NotNull FileBasedIndexImpl fileBasedIndex, @NotNull GlobalSearchScope filter, @Nullable RoaringIdSet restriction) {
+      ProgressManager.checkCanceled();
+      myIds = fileBasedIndex.processExceptions(myIndexId, null, filter, false, index -> {
+        RoaringIdSet ids = restriction;
+        for (AllKeysQuery<?, ?> query : myQueries) {
+          ids = collectInputIds(index, query, ids);
+          if (ids.isEmpty()) break;
+        }
+        return ids;
+      });
+      myEvaluated = true;
+      return myIds != null;
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static <K, V> RoaringIdSet collectInputIds(@NotNull UpdatableIndex<?, ?, FileContent> index,
+                                                       @NotNull AllKeysQuery<K, V> query,
+                                                       @Nullable RoaringIdSet restriction) throws StorageException {
+      return InvertedIndexUtil.collectInputIdSetContainingAllKeys((UpdatableIndex<K, V, FileContent>)index, query.getDataKeys(),
+                                                                  query.getValueChecker(), restriction);
+    }
   }
 
   private static final Key<SoftReference<ProjectIndexableFilesFilter>> ourProjectFilesSetKey = Key.create("projectFiles");
@@ -1037,35 +1154,6 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return null; // ok, no filtering
   }
 
-  @Nullable
-  private <K, V> TIntHashSet collectFileIdsContainingAllKeys(@NotNull final ID<K, V> indexId,
-                                                             @NotNull final Collection<K> dataKeys,
-                                                             @NotNull final GlobalSearchScope filter,
-                                                             @Nullable final Condition<V> valueChecker,
-                                                             @Nullable final ProjectIndexableFilesFilter projectFilesFilter) {
-    ThrowableConvertor<UpdatableIndex<K, V, FileContent>, TIntHashSet, StorageException> convertor =
-            index -> InvertedIndexUtil.collectInputIdsContainingAllKeys(index, dataKeys, (k) -> {
-              ProgressManager.checkCanceled();
-              return true;
-            }, valueChecker, projectFilesFilter == null ? null : projectFilesFilter::containsFileId);
-
-    return processExceptions(indexId, null, filter, convertor);
-  }
-
-  private static boolean processVirtualFiles(@NotNull TIntHashSet ids,
-                                             @NotNull final GlobalSearchScope filter,
-                                             @NotNull final Processor<VirtualFile> processor) {
-    final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-    return ids.forEach(id -> {
-      ProgressManager.checkCanceled();
-      VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-      if (file != null && filter.accept(file)) {
-        return processor.process(file);
-      }
-      return true;
-    });
-  }
-
   @Nullable
   public static Throwable getCauseToRebuildIndex(@NotNull RuntimeException e) {
     if (ApplicationManager.getApplication().isUnitTestMode()) {
@@ -1431,8 +1519,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    indexFileContent(project, content, null);
+  }
+
+  /**
+   * @param writer if not null, the updates of the indices are queued to it rather than applied in this thread
+   */
+  void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content, @Nullable IndexUpdateWriter<QueuedUpdate> writer) {
     VirtualFile file = content.getVirtualFile();
     final int fileId = Math.abs(getIdMaskingNonIdBasedFile(file));
+    // held until the mapping is done, so the file isn't considered indexed while its first updates are written
+    FileWrites writes = writer == null ? null : FileWrites.start(this, fileId);
+    boolean indexed = false;
 
     try {
       // if file was scheduled for update due to vfs events then it is present in myFilesToUpdate
@@ -1443,21 +1541,27 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       if (!file.isValid() || isTooLarge(file)) {
         removeDataFromIndicesForFile(fileId);
         if (file instanceof DeletedVirtualFileStub && ((DeletedVirtualFileStub)file).isResurrected()) {
-          doIndexFileContent(project, new com.intellij.ide.caches.FileContent(((DeletedVirtualFileStub)file).getOriginalFile()));
+          doIndexFileContent(project, new com.intellij.ide.caches.FileContent(((DeletedVirtualFileStub)file).getOriginalFile()), writer, writes);
         }
       }
       else {
-        doIndexFileContent(project, content);
+        doIndexFileContent(project, content, writer, writes);
       }
+      indexed = true;
     }
     finally {
       IndexingStamp.flushCache(fileId);
+      // the file stays scheduled for update if its indexing was cancelled
+      if (writes != null) writes.finished(!indexed);
     }
 
-    myChangedFilesCollector.removeFileIdFromFilesScheduledForUpdate(fileId);
+    if (writes == null) myChangedFilesCollector.removeFileIdFromFilesScheduledForUpdate(fileId);
   }
 
-  private void doIndexFileContent(@Nullable Project project, @NotNull final com.intellij.ide.caches.FileContent content) {
+  private void doIndexFileContent(@Nullable Project project,
+                                  @NotNull final com.intellij.ide.caches.FileContent content,
+                                  @Nullable IndexUpdateWriter<QueuedUpdate> writer,
+                                  @Nullable FileWrites writes) {
     final VirtualFile file = content.getVirtualFile();
 
     final FileType fileType = file.getFileType();
@@ -1497,7 +1601,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, inputId, fc);
+            updateSingleIndex(indexId, file, inputId, fc, writer, writes);
           }
           catch (ProcessCanceledException e) {
             cleanFileContent(fc, psiFile);
@@ -1544,6 +1648,18 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   static final Key<Boolean> ourPhysicalContentKey = Key.create("physical.content.flag");
 
   private void updateSingleIndex(@NotNull ID<?, ?> indexId, VirtualFile file, final int inputId, @Nullable FileContent currentFC) {
+    updateSingleIndex(indexId, file, inputId, currentFC, null, null);
+  }
+
+  /**
+   * @param writes the queued writes of the file, not null if the writer is
+   */
+  private void updateSingleIndex(@NotNull ID<?, ?> indexId,
+                                 VirtualFile file,
+                                 final int inputId,
+                                 @Nullable FileContent currentFC,
+                                 @Nullable IndexUpdateWriter<QueuedUpdate> writer,
+                                 @Nullable FileWrites writes) {
     if (!RebuildStatus.isOk(indexId) && !myIsUnitTestMode) {
       return; // the index is scheduled for rebuild, no need to update
     }
@@ -1564,7 +1680,14 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       final Computable<Boolean> update = index.update(inputId, currentFC);
       updateCalculated = true;
 
-      scheduleUpdate(indexId, update, file, inputId, hasContent);
+      if (writer != null) {
+        assert writes != null;
+        writes.queued();
+        writer.write(indexId, new QueuedUpdate(update, file, inputId, hasContent, writes));
+      }
+      else {
+        scheduleUpdate(indexId, update, file, inputId, hasContent);
+      }
     }
     catch (RuntimeException exception) {
       Throwable causeToRebuildIndex = getCauseToRebuildIndex(exception);
@@ -1625,6 +1748,133 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
   }
 
+  @NotNull
+  IndexUpdateWriter<QueuedUpdate> createUpdateWriter() {
+    return new IndexUpdateWriter<>(this::applyQueuedUpdates);
+  }
+
+  static class QueuedUpdate {
+    private final Computable<Boolean> myUpdate;
+    private final VirtualFile myFile;
+    private final int myInputId;
+    private final boolean myHasContent;
+    private final FileWrites myWrites;
+
+    private QueuedUpdate(@NotNull Computable<Boolean> update, VirtualFile file, int inputId, boolean hasContent, @NotNull FileWrites writes) {
+      myUpdate = update;
+      myFile = file;
+      myInputId = inputId;
+      myHasContent = hasContent;
+      myWrites = writes;
+    }
+  }
+
+  // the files with updates mapped and not written yet
+  private final ConcurrentIntObjectMap<FileWrites> myFileWrites = ContainerUtil.createConcurrentIntObjectMap();
+
+  /**
+   * The queued updates of a file, which may be written after the read action they were mapped in. If the file is invalidated
+   * meanwhile, the updates are stale: their data is written as the diff of the next update is calculated against it, but the file
+   * isn't marked as indexed and stays scheduled for update.
+   */
+  private static class FileWrites {
+    private final FileBasedIndexImpl myIndex;
+    private final int myFileId;
+    // the mapping in progress and the updates not written yet
+    private int myPending = 1;
+    private boolean myStale;
+
+    private FileWrites(@NotNull FileBasedIndexImpl index, int fileId) {
+      myIndex = index;
+      myFileId = fileId;
+    }
+
+    @NotNull
+    private static FileWrites start(@NotNull FileBasedIndexImpl index, int fileId) {
+      while (true) {
+        FileWrites writes = index.myFileWrites.get(fileId);
+        if (writes == null) {
+          writes = new FileWrites(index, fileId);
+          if (index.myFileWrites.putIfAbsent(fileId, writes) == null) return writes;
+        }
+        else {
+          synchronized (writes) {
+            // not removed yet
+            if (writes.myPending > 0) {
+              writes.myPending++;
+              return writes;
+            }
+          }
+        }
+      }
+    }
+
+    private synchronized void queued() {
+      myPending++;
+    }
+
+    private synchronized void invalidated() {
+      myStale = true;
+    }
+
+    /**
+     * Marks the file as indexed by the written update unless it was invalidated since it was mapped.
+     */
+    private synchronized void written(@NotNull ID<?, ?> indexId, @NotNull QueuedUpdate update) {
+      if (!myStale) myIndex.indexedStampUpdate(indexId, update.myFile, update.myInputId, update.myHasContent);
+      finished(false);
+    }
+
+    private synchronized void finished(boolean stale) {
+      myStale |= stale;
+      if (--myPending > 0) return;
+
+      myIndex.myFileWrites.remove(myFileId, this);
+      if (!myStale) myIndex.myChangedFilesCollector.removeFileIdFromFilesScheduledForUpdate(myFileId);
+    }
+  }
+
+  // runs in the thread which happens to write the index, so neither the cancellation nor the failures belong to it
+  private void applyQueuedUpdates(@NotNull ID<?, ?> indexId, @NotNull List<QueuedUpdate> updates) {
+    // the rest of the files stay scheduled for update if the writes fail
+    Ref<Integer> written = Ref.create(0);
+    try {
+      ProgressManager.getInstance().executeNonCancelableSection(() -> {
+        UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+        List<Computable<Boolean>> computables = ContainerUtil.map(updates, update -> update.myUpdate);
+        if (updateWithBufferingEnabled(() -> index.applyUpdates(computables))) {
+          myReadLock.lock();
+          try {
+            for (QueuedUpdate update : updates) {
+              update.myWrites.written(indexId, update);
+              written.set(written.get() + 1);
+            }
+          }
+          finally {
+            myReadLock.unlock();
+          }
+        }
+      });
+    }
+    catch (RuntimeException exception) {
+      if (getCauseToRebuildIndex(exception) != null) {
+        requestRebuild(indexId, exception);
+      }
+      else {
+        LOG.error("Error while writing " + updates.size() + " updates of " + indexId, exception);
+      }
+    }
+    finally {
+      for (QueuedUpdate update : updates.subList(written.get(), updates.size())) {
+        update.myWrites.finished(true);
+      }
+      for (QueuedUpdate update : updates) {
+        // the stamps of the file were flushed when the indexing thread was done with it
+        IndexingStamp.flushCache(update.myInputId);
+      }
+    }
+  }
+
   private void indexedStampUpdate(@NotNull ID<?, ?> indexId, @Nullable VirtualFile file, int fileId, boolean hasContent) {
     UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     if (hasContent) {
@@ -1665,6 +1915,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     waitUntilIndicesAreInitialized();
     cleanProcessedFlag(file);
 
+    // before the stamps are reset, so the updates mapped from the previous content don't set them afterwards
+    FileWrites writes = myFileWrites.get(fileId);
+    if (writes != null) writes.invalidated();
+
     IndexingStamp.flushCache(fileId);
     List<ID<?, ?>> nontrivialFileIndexedStates = IndexingStamp.getNontrivialFileIndexedStates(fileId);
 
@@ -2008,6 +2262,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       if (!file.isValid()) {
         return true;
       }
+      if (file.isDirectory()) {
+        prefetchIndexStamps(file); // the children are processed next
+      }
       if (file instanceof VirtualFileSystemEntry && ((VirtualFileSystemEntry)file).isFileIndexed()) {
         return true;
       }
@@ -2067,6 +2324,16 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       }
       return true;
     }
+
+    private void prefetchIndexStamps(@NotNull VirtualFile dir) {
+      TIntArrayList childIds = new TIntArrayList();
+      for (VirtualFile child : dir.getChildren()) {
+        if (child instanceof VirtualFileSystemEntry && !((VirtualFileSystemEntry)child).isFileIndexed()) {
+          childIds.add(((VirtualFileSystemEntry)child).getId());
+        }
+      }
+      if (childIds.size() > 1) IndexingStamp.prefetchIndexStamps(childIds.toNativeArray());
+    }
   }
 
   private boolean shouldIndexFile(@Nullable Project project, @NotNull VirtualFile file, @NotNull ID<?, ?> indexId) {
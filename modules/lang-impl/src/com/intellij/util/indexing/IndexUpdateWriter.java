@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.project.IndexingQueueStatistics;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The write stage of bulk indexing. The updates calculated by the indexing threads are queued per index and applied in order,
+ * in batches, by whichever of the threads takes the index over, so the storage of an index is written by one thread at a time
+ * while the other threads go on mapping contents instead of waiting for its write lock.
+ */
+class IndexUpdateWriter<T> {
+  static final boolean ENABLED = SystemProperties.getBooleanProperty("idea.indexing.pipelined.writes", true);
+  // the producers apply the updates themselves beyond it, as the memory of the queued updates is held until then
+  private static final int MAX_QUEUED_UPDATES = SystemProperties.getIntProperty("idea.indexing.max.queued.updates", 256);
+  private static final int MAX_BATCH_SIZE = SystemProperties.getIntProperty("idea.indexing.update.batch.size", 64);
+
+  interface BatchWriter<T> {
+    /**
+     * Applies the updates of the index, in their order.
+     */
+    void write(@NotNull ID<?, ?> indexId, @NotNull List<T> updates);
+  }
+
+  private final ConcurrentMap<ID<?, ?>, IndexQueue<T>> myQueues = ContainerUtil.newConcurrentMap();
+  private final BatchWriter<T> myBatchWriter;
+
+  IndexUpdateWriter(@NotNull BatchWriter<T> batchWriter) {
+    myBatchWriter = batchWriter;
+  }
+
+  void write(@NotNull ID<?, ?> indexId, @NotNull T update) {
+    IndexQueue<T> queue = myQueues.get(indexId);
+    if (queue == null) {
+      queue = ConcurrencyUtil.cacheOrGet(myQueues, indexId, new IndexQueue<>(indexId));
+    }
+    queue.myStatistics.added();
+    queue.myUpdates.add(update);
+    drain(queue, queue.myStatistics.getDepth() > MAX_QUEUED_UPDATES);
+  }
+
+  /**
+   * Applies all the queued updates.
+   */
+  void flush() {
+    for (IndexQueue<T> queue : myQueues.values()) {
+      drain(queue, true);
+    }
+  }
+
+  /**
+   * @return the write queues in the order of their maximal depth, the deepest first
+   */
+  @NotNull
+  List<IndexingQueueStatistics> getStatistics() {
+    List<IndexingQueueStatistics> result = new ArrayList<>();
+    for (IndexQueue<T> queue : myQueues.values()) {
+      result.add(queue.myStatistics);
+    }
+    result.sort(Comparator.comparingInt(IndexingQueueStatistics::getMaxDepth).reversed());
+    return result;
+  }
+
+  private void drain(@NotNull IndexQueue<T> queue, boolean wait) {
+    do {
+      if (wait) {
+        queue.myWriterLock.lock();
+      }
+      else if (!queue.myWriterLock.tryLock()) {
+        return; // the current writer applies the update
+      }
+      try {
+        List<T> batch = new ArrayList<>();
+        T update;
+        do {
+          update = queue.myUpdates.poll();
+          if (update != null) {
+            queue.myStatistics.removed();
+            batch.add(update);
+          }
+          if (!batch.isEmpty() && (update == null || batch.size() == MAX_BATCH_SIZE)) {
+            myBatchWriter.write(queue.myIndexId, batch);
+            batch = new ArrayList<>();
+          }
+        }
+        while (update != null);
+      }
+      finally {
+        queue.myWriterLock.unlock();
+      }
+      // an update queued after the last poll by the thread which failed to take the lock over
+    }
+    while (!queue.myUpdates.isEmpty());
+  }
+
+  private static class IndexQueue<T> {
+    private final ID<?, ?> myIndexId;
+    private final Queue<T> myUpdates = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock myWriterLock = new ReentrantLock();
+    private final IndexingQueueStatistics myStatistics;
+
+    private IndexQueue(@NotNull ID<?, ?> indexId) {
+      myIndexId = indexId;
+      myStatistics = new IndexingQueueStatistics("writes of " + indexId);
+    }
+  }
+}
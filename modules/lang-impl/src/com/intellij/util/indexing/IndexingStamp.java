@@ -26,7 +26,11 @@ import com.intellij.util.SmartList;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntIntProcedure;
 import gnu.trove.TObjectLongHashMap;
 import gnu.trove.TObjectLongProcedure;
 import gnu.trove.TObjectProcedure;
@@ -63,7 +67,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class IndexingStamp {
   private static final long INDEX_DATA_OUTDATED_STAMP = -2L;
 
-  private static final int VERSION = 15;
+  // the id sets of the value containers are saved in a different format with roaring id sets, switching it must rebuild the indices
+  private static final int VERSION = 16 + (ChangeBufferingList.ROARING_ID_SETS ? 0 : 0x100);
   private static final ConcurrentMap<ID<?, ?>, Long> ourIndexIdToCreationStamp = ContainerUtil.newConcurrentMap();
   static final int INVALID_FILE_ID = 0;
   private static volatile long ourLastStamp; // ensure any file index stamp increases
@@ -98,6 +103,7 @@ public class IndexingStamp {
     }
     finally {
       ourIndexIdToCreationStamp.clear();
+      ourPrefetchedTimestamps.clear();
       os.close();
       long max = Math.max(
               System.currentTimeMillis(),
@@ -180,6 +186,7 @@ public class IndexingStamp {
     private static final FileAttribute PERSISTENCE = new FileAttribute("__index_stamps__", 2, false);
     private TObjectLongHashMap<ID<?, ?>> myIndexStamps;
     private boolean myIsDirty = false;
+    private int myFileModCount; // of prefetched stamps
 
     private Timestamps(@Nullable DataInputStream stream) throws IOException {
       if (stream != null) {
@@ -318,12 +325,78 @@ public class IndexingStamp {
     }
   }
 
+  private static final int MAX_PREFETCHED_STAMPS = 16384;
+  // stamps of the files to be checked soon, valid while the file record isn't modified
+  private static final ConcurrentIntObjectMap<Timestamps> ourPrefetchedTimestamps = ContainerUtil.createConcurrentIntObjectMap();
+
+  /**
+   * Reads persisted stamps of the files which are not cached in bulk (in VFS attribute storage order), so that following
+   * {@link #isFileIndexedStateCurrent} checks of the files don't read the attribute one by one.
+   */
+  public static void prefetchIndexStamps(@NotNull int[] fileIds) {
+    TIntArrayList toRead = new TIntArrayList(fileIds.length);
+    final TIntIntHashMap modCounts = new TIntIntHashMap(fileIds.length);
+    for (int fileId : fileIds) {
+      if (fileId <= 0 || myTimestampsCache.containsKey(fileId) || ourPrefetchedTimestamps.containsKey(fileId)) continue;
+      toRead.add(fileId);
+      // read before the attribute, so the stamps are dropped if the attribute is written meanwhile
+      modCounts.put(fileId, FSRecords.getModCount(fileId));
+    }
+    if (toRead.isEmpty()) return;
+    if (ourPrefetchedTimestamps.size() + toRead.size() > MAX_PREFETCHED_STAMPS) {
+      ourPrefetchedTimestamps.clear(); // stamps of the files which weren't checked
+    }
+
+    try {
+      FSRecords.processAttributeInBulk(toRead.toNativeArray(), Timestamps.PERSISTENCE, new FSRecords.BulkAttributeProcessor() {
+        @Override
+        public boolean process(int fileId, @NotNull DataInputStream attributeStream) throws IOException {
+          Timestamps timestamps = new Timestamps(attributeStream);
+          timestamps.myFileModCount = modCounts.remove(fileId);
+          ourPrefetchedTimestamps.put(fileId, timestamps);
+          return true;
+        }
+      });
+    }
+    catch (IOException e) {
+      Logger.getInstance(IndexingStamp.class).info(e); // stamps are read one by one then
+      return;
+    }
+
+    // files without persisted stamps
+    modCounts.forEachEntry(new TIntIntProcedure() {
+      @Override
+      public boolean execute(int fileId, int modCount) {
+        try {
+          Timestamps timestamps = new Timestamps(null);
+          timestamps.myFileModCount = modCount;
+          ourPrefetchedTimestamps.put(fileId, timestamps);
+          return true;
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+
   private static Timestamps createOrGetTimeStamp(int id) {
     boolean isValid = id > 0;
     if (!isValid) {
       id = -id;
     }
     Timestamps timestamps = myTimestampsCache.get(id);
+    if (timestamps == null && isValid) {
+      timestamps = ourPrefetchedTimestamps.remove(id);
+      if (timestamps != null) {
+        if (timestamps.myFileModCount == FSRecords.getModCount(id)) {
+          myTimestampsCache.put(id, timestamps);
+        }
+        else {
+          timestamps = null;
+        }
+      }
+    }
     if (timestamps == null) {
       final DataInputStream stream = FSRecords.readAttributeWithLock(id, Timestamps.PERSISTENCE);
       try {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.util.SmartList;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexed data of one input, as the keys grouped by their values. The data is expected to take the rest of the input stream.
+ */
+class InputMapExternalizer<Key, Value> implements DataExternalizer<Map<Key, Value>> {
+  private final DataExternalizer<Value> myValueExternalizer;
+  private final DataExternalizer<Collection<Key>> myKeysExternalizer;
+
+  InputMapExternalizer(@NotNull IndexExtension<Key, Value, ?> extension) {
+    myValueExternalizer = extension.getValueExternalizer();
+    myKeysExternalizer = VfsAwareMapReduceIndex.createInputsIndexExternalizer(extension);
+  }
+
+  @Override
+  public void save(@NotNull DataOutput out, Map<Key, Value> data) throws IOException {
+    int size = data.size();
+    DataInputOutputUtil.writeINT(out, size);
+
+    if (size > 0) {
+      THashMap<Value, List<Key>> values = new THashMap<>();
+      List<Key> keysForNullValue = null;
+      for (Map.Entry<Key, Value> e : data.entrySet()) {
+        Value value = e.getValue();
+
+        List<Key> keys = value != null ? values.get(value):keysForNullValue;
+        if (keys == null) {
+          if (value != null) values.put(value, keys = new SmartList<>());
+          else keys = keysForNullValue = new SmartList<>();
+        }
+        keys.add(e.getKey());
+      }
+
+      if (keysForNullValue != null) {
+        myValueExternalizer.save(out, null);
+        myKeysExternalizer.save(out, keysForNullValue);
+      }
+
+      for(Value value:values.keySet()) {
+        myValueExternalizer.save(out, value);
+        myKeysExternalizer.save(out, values.get(value));
+      }
+    }
+  }
+
+  @Override
+  public Map<Key, Value> read(@NotNull DataInput in) throws IOException {
+    int pairs = DataInputOutputUtil.readINT(in);
+    if (pairs == 0) return Collections.emptyMap();
+    Map<Key, Value> result = new THashMap<>(pairs);
+    while (((InputStream)in).available() > 0) {
+      Value value = myValueExternalizer.read(in);
+      Collection<Key> keys = myKeysExternalizer.read(in);
+      for(Key k:keys) result.put(k, value);
+    }
+    return result;
+  }
+}
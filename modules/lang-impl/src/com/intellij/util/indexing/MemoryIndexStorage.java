@@ -23,6 +23,7 @@ import com.intellij.util.indexing.impl.ChangeTrackingValueContainer;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.impl.IndexStorage;
 import com.intellij.util.indexing.impl.UpdatableValueContainer;
+import com.intellij.util.indexing.impl.ValueChanges;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -181,6 +182,20 @@ public class MemoryIndexStorage<Key, Value> implements VfsAwareIndexStorage<Key,
     myBackendStorage.removeAllValues(key, inputId);
   }
 
+  @Override
+  public void updateValues(@NotNull Key key, @NotNull ValueChanges<Value> changes) throws StorageException {
+    if (myBufferingEnabled) {
+      changes.applyTo(getMemValueContainer(key));
+      return;
+    }
+    final ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
+    if (valueContainer != null) {
+      valueContainer.dropMergedData();
+    }
+
+    myBackendStorage.updateValues(key, changes);
+  }
+
   private UpdatableValueContainer<Value> getMemValueContainer(final Key key) {
     ChangeTrackingValueContainer<Value> valueContainer = myMap.get(key);
     if (valueContainer == null) {
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.persistent.ContentHashesUtil;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.PersistentHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Indexed data of one index keyed by the hashes of the contents (see {@link ContentHashesSupport#calcContentHash(FileContentImpl)}),
+ * so it doesn't depend on the files, projects and machines the contents were indexed for. A chunk is the directory
+ * of the index under a chunk root and is valid only for the version of the index it was produced by.
+ */
+class SharedIndexChunk<Key, Value> {
+  private static final int FORMAT_VERSION = 1;
+
+  private final PersistentHashMap<byte[], Map<Key, Value>> myData;
+
+  private SharedIndexChunk(@NotNull PersistentHashMap<byte[], Map<Key, Value>> data) {
+    myData = data;
+  }
+
+  /**
+   * @return the chunk of the index under the root, or null if there is none for the current version of the index
+   */
+  @Nullable
+  static <Key, Value> SharedIndexChunk<Key, Value> open(@NotNull File root, @NotNull IndexExtension<Key, Value, ?> extension)
+    throws IOException {
+    File dir = getChunkDir(root, extension.getName());
+    if (readVersion(dir) != extension.getVersion()) return null;
+    return new SharedIndexChunk<>(new PersistentHashMap<byte[], Map<Key, Value>>(new File(dir, "data"),
+                                                                                 new ContentHashesUtil.ContentHashesDescriptor(),
+                                                                                 new InputMapExternalizer<>(extension)) {
+      @Override
+      protected boolean isReadOnly() {
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Opens the chunk of the index under the root for recording, the chunk of another version of the index is dropped.
+   */
+  @NotNull
+  static <Key, Value> SharedIndexChunk<Key, Value> create(@NotNull File root, @NotNull IndexExtension<Key, Value, ?> extension)
+    throws IOException {
+    File dir = getChunkDir(root, extension.getName());
+    if (readVersion(dir) != extension.getVersion()) {
+      FileUtil.delete(dir);
+      writeVersion(dir, extension.getVersion());
+    }
+    File dataFile = new File(dir, "data");
+    return new SharedIndexChunk<>(IOUtil.openCleanOrResetBroken(
+      () -> new PersistentHashMap<>(dataFile, new ContentHashesUtil.ContentHashesDescriptor(), new InputMapExternalizer<>(extension)),
+      dataFile));
+  }
+
+  @Nullable
+  Map<Key, Value> get(@NotNull byte[] hash) throws IOException {
+    return myData.get(hash);
+  }
+
+  void put(@NotNull byte[] hash, @NotNull Map<Key, Value> data) throws IOException {
+    if (!myData.containsMapping(hash)) myData.put(hash, data);
+  }
+
+  void flush() {
+    if (myData.isDirty()) myData.force();
+  }
+
+  void close() throws IOException {
+    myData.close();
+  }
+
+  @NotNull
+  private static File getChunkDir(@NotNull File root, @NotNull ID<?, ?> indexId) {
+    return new File(root, indexId.toString().toLowerCase(Locale.US));
+  }
+
+  private static int readVersion(@NotNull File dir) {
+    File versionFile = new File(dir, "version");
+    if (!versionFile.exists()) return -1;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(versionFile))) {
+      return in.readInt() == FORMAT_VERSION ? in.readInt() : -1;
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  private static void writeVersion(@NotNull File dir, int version) throws IOException {
+    FileUtil.createDirectory(dir);
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "version")))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(version);
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.stubs.StubUpdatingIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared index chunks of an index. The chunks are looked up before mapping a content, so the contents indexed in advance
+ * (JDK, libraries, unchanged sources) aren't mapped again. The chunks are produced by indexing with
+ * {@code idea.shared.index.chunk.output} set to the chunk root to record, e.g. by a headless CI build, and attached
+ * as a list of chunk roots in {@code idea.shared.index.chunks}.
+ */
+class SharedIndexChunks<Key, Value> {
+  private static final Logger LOG = Logger.getInstance(SharedIndexChunks.class);
+  private static final List<File> ourRoots = getRoots(System.getProperty("idea.shared.index.chunks"));
+  private static final File ourOutputRoot = getOutputRoot(System.getProperty("idea.shared.index.chunk.output"));
+
+  private final ID<Key, Value> myIndexId;
+  private final List<SharedIndexChunk<Key, Value>> myChunks;
+  @Nullable private final SharedIndexChunk<Key, Value> myOutput;
+  private final AtomicInteger myFoundCount = new AtomicInteger();
+  private final AtomicInteger myMissingCount = new AtomicInteger();
+
+  private SharedIndexChunks(@NotNull ID<Key, Value> indexId,
+                            @NotNull List<SharedIndexChunk<Key, Value>> chunks,
+                            @Nullable SharedIndexChunk<Key, Value> output) {
+    myIndexId = indexId;
+    myChunks = chunks;
+    myOutput = output;
+  }
+
+  /**
+   * @return the chunks of the index, or null if there are none to look up or record
+   */
+  @Nullable
+  static <Key, Value> SharedIndexChunks<Key, Value> create(@NotNull IndexExtension<Key, Value, ?> extension) {
+    if (ourRoots.isEmpty() && ourOutputRoot == null) return null;
+    // only the data of the indices that map the content alone, like the snapshot mappings, can be shared between contents:
+    // the indexers depending on the path, project, module or language level of the file can't use chunks
+    if (!(extension instanceof FileBasedIndexExtension) || !((FileBasedIndexExtension)extension).dependsOnFileContent()) return null;
+    if (!((FileBasedIndexExtension)extension).hasSnapshotMapping() || extension instanceof PsiDependentIndex) return null;
+    // serialized stubs refer to the stub serializers enumerated on the machine
+    if (extension.getName() == StubUpdatingIndex.INDEX_ID) return null;
+
+    List<SharedIndexChunk<Key, Value>> chunks = new ArrayList<>();
+    for (File root : ourRoots) {
+      try {
+        SharedIndexChunk<Key, Value> chunk = SharedIndexChunk.open(root, extension);
+        if (chunk != null) chunks.add(chunk);
+      }
+      catch (IOException e) {
+        LOG.warn("Can't open the shared index chunk of " + extension.getName() + " in " + root, e);
+      }
+    }
+
+    SharedIndexChunk<Key, Value> output = null;
+    if (ourOutputRoot != null) {
+      try {
+        output = SharedIndexChunk.create(ourOutputRoot, extension);
+      }
+      catch (IOException e) {
+        LOG.warn("Can't create the shared index chunk of " + extension.getName() + " in " + ourOutputRoot, e);
+      }
+    }
+    return chunks.isEmpty() && output == null ? null : new SharedIndexChunks<>(extension.getName(), chunks, output);
+  }
+
+  /**
+   * @return the data of the content with the hash, or null if it isn't in the chunks
+   */
+  @Nullable
+  Map<Key, Value> get(@NotNull byte[] hash) {
+    for (SharedIndexChunk<Key, Value> chunk : myChunks) {
+      try {
+        Map<Key, Value> data = chunk.get(hash);
+        if (data != null) {
+          myFoundCount.incrementAndGet();
+          return data;
+        }
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+      }
+    }
+    myMissingCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Records the data of the content with the hash to the chunk being produced.
+   */
+  void put(@NotNull byte[] hash, @NotNull Map<Key, Value> data) {
+    if (myOutput == null) return;
+    try {
+      myOutput.put(hash, data);
+    }
+    catch (IOException e) {
+      LOG.warn(e);
+    }
+  }
+
+  void flush() {
+    if (myOutput != null) myOutput.flush();
+  }
+
+  void close() {
+    if (myFoundCount.get() > 0) {
+      LOG.info(myIndexId + ": " + myFoundCount + " contents found in shared index chunks, " + myMissingCount + " mapped");
+    }
+    List<SharedIndexChunk<Key, Value>> chunks = new ArrayList<>(myChunks);
+    if (myOutput != null) chunks.add(myOutput);
+    for (SharedIndexChunk<Key, Value> chunk : chunks) {
+      try {
+        chunk.close();
+      }
+      catch (IOException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  @NotNull
+  private static List<File> getRoots(@Nullable String paths) {
+    List<File> roots = new ArrayList<>();
+    if (paths != null) {
+      for (String path : StringUtil.split(paths, File.pathSeparator)) {
+        File root = new File(path.trim());
+        if (root.isDirectory()) {
+          roots.add(root);
+        }
+        else {
+          LOG.warn("Shared index chunk root doesn't exist: " + root);
+        }
+      }
+    }
+    return roots;
+  }
+
+  @Nullable
+  private static File getOutputRoot(@Nullable String path) {
+    return StringUtil.isEmptyOrSpaces(path) ? null : new File(path.trim());
+  }
+}
@@ -28,14 +28,12 @@ import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.util.CompressionUtil;
 import com.intellij.util.ExceptionUtil;
-import com.intellij.util.SmartList;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.impl.MapReduceIndex;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
-import gnu.trove.THashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -49,22 +47,27 @@ public class SnapshotInputMappings<Key, Value, Input> {
 
   private final ID<Key, Value> myIndexId;
   private final DataExternalizer<Value> myValueExternalizer;
-  private final IndexExtension<Key, Value, Input> myIndexExtension;
   private final DataIndexer<Key, Value, Input> myIndexer;
   private volatile PersistentHashMap<Integer, ByteSequence> myContents;
   private volatile PersistentHashMap<Integer, Integer> myInputsSnapshotMapping;
   private volatile PersistentHashMap<Integer, String> myIndexingTrace;
 
-  private final DataExternalizer<Collection<Key>> mySnapshotIndexExternalizer;
+  private final InputMapExternalizer<Key, Value> myMapExternalizer;
   private boolean myIsPsiBackedIndex;
 
   public SnapshotInputMappings(IndexExtension<Key, Value, Input> indexExtension) throws IOException {
+    this(indexExtension, indexExtension.getIndexer());
+  }
+
+  /**
+   * @param indexer maps the contents missing in the snapshots
+   */
+  SnapshotInputMappings(IndexExtension<Key, Value, Input> indexExtension, DataIndexer<Key, Value, Input> indexer) throws IOException {
     myIndexId = indexExtension.getName();
     myIsPsiBackedIndex = indexExtension instanceof PsiDependentIndex;
-    mySnapshotIndexExternalizer = VfsAwareMapReduceIndex.createInputsIndexExternalizer(indexExtension);
+    myMapExternalizer = new InputMapExternalizer<>(indexExtension);
     myValueExternalizer = indexExtension.getValueExternalizer();
-    myIndexer = indexExtension.getIndexer();
-    myIndexExtension = indexExtension;
+    myIndexer = indexer;
     createMaps();
   }
 
@@ -333,15 +336,7 @@ public class SnapshotInputMappings<Key, Value, Input> {
 
   private Map<Key, Value> deserializeSavedPersistentData(ByteSequence bytes) throws IOException {
     DataInputStream stream = new DataInputStream(new UnsyncByteArrayInputStream(bytes.getBytes(), bytes.getOffset(), bytes.getLength()));
-    int pairs = DataInputOutputUtil.readINT(stream);
-    if (pairs == 0) return Collections.emptyMap();
-    Map<Key, Value> result = new THashMap<>(pairs);
-    while (stream.available() > 0) {
-      Value value = myIndexExtension.getValueExternalizer().read(stream);
-      Collection<Key> keys = mySnapshotIndexExternalizer.read(stream);
-      for(Key k:keys) result.put(k, value);
-    }
-    return result;
+    return myMapExternalizer.read(stream);
   }
 
   private Integer getHashOfContent(FileContent content) throws IOException {
@@ -435,35 +430,7 @@ public class SnapshotInputMappings<Key, Value, Input> {
     try {
       if (delayedReading && myContents.containsMapping(id)) return false;
       BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(ourSpareByteArray.getBuffer(4 * data.size()));
-      DataOutputStream stream = new DataOutputStream(out);
-      int size = data.size();
-      DataInputOutputUtil.writeINT(stream, size);
-
-      if (size > 0) {
-        THashMap<Value, List<Key>> values = new THashMap<>();
-        List<Key> keysForNullValue = null;
-        for (Map.Entry<Key, Value> e : data.entrySet()) {
-          Value value = e.getValue();
-
-          List<Key> keys = value != null ? values.get(value):keysForNullValue;
-          if (keys == null) {
-            if (value != null) values.put(value, keys = new SmartList<>());
-            else keys = keysForNullValue = new SmartList<>();
-          }
-          keys.add(e.getKey());
-        }
-
-        if (keysForNullValue != null) {
-          myValueExternalizer.save(stream, null);
-          mySnapshotIndexExternalizer.save(stream, keysForNullValue);
-        }
-
-        for(Value value:values.keySet()) {
-          myValueExternalizer.save(stream, value);
-          mySnapshotIndexExternalizer.save(stream, values.get(value));
-        }
-      }
-
+      myMapExternalizer.save(new DataOutputStream(out), data);
       saveContents(id, out);
     } catch (IOException ex) {
       throw new RuntimeException(ex);
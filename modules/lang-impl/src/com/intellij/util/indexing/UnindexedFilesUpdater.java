@@ -26,15 +26,19 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.CacheUpdateRunner;
 import com.intellij.openapi.project.DumbModeTask;
 import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexingQueueStatistics;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
 import com.intellij.openapi.roots.ModuleRootEvent;
 import com.intellij.openapi.roots.ModuleRootListener;
 import com.intellij.openapi.roots.impl.PushedFilePropertiesUpdater;
 import com.intellij.openapi.startup.StartupManager;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -43,6 +47,7 @@ import java.util.List;
  */
 public class UnindexedFilesUpdater extends DumbModeTask {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.UnindexedFilesUpdater");
+  private static final int MAX_REPORTED_WRITE_QUEUES = 5;
 
   private final FileBasedIndexImpl myIndex = (FileBasedIndexImpl)FileBasedIndex.getInstance();
   private final Project myProject;
@@ -96,13 +101,30 @@ public class UnindexedFilesUpdater extends DumbModeTask {
     indicator.setIndeterminate(false);
     indicator.setText(IdeBundle.message("progress.indexing.updating"));
 
-    indexFiles(indicator, files);
+    List<IndexingQueueStatistics> statistics = indexFiles(indicator, files);
 
-    if (trackResponsiveness) snapshot.logResponsivenessSinceCreation("Unindexed files update");
+    if (trackResponsiveness) {
+      snapshot.logResponsivenessSinceCreation("Unindexed files update");
+      LOG.info("Indexing queues: " + StringUtil.join(statistics, "; "));
+    }
   }
 
-  private void indexFiles(ProgressIndicator indicator, List<VirtualFile> files) {
-    CacheUpdateRunner.processFiles(indicator, true, files, myProject, content -> myIndex.indexFileContent(myProject, content));
+  // the stages are the content loading, the mapping by the indexing threads and the index writes queued to the writer
+  @NotNull
+  private List<IndexingQueueStatistics> indexFiles(ProgressIndicator indicator, List<VirtualFile> files) {
+    IndexUpdateWriter<FileBasedIndexImpl.QueuedUpdate> writer = IndexUpdateWriter.ENABLED ? myIndex.createUpdateWriter() : null;
+    List<IndexingQueueStatistics> statistics = new ArrayList<>();
+    try {
+      statistics.addAll(CacheUpdateRunner.processFiles(indicator, true, files, myProject,
+                                                       content -> myIndex.indexFileContent(myProject, content, writer)));
+    }
+    finally {
+      if (writer != null) {
+        ApplicationManager.getApplication().runReadAction(writer::flush);
+        statistics.addAll(ContainerUtil.getFirstItems(writer.getStatistics(), MAX_REPORTED_WRITE_QUEUES));
+      }
+    }
+    return statistics;
   }
 
   @Override
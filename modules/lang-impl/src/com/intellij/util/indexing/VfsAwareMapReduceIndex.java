@@ -59,6 +59,7 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
   private final AtomicBoolean myInMemoryMode = new AtomicBoolean();
   private final TIntObjectHashMap<Collection<Key>> myInMemoryKeys = new TIntObjectHashMap<Collection<Key>>();
   private final SnapshotInputMappings<Key, Value, Input> mySnapshotInputMappings;
+  @Nullable private final SharedIndexChunks<Key, Value> mySharedChunks;
 
   public VfsAwareMapReduceIndex(@NotNull IndexExtension<Key, Value, Input> extension,
                                 @NotNull IndexStorage<Key, Value> storage) throws IOException {
@@ -67,8 +68,9 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
       throw new IllegalArgumentException("myIndexId should be instance of com.intellij.util.indexing.ID");
     }
     SharedIndicesData.registerIndex((ID<Key, Value>)myIndexId, extension);
+    mySharedChunks = SharedIndexChunks.create(extension);
     mySnapshotInputMappings = myForwardIndex == null ?
-                              new SnapshotInputMappings<>(extension) :
+                              new SnapshotInputMappings<>(extension, this::mapInput) :
                               null;
     installMemoryModeListener();
   }
@@ -79,8 +81,9 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
                                 @NotNull ForwardIndex<Key, Value> forwardIndex) throws IOException {
     super(extension, storage, forwardIndex);
     SharedIndicesData.registerIndex((ID<Key, Value>)myIndexId, extension);
+    mySharedChunks = SharedIndexChunks.create(extension);
     mySnapshotInputMappings = myForwardIndex == null ?
-                              new SnapshotInputMappings<>(extension) :
+                              new SnapshotInputMappings<>(extension, this::mapInput) :
                               null;
     installMemoryModeListener();
   }
@@ -134,6 +137,20 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
     });
   }
 
+  @Override
+  protected Map<Key, Value> mapInput(Input content) {
+    if (mySharedChunks == null || !(content instanceof FileContentImpl) || !isContentPhysical(content)) {
+      return super.mapInput(content);
+    }
+    byte[] hash = ContentHashesSupport.calcContentHash((FileContentImpl)content);
+    Map<Key, Value> data = mySharedChunks.get(hash);
+    if (data == null) {
+      data = super.mapInput(content);
+      mySharedChunks.put(hash, data);
+    }
+    return data;
+  }
+
   @Override
   public void setIndexedStateForFile(int fileId, @NotNull VirtualFile file) {
     IndexingStamp.setFileIndexedStateCurrent(fileId, (ID<?, ?>)myIndexId);
@@ -193,11 +210,13 @@ public class VfsAwareMapReduceIndex<Key, Value, Input> extends MapReduceIndex<Ke
   public void flush() throws StorageException {
     super.flush();
     if (mySnapshotInputMappings != null) mySnapshotInputMappings.flush();
+    if (mySharedChunks != null) mySharedChunks.flush();
   }
 
   @Override
   public void dispose() {
     super.dispose();
+    if (mySharedChunks != null) mySharedChunks.close();
     if (mySnapshotInputMappings != null) try {
       mySnapshotInputMappings.close();
     }
@@ -34,7 +34,9 @@ import com.intellij.util.Consumer;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -46,10 +48,14 @@ public class CacheUpdateRunner {
 
   private static final int FILE_SIZE_TO_SHOW_THRESHOLD = 500 * 1024;
 
-  public static void processFiles(final ProgressIndicator indicator,
-                                  boolean processInReadAction,
-                                  Collection<VirtualFile> files,
-                                  Project project, Consumer<FileContent> processor) {
+  /**
+   * @return the depths of the queues of loaded contents and of contents being processed, to see which of them is behind
+   */
+  @NotNull
+  public static List<IndexingQueueStatistics> processFiles(final ProgressIndicator indicator,
+                                                           boolean processInReadAction,
+                                                           Collection<VirtualFile> files,
+                                                           Project project, Consumer<FileContent> processor) {
     indicator.checkCanceled();
     final FileContentQueue queue = new FileContentQueue(files, indicator);
     final double total = files.size();
@@ -90,6 +96,7 @@ public class CacheUpdateRunner {
       indicator.cancel();
       indicator.checkCanceled();
     }
+    return Arrays.asList(queue.getLoadedStatistics(), queue.getTakenStatistics());
   }
 
   private static boolean processSomeFilesWhileUserIsInactive(@NotNull FileContentQueue queue,
@@ -63,6 +63,9 @@ public class FileContentQueue {
   private final ProgressIndicator myProgressIndicator;
   private static final Deque<FileContentQueue> ourContentLoadingQueues = new LinkedBlockingDeque<FileContentQueue>();
 
+  private final IndexingQueueStatistics myLoadedStatistics = new IndexingQueueStatistics("loaded contents");
+  private final IndexingQueueStatistics myTakenStatistics = new IndexingQueueStatistics("contents being processed");
+
   public FileContentQueue(@NotNull Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
     int numberOfFiles = files.size();
     myContentsToLoad.set(numberOfFiles);
@@ -100,7 +103,9 @@ public class FileContentQueue {
     if (file == null || myProgressIndicator.isCanceled()) return false;
     try {
       myProgressIndicator.checkCanceled();
-      myLoadedContents.offer(loadContent(file, myProgressIndicator));
+      FileContent content = loadContent(file, myProgressIndicator);
+      myLoadedStatistics.added();
+      myLoadedContents.offer(content);
     }
     catch (ProcessCanceledException e) {
       return false;
@@ -204,6 +209,7 @@ public class FileContentQueue {
             if (requestingLargeSize) {
               myLargeSizeRequested = false;
             }
+            myTakenStatistics.added();
             return content;
           }
         }
@@ -233,6 +239,7 @@ public class FileContentQueue {
       }
     }
 
+    myLoadedStatistics.removed();
     synchronized (myProceedWithLoadingLock) {
       myLoadedBytesInQueue -= result.getLength();
       if (myLoadedBytesInQueue < MAX_SIZE_OF_BYTES_IN_QUEUE) {
@@ -245,6 +252,7 @@ public class FileContentQueue {
   }
 
   public void release(@NotNull FileContent content) {
+    myTakenStatistics.removed();
     synchronized (myProceedWithProcessingLock) {
       myBytesBeingProcessed -= content.getLength();
       myProceedWithProcessingLock.notifyAll(); // ask all sleeping threads to proceed, there can be more than one of them
@@ -255,6 +263,23 @@ public class FileContentQueue {
     synchronized (myProceedWithLoadingLock) {
       myLoadedBytesInQueue += content.getLength();
     }
+    myLoadedStatistics.added();
     myLoadedContents.addFirst(content);
   }
+
+  /**
+   * @return the contents loaded ahead of the processing threads
+   */
+  @NotNull
+  public IndexingQueueStatistics getLoadedStatistics() {
+    return myLoadedStatistics;
+  }
+
+  /**
+   * @return the contents taken by the processing threads and not released yet
+   */
+  @NotNull
+  public IndexingQueueStatistics getTakenStatistics() {
+    return myTakenStatistics;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Depth of the queue in front of an indexing stage. The depth is sampled whenever an item enters the queue, so a stage
+ * which can't keep up with the previous one shows a high average depth.
+ */
+public class IndexingQueueStatistics {
+  private final String myName;
+  private final AtomicInteger myDepth = new AtomicInteger();
+  private final AtomicInteger myMaxDepth = new AtomicInteger();
+  private final AtomicLong myAddedCount = new AtomicLong();
+  private final AtomicLong myDepthSum = new AtomicLong();
+
+  public IndexingQueueStatistics(@NotNull String name) {
+    myName = name;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  public void added() {
+    int depth = myDepth.incrementAndGet();
+    myAddedCount.incrementAndGet();
+    myDepthSum.addAndGet(depth);
+    int maxDepth;
+    while (depth > (maxDepth = myMaxDepth.get()) && !myMaxDepth.compareAndSet(maxDepth, depth)) ;
+  }
+
+  public void removed() {
+    myDepth.decrementAndGet();
+  }
+
+  public int getDepth() {
+    return myDepth.get();
+  }
+
+  public int getMaxDepth() {
+    return myMaxDepth.get();
+  }
+
+  public long getAddedCount() {
+    return myAddedCount.get();
+  }
+
+  public double getAverageDepth() {
+    long added = myAddedCount.get();
+    return added == 0 ? 0 : (double)myDepthSum.get() / added;
+  }
+
+  @Override
+  public String toString() {
+    return myName + ": " + getAddedCount() + " items, depth " + getDepth() + ", average " + String.format("%.1f", getAverageDepth()) +
+           ", max " + getMaxDepth();
+  }
+}
@@ -131,6 +131,7 @@ public class RefreshSessionImpl extends RefreshSession {
       }
 
       int count = 0;
+      int scannedFiles = 0;
       refresh: do {
         if (LOG.isTraceEnabled()) LOG.trace("try=" + count);
 
@@ -145,6 +146,7 @@ public class RefreshSessionImpl extends RefreshSession {
           RefreshWorker worker = new RefreshWorker(nvf, myIsRecursive);
           myWorker = worker;
           worker.scan();
+          scannedFiles += worker.getScannedFilesCount();
           haveEventsToFire |= myEvents.addAll(worker.getEvents());
         }
 
@@ -155,7 +157,8 @@ public class RefreshSessionImpl extends RefreshSession {
 
       if (t != 0) {
         t = System.currentTimeMillis() - t;
-        LOG.trace((myCancelled ? "cancelled, " : "done, ") + t + " ms, events " + myEvents);
+        LOG.trace((myCancelled ? "cancelled, " : "done, ") + t + " ms, files " + scannedFiles +
+                  (t > 0 ? " (" + scannedFiles * 1000L / t + " files/s)" : "") + ", events " + myEvents);
       }
     }
 
@@ -25,6 +25,9 @@ import org.jetbrains.annotations.NotNull;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Bounded cache of VFS names. The names themselves are kept by {@link FSRecords#getNames()} in a memory-mapped key storage
+ * which is looked up by comparing serialized bytes, so only the names cached here are on heap.
+ *
  * @author peter
  */
 public class FileNameCache {
@@ -46,13 +49,14 @@ public class FileNameCache {
   }
 
   @NotNull
-  private static IntObjectLinkedMap.MapEntry<CharSequence> cacheData(String name, int id, int stripe) {
+  private static IntObjectLinkedMap.MapEntry<CharSequence> cacheData(CharSequence name, int id, int stripe) {
     if (name == null) {
       ourNames.markCorrupted();
       throw new RuntimeException("VFS name enumerator corrupted");
     }
 
-    CharSequence rawName = ByteArrayCharSequence.convertToBytesIfAsciiString(name);
+    // names read from storage are already converted
+    CharSequence rawName = name instanceof String ? ByteArrayCharSequence.convertToBytesIfAsciiString((String)name) : name;
     IntObjectLinkedMap.MapEntry<CharSequence> entry = new IntObjectLinkedMap.MapEntry<CharSequence>(id, rawName);
     IntSLRUCache<IntObjectLinkedMap.MapEntry<CharSequence>> cache = ourNameCache[stripe];
     //noinspection SynchronizationOnLocalVariableOrMethodParameter
@@ -112,7 +116,7 @@ public class FileNameCache {
       entry = cache.getCachedEntry(nameId);
     }
     if (entry == null) {
-      entry = cacheData(FSRecords.getNameByNameId(nameId), nameId, stripe);
+      entry = cacheData(FSRecords.getNameSequenceByNameId(nameId), nameId, stripe);
     }
     ourArrayCache[l1] = entry;
     return entry.value;
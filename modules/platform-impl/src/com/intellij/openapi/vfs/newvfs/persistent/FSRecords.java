@@ -29,7 +29,6 @@ import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.impl.FileNameCache;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.BitUtil;
-import com.intellij.util.CompressionUtil;
 import com.intellij.util.SystemProperties;
 import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ConcurrentIntObjectMap;
@@ -52,6 +51,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import static com.intellij.util.io.IOUtil.deleteAllFilesStartingWith;
 
@@ -69,14 +69,31 @@ public class FSRecords implements Forceable {
   private static final boolean inlineAttributes = SystemProperties.getBooleanProperty("idea.inline.vfs.attributes", true);
   public static final boolean bulkAttrReadSupport = SystemProperties.getBooleanProperty("idea.bulk.attr.read", false);
   public static final boolean useSnappyForCompression = SystemProperties.getBooleanProperty("idea.use.snappy.for.vfs", false);
+  // records keep the id of the codec they were written with, so the codec may be switched without VFS rebuild
+  private static final StorageCompressionCodec contentsCodec = getContentsCodec();
   public static final boolean useSmallAttrTable = SystemProperties.getBooleanProperty("idea.use.small.attr.table.for.vfs", true);
+  // modifications are logged and replayed after a crash instead of VFS rebuild, see FSRecordsWriteAheadLog
+  public static final boolean writeAheadLog = SystemProperties.getBooleanProperty("idea.vfs.write.ahead.log", false);
+  private static final int LOG_COMMIT_INTERVAL = SystemProperties.getIntProperty("idea.vfs.log.commit.interval", 1000); // ms
+  private static final long MAX_LOG_SIZE = 64 * 1024 * 1024; // flush storages and start the log anew when exceeded
   static final String VFS_FILES_EXTENSION = System.getProperty("idea.vfs.files.extension", ".dat");
 
-  private static final int VERSION = 21 + (weHaveContentHashes ? 0x10:0) + (IOUtil.ourByteBuffersUseNativeByteOrder ? 0x37:0) +
+  private static final int VERSION = 22 + (weHaveContentHashes ? 0x10:0) + (IOUtil.ourByteBuffersUseNativeByteOrder ? 0x37:0) +
                                      (persistentAttributesList ? 31 : 0) + (bulkAttrReadSupport ? 0x27:0) + (inlineAttributes ? 0x31 : 0) +
-                                     (useSnappyForCompression ? 0x7f : 0) + (useSmallAttrTable ? 0x31 : 0) +
+                                     (useSmallAttrTable ? 0x31 : 0) +
                                      (PersistentHashMapValueStorage.COMPRESSION_ENABLED ? 21:0);
 
+  @NotNull
+  private static StorageCompressionCodec getContentsCodec() {
+    String name = System.getProperty("idea.vfs.contents.codec");
+    if (name != null) {
+      StorageCompressionCodec codec = StorageCompressionCodec.forName(name);
+      if (codec != null) return codec;
+      LOG.warn("Unknown VFS contents codec: " + name);
+    }
+    return useSnappyForCompression ? StorageCompressionCodec.SNAPPY : StorageCompressionCodec.DEFLATE;
+  }
+
   private static final int PARENT_OFFSET = 0;
   private static final int PARENT_SIZE = 4;
   private static final int NAME_OFFSET = PARENT_OFFSET + PARENT_SIZE;
@@ -114,7 +131,19 @@ public class FSRecords implements Forceable {
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // Seqlock-style versions of the records table which let hot fixed-layout field reads (parent, name, flags, length, timestamp,
+  // mod count) skip r: all writers already hold w, and additionally take the write mode of the stamp covering the changed record
+  // (ourRecordStamps, striped by id), of ourParentsStamp when the parent chain changes and of ourRecordsStructureStamp when
+  // the table itself is created, grown or closed. Readers validate stamps after reading and fall back to r on conflict.
+  // Record mod count can't be used for validation since not every write bumps it (e.g. setFlags without markAsChange).
+  private static final int RECORD_STAMP_STRIPES = 64; // power of 2
+  private static final StampedLock[] ourRecordStamps = new StampedLock[RECORD_STAMP_STRIPES];
+  private static final StampedLock ourParentsStamp = new StampedLock();
+  private static final StampedLock ourRecordsStructureStamp = new StampedLock();
+
   private static volatile int ourLocalModificationCount = 0;
+  // > 0 while a logged modification is applied, nested modifications it consists of aren't logged; guarded by w
+  private static int ourNestedModificationDepth;
   private static volatile boolean ourIsDisposed;
 
   private static final int FREE_RECORD_FLAG = 0x100;
@@ -127,6 +156,10 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    for (int i = 0; i < ourRecordStamps.length; i++) {
+      ourRecordStamps[i] = new StampedLock();
+    }
   }
 
   static void writeAttributesToRecord(int id, int parentId, @NotNull FileAttributes attributes, @NotNull String name) {
@@ -177,6 +210,10 @@ public class FSRecords implements Forceable {
     private static ScheduledFuture<?> myFlushingFuture;
     private static boolean myCorrupted = false;
 
+    private static volatile FSRecordsWriteAheadLog myLog;
+    private static ScheduledFuture<?> myLogCommitFuture;
+    private static boolean myLogReplayNeeded;
+
     private static final AttrPageAwareCapacityAllocationPolicy REASONABLY_SMALL = new AttrPageAwareCapacityAllocationPolicy();
 
 
@@ -184,8 +221,18 @@ public class FSRecords implements Forceable {
       w.lock();
       try {
         if (!ourInitialized) {
-          init();
+          long structureStamp = ourRecordsStructureStamp.writeLock();
+          try {
+            init();
+          }
+          finally {
+            ourRecordsStructureStamp.unlockWrite(structureStamp);
+          }
+          if (myLogReplayNeeded) {
+            replayLog();
+          }
           setupFlushing();
+          setupLogCommits();
           ourInitialized = true;
         }
       }
@@ -255,6 +302,7 @@ public class FSRecords implements Forceable {
       final File contentsFile = new File(basePath, "content" + VFS_FILES_EXTENSION);
       final File contentsHashesFile = new File(basePath, "contentHashes" + VFS_FILES_EXTENSION);
       final File recordsFile = new File(basePath, "records" + VFS_FILES_EXTENSION);
+      final File logFile = new File(basePath, "records.log");
 
       final File vfsDependentEnumBaseFile = VfsDependentEnum.getBaseFile();
 
@@ -277,7 +325,7 @@ public class FSRecords implements Forceable {
             return inlineAttributes && useSmallAttrTable ? new CompactRecordsTable(recordsFile, pool, false) : super.createRecordsTable(pool, recordsFile);
           }
         };
-        myContents = new RefCountingStorage(contentsFile.getPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH, useSnappyForCompression) {
+        myContents = new RefCountingStorage(contentsFile.getPath(), CapacityAllocationPolicy.FIVE_PERCENT_FOR_GROWTH, contentsCodec) {
           @NotNull
           @Override
           protected ExecutorService createExecutor() {
@@ -300,14 +348,27 @@ public class FSRecords implements Forceable {
           throw new IOException("FS repository version mismatch");
         }
 
-        if (myRecords.getInt(HEADER_CONNECTION_STATUS_OFFSET) != SAFELY_CLOSED_MAGIC) {
-          throw new IOException("FS repository wasn't safely shut down");
+        if (writeAheadLog) {
+          myLog = FSRecordsWriteAheadLog.open(logFile, VERSION, getTimestamp());
+        }
+        else if (logFile.exists() && !FileUtil.delete(logFile)) {
+          throw new IOException("Cannot delete " + logFile);
+        }
+
+        int connectionStatus = myRecords.getInt(HEADER_CONNECTION_STATUS_OFFSET);
+        if (connectionStatus != SAFELY_CLOSED_MAGIC) {
+          // modifications after the last flush can be replayed if they were logged since then
+          if (connectionStatus != CONNECTED_MAGIC || myLog == null || !myLog.isRecovered()) {
+            throw new IOException("FS repository wasn't safely shut down");
+          }
+          myLogReplayNeeded = true;
         }
         markDirty();
         scanFreeRecords();
       }
       catch (Exception e) { // IOException, IllegalArgumentException
         LOG.info("Filesystem storage is corrupted or does not exist. [Re]Building. Reason: " + e.getMessage());
+        myLogReplayNeeded = false;
         try {
           closeFiles();
 
@@ -317,6 +378,7 @@ public class FSRecords implements Forceable {
           deleted &= AbstractStorage.deleteFiles(contentsFile.getPath());
           deleted &= deleteAllFilesStartingWith(contentsHashesFile);
           deleted &= deleteAllFilesStartingWith(recordsFile);
+          deleted &= FileUtil.delete(logFile);
           deleted &= deleteAllFilesStartingWith(vfsDependentEnumBaseFile);
 
           if (!deleted) {
@@ -383,6 +445,72 @@ public class FSRecords implements Forceable {
       }
     }
 
+    private static void replayLog() {
+      myLogReplayNeeded = false;
+      FSRecordsWriteAheadLog log = myLog;
+      myLog = null; // replayed modifications aren't logged again
+      long started = System.currentTimeMillis();
+      try {
+        int modifications = log.replay(new LogReplayer());
+        myLog = log;
+        force(); // the log is not needed anymore
+        LOG.info("VFS wasn't safely shut down, replayed " + modifications + " modifications in " +
+                 (System.currentTimeMillis() - started) + " ms");
+      }
+      catch (Throwable e) {
+        LOG.info("Cannot replay VFS modifications, rebuilding", e);
+        if (!myCorrupted) createBrokenMarkerFile(e);
+        myLog = log;
+        long structureStamp = ourRecordsStructureStamp.writeLock();
+        try {
+          closeFiles();
+          myCorrupted = false;
+          init(); // rebuilds because of the corruption marker
+        }
+        catch (IOException e1) {
+          throw new RuntimeException(e1);
+        }
+        finally {
+          ourRecordsStructureStamp.unlockWrite(structureStamp);
+        }
+      }
+    }
+
+    private static void setupLogCommits() {
+      if (myLog == null) return;
+
+      myLogCommitFuture = FlushingDaemon.periodically(new Runnable() {
+        @Override
+        public void run() {
+          FSRecordsWriteAheadLog log = myLog;
+          if (log == null) return;
+          try {
+            log.commit();
+          }
+          catch (IOException e) {
+            LOG.warn("Cannot write VFS modifications log, logging is turned off", e);
+            disableLog(log);
+            return;
+          }
+          if (log.getSize() > MAX_LOG_SIZE) {
+            force();
+          }
+        }
+      }, LOG_COMMIT_INTERVAL);
+    }
+
+    // without a log the VFS is rebuilt after a crash, as usual; modifications logged concurrently go to the closed log's buffer
+    private static void disableLog(@NotNull FSRecordsWriteAheadLog log) {
+      if (myLog != log) return;
+      myLog = null;
+      try {
+        log.close();
+      }
+      catch (IOException ignored) {
+      }
+      FileUtil.delete(log.getFile());
+    }
+
     private static void setupFlushing() {
       if (!backgroundVfsFlush)
         return;
@@ -412,6 +540,7 @@ public class FSRecords implements Forceable {
           myContents.force();
           if (myContentHashesEnumerator != null) myContentHashesEnumerator.force();
           myRecords.force();
+          checkpointLog();
         }
       }
       finally {
@@ -419,6 +548,19 @@ public class FSRecords implements Forceable {
       }
     }
 
+    // all modifications are flushed to the storages
+    private static void checkpointLog() {
+      FSRecordsWriteAheadLog log = myLog;
+      if (log == null) return;
+      try {
+        log.checkpoint();
+      }
+      catch (IOException e) {
+        LOG.warn("Cannot truncate VFS modifications log, logging is turned off", e);
+        disableLog(log);
+      }
+    }
+
     public static void flushSome() {
       if (!isDirty() || HeavyProcessLatch.INSTANCE.isRunning()) return;
 
@@ -435,6 +577,7 @@ public class FSRecords implements Forceable {
         if (attribsFlushed && contentsFlushed) {
           markClean();
           myRecords.force();
+          checkpointLog();
         }
       }
       finally {
@@ -468,7 +611,16 @@ public class FSRecords implements Forceable {
     }
 
     static void cleanRecord(int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      StampedLock recordStamp = getRecordStamp(id);
+      long parentsStamp = ourParentsStamp.writeLock();
+      long stamp = recordStamp.writeLock();
+      try {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+      finally {
+        recordStamp.unlockWrite(stamp);
+        ourParentsStamp.unlockWrite(parentsStamp);
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -481,6 +633,16 @@ public class FSRecords implements Forceable {
         myFlushingFuture = null;
       }
 
+      if (myLogCommitFuture != null) {
+        myLogCommitFuture.cancel(false);
+        myLogCommitFuture = null;
+      }
+
+      if (myLog != null) {
+        myLog.close();
+        myLog = null;
+      }
+
       if (myNames != null) {
         myNames.close();
         myNames = null;
@@ -594,28 +756,56 @@ public class FSRecords implements Forceable {
   // todo: Address  / capacity store in records table, size store with payload
   public static int createRecord() {
     w.lock();
+    long structureStamp = ourRecordsStructureStamp.writeLock(); // file may grow
     try {
       DbConnection.markDirty();
 
       final int free = DbConnection.getFreeRecord();
+      int id;
       if (free == 0) {
         final int fileLength = length();
         LOG.assertTrue(fileLength % RECORD_SIZE == 0);
-        int newRecord = fileLength / RECORD_SIZE;
-        DbConnection.cleanRecord(newRecord);
+        id = fileLength / RECORD_SIZE;
+        DbConnection.cleanRecord(id);
         assert fileLength + RECORD_SIZE == length();
-        return newRecord;
       }
       else {
         if (lazyVfsDataCleaning) deleteContentAndAttributes(free);
         DbConnection.cleanRecord(free);
-        return free;
+        id = free;
       }
+
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logCreateRecord(id);
+      return id;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourRecordsStructureStamp.unlockWrite(structureStamp);
+      w.unlock();
+    }
+  }
+
+  // the same as createRecord() with the given result: the record may be already allocated if its page was flushed before the crash
+  private static void createRecordForReplay(int id) throws IOException {
+    w.lock();
+    long structureStamp = ourRecordsStructureStamp.writeLock();
+    try {
+      DbConnection.markDirty();
+
+      int count = length() / RECORD_SIZE;
+      if (id > count || id < 2) throw new IOException("Unexpected record id: " + id + ", records: " + count);
+      if (id < count) {
+        if (lazyVfsDataCleaning && BitUtil.isSet(getFlags(id), FREE_RECORD_FLAG)) deleteContentAndAttributes(id);
+        int freeIndex = DbConnection.myFreeRecords.indexOf(id);
+        if (freeIndex >= 0) DbConnection.myFreeRecords.remove(freeIndex);
+      }
+      DbConnection.cleanRecord(id);
+    }
+    finally {
+      ourRecordsStructureStamp.unlockWrite(structureStamp);
       w.unlock();
     }
   }
@@ -635,7 +825,10 @@ public class FSRecords implements Forceable {
 
   static void deleteRecordRecursively(int id) {
     w.lock();
+    FSRecordsWriteAheadLog log = getLog();
+    ourNestedModificationDepth++;
     try {
+      if (log != null) log.logDeleteRecordRecursively(id);
       incModCount(id);
       if (lazyVfsDataCleaning) {
         markAsDeletedRecursively(id);
@@ -647,6 +840,7 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourNestedModificationDepth--;
       w.unlock();
     }
   }
@@ -790,6 +984,8 @@ public class FSRecords implements Forceable {
 
   public static int findRootRecord(@NotNull String rootUrl) {
     w.lock();
+    FSRecordsWriteAheadLog log = getLog();
+    ourNestedModificationDepth++;
 
     try {
       DbConnection.markDirty();
@@ -838,19 +1034,24 @@ public class FSRecords implements Forceable {
         output.close();
       }
 
+      if (log != null) log.logFindRootRecord(rootUrl, id);
       return id;
     } catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourNestedModificationDepth--;
       w.unlock();
     }
   }
 
   public static void deleteRootRecord(int id) {
     w.lock();
+    FSRecordsWriteAheadLog log = getLog();
+    ourNestedModificationDepth++;
 
     try {
+      if (log != null) log.logDeleteRootRecord(id);
       DbConnection.markDirty();
       final DataInputStream input = readAttribute(1, ourChildrenAttr);
       assert input != null;
@@ -892,6 +1093,7 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourNestedModificationDepth--;
       w.unlock();
     }
   }
@@ -972,7 +1174,7 @@ public class FSRecords implements Forceable {
     try {
       r.lock();
       try {
-        return findAttributePage(id, ourChildrenAttr, false) != 0;
+        return findAttributePage(id, ourChildrenAttr.getId(), false) != 0;
       } finally {
         r.unlock();
       }
@@ -984,7 +1186,10 @@ public class FSRecords implements Forceable {
 
   public static void updateList(int id, @NotNull int[] children) {
     w.lock();
+    FSRecordsWriteAheadLog log = getLog();
+    ourNestedModificationDepth++;
     try {
+      if (log != null) log.logUpdateList(id, children);
       DbConnection.markDirty();
       final DataOutputStream record = writeAttribute(id, ourChildrenAttr);
       DataInputOutputUtil.writeINT(record, children.length);
@@ -1007,10 +1212,17 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
+      ourNestedModificationDepth--;
       w.unlock();
     }
   }
 
+  // the log for the modification being made, null if modifications aren't logged or it's a part of a logged modification
+  @Nullable
+  private static FSRecordsWriteAheadLog getLog() {
+    return ourNestedModificationDepth == 0 ? DbConnection.myLog : null;
+  }
+
   private static void incModCount(int id) {
     DbConnection.markDirty();
     ourLocalModificationCount++;
@@ -1045,19 +1257,13 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = getRecordIntOptimistically(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1067,22 +1273,24 @@ public class FSRecords implements Forceable {
   // returns id, parent(id), parent(parent(id)), ...  (already cached id or rootId)
   @NotNull
   public static TIntArrayList getParents(int id, @NotNull ConcurrentIntObjectMap<?> idCache) {
-    TIntArrayList result = new TIntArrayList(10);
-    r.lock();
-    try {
-      int parentId;
-      do {
-        result.add(id);
-        if (idCache.containsKey(id)) {
-          break;
-        }
-        parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id || result.size() % 128 == 0 && result.contains(parentId)) {
-          LOG.error("Cyclic parent child relations in the database. id = " + parentId);
+    long structureStamp = ourRecordsStructureStamp.tryOptimisticRead();
+    long parentsStamp = ourParentsStamp.tryOptimisticRead();
+    if (structureStamp != 0 && parentsStamp != 0) {
+      try {
+        TIntArrayList result = collectParents(id, idCache, false);
+        if (result != null && ourRecordsStructureStamp.validate(structureStamp) && ourParentsStamp.validate(parentsStamp)) {
           return result;
         }
-        id = parentId;
-      } while (parentId != 0);
+      }
+      catch (RuntimeException ignored) {
+        // records were changed concurrently, retry under lock
+      }
+    }
+
+    r.lock();
+    try {
+      //noinspection ConstantConditions
+      return collectParents(id, idCache, true);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1090,6 +1298,26 @@ public class FSRecords implements Forceable {
     finally {
       r.unlock();
     }
+  }
+
+  // returns null on cyclic parent chain if it shouldn't be reported (it may be caused by a concurrent modification then)
+  @Nullable
+  private static TIntArrayList collectParents(int id, @NotNull ConcurrentIntObjectMap<?> idCache, boolean reportCycles) {
+    TIntArrayList result = new TIntArrayList(10);
+    int parentId;
+    do {
+      result.add(id);
+      if (idCache.containsKey(id)) {
+        break;
+      }
+      parentId = getRecordInt(id, PARENT_OFFSET);
+      if (parentId == id || result.size() % 128 == 0 && result.contains(parentId)) {
+        if (!reportCycles) return null;
+        LOG.error("Cyclic parent child relations in the database. id = " + parentId);
+        return result;
+      }
+      id = parentId;
+    } while (parentId != 0);
     return result;
   }
 
@@ -1101,8 +1329,16 @@ public class FSRecords implements Forceable {
 
     w.lock();
     try {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logSetParent(id, parent);
       incModCount(id);
-      putRecordInt(id, PARENT_OFFSET, parent);
+      long parentsStamp = ourParentsStamp.writeLock();
+      try {
+        putRecordInt(id, PARENT_OFFSET, parent);
+      }
+      finally {
+        ourParentsStamp.unlockWrite(parentsStamp);
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1114,13 +1350,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return getRecordIntOptimistically(id, NAME_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1147,11 +1377,20 @@ public class FSRecords implements Forceable {
   }
 
   public static CharSequence getNameSequence(int id) {
+    try {
+      final int nameId = getRecordIntOptimistically(id, NAME_OFFSET);
+      return nameId != 0 ? FileNameCache.getVFileName(nameId) : "";
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
+  public static String getNameByNameId(int nameId) {
     try {
       r.lock();
       try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? FileNameCache.getVFileName(nameId) : "";
+        return nameId != 0 ? getNames().valueOf(nameId) : "";
       }
       finally {
         r.unlock();
@@ -1162,11 +1401,12 @@ public class FSRecords implements Forceable {
     }
   }
 
-  public static String getNameByNameId(int nameId) {
+  // ASCII names are returned as ByteArrayCharSequence read directly from the names storage
+  public static CharSequence getNameSequenceByNameId(int nameId) {
     try {
       r.lock();
       try {
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
+        return nameId != 0 ? getNames().valueOfAsCharSequence(nameId) : "";
       }
       finally {
         r.unlock();
@@ -1180,6 +1420,8 @@ public class FSRecords implements Forceable {
   public static void setName(int id, @NotNull String name) {
     w.lock();
     try {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logSetName(id, name);
       incModCount(id);
       putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
     }
@@ -1192,18 +1434,14 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    r.lock();
-    try {
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordIntOptimistically(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
     w.lock();
     try {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logSetFlags(id, flags, markAsChange);
       if (markAsChange) {
         incModCount(id);
       }
@@ -1218,20 +1456,16 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
-    r.lock();
-    try {
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordLongOptimistically(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
     w.lock();
     try {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logSetLength(id, len);
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1242,20 +1476,16 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
-    r.lock();
-    try {
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordLongOptimistically(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
     w.lock();
     try {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logSetTimestamp(id, value);
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1266,13 +1496,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
-    r.lock();
-    try {
-      return getRecordInt(id, MOD_COUNT_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return getRecordIntOptimistically(id, MOD_COUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -1300,7 +1524,80 @@ public class FSRecords implements Forceable {
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    StampedLock recordStamp = getRecordStamp(id);
+    long stamp = recordStamp.writeLock();
+    try {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+    finally {
+      recordStamp.unlockWrite(stamp);
+    }
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    StampedLock recordStamp = getRecordStamp(id);
+    long stamp = recordStamp.writeLock();
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      recordStamp.unlockWrite(stamp);
+    }
+  }
+
+  // reads record field without r unless the record (or records table) is modified concurrently
+  private static int getRecordIntOptimistically(int id, int offset) {
+    StampedLock recordStamp = getRecordStamp(id);
+    long structureStamp = ourRecordsStructureStamp.tryOptimisticRead();
+    long stamp = recordStamp.tryOptimisticRead();
+    if (structureStamp != 0 && stamp != 0) {
+      try {
+        int value = getRecordInt(id, offset);
+        if (ourRecordsStructureStamp.validate(structureStamp) && recordStamp.validate(stamp)) {
+          return value;
+        }
+      }
+      catch (RuntimeException ignored) {
+        // records were changed concurrently, retry under lock
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long getRecordLongOptimistically(int id, int offset) {
+    StampedLock recordStamp = getRecordStamp(id);
+    long structureStamp = ourRecordsStructureStamp.tryOptimisticRead();
+    long stamp = recordStamp.tryOptimisticRead();
+    if (structureStamp != 0 && stamp != 0) {
+      try {
+        long value = getRecords().getLong(getOffset(id, offset));
+        if (ourRecordsStructureStamp.validate(structureStamp) && recordStamp.validate(stamp)) {
+          return value;
+        }
+      }
+      catch (RuntimeException ignored) {
+        // records were changed concurrently, retry under lock
+      }
+    }
+
+    r.lock();
+    try {
+      return getRecords().getLong(getOffset(id, offset));
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static StampedLock getRecordStamp(int id) {
+    return ourRecordStamps[id & (RECORD_STAMP_STRIPES - 1)];
   }
 
   private static int getOffset(int id, int offset) {
@@ -1339,13 +1636,7 @@ public class FSRecords implements Forceable {
   }
 
   private static DataInputStream doReadContentById(int contentId) throws IOException {
-    DataInputStream stream = getContentStorage().readStream(contentId);
-    if (useSnappyForCompression) {
-      byte[] bytes = CompressionUtil.readCompressed(stream);
-      stream = new DataInputStream(new ByteArrayInputStream(bytes));
-    }
-
-    return stream;
+    return getContentStorage().readStream(contentId);
   }
 
   @Nullable
@@ -1426,16 +1717,171 @@ public class FSRecords implements Forceable {
     return stream;
   }
 
+  public interface BulkAttributeProcessor {
+    /**
+     * @param attributeStream attribute data (after version for versioned attributes), valid only during the call
+     * @return false to stop processing
+     */
+    boolean process(int fileId, @NotNull DataInputStream attributeStream) throws IOException;
+  }
+
+  private static final int BULK_ATTR_READ_BATCH_SIZE = 1024;
+
+  /**
+   * Streams given attribute of the files in attribute storage order, which is much cheaper than {@link #readAttributeWithLock}
+   * for each of them: data is read in batches under one lock into one buffer, and the processor is called outside of the lock
+   * with the same stream for all files. Deleted files, files without the attribute and with other version of versioned one are skipped.
+   */
+  public static boolean processAttributeInBulk(@NotNull int[] fileIds, @NotNull FileAttribute attribute, @NotNull BulkAttributeProcessor processor)
+    throws IOException {
+    long[] attributeRecordAndFileIds = new long[fileIds.length];
+    int count = 0;
+    for (int start = 0; start < fileIds.length; start += BULK_ATTR_READ_BATCH_SIZE) {
+      int end = Math.min(fileIds.length, start + BULK_ATTR_READ_BATCH_SIZE);
+      try {
+        r.lock();
+        try {
+          for (int i = start; i < end; ++i) {
+            int fileId = fileIds[i];
+            int recordId = fileId > 0 ? getAttributeRecordId(fileId) : 0;
+            if (recordId != 0) attributeRecordAndFileIds[count++] = (long)recordId << 32 | fileId;
+          }
+        }
+        finally {
+          r.unlock();
+        }
+      }
+      catch (Throwable e) {
+        throw DbConnection.handleError(e);
+      }
+    }
+    Arrays.sort(attributeRecordAndFileIds, 0, count);
+
+    BulkAttributeReader reader = new BulkAttributeReader(attribute);
+    for (int start = 0; start < count; start += BULK_ATTR_READ_BATCH_SIZE) {
+      reader.readBatch(attributeRecordAndFileIds, start, Math.min(count, start + BULK_ATTR_READ_BATCH_SIZE));
+      if (!reader.processBatch(processor)) return false;
+    }
+    return true;
+  }
+
+  private static class BulkAttributeReader {
+    private final FileAttribute myAttribute;
+    private final BufferExposingByteArrayOutputStream myBuffer = new BufferExposingByteArrayOutputStream();
+    private final UnsyncByteArrayInputStream myInput = new UnsyncByteArrayInputStream(ArrayUtil.EMPTY_BYTE_ARRAY);
+    private final DataInputStream myDataInput = new DataInputStream(myInput);
+    private final int[] myFileIds = new int[BULK_ATTR_READ_BATCH_SIZE];
+    private final int[] myDataEnds = new int[BULK_ATTR_READ_BATCH_SIZE];
+    private int myCount;
+
+    BulkAttributeReader(@NotNull FileAttribute attribute) {
+      myAttribute = attribute;
+    }
+
+    void readBatch(long[] attributeRecordAndFileIds, int start, int end) {
+      myBuffer.reset();
+      myCount = 0;
+      try {
+        r.lock();
+        try {
+          int encodedAttrId = DbConnection.getAttributeId(myAttribute.getId());
+          for (int i = start; i < end; ++i) {
+            int fileId = (int)attributeRecordAndFileIds[i];
+            if (BitUtil.isSet(getFlags(fileId), FREE_RECORD_FLAG)) continue;
+            int recordId = getAttributeRecordId(fileId); // could be changed after sorting
+            if (recordId != 0 && readAttributeBytes(fileId, recordId, encodedAttrId)) {
+              myFileIds[myCount] = fileId;
+              myDataEnds[myCount++] = myBuffer.size();
+            }
+          }
+        }
+        finally {
+          r.unlock();
+        }
+      }
+      catch (Throwable e) {
+        throw DbConnection.handleError(e);
+      }
+    }
+
+    // appends attribute data to the buffer, see readAttribute()
+    private boolean readAttributeBytes(int fileId, int recordId, int encodedAttrId) throws IOException {
+      Storage storage = getAttributesStorage();
+      int start = myBuffer.size();
+      int page = 0;
+
+      setupInput(start, start + storage.readBytes(recordId, myBuffer));
+      if (bulkAttrReadSupport) skipRecordHeader(myDataInput, DbConnection.RESERVED_ATTR_ID, fileId);
+
+      while (myInput.available() > 0) {
+        final int attIdOnPage = DataInputOutputUtil.readINT(myDataInput);
+        final int attrAddressOrSize = DataInputOutputUtil.readINT(myDataInput);
+
+        if (attIdOnPage != encodedAttrId) {
+          if (inlineAttributes && attrAddressOrSize < MAX_SMALL_ATTR_SIZE) {
+            myDataInput.skipBytes(attrAddressOrSize);
+          }
+        } else {
+          if (inlineAttributes && attrAddressOrSize < MAX_SMALL_ATTR_SIZE) {
+            int dataStart = myBuffer.size() - myInput.available();
+            System.arraycopy(myBuffer.getInternalBuffer(), dataStart, myBuffer.getInternalBuffer(), start, attrAddressOrSize);
+            myBuffer.backOff(myBuffer.size() - start - attrAddressOrSize);
+            return true;
+          }
+          page = inlineAttributes ? attrAddressOrSize - MAX_SMALL_ATTR_SIZE : attrAddressOrSize;
+          break;
+        }
+      }
+
+      myBuffer.backOff(myBuffer.size() - start);
+      if (page == 0) return false;
+
+      storage.readBytes(page, myBuffer);
+      if (bulkAttrReadSupport) {
+        setupInput(start, myBuffer.size());
+        skipRecordHeader(myDataInput, encodedAttrId, fileId);
+        int headerSize = myBuffer.size() - start - myInput.available();
+        System.arraycopy(myBuffer.getInternalBuffer(), start + headerSize, myBuffer.getInternalBuffer(), start, myInput.available());
+        myBuffer.backOff(headerSize);
+      }
+      return true;
+    }
+
+    private void setupInput(int start, int end) {
+      myInput.init(myBuffer.getInternalBuffer(), start, end);
+    }
+
+    boolean processBatch(@NotNull BulkAttributeProcessor processor) throws IOException {
+      int start = 0;
+      for (int i = 0; i < myCount; ++i) {
+        int end = myDataEnds[i];
+        setupInput(start, end);
+        start = end;
+
+        if (myAttribute.isVersioned()) {
+          try {
+            if (DataInputOutputUtil.readINT(myDataInput) != myAttribute.getVersion()) continue;
+          }
+          catch (IOException e) {
+            continue;
+          }
+        }
+        if (!processor.process(myFileIds[i], myDataInput)) return false;
+      }
+      return true;
+    }
+  }
+
   // Vfs small attrs: store inline:
   // file's AttrId -> [size, capacity] attr record (RESERVED_ATTR_ID fileId)? (attrId ((smallAttrSize smallAttrData) | (attr record)) )
   // other attr record: (AttrId, fileId) ? attrData
   private static final int MAX_SMALL_ATTR_SIZE = 64;
 
-  private static int findAttributePage(int fileId, FileAttribute attr, boolean toWrite) throws IOException {
+  private static int findAttributePage(int fileId, @NotNull String attributeId, boolean toWrite) throws IOException {
     checkFileIsValid(fileId);
 
     int recordId = getAttributeRecordId(fileId);
-    int encodedAttrId = DbConnection.getAttributeId(attr.getId());
+    int encodedAttrId = DbConnection.getAttributeId(attributeId);
     boolean directoryRecord = false;
 
     Storage storage = getAttributesStorage();
@@ -1525,6 +1971,8 @@ public class FSRecords implements Forceable {
     try {
       int record = getContentRecordId(fileId);
       if (record > 0) getContentStorage().acquireRecord(record);
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logAcquireFileContent(fileId, record, record > 0 ? getContentStorage().getRefCount(record) : 0);
       return record;
     }
     catch (Throwable e) {
@@ -1544,6 +1992,8 @@ public class FSRecords implements Forceable {
       } else {
         contentStorage.releaseRecord(contentId);
       }
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logReleaseContent(contentId, contentStorage.getRefCount(contentId));
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1587,13 +2037,19 @@ public class FSRecords implements Forceable {
     try {
       int recordId;
 
+      FSRecordsWriteAheadLog log = getLog();
       if (weHaveContentHashes) {
         recordId = findOrCreateContentRecord(bytes, 0, bytes.length);
-        if (recordId > 0) return recordId;
+        if (recordId > 0) {
+          if (log != null) log.logStoreUnlinkedContent(recordId, bytes, getContentStorage().getRefCount(recordId));
+          return recordId;
+        }
         recordId = -recordId;
       } else {
         recordId = getContentStorage().acquireNewRecord();
       }
+      // a new record is referenced once
+      if (log != null) log.logStoreUnlinkedContent(recordId, bytes, 1);
       AbstractStorage.StorageDataOutput output = getContentStorage().writeStream(recordId, true);
       output.write(bytes);
       output.close();
@@ -1608,7 +2064,7 @@ public class FSRecords implements Forceable {
 
   @NotNull
   public static DataOutputStream writeAttribute(final int fileId, @NotNull FileAttribute att) {
-    DataOutputStream stream = new AttributeOutputStream(fileId, att);
+    DataOutputStream stream = new AttributeOutputStream(fileId, att.getId(), att.isFixedSize());
     if (att.isVersioned()) {
       try {
         DataInputOutputUtil.writeINT(stream, att.getVersion());
@@ -1661,7 +2117,10 @@ public class FSRecords implements Forceable {
 
           setContentRecordId(myFileId, page > 0 ? page : -page);
 
-          if (page > 0) return;
+          if (page > 0) {
+            logWriteContent(bytes, contentStorage.getRefCount(page));
+            return;
+          }
           page = -page;
           fixedSize = true;
         } else {
@@ -1673,24 +2132,19 @@ public class FSRecords implements Forceable {
           fixedSize = myFixedSize;
         }
 
-        if (useSnappyForCompression) {
-          BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
-          DataOutputStream outputStream = new DataOutputStream(out);
-          byte[] rawBytes = bytes.getBytes();
-          if (bytes.getOffset() != 0) {
-            rawBytes = new byte[bytes.getLength()];
-            System.arraycopy(bytes.getBytes(), bytes.getOffset(), rawBytes, 0, bytes.getLength());
-          }
-          CompressionUtil.writeCompressed(outputStream, rawBytes, bytes.getLength());
-          outputStream.close();
-          bytes = new ByteSequence(out.getInternalBuffer(), 0, out.size());
-        }
+        // the page is referenced by this file only, its count is not read after the write as it would wait for the write to finish
+        logWriteContent(bytes, 1);
         contentStorage.writeBytes(page, bytes, fixedSize);
       }
       finally {
         w.unlock();
       }
     }
+
+    private void logWriteContent(@NotNull ByteSequence bytes, int refCount) {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logWriteContent(myFileId, myFixedSize, bytes, refCount);
+    }
   }
 
   private static final boolean DO_HARD_CONSISTENCY_CHECK = false;
@@ -1762,13 +2216,15 @@ public class FSRecords implements Forceable {
   }
 
   private static class AttributeOutputStream extends DataOutputStream {
-    private final FileAttribute myAttribute;
+    private final String myAttributeId;
+    private final boolean myFixedSize;
     private final int myFileId;
 
-    private AttributeOutputStream(final int fileId, @NotNull FileAttribute attribute) {
+    private AttributeOutputStream(final int fileId, @NotNull String attributeId, boolean fixedSize) {
       super(new BufferExposingByteArrayOutputStream());
       myFileId = fileId;
-      myAttribute = attribute;
+      myAttributeId = attributeId;
+      myFixedSize = fixedSize;
     }
 
     @Override
@@ -1781,7 +2237,7 @@ public class FSRecords implements Forceable {
         if (inlineAttributes && _out.size() < MAX_SMALL_ATTR_SIZE) {
           w.lock();
           try {
-
+            logWriteAttribute(_out);
             rewriteDirectoryRecordWithAttrContent(_out);
             incModCount(myFileId);
 
@@ -1794,24 +2250,25 @@ public class FSRecords implements Forceable {
           int page;
           w.lock();
           try {
+            logWriteAttribute(_out);
             incModCount(myFileId);
-            page = findAttributePage(myFileId, myAttribute, true);
+            page = findAttributePage(myFileId, myAttributeId, true);
             if (inlineAttributes && page < 0) {
               rewriteDirectoryRecordWithAttrContent(new BufferExposingByteArrayOutputStream());
-              page = findAttributePage(myFileId, myAttribute, true);
+              page = findAttributePage(myFileId, myAttributeId, true);
             }
 
             if (bulkAttrReadSupport) {
               BufferExposingByteArrayOutputStream stream = new BufferExposingByteArrayOutputStream();
               BufferExposingByteArrayOutputStream oldOut = _out;
               out = stream;
-              writeRecordHeader(DbConnection.getAttributeId(myAttribute.getId()), myFileId, this);
+              writeRecordHeader(DbConnection.getAttributeId(myAttributeId), myFileId, this);
               write(oldOut.getInternalBuffer(), 0, oldOut.size());
               getAttributesStorage()
-                      .writeBytes(page, new ByteSequence(stream.getInternalBuffer(), 0, stream.size()), myAttribute.isFixedSize());
+                      .writeBytes(page, new ByteSequence(stream.getInternalBuffer(), 0, stream.size()), myFixedSize);
             } else {
               getAttributesStorage()
-                      .writeBytes(page, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myAttribute.isFixedSize());
+                      .writeBytes(page, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()), myFixedSize);
             }
           }
           finally {
@@ -1824,10 +2281,15 @@ public class FSRecords implements Forceable {
       }
     }
 
+    private void logWriteAttribute(@NotNull BufferExposingByteArrayOutputStream _out) {
+      FSRecordsWriteAheadLog log = getLog();
+      if (log != null) log.logWriteAttribute(myFileId, myAttributeId, myFixedSize, new ByteSequence(_out.getInternalBuffer(), 0, _out.size()));
+    }
+
     protected void rewriteDirectoryRecordWithAttrContent(BufferExposingByteArrayOutputStream _out) throws IOException {
       int recordId = getAttributeRecordId(myFileId);
       assert inlineAttributes;
-      int encodedAttrId = DbConnection.getAttributeId(myAttribute.getId());
+      int encodedAttrId = DbConnection.getAttributeId(myAttributeId);
 
       Storage storage = getAttributesStorage();
       BufferExposingByteArrayOutputStream unchangedPreviousDirectoryStream = null;
@@ -1909,8 +2371,101 @@ public class FSRecords implements Forceable {
     }
   }
 
+  // applies logged modifications through the same methods which logged them
+  private static class LogReplayer implements FSRecordsWriteAheadLog.Replayer {
+    @Override
+    public void createRecord(int id) throws IOException {
+      createRecordForReplay(id);
+    }
+
+    @Override
+    public void deleteRecordRecursively(int id) {
+      FSRecords.deleteRecordRecursively(id);
+    }
+
+    @Override
+    public void setParent(int id, int parent) {
+      FSRecords.setParent(id, parent);
+    }
+
+    @Override
+    public void setName(int id, @NotNull String name) {
+      FSRecords.setName(id, name);
+    }
+
+    @Override
+    public void setFlags(int id, int flags, boolean markAsChange) {
+      FSRecords.setFlags(id, flags, markAsChange);
+    }
+
+    @Override
+    public void setLength(int id, long length) {
+      FSRecords.setLength(id, length);
+    }
+
+    @Override
+    public void setTimestamp(int id, long timestamp) {
+      FSRecords.setTimestamp(id, timestamp);
+    }
+
+    @Override
+    public void updateList(int id, @NotNull int[] children) {
+      FSRecords.updateList(id, children);
+    }
+
+    @Override
+    public void findRootRecord(@NotNull String rootUrl, int id) throws IOException {
+      checkReplayedId("root record", id, FSRecords.findRootRecord(rootUrl));
+    }
+
+    @Override
+    public void deleteRootRecord(int id) {
+      FSRecords.deleteRootRecord(id);
+    }
+
+    @Override
+    public void writeAttribute(int fileId, @NotNull String attributeId, boolean fixedSize, @NotNull ByteSequence bytes) throws IOException {
+      AttributeOutputStream stream = new AttributeOutputStream(fileId, attributeId, fixedSize);
+      try {
+        stream.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+      }
+      finally {
+        stream.close();
+      }
+    }
+
+    @Override
+    public void writeContent(int fileId, boolean readOnly, @NotNull ByteSequence bytes, int refCount) throws IOException {
+      // reusing a content with the same hash acquires it again if the content was flushed already
+      FSRecords.writeContent(fileId, bytes, readOnly);
+      getContentStorage().setRefCount(getContentId(fileId), refCount, false);
+    }
+
+    @Override
+    public void storeUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) throws IOException {
+      checkReplayedId("content", contentId, FSRecords.storeUnlinkedContent(bytes));
+      getContentStorage().setRefCount(contentId, refCount, false);
+    }
+
+    @Override
+    public void acquireFileContent(int fileId, int contentId, int refCount) throws IOException {
+      checkReplayedId("content", contentId, getContentId(fileId));
+      if (contentId > 0) getContentStorage().setRefCount(contentId, refCount, false);
+    }
+
+    @Override
+    public void releaseContent(int contentId, int refCount) throws IOException {
+      getContentStorage().setRefCount(contentId, refCount, !weHaveContentHashes);
+    }
+
+    private static void checkReplayedId(@NotNull String what, int expected, int actual) throws IOException {
+      if (expected != actual) throw new IOException("Replayed " + what + " id " + actual + " differs from logged " + expected);
+    }
+  }
+
   public static void dispose() {
     w.lock();
+    long structureStamp = ourRecordsStructureStamp.writeLock();
     try {
       DbConnection.force();
       DbConnection.closeFiles();
@@ -1920,6 +2475,7 @@ public class FSRecords implements Forceable {
     }
     finally {
       ourIsDisposed = true;
+      ourRecordsStructureStamp.unlockWrite(structureStamp);
       w.unlock();
     }
   }
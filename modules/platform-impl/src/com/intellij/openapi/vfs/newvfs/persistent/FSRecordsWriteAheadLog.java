@@ -0,0 +1,547 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.IOUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only redo log of {@link FSRecords} modifications made since the last moment all VFS storages were flushed (checkpoint).
+ * <p/>
+ * Modifications are buffered in memory and written to the log in blocks by {@link #commit()}, which is called periodically
+ * (group commit), so a crash loses at most the modifications of the last commit interval. After an unclean shutdown
+ * the log is replayed on top of the storages instead of rebuilding the whole VFS.
+ * <p/>
+ * Modifications are logged logically (e.g. "set parent of file 5 to 3", "write these bytes as attribute 'foo' of file 5") with
+ * the state they result in rather than the change, as the storages may be flushed partially between checkpoints and replaying
+ * a modification which is flushed already must change nothing. E.g. the reference count of a content is logged as it is after
+ * acquiring or releasing it, and replay sets it instead of acquiring or releasing the content again. Modifications which allocate
+ * ids store the allocated id and replay fails if the id differs, then VFS is rebuilt as without the log.
+ * <p/>
+ * Format: header (magic, VFS version, VFS creation timestamp), then blocks: payload length, CRC32 of payload, payload.
+ * A block which wasn't written completely is ignored along with the rest of the log.
+ */
+class FSRecordsWriteAheadLog {
+  private static final int MAGIC = 0x7f5a1a02;
+  private static final int HEADER_SIZE = 16;
+  private static final int BLOCK_HEADER_SIZE = 8;
+
+  private static final byte CREATE_RECORD = 1;
+  private static final byte DELETE_RECORD_RECURSIVELY = 2;
+  private static final byte SET_PARENT = 3;
+  private static final byte SET_NAME = 4;
+  private static final byte SET_FLAGS = 5;
+  private static final byte SET_LENGTH = 6;
+  private static final byte SET_TIMESTAMP = 7;
+  private static final byte UPDATE_LIST = 8;
+  private static final byte FIND_ROOT_RECORD = 9;
+  private static final byte DELETE_ROOT_RECORD = 10;
+  private static final byte WRITE_ATTRIBUTE = 11;
+  private static final byte WRITE_CONTENT = 12;
+  private static final byte STORE_UNLINKED_CONTENT = 13;
+  private static final byte ACQUIRE_FILE_CONTENT = 14;
+  private static final byte RELEASE_CONTENT = 15;
+
+  private final File myFile;
+  private final RandomAccessFile myRandomAccessFile;
+  private final FileChannel myChannel;
+  private final boolean myRecovered;
+  private final Object myFileLock = new Object();
+  private volatile long mySize;
+
+  private final Object myBufferLock = new Object();
+  private BufferExposingByteArrayOutputStream myBuffer = new BufferExposingByteArrayOutputStream();
+  private DataOutputStream myOut = new DataOutputStream(myBuffer);
+  private int myBufferedModifications;
+
+  private FSRecordsWriteAheadLog(@NotNull File file, boolean recovered) throws IOException {
+    myFile = file;
+    myRandomAccessFile = new RandomAccessFile(file, "rw");
+    myChannel = myRandomAccessFile.getChannel();
+    myRecovered = recovered;
+    mySize = myChannel.size();
+  }
+
+  /**
+   * Opens the log of the VFS with the given version and creation timestamp, existing log of other VFS is discarded.
+   */
+  @NotNull
+  static FSRecordsWriteAheadLog open(@NotNull File file, int version, long timestamp) throws IOException {
+    if (file.exists()) {
+      boolean matches = false;
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        matches = file.length() >= HEADER_SIZE && in.readInt() == MAGIC && in.readInt() == version && in.readLong() == timestamp;
+      }
+      finally {
+        in.close();
+      }
+      if (matches) return new FSRecordsWriteAheadLog(file, true);
+      FileUtil.delete(file);
+    }
+
+    FSRecordsWriteAheadLog log = new FSRecordsWriteAheadLog(file, false);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(version).putLong(timestamp).flip();
+    log.myChannel.write(header, 0);
+    log.myChannel.force(true);
+    log.mySize = HEADER_SIZE;
+    return log;
+  }
+
+  /**
+   * @return true if the log existed before it was opened, i.e. it has the modifications since the last checkpoint
+   */
+  boolean isRecovered() {
+    return myRecovered;
+  }
+
+  long getSize() {
+    return mySize;
+  }
+
+  @NotNull
+  File getFile() {
+    return myFile;
+  }
+
+  void logCreateRecord(int id) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(CREATE_RECORD);
+        DataInputOutputUtil.writeINT(myOut, id);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logDeleteRecordRecursively(int id) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(DELETE_RECORD_RECURSIVELY);
+        DataInputOutputUtil.writeINT(myOut, id);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logSetParent(int id, int parent) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(SET_PARENT);
+        DataInputOutputUtil.writeINT(myOut, id);
+        DataInputOutputUtil.writeINT(myOut, parent);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logSetName(int id, @NotNull String name) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(SET_NAME);
+        DataInputOutputUtil.writeINT(myOut, id);
+        IOUtil.writeUTF(myOut, name);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logSetFlags(int id, int flags, boolean markAsChange) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(SET_FLAGS);
+        DataInputOutputUtil.writeINT(myOut, id);
+        DataInputOutputUtil.writeINT(myOut, flags);
+        myOut.writeBoolean(markAsChange);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logSetLength(int id, long length) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(SET_LENGTH);
+        DataInputOutputUtil.writeINT(myOut, id);
+        myOut.writeLong(length);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logSetTimestamp(int id, long timestamp) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(SET_TIMESTAMP);
+        DataInputOutputUtil.writeINT(myOut, id);
+        myOut.writeLong(timestamp);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logUpdateList(int id, @NotNull int[] children) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(UPDATE_LIST);
+        DataInputOutputUtil.writeINT(myOut, id);
+        DataInputOutputUtil.writeINT(myOut, children.length);
+        for (int child : children) {
+          DataInputOutputUtil.writeINT(myOut, child);
+        }
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logFindRootRecord(@NotNull String rootUrl, int id) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(FIND_ROOT_RECORD);
+        IOUtil.writeUTF(myOut, rootUrl);
+        DataInputOutputUtil.writeINT(myOut, id);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logDeleteRootRecord(int id) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(DELETE_ROOT_RECORD);
+        DataInputOutputUtil.writeINT(myOut, id);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logWriteAttribute(int fileId, @NotNull String attributeId, boolean fixedSize, @NotNull ByteSequence bytes) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(WRITE_ATTRIBUTE);
+        DataInputOutputUtil.writeINT(myOut, fileId);
+        IOUtil.writeUTF(myOut, attributeId);
+        myOut.writeBoolean(fixedSize);
+        writeBytes(bytes);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logWriteContent(int fileId, boolean readOnly, @NotNull ByteSequence bytes, int refCount) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(WRITE_CONTENT);
+        DataInputOutputUtil.writeINT(myOut, fileId);
+        myOut.writeBoolean(readOnly);
+        writeBytes(bytes);
+        DataInputOutputUtil.writeINT(myOut, refCount);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logStoreUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(STORE_UNLINKED_CONTENT);
+        DataInputOutputUtil.writeINT(myOut, contentId);
+        writeBytes(new ByteSequence(bytes));
+        DataInputOutputUtil.writeINT(myOut, refCount);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logAcquireFileContent(int fileId, int contentId, int refCount) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(ACQUIRE_FILE_CONTENT);
+        DataInputOutputUtil.writeINT(myOut, fileId);
+        DataInputOutputUtil.writeINT(myOut, contentId);
+        DataInputOutputUtil.writeINT(myOut, refCount);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  void logReleaseContent(int contentId, int refCount) {
+    synchronized (myBufferLock) {
+      try {
+        startModification(RELEASE_CONTENT);
+        DataInputOutputUtil.writeINT(myOut, contentId);
+        DataInputOutputUtil.writeINT(myOut, refCount);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void startModification(byte type) throws IOException {
+    myOut.writeByte(type);
+    myBufferedModifications++;
+  }
+
+  private void writeBytes(@NotNull ByteSequence bytes) throws IOException {
+    DataInputOutputUtil.writeINT(myOut, bytes.getLength());
+    myOut.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+  }
+
+  /**
+   * Writes modifications logged since the previous commit to the disk as a single block.
+   *
+   * @return the number of committed modifications
+   */
+  int commit() throws IOException {
+    synchronized (myFileLock) {
+      BufferExposingByteArrayOutputStream buffer;
+      int modifications;
+      synchronized (myBufferLock) {
+        if (myBufferedModifications == 0) return 0;
+        buffer = myBuffer;
+        modifications = myBufferedModifications;
+        myBuffer = new BufferExposingByteArrayOutputStream(Math.min(buffer.size(), 1024 * 1024));
+        myOut = new DataOutputStream(myBuffer);
+        myBufferedModifications = 0;
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(buffer.getInternalBuffer(), 0, buffer.size());
+      ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+      blockHeader.putInt(buffer.size()).putInt((int)crc.getValue()).flip();
+
+      long position = mySize;
+      position += writeFully(blockHeader, position);
+      position += writeFully(ByteBuffer.wrap(buffer.getInternalBuffer(), 0, buffer.size()), position);
+      myChannel.force(false);
+      mySize = position;
+      return modifications;
+    }
+  }
+
+  private int writeFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+    int written = 0;
+    while (buffer.hasRemaining()) {
+      written += myChannel.write(buffer, position + written);
+    }
+    return written;
+  }
+
+  /**
+   * Forgets all logged modifications, should be called when there are no concurrent modifications and all of them
+   * are flushed to the storages.
+   */
+  void checkpoint() throws IOException {
+    synchronized (myFileLock) {
+      synchronized (myBufferLock) {
+        myBuffer.reset();
+        myBufferedModifications = 0;
+      }
+      if (mySize > HEADER_SIZE) {
+        myChannel.truncate(HEADER_SIZE);
+        myChannel.force(false);
+        mySize = HEADER_SIZE;
+      }
+    }
+  }
+
+  void close() throws IOException {
+    synchronized (myFileLock) {
+      myRandomAccessFile.close();
+    }
+  }
+
+  interface Replayer {
+    void createRecord(int id) throws IOException;
+
+    void deleteRecordRecursively(int id) throws IOException;
+
+    void setParent(int id, int parent) throws IOException;
+
+    void setName(int id, @NotNull String name) throws IOException;
+
+    void setFlags(int id, int flags, boolean markAsChange) throws IOException;
+
+    void setLength(int id, long length) throws IOException;
+
+    void setTimestamp(int id, long timestamp) throws IOException;
+
+    void updateList(int id, @NotNull int[] children) throws IOException;
+
+    void findRootRecord(@NotNull String rootUrl, int id) throws IOException;
+
+    void deleteRootRecord(int id) throws IOException;
+
+    void writeAttribute(int fileId, @NotNull String attributeId, boolean fixedSize, @NotNull ByteSequence bytes) throws IOException;
+
+    // the reference counts are the ones of the content after the modification
+
+    void writeContent(int fileId, boolean readOnly, @NotNull ByteSequence bytes, int refCount) throws IOException;
+
+    void storeUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) throws IOException;
+
+    void acquireFileContent(int fileId, int contentId, int refCount) throws IOException;
+
+    void releaseContent(int contentId, int refCount) throws IOException;
+  }
+
+  /**
+   * Replays committed modifications in the order they were logged.
+   *
+   * @return the number of replayed modifications
+   */
+  int replay(@NotNull Replayer replayer) throws IOException {
+    synchronized (myFileLock) {
+      int modifications = 0;
+      long position = HEADER_SIZE;
+      ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+      while (position + BLOCK_HEADER_SIZE <= mySize) {
+        blockHeader.clear();
+        readFully(blockHeader, position);
+        int length = blockHeader.getInt(0);
+        int checksum = blockHeader.getInt(4);
+        if (length <= 0 || position + BLOCK_HEADER_SIZE + length > mySize) break; // incomplete block
+
+        byte[] block = new byte[length];
+        readFully(ByteBuffer.wrap(block), position + BLOCK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+        if ((int)crc.getValue() != checksum) break;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        while (in.available() > 0) {
+          replayModification(in, replayer);
+          modifications++;
+        }
+        position += BLOCK_HEADER_SIZE + length;
+      }
+      return modifications;
+    }
+  }
+
+  private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+    int read = 0;
+    while (buffer.hasRemaining()) {
+      int chunk = myChannel.read(buffer, position + read);
+      if (chunk < 0) throw new EOFException();
+      read += chunk;
+    }
+  }
+
+  private static void replayModification(@NotNull DataInputStream in, @NotNull Replayer replayer) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case CREATE_RECORD:
+        replayer.createRecord(DataInputOutputUtil.readINT(in));
+        break;
+      case DELETE_RECORD_RECURSIVELY:
+        replayer.deleteRecordRecursively(DataInputOutputUtil.readINT(in));
+        break;
+      case SET_PARENT:
+        replayer.setParent(DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in));
+        break;
+      case SET_NAME:
+        replayer.setName(DataInputOutputUtil.readINT(in), IOUtil.readUTF(in));
+        break;
+      case SET_FLAGS:
+        replayer.setFlags(DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in), in.readBoolean());
+        break;
+      case SET_LENGTH:
+        replayer.setLength(DataInputOutputUtil.readINT(in), in.readLong());
+        break;
+      case SET_TIMESTAMP:
+        replayer.setTimestamp(DataInputOutputUtil.readINT(in), in.readLong());
+        break;
+      case UPDATE_LIST:
+        int id = DataInputOutputUtil.readINT(in);
+        int[] children = new int[DataInputOutputUtil.readINT(in)];
+        for (int i = 0; i < children.length; i++) {
+          children[i] = DataInputOutputUtil.readINT(in);
+        }
+        replayer.updateList(id, children);
+        break;
+      case FIND_ROOT_RECORD:
+        replayer.findRootRecord(IOUtil.readUTF(in), DataInputOutputUtil.readINT(in));
+        break;
+      case DELETE_ROOT_RECORD:
+        replayer.deleteRootRecord(DataInputOutputUtil.readINT(in));
+        break;
+      case WRITE_ATTRIBUTE:
+        replayer.writeAttribute(DataInputOutputUtil.readINT(in), IOUtil.readUTF(in), in.readBoolean(), readBytes(in));
+        break;
+      case WRITE_CONTENT:
+        replayer.writeContent(DataInputOutputUtil.readINT(in), in.readBoolean(), readBytes(in), DataInputOutputUtil.readINT(in));
+        break;
+      case STORE_UNLINKED_CONTENT:
+        replayer.storeUnlinkedContent(DataInputOutputUtil.readINT(in), readBytes(in).getBytes(), DataInputOutputUtil.readINT(in));
+        break;
+      case ACQUIRE_FILE_CONTENT:
+        replayer.acquireFileContent(DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in));
+        break;
+      case RELEASE_CONTENT:
+        replayer.releaseContent(DataInputOutputUtil.readINT(in), DataInputOutputUtil.readINT(in));
+        break;
+      default:
+        throw new IOException("Unknown modification type: " + type);
+    }
+  }
+
+  @NotNull
+  private static ByteSequence readBytes(@NotNull DataInputStream in) throws IOException {
+    byte[] bytes = new byte[DataInputOutputUtil.readINT(in)];
+    in.readFully(bytes);
+    return new ByteSequence(bytes);
+  }
+}
@@ -33,4 +33,9 @@ public class FlushingDaemon {
   public static ScheduledFuture<?> everyFiveSeconds(@NotNull Runnable r) {
     return JobScheduler.getScheduler().scheduleWithFixedDelay(r, 5, 5, TimeUnit.SECONDS);
   }
+
+  @NotNull
+  public static ScheduledFuture<?> periodically(@NotNull Runnable r, long delayMillis) {
+    return JobScheduler.getScheduler().scheduleWithFixedDelay(r, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+  }
 }
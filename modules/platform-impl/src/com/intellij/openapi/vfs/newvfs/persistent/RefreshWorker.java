@@ -15,6 +15,7 @@
  */
 package com.intellij.openapi.vfs.newvfs.persistent;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.application.AccessToken;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -32,10 +33,13 @@ import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.util.Function;
+import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.OpenTHashSet;
 import com.intellij.util.containers.Queue;
 import com.intellij.util.text.FilePathHashingStrategy;
+import gnu.trove.THashMap;
 import gnu.trove.TObjectHashingStrategy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -44,7 +48,10 @@ import org.jetbrains.annotations.TestOnly;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.intellij.openapi.util.Pair.pair;
 import static com.intellij.util.containers.ContainerUtil.newTroveSet;
@@ -56,13 +63,34 @@ public class RefreshWorker {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker");
   private static final Logger LOG_ATTRIBUTES = Logger.getInstance("#com.intellij.openapi.vfs.newvfs.persistent.RefreshWorker_Attributes");
 
+  private static final boolean PARALLEL_SCAN = SystemProperties.getBooleanProperty("vfs.refresh.parallel.scan", false);
+  // directories scanned ahead of the queue at once, bounds the memory held by not yet processed scans
+  private static final int PARALLEL_SCAN_BATCH = 256;
+
   private final boolean myIsRecursive;
+  private final boolean myIsParallel;
   private final Queue<Pair<NewVirtualFile, FileAttributes>> myRefreshQueue = new Queue<Pair<NewVirtualFile, FileAttributes>>(100);
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled;
 
+  // parallel mode: directories of the queue with file system state read ahead, and the number of examined queue entries
+  private final Map<VirtualFile, DirScan> myPrefetched = new THashMap<VirtualFile, DirScan>();
+  private int myPrefetchHorizon;
+
+  private final AtomicInteger myScannedFiles = new AtomicInteger();
+  private long myScanTimeNanos;
+
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
+    this(refreshRoot, isRecursive, PARALLEL_SCAN);
+  }
+
+  /**
+   * @param isParallel whether file system state of queued directories should be read concurrently;
+   *                   events are the same and come in the same order as in the sequential mode
+   */
+  public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive, boolean isParallel) {
     myIsRecursive = isRecursive;
+    myIsParallel = isParallel;
     myRefreshQueue.addLast(pair(refreshRoot, null));
   }
 
@@ -75,7 +103,36 @@ public class RefreshWorker {
     myCancelled = true;
   }
 
+  /**
+   * @return number of files and directories which attributes were read from the file system by the last {@link #scan()}
+   */
+  public int getScannedFilesCount() {
+    return myScannedFiles.get();
+  }
+
+  public long getScanTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myScanTimeNanos);
+  }
+
+  public long getScannedFilesPerSecond() {
+    return myScanTimeNanos == 0 ? 0 : myScannedFiles.get() * TimeUnit.SECONDS.toNanos(1) / myScanTimeNanos;
+  }
+
   public void scan() {
+    long started = System.nanoTime();
+    try {
+      doScan();
+    }
+    finally {
+      myScanTimeNanos = System.nanoTime() - started;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("scanned " + getScannedFilesCount() + " files in " + getScanTimeMillis() + " ms, " + getScannedFilesPerSecond() + " files/s" +
+                  (myIsParallel ? " (parallel)" : ""));
+      }
+    }
+  }
+
+  private void doScan() {
     NewVirtualFile root = myRefreshQueue.pullFirst().first;
     boolean rootDirty = root.isDirty();
     if (LOG.isDebugEnabled()) LOG.debug("root=" + root + " dirty=" + rootDirty);
@@ -83,6 +140,7 @@ public class RefreshWorker {
 
     NewVirtualFileSystem fs = root.getFileSystem();
     FileAttributes rootAttributes = fs.getAttributes(root);
+    myScannedFiles.incrementAndGet();
     if (rootAttributes == null) {
       scheduleDeletion(root);
       root.markClean();
@@ -105,15 +163,25 @@ public class RefreshWorker {
     TObjectHashingStrategy<String> strategy = FilePathHashingStrategy.create(fs.isCaseSensitive());
 
     while (!myRefreshQueue.isEmpty()) {
+      if (myIsParallel && myPrefetchHorizon == 0) {
+        prefetchDirectories(fs, persistence, strategy);
+      }
+
       Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
       NewVirtualFile file = pair.first;
+      DirScan prefetched = myIsParallel ? myPrefetched.remove(file) : null;
+      if (myPrefetchHorizon > 0) myPrefetchHorizon--;
       boolean fileDirty = file.isDirty();
       if (LOG.isTraceEnabled()) LOG.trace("file=" + file + " dirty=" + fileDirty);
       if (!fileDirty) continue;
 
       checkCancelled(file);
 
-      FileAttributes attributes = pair.second != null ? pair.second : fs.getAttributes(file);
+      FileAttributes attributes = pair.second;
+      if (attributes == null) {
+        attributes = fs.getAttributes(file);
+        myScannedFiles.incrementAndGet();
+      }
       if (attributes == null) {
         scheduleDeletion(file);
         continue;
@@ -128,12 +196,8 @@ public class RefreshWorker {
 
       if (file.isDirectory()) {
         boolean fullSync = ((VirtualDirectoryImpl)file).allChildrenLoaded();
-        if (fullSync) {
-          fullDirRefresh(fs, persistence, strategy, (VirtualDirectoryImpl)file);
-        }
-        else {
-          partialDirRefresh(fs, strategy, (VirtualDirectoryImpl)file);
-        }
+        if (prefetched != null && prefetched.fullSync != fullSync) prefetched = null;
+        dirRefresh(fs, persistence, strategy, (VirtualDirectoryImpl)file, fullSync, prefetched);
       }
       else {
         long currentTimestamp = persistence.getTimeStamp(file);
@@ -178,83 +242,124 @@ public class RefreshWorker {
     }
   }
 
-  private void fullDirRefresh(NewVirtualFileSystem fs, PersistentFS persistence, TObjectHashingStrategy<String> strategy, VirtualDirectoryImpl dir) {
-    while (true) {
-      // obtaining directory snapshot
-      String[] currentNames;
-      VirtualFile[] children;
+  // scans ahead dirty directories from the queue, concurrently reading their children from the file system
+  private void prefetchDirectories(final NewVirtualFileSystem fs, PersistentFS persistence, final TObjectHashingStrategy<String> strategy) {
+    final List<DirScan> scans = ContainerUtil.newArrayListWithCapacity(PARALLEL_SCAN_BATCH);
+    AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
+    try {
+      myRefreshQueue.process(new Processor<Pair<NewVirtualFile, FileAttributes>>() {
+        @Override
+        public boolean process(Pair<NewVirtualFile, FileAttributes> pair) {
+          myPrefetchHorizon++;
+          NewVirtualFile file = pair.first;
+          if (pair.second != null && pair.second.isDirectory() && file.isDirectory() && file.isDirty()) {
+            VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
+            scans.add(new DirScan(dir, dir.allChildrenLoaded()));
+          }
+          return scans.size() < PARALLEL_SCAN_BATCH;
+        }
+      });
+      for (DirScan scan : scans) {
+        scan.takeSnapshot(persistence);
+      }
+    }
+    finally {
+      token.finish();
+    }
 
-      AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
-      try {
+    boolean completed = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(scans, null, false, false, new Processor<DirScan>() {
+      @Override
+      public boolean process(DirScan scan) {
+        return readFileSystemState(fs, strategy, scan, true);
+      }
+    });
+    if (!completed) {
+      cancelRefresh(myRefreshQueue.peekFirst().first);
+    }
+
+    for (DirScan scan : scans) {
+      myPrefetched.put(scan.dir, scan);
+    }
+  }
+
+  private static class DirScan {
+    private final VirtualDirectoryImpl dir;
+    private final boolean fullSync;
+
+    // VFS snapshot: persisted names and loaded children for the full sync, cached children and suspicious names for the partial one
+    private String[] currentNames;
+    private VirtualFile[] children;
+    private List<VirtualFile> cached;
+    private List<String> wanted;
+
+    // file system state
+    private OpenTHashSet<String> actualNames;
+    private Set<String> deletedNames;
+    private List<Pair<String, FileAttributes>> added;
+    private List<Pair<VirtualFile, FileAttributes>> existing;
+
+    private DirScan(@NotNull VirtualDirectoryImpl dir, boolean fullSync) {
+      this.dir = dir;
+      this.fullSync = fullSync;
+    }
+
+    private void takeSnapshot(@NotNull PersistentFS persistence) {
+      if (fullSync) {
         currentNames = persistence.list(dir);
         children = dir.getChildren();
       }
-      finally {
-        token.finish();
+      else {
+        cached = dir.getCachedChildren();
+        wanted = dir.getSuspiciousNames();
       }
+    }
 
-      // reading children attributes
-      String[] upToDateNames = VfsUtil.filterNames(fs.list(dir));
-      Set<String> newNames = newTroveSet(strategy, upToDateNames);
-      ContainerUtil.removeAll(newNames, currentNames);
-      Set<String> deletedNames = newTroveSet(strategy, currentNames);
-      ContainerUtil.removeAll(deletedNames, upToDateNames);
-
-      OpenTHashSet<String> actualNames = null;
-      if (!fs.isCaseSensitive()) {
-        actualNames = new OpenTHashSet<String>(strategy, upToDateNames);
+    private boolean isSnapshotUpToDate(@NotNull PersistentFS persistence) {
+      if (fullSync) {
+        return Arrays.equals(currentNames, persistence.list(dir)) && Arrays.equals(children, dir.getChildren());
       }
-      if (LOG.isTraceEnabled()) LOG.trace("current=" + Arrays.toString(currentNames) + " +" + newNames + " -" + deletedNames);
+      return cached.equals(dir.getCachedChildren()) && wanted.equals(dir.getSuspiciousNames());
+    }
+  }
 
-      List<Pair<String, FileAttributes>> addedMap = ContainerUtil.newArrayListWithCapacity(newNames.size());
-      for (String name : newNames) {
-        checkCancelled(dir);
-        addedMap.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
-      }
+  private void dirRefresh(NewVirtualFileSystem fs,
+                          PersistentFS persistence,
+                          TObjectHashingStrategy<String> strategy,
+                          VirtualDirectoryImpl dir,
+                          boolean fullSync,
+                          @Nullable DirScan prefetched) {
+    while (true) {
+      DirScan scan = prefetched;
+      prefetched = null;
+
+      if (scan == null) {
+        // obtaining directory snapshot
+        scan = new DirScan(dir, fullSync);
+        AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
+        try {
+          scan.takeSnapshot(persistence);
+        }
+        finally {
+          token.finish();
+        }
 
-      List<Pair<VirtualFile, FileAttributes>> updatedMap = ContainerUtil.newArrayListWithCapacity(children.length);
-      for (VirtualFile child : children) {
-        if (deletedNames.contains(child.getName())) continue;
-        checkCancelled(dir);
-        updatedMap.add(pair(child, fs.getAttributes(child)));
+        readFileSystemState(fs, strategy, scan, false);
       }
 
       // generating events unless a directory was changed in between
-      token = ApplicationManager.getApplication().acquireReadActionLock();
+      AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
       try {
-        if (!Arrays.equals(currentNames, persistence.list(dir)) || !Arrays.equals(children, dir.getChildren())) {
+        if (!scan.isSnapshotUpToDate(persistence)) {
           if (LOG.isDebugEnabled()) LOG.debug("retry: " + dir);
           continue;
         }
 
-        for (String name : deletedNames) {
-          scheduleDeletion(dir.findChild(name));
-        }
-
-        for (Pair<String, FileAttributes> pair : addedMap) {
-          String name = pair.first;
-          FileAttributes childAttributes = pair.second;
-          if (childAttributes != null) {
-            scheduleCreation(dir, name, childAttributes.isDirectory(), false);
-          }
-          else {
-            LOG.warn("[+] fs=" + fs + " dir=" + dir + " name=" + name);
-          }
+        if (fullSync) {
+          scheduleFullDirEvents(fs, scan);
         }
-
-        for (Pair<VirtualFile, FileAttributes> pair : updatedMap) {
-          VirtualFile child = pair.first;
-          FileAttributes childAttributes = pair.second;
-          if (childAttributes != null) {
-            checkAndScheduleChildRefresh(dir, child, childAttributes);
-            checkAndScheduleFileNameChange(actualNames, child);
-          }
-          else {
-            LOG.warn("[x] fs=" + fs + " dir=" + dir + " name=" + child.getName());
-            scheduleDeletion(child);
-          }
+        else {
+          schedulePartialDirEvents(scan);
         }
-
         break;
       }
       finally {
@@ -263,77 +368,115 @@ public class RefreshWorker {
     }
   }
 
-  private void partialDirRefresh(NewVirtualFileSystem fs, TObjectHashingStrategy<String> strategy, VirtualDirectoryImpl dir) {
-    while (true) {
-      // obtaining directory snapshot
-      List<VirtualFile> cached;
-      List<String> wanted;
+  // reading children attributes; may be called concurrently for different directories, returns false when cancelled
+  private boolean readFileSystemState(NewVirtualFileSystem fs, TObjectHashingStrategy<String> strategy, DirScan scan, boolean concurrent) {
+    VirtualDirectoryImpl dir = scan.dir;
 
-      AccessToken token = ApplicationManager.getApplication().acquireReadActionLock();
-      try {
-        cached = dir.getCachedChildren();
-        wanted = dir.getSuspiciousNames();
+    if (scan.fullSync) {
+      String[] upToDateNames = VfsUtil.filterNames(fs.list(dir));
+      Set<String> newNames = newTroveSet(strategy, upToDateNames);
+      ContainerUtil.removeAll(newNames, scan.currentNames);
+      scan.deletedNames = newTroveSet(strategy, scan.currentNames);
+      ContainerUtil.removeAll(scan.deletedNames, upToDateNames);
+
+      if (!fs.isCaseSensitive()) {
+        scan.actualNames = new OpenTHashSet<String>(strategy, upToDateNames);
       }
-      finally {
-        token.finish();
+      if (LOG.isTraceEnabled()) LOG.trace("current=" + Arrays.toString(scan.currentNames) + " +" + newNames + " -" + scan.deletedNames);
+
+      scan.added = ContainerUtil.newArrayListWithCapacity(newNames.size());
+      for (String name : newNames) {
+        if (!checkCancelled(dir, concurrent)) return false;
+        scan.added.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
       }
 
-      OpenTHashSet<String> actualNames = null;
+      scan.existing = ContainerUtil.newArrayListWithCapacity(scan.children.length);
+      for (VirtualFile child : scan.children) {
+        if (scan.deletedNames.contains(child.getName())) continue;
+        if (!checkCancelled(dir, concurrent)) return false;
+        scan.existing.add(pair(child, fs.getAttributes(child)));
+      }
+    }
+    else {
       if (!fs.isCaseSensitive()) {
-        actualNames = new OpenTHashSet<String>(strategy, VfsUtil.filterNames(fs.list(dir)));
+        scan.actualNames = new OpenTHashSet<String>(strategy, VfsUtil.filterNames(fs.list(dir)));
       }
 
       if (LOG.isTraceEnabled()) {
-        LOG.trace("cached=" + cached + " actual=" + actualNames);
-        LOG.trace("suspicious=" + wanted);
+        LOG.trace("cached=" + scan.cached + " actual=" + scan.actualNames);
+        LOG.trace("suspicious=" + scan.wanted);
       }
 
-      // reading children attributes
-      List<Pair<VirtualFile, FileAttributes>> existingMap = ContainerUtil.newArrayListWithCapacity(cached.size());
-      for (VirtualFile child : cached) {
-        checkCancelled(dir);
-        existingMap.add(pair(child, fs.getAttributes(child)));
+      scan.existing = ContainerUtil.newArrayListWithCapacity(scan.cached.size());
+      for (VirtualFile child : scan.cached) {
+        if (!checkCancelled(dir, concurrent)) return false;
+        scan.existing.add(pair(child, fs.getAttributes(child)));
       }
 
-      List<Pair<String, FileAttributes>> wantedMap = ContainerUtil.newArrayListWithCapacity(wanted.size());
-      for (String name : wanted) {
+      scan.added = ContainerUtil.newArrayListWithCapacity(scan.wanted.size());
+      for (String name : scan.wanted) {
         if (name.isEmpty()) continue;
-        checkCancelled(dir);
-        wantedMap.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
+        if (!checkCancelled(dir, concurrent)) return false;
+        scan.added.add(pair(name, fs.getAttributes(new FakeVirtualFile(dir, name))));
       }
+    }
 
-      // generating events unless a directory was changed in between
-      token = ApplicationManager.getApplication().acquireReadActionLock();
-      try {
-        if (!cached.equals(dir.getCachedChildren()) || !wanted.equals(dir.getSuspiciousNames())) {
-          if (LOG.isDebugEnabled()) LOG.debug("retry: " + dir);
-          continue;
-        }
+    myScannedFiles.addAndGet(scan.added.size() + scan.existing.size());
+    return true;
+  }
 
-        for (Pair<VirtualFile, FileAttributes> pair : existingMap) {
-          VirtualFile child = pair.first;
-          FileAttributes childAttributes = pair.second;
-          if (childAttributes != null) {
-            checkAndScheduleChildRefresh(dir, child, childAttributes);
-            checkAndScheduleFileNameChange(actualNames, child);
-          }
-          else {
-            scheduleDeletion(child);
-          }
-        }
+  private void scheduleFullDirEvents(NewVirtualFileSystem fs, DirScan scan) {
+    VirtualDirectoryImpl dir = scan.dir;
 
-        for (Pair<String, FileAttributes> pair : wantedMap) {
-          String name = pair.first;
-          FileAttributes childAttributes = pair.second;
-          if (childAttributes != null) {
-            scheduleCreation(dir, name, childAttributes.isDirectory(), false);
-          }
-        }
+    for (String name : scan.deletedNames) {
+      scheduleDeletion(dir.findChild(name));
+    }
 
-        break;
+    for (Pair<String, FileAttributes> pair : scan.added) {
+      String name = pair.first;
+      FileAttributes childAttributes = pair.second;
+      if (childAttributes != null) {
+        scheduleCreation(dir, name, childAttributes.isDirectory(), false);
       }
-      finally {
-        token.finish();
+      else {
+        LOG.warn("[+] fs=" + fs + " dir=" + dir + " name=" + name);
+      }
+    }
+
+    for (Pair<VirtualFile, FileAttributes> pair : scan.existing) {
+      VirtualFile child = pair.first;
+      FileAttributes childAttributes = pair.second;
+      if (childAttributes != null) {
+        checkAndScheduleChildRefresh(dir, child, childAttributes);
+        checkAndScheduleFileNameChange(scan.actualNames, child);
+      }
+      else {
+        LOG.warn("[x] fs=" + fs + " dir=" + dir + " name=" + child.getName());
+        scheduleDeletion(child);
+      }
+    }
+  }
+
+  private void schedulePartialDirEvents(DirScan scan) {
+    VirtualDirectoryImpl dir = scan.dir;
+
+    for (Pair<VirtualFile, FileAttributes> pair : scan.existing) {
+      VirtualFile child = pair.first;
+      FileAttributes childAttributes = pair.second;
+      if (childAttributes != null) {
+        checkAndScheduleChildRefresh(dir, child, childAttributes);
+        checkAndScheduleFileNameChange(scan.actualNames, child);
+      }
+      else {
+        scheduleDeletion(child);
+      }
+    }
+
+    for (Pair<String, FileAttributes> pair : scan.added) {
+      String name = pair.first;
+      FileAttributes childAttributes = pair.second;
+      if (childAttributes != null) {
+        scheduleCreation(dir, name, childAttributes.isDirectory(), false);
       }
     }
   }
@@ -351,14 +494,32 @@ public class RefreshWorker {
   private static class RefreshCancelledException extends RuntimeException { }
 
   private void checkCancelled(@NotNull NewVirtualFile stopAt) {
-    if (myCancelled || ourCancellingCondition != null && ourCancellingCondition.fun(stopAt)) {
-      forceMarkDirty(stopAt);
-      while (!myRefreshQueue.isEmpty()) {
-        NewVirtualFile next = myRefreshQueue.pullFirst().first;
-        forceMarkDirty(next);
-      }
-      throw new RefreshCancelledException();
+    if (isCancelled(stopAt)) {
+      cancelRefresh(stopAt);
+    }
+  }
+
+  // the queue may only be touched by the refreshing thread, concurrent scans just report the cancellation
+  private boolean checkCancelled(@NotNull NewVirtualFile stopAt, boolean concurrent) {
+    if (!concurrent) {
+      checkCancelled(stopAt);
+      return true;
+    }
+    return !isCancelled(stopAt);
+  }
+
+  private boolean isCancelled(@NotNull NewVirtualFile stopAt) {
+    return myCancelled || ourCancellingCondition != null && ourCancellingCondition.fun(stopAt);
+  }
+
+  private void cancelRefresh(@NotNull NewVirtualFile stopAt) {
+    forceMarkDirty(stopAt);
+    while (!myRefreshQueue.isEmpty()) {
+      NewVirtualFile next = myRefreshQueue.pullFirst().first;
+      forceMarkDirty(next);
     }
+    myPrefetched.clear();
+    throw new RefreshCancelledException();
   }
 
   private static void forceMarkDirty(NewVirtualFile file) {
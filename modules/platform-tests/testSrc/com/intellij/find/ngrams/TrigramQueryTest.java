@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+public class TrigramQueryTest extends TestCase {
+  public void testLiterals() {
+    assertQuery("\"ell\" AND \"hel\" AND \"llo\"", "hello");
+    assertQuery("\"ell\" AND \"hel\" AND \"llo\"", "HeLLo");
+    assertQuery("\"bar\" AND \"foo\"", "foo bar");
+    assertQuery("\"bar\" AND \"foo\"", "foo\\.bar");
+    assertQuery("ALL", "\\Qa.b\\E");
+    assertQuery("\"abc\" AND \"bcd\"", "\\Qabcd\\E");
+    assertQuery("ALL", "ab");
+    assertQuery("ALL", "a b c d");
+  }
+
+  public void testConcatenationAndAlternation() {
+    assertQuery("\"abc\" AND \"def\"", "abc.*def");
+    assertQuery("\"bar\" OR \"foo\"", "foo|bar");
+    assertQuery("\"abd\" OR \"acd\"", "a[bc]d");
+    assertQuery("\"abe\" OR \"ace\"", "a(b|c)e");
+    assertQuery("\"foo\"", "foo\\w+");
+    assertQuery("\"foo\"", "(?i)foo(?=bar)?");
+    assertQuery("\"foo\" AND \"oob\"", "(foo)+b");
+    assertQuery("\"get\" AND \"obj\"", "get\\s*\\(\\s*obj");
+  }
+
+  public void testNothingKnown() {
+    assertQuery("ALL", "x*");
+    assertQuery("ALL", "[a-z]+");
+    assertQuery("ALL", "(foo)*");
+    assertQuery("ALL", "foo|.");
+    assertQuery("ALL", "[^abc]bc");
+    assertQuery("ALL", "(?x) foo bar");
+    assertQuery("ALL", "(unclosed");
+  }
+
+  public void testConjunctions() {
+    List<int[]> conjunctions = TrigramQuery.forRegExp("(foo|bar).*(baz|qux)").toConjunctions(100);
+    assertNotNull(conjunctions);
+    assertEquals(4, conjunctions.size());
+
+    conjunctions = TrigramQuery.forRegExp("(foo|bar).*(baz|qux)").toConjunctions(2);
+    assertNotNull(conjunctions);
+    assertEquals(2, conjunctions.size());
+
+    assertNull(TrigramQuery.forRegExp("foo|bar|baz").toConjunctions(2));
+    assertNull(TrigramQuery.forRegExp(".*").toConjunctions(2));
+  }
+
+  public void testFilesMatchingRegExpHaveRequiredTrigrams() {
+    Random random = new Random(0);
+    String[] atoms = {"a", "b", "c", "ab", "abc", "bca", " ", ".", "\\.", "[ab]", "[a-c ]", "[^a]", "\\w", "\\s", "\\Qab\\E", "A"};
+    String[] quantifiers = {"", "", "", "*", "+", "?", "{2}", "{0,2}", "{1,3}"};
+    int checked = 0;
+    for (int i = 0; i < 3000; i++) {
+      StringBuilder regexp = new StringBuilder();
+      int atomCount = 1 + random.nextInt(6);
+      for (int j = 0; j < atomCount; j++) {
+        switch (random.nextInt(8)) {
+          case 0:
+            regexp.append('(').append(atoms[random.nextInt(atoms.length)]).append('|').append(atoms[random.nextInt(atoms.length)]).append(')');
+            break;
+          case 1:
+            regexp.append('|');
+            break;
+          default:
+            regexp.append(atoms[random.nextInt(atoms.length)]);
+        }
+        regexp.append(quantifiers[random.nextInt(quantifiers.length)]);
+      }
+
+      Pattern pattern;
+      try {
+        pattern = Pattern.compile(regexp.toString(), Pattern.CASE_INSENSITIVE);
+      }
+      catch (PatternSyntaxException e) {
+        continue;
+      }
+      List<int[]> conjunctions = TrigramQuery.forRegExp(regexp.toString()).toConjunctions(64);
+      for (int j = 0; j < 20; j++) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int k = 0; k < length; k++) {
+          text.append("abcAB .-".charAt(random.nextInt(8)));
+        }
+        Matcher matcher = pattern.matcher(text);
+        if (!matcher.find()) continue;
+        checked++;
+        assertTrue(regexp + " on '" + text + "'", conjunctions == null || isSatisfied(conjunctions, trigrams(text)));
+      }
+    }
+    assertTrue(checked > 1000);
+  }
+
+  private static void assertQuery(@NotNull String expected, @NotNull String regexp) {
+    assertEquals(regexp, expected, TrigramQuery.forRegExp(regexp).toString());
+  }
+
+  private static boolean isSatisfied(@NotNull List<int[]> conjunctions, @NotNull TIntHashSet trigrams) {
+    for (int[] conjunction : conjunctions) {
+      if (trigrams.containsAll(conjunction)) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private static TIntHashSet trigrams(@NotNull CharSequence text) {
+    final TIntHashSet result = new TIntHashSet();
+    TrigramBuilder.processTrigrams(text, new TrigramBuilder.TrigramProcessor() {
+      @Override
+      public boolean execute(int value) {
+        result.add(value);
+        return true;
+      }
+    });
+    return result;
+  }
+}
@@ -28,6 +28,7 @@ import com.intellij.psi.impl.source.tree.ASTStructure;
 import com.intellij.psi.tree.*;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.util.ThreeState;
+import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.diff.DiffTree;
 import com.intellij.util.diff.DiffTreeChangeBuilder;
 import com.intellij.util.diff.FlyweightCapableTreeStructure;
@@ -205,6 +206,156 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
        "    PsiElement(DIGIT)('1')\n");
   }
 
+  public void testDrop() {
+    doTest("abc", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker outer = builder.mark();
+        builder.mark().drop();
+        builder.advanceLexer();
+        final PsiBuilder.Marker open = builder.mark();
+        builder.advanceLexer();
+        final PsiBuilder.Marker done = builder.mark();
+        builder.advanceLexer();
+        done.done(LETTER);
+        done.drop();
+        open.drop();
+        outer.done(OTHER);
+      }
+    }, "Element(ROOT)\n" +
+       "  Element(OTHER)\n" +
+       "    PsiElement(LETTER)('a')\n" +
+       "    PsiElement(LETTER)('b')\n" +
+       "    PsiElement(LETTER)('c')\n");
+  }
+
+  public void testRollbackTo() {
+    doTest("a1", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker attempt = builder.mark();
+        final PsiBuilder.Marker letter = builder.mark();
+        builder.advanceLexer();
+        letter.done(LETTER);
+        builder.error("digit expected");
+        builder.mark().collapse(COLLAPSED);
+        attempt.rollbackTo();
+
+        final PsiBuilder.Marker marker = builder.mark();
+        builder.advanceLexer();
+        builder.advanceLexer();
+        marker.done(OTHER);
+      }
+    }, "Element(ROOT)\n" +
+       "  Element(OTHER)\n" +
+       "    PsiElement(LETTER)('a')\n" +
+       "    PsiElement(DIGIT)('1')\n");
+  }
+
+  public void testHasErrorsAfter() {
+    PsiBuilderImpl builder = createBuilder("ab1");
+    final PsiBuilder.Marker root = builder.mark();
+    final PsiBuilder.Marker outer = builder.mark();
+    final PsiBuilder.Marker error = builder.mark();
+    builder.advanceLexer();
+    assertFalse(builder.hasErrorsAfter(outer));
+    error.error("done with error");
+    assertTrue(builder.hasErrorsAfter(outer));
+    error.drop();
+    assertFalse(builder.hasErrorsAfter(outer));
+
+    final PsiBuilder.Marker letter = builder.mark();
+    builder.advanceLexer();
+    letter.done(LETTER);
+    builder.error("error item");
+    assertTrue(builder.hasErrorsAfter(outer));
+    assertTrue(builder.hasErrorsAfter(letter));
+    final PsiBuilder.Marker after = builder.mark();
+    assertFalse(builder.hasErrorsAfter(after));
+    after.drop();
+
+    letter.rollbackTo();
+    assertFalse(builder.hasErrorsAfter(outer));
+    while (!builder.eof()) builder.advanceLexer();
+    outer.done(OTHER);
+    root.done(ROOT);
+    assertEquals("Element(ROOT)\n" +
+                 "  Element(OTHER)\n" +
+                 "    PsiElement(LETTER)('a')\n" +
+                 "    PsiElement(LETTER)('b')\n" +
+                 "    PsiElement(DIGIT)('1')\n", DebugUtil.lightTreeToString(builder.getLightTree(), false));
+  }
+
+  public void testMarkersReusedAfterRollback() {
+    final WhitespacesAndCommentsBinder leftBinder = new WhitespacesAndCommentsBinder() {
+      @Override
+      public int getEdgePosition(List<IElementType> tokens, boolean atStreamEdge, TokenTextGetter getter) {
+        return 0;
+      }
+    };
+
+    PsiBuilderImpl builder = createBuilder("a b");
+    final PsiBuilder.Marker root = builder.mark();
+    builder.advanceLexer();
+    final PsiBuilder.Marker attempt = builder.mark();
+    final PsiBuilder.Marker collapsed = builder.mark();
+    builder.advanceLexer();
+    collapsed.collapse(COLLAPSED);
+    collapsed.setCustomEdgeTokenBinders(leftBinder, null);
+    final PsiBuilder.Marker error = builder.mark();
+    error.error("with error");
+    attempt.rollbackTo();
+
+    // the markers and their ids are reused, none of the collapse flag, the error and the binder of the rolled back ones is
+    final PsiBuilder.Marker first = builder.mark();
+    final PsiBuilder.Marker second = builder.mark();
+    final PsiBuilder.Marker third = builder.mark();
+    assertEquals(ContainerUtil.newHashSet(attempt, collapsed, error), ContainerUtil.newHashSet(first, second, third));
+    builder.advanceLexer();
+    third.done(LETTER);
+    second.done(OTHER);
+    first.done(OTHER);
+    root.done(ROOT);
+    assertEquals("Element(ROOT)\n" +
+                 "  PsiElement(LETTER)('a')\n" +
+                 "  PsiWhiteSpace(' ')\n" +
+                 "  Element(OTHER)\n" +
+                 "    Element(OTHER)\n" +
+                 "      Element(LETTER)\n" +
+                 "        PsiElement(LETTER)('b')\n", DebugUtil.lightTreeToString(builder.getLightTree(), false));
+  }
+
+  public void testDroppedMarkerNotUsedInDebugMode() {
+    doFailTest("a", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker dropped = builder.mark();
+        dropped.drop();
+        final PsiBuilder.Marker marker = builder.mark();
+        builder.advanceLexer();
+        dropped.done(LETTER);
+        marker.done(OTHER);
+      }
+    }, "The marker was dropped or rolled back.");
+  }
+
+  public void testRolledBackMarkerNotUsedInDebugMode() {
+    doFailTest("ab", new Parser() {
+      @Override
+      public void parse(PsiBuilder builder) {
+        final PsiBuilder.Marker attempt = builder.mark();
+        final PsiBuilder.Marker inner = builder.mark();
+        builder.advanceLexer();
+        attempt.rollbackTo();
+        final PsiBuilder.Marker marker = builder.mark();
+        builder.mark();
+        builder.advanceLexer();
+        inner.precede();
+        marker.done(OTHER);
+      }
+    }, "The marker was dropped or rolled back.");
+  }
+
   public void testValidityChecksOnDone() {
     doFailTest("a", new Parser() {
       @Override
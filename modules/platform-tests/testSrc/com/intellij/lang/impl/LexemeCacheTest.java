@@ -0,0 +1,267 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang.impl;
+
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.impl.source.tree.FileElement;
+import com.intellij.psi.tree.IElementType;
+import consulo.lang.LanguageVersion;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.intellij.lang.impl.TestParserDefinition.*;
+
+public class LexemeCacheTest extends TestCase {
+  private static final LanguageVersion VERSION = new LanguageVersion("LexemeCacheTest1", "1", LANGUAGE);
+  private static final LanguageVersion OTHER_VERSION = new LanguageVersion("LexemeCacheTest2", "2", LANGUAGE);
+
+  public void testRelexedAroundChange() {
+    String text = "foo bar /* a\nb\nc */ baz";
+    LexemeCache cache = lex(text);
+    assertSameLexemes(lex("foo bar /* a\nbx\nc */ baz"), cache.relex(new CommentLexer(), "foo bar /* a\nbx\nc */ baz"));
+    assertSameLexemes(lex("foo bar /* a\nb\nc  baz"), cache.relex(new CommentLexer(), "foo bar /* a\nb\nc  baz"));
+    assertSameLexemes(lex("fooo bar /* a\nb\nc */ baz"), cache.relex(new CommentLexer(), "fooo bar /* a\nb\nc */ baz"));
+    assertSameLexemes(lex(text), cache.relex(new CommentLexer(), text));
+  }
+
+  public void testUnchangedLexemesReused() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) text.append("foo /* bar\n baz */\n");
+    LexemeCache cache = lex(text.toString());
+
+    text.insert(text.length() / 2, "qux ");
+    CommentLexer lexer = new CommentLexer();
+    assertSameLexemes(lex(text.toString()), cache.relex(lexer, text.toString()));
+    assertTrue(String.valueOf(lexer.myLexemeCount), lexer.myLexemeCount < 10);
+  }
+
+  public void testRandomEdits() {
+    Random random = new Random(0);
+    String text = randomText(random, 2000);
+    LexemeCache cache = lex(text);
+    for (int i = 0; i < 1000; i++) {
+      int start = random.nextInt(text.length());
+      int end = Math.min(text.length(), start + random.nextInt(5));
+      String newText = text.substring(0, start) + randomText(random, random.nextInt(5)) + text.substring(end);
+      LexemeCache relexed = cache.relex(new CommentLexer(), newText);
+      assertSameLexemes(lex(newText), relexed);
+      text = newText;
+      cache = relexed;
+    }
+  }
+
+  public void testBuilderRelexesWithSameLexerAndVersion() {
+    FileElement tree = new FileElement(FILE, createText());
+    buildLexemes(tree, new CommentLexer(), VERSION, tree.getText());
+
+    String text = new StringBuilder(tree.getText()).insert(tree.getTextLength() / 2, "qux ").toString();
+    CommentLexer lexer = new CommentLexer();
+    assertEquals(buildLexemes(null, new CommentLexer(), VERSION, text), buildLexemes(tree, lexer, VERSION, text));
+    assertTrue(String.valueOf(lexer.myLexemeCount), lexer.myLexemeCount < 10);
+  }
+
+  public void testBuilderIgnoresLexemesOfOtherLexer() {
+    FileElement tree = new FileElement(FILE, createText());
+    buildLexemes(tree, new CommentLexer(), VERSION, tree.getText());
+
+    // the other lexer doesn't know comments, the lexemes cached by the first one must not be reused
+    String text = new StringBuilder(tree.getText()).insert(tree.getTextLength() / 2, "qux ").toString();
+    List<String> expected = buildLexemes(null, new PlainLexer(), VERSION, text);
+    assertEquals(expected, buildLexemes(tree, new PlainLexer(), VERSION, text));
+  }
+
+  public void testBuilderIgnoresLexemesOfOtherLanguageVersion() {
+    FileElement tree = new FileElement(FILE, createText());
+    buildLexemes(tree, new CommentLexer(), VERSION, tree.getText());
+
+    String text = new StringBuilder(tree.getText()).insert(tree.getTextLength() / 2, "qux ").toString();
+    CommentLexer lexer = new CommentLexer();
+    assertEquals(buildLexemes(null, new CommentLexer(), OTHER_VERSION, text), buildLexemes(tree, lexer, OTHER_VERSION, text));
+    assertTrue(String.valueOf(lexer.myLexemeCount), lexer.myLexemeCount > 1000);
+  }
+
+  @NotNull
+  private static String createText() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000; i++) text.append("foo /* bar\n baz */\n");
+    return text.toString();
+  }
+
+  // the lexemes of the text as seen by the builder, the file tree keeps the lexemes for the next build
+  @NotNull
+  private static List<String> buildLexemes(@Nullable FileElement tree, @NotNull CommentLexer lexer, @NotNull LanguageVersion version,
+                                           @NotNull String text) {
+    PsiBuilderImpl builder = new PsiBuilderImpl(null, null, new TestParserDefinition(CommentLexer::new), lexer, version, null, text, tree, null);
+    List<String> lexemes = new ArrayList<>();
+    for (int i = 0; builder.rawLookup(i) != null; i++) {
+      lexemes.add(builder.rawLookup(i) + "@" + builder.rawTokenTypeStart(i));
+    }
+    return lexemes;
+  }
+
+  private static void assertSameLexemes(@NotNull LexemeCache expected, LexemeCache actual) {
+    assertNotNull(actual);
+    assertEquals(expected.myText.toString(), actual.myText.toString());
+    assertEquals(Arrays.toString(expected.myLexStarts), Arrays.toString(actual.myLexStarts));
+    assertEquals(Arrays.toString(expected.myLexTypes), Arrays.toString(actual.myLexTypes));
+    assertEquals(expected.myRestartable, actual.myRestartable);
+  }
+
+  @NotNull
+  private static LexemeCache lex(@NotNull String text) {
+    CommentLexer lexer = new CommentLexer();
+    lexer.start(text);
+    List<Integer> starts = new ArrayList<>();
+    List<IElementType> types = new ArrayList<>();
+    BitSet restartable = new BitSet();
+    while (lexer.getTokenType() != null) {
+      if (lexer.getState() == 0) restartable.set(types.size());
+      starts.add(lexer.getTokenStart());
+      types.add(lexer.getTokenType());
+      lexer.advance();
+    }
+    starts.add(text.length());
+    int[] lexStarts = new int[starts.size()];
+    for (int i = 0; i < lexStarts.length; i++) lexStarts[i] = starts.get(i);
+    return new LexemeCache(CommentLexer.class, VERSION, text, lexStarts, types.toArray(new IElementType[types.size()]), restartable);
+  }
+
+  @NotNull
+  private static String randomText(@NotNull Random random, int length) {
+    String[] parts = {"a", "b", " ", "\n", "/*", "*/", "/", "*"};
+    StringBuilder result = new StringBuilder();
+    while (result.length() < length) {
+      result.append(parts[random.nextInt(parts.length)]);
+    }
+    return result.toString();
+  }
+
+  // words, spaces and block comments, lexed line by line in the comment state
+  private static class CommentLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private int myTokenState;
+    private IElementType myTokenType;
+    private final boolean myComments;
+    private int myLexemeCount;
+
+    private CommentLexer() {
+      this(true);
+    }
+
+    CommentLexer(boolean comments) {
+      myComments = comments;
+    }
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      myState = initialState;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myTokenState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      myTokenState = myState;
+      myLexemeCount++;
+      int i = myTokenStart;
+      if (i >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      if (myState == 1 || myComments && startsWith(i, "/*")) {
+        if (myState == 0) i += 2;
+        while (i < myEnd && !startsWith(i, "*/") && myBuffer.charAt(i) != '\n') i++;
+        if (startsWith(i, "*/")) {
+          i += 2;
+          myState = 0;
+        }
+        else if (i < myEnd) {
+          i++;
+          myState = 1;
+        }
+        myTokenType = COMMENT;
+      }
+      else if (Character.isLetter(myBuffer.charAt(i))) {
+        while (i < myEnd && Character.isLetter(myBuffer.charAt(i))) i++;
+        myTokenType = WORD;
+      }
+      else if (Character.isWhitespace(myBuffer.charAt(i))) {
+        while (i < myEnd && Character.isWhitespace(myBuffer.charAt(i))) i++;
+        myTokenType = SPACE;
+      }
+      else {
+        i++;
+        myTokenType = PUNCTUATION;
+      }
+      myTokenEnd = i;
+    }
+
+    private boolean startsWith(int offset, @NotNull String prefix) {
+      return offset + prefix.length() <= myEnd && myBuffer.subSequence(offset, offset + prefix.length()).toString().equals(prefix);
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+
+  private static class PlainLexer extends CommentLexer {
+    private PlainLexer() {
+      super(false);
+    }
+  }
+}
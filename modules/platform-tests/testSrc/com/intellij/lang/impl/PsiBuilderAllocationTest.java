@@ -0,0 +1,270 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang.impl;
+
+import com.intellij.lang.FCTSBackedLighterAST;
+import com.intellij.lang.LighterAST;
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.impl.source.CharTableImpl;
+import com.intellij.psi.stubs.LightStubBuilder;
+import com.intellij.psi.stubs.PsiFileStubImpl;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.PlatformTestUtil;
+import consulo.lang.LanguageVersion;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static com.intellij.lang.impl.TestParserDefinition.*;
+
+/**
+ * Parses a large synthetic corpus with {@link PsiBuilderImpl} and builds its stub tree with {@link LightStubBuilder},
+ * checking the time it takes and the bytes allocated per marker.
+ */
+public class PsiBuilderAllocationTest extends TestCase {
+  private static final LanguageVersion VERSION = new LanguageVersion("DEFAULT", "DEFAULT", LANGUAGE);
+  private static final IElementType BLOCK = new IElementType("BLOCK", LANGUAGE);
+  private static final IElementType CALL = new IElementType("CALL", LANGUAGE);
+  private static final IElementType ASSIGNMENT = new IElementType("ASSIGNMENT", LANGUAGE);
+  private static final IElementType REFERENCE = new IElementType("REFERENCE", LANGUAGE);
+
+  public void testParsingPerformance() {
+    String text = generateText(new Random(0), 2000000);
+    PlatformTestUtil.startPerformanceTest("Parsing of 2 MB with rollbacks", 1500, () -> parseAndBuildStubs(text)).cpuBound().attempts(3)
+      .assertTiming();
+  }
+
+  public void testAllocationPerMarker() {
+    String text = generateText(new Random(0), 2000000);
+    parseAndBuildStubs(text);
+
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return;
+    long threadId = Thread.currentThread().getId();
+    long allocated = threads.getThreadAllocatedBytes(threadId);
+    int markers = parseAndBuildStubs(text);
+    allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+    // about 460 bytes with the markers pooled by id, most of them the light tree and the stubs
+    assertTrue(allocated / markers + " bytes per marker", allocated / markers < 1024);
+  }
+
+  private static int parseAndBuildStubs(@NotNull String text) {
+    PsiBuilderImpl builder = new PsiBuilderImpl(null, null, new TestParserDefinition(MyLexer::new), new MyLexer(), VERSION, null, text, null, null);
+    int markers = parse(builder);
+    LighterAST tree = new FCTSBackedLighterAST(new CharTableImpl(), builder.getLightTree());
+    new MyStubBuilder().build(tree);
+    assertEquals(text.length(), tree.getRoot().getEndOffset());
+    return markers;
+  }
+
+  // statements are parsed speculatively as assignments first, so a part of the markers is rolled back
+  private static int parse(@NotNull PsiBuilder builder) {
+    int markers = 1;
+    PsiBuilder.Marker file = builder.mark();
+    while (!builder.eof()) {
+      markers += parseStatement(builder);
+    }
+    file.done(FILE);
+    return markers;
+  }
+
+  private static int parseStatement(@NotNull PsiBuilder builder) {
+    if ("{".equals(builder.getTokenText())) {
+      int markers = 1;
+      PsiBuilder.Marker block = builder.mark();
+      builder.advanceLexer();
+      while (!builder.eof() && !"}".equals(builder.getTokenText())) {
+        markers += parseStatement(builder);
+      }
+      if (builder.eof()) {
+        builder.error("'}' expected");
+      }
+      else {
+        builder.advanceLexer();
+      }
+      block.done(BLOCK);
+      return markers;
+    }
+
+    PsiBuilder.Marker assignment = builder.mark();
+    if (parseReference(builder) && "=".equals(builder.getTokenText())) {
+      builder.advanceLexer();
+      int markers = 2 + parseExpression(builder);
+      assignment.done(ASSIGNMENT);
+      return markers;
+    }
+    assignment.rollbackTo();
+    if (builder.getTokenType() == WORD) {
+      return parseExpression(builder);
+    }
+    PsiBuilder.Marker error = builder.mark();
+    builder.advanceLexer();
+    error.error("Unexpected token");
+    return 1;
+  }
+
+  private static int parseExpression(@NotNull PsiBuilder builder) {
+    PsiBuilder.Marker call = builder.mark();
+    if (!parseReference(builder)) {
+      call.drop();
+      builder.error("Expression expected");
+      return 0;
+    }
+    if (!"(".equals(builder.getTokenText())) {
+      call.drop();
+      return 1;
+    }
+    int markers = 2;
+    builder.advanceLexer();
+    while (builder.getTokenType() == WORD) {
+      markers += parseExpression(builder);
+      if (!",".equals(builder.getTokenText())) break;
+      builder.advanceLexer();
+    }
+    if (")".equals(builder.getTokenText())) {
+      builder.advanceLexer();
+    }
+    else {
+      builder.error("')' expected");
+    }
+    call.done(CALL);
+    return markers;
+  }
+
+  private static boolean parseReference(@NotNull PsiBuilder builder) {
+    if (builder.getTokenType() != WORD) return false;
+    PsiBuilder.Marker reference = builder.mark();
+    builder.advanceLexer();
+    reference.done(REFERENCE);
+    return true;
+  }
+
+  @NotNull
+  private static String generateText(@NotNull Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    int depth = 0;
+    while (text.length() < length) {
+      int kind = random.nextInt(10);
+      if (kind == 0 && depth < 10) {
+        text.append("{\n");
+        depth++;
+      }
+      else if (kind == 1 && depth > 0) {
+        text.append("}\n");
+        depth--;
+      }
+      else if (kind == 2) {
+        text.append("# comment ").append(random.nextInt(100)).append('\n');
+      }
+      else if (kind < 6) {
+        text.append("name").append(random.nextInt(100)).append(" = value").append(random.nextInt(100)).append('\n');
+      }
+      else {
+        text.append("call").append(random.nextInt(100)).append("(arg, nested(x, y), z)\n");
+      }
+    }
+    while (depth-- > 0) text.append("}\n");
+    return text.toString();
+  }
+
+  private static class MyStubBuilder extends LightStubBuilder {
+    private void build(@NotNull LighterAST tree) {
+      buildStubTree(tree, tree.getRoot(), new PsiFileStubImpl<>(null));
+    }
+  }
+
+  // words, spaces, line comments and single character punctuation
+  private static class MyLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myTokenEnd = startOffset;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return 0;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      myTokenStart = myTokenEnd;
+      int i = myTokenStart;
+      if (i >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      char c = myBuffer.charAt(i);
+      if (c == '#') {
+        while (i < myEnd && myBuffer.charAt(i) != '\n') i++;
+        myTokenType = COMMENT;
+      }
+      else if (Character.isLetterOrDigit(c)) {
+        while (i < myEnd && Character.isLetterOrDigit(myBuffer.charAt(i))) i++;
+        myTokenType = WORD;
+      }
+      else if (Character.isWhitespace(c)) {
+        while (i < myEnd && Character.isWhitespace(myBuffer.charAt(i))) i++;
+        myTokenType = SPACE;
+      }
+      else {
+        i++;
+        myTokenType = PUNCTUATION;
+      }
+      myTokenEnd = i;
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
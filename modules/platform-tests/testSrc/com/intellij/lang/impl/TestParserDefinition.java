@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.lang.impl;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.lang.PsiParser;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.Factory;
+import com.intellij.psi.FileViewProvider;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.TokenSet;
+import consulo.lang.LanguageVersion;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parser definition of the {@link PsiBuilderImpl} tests: words, spaces, comments and punctuation lexed by the given lexer,
+ * there is no parser and no PSI, the tests drive the builder themselves.
+ */
+class TestParserDefinition implements ParserDefinition {
+  static final Language LANGUAGE = new Language("PSI_BUILDER_TEST") {
+  };
+  static final IFileElementType FILE = new IFileElementType("FILE", LANGUAGE);
+  static final IElementType WORD = new IElementType("WORD", LANGUAGE);
+  static final IElementType SPACE = new IElementType("SPACE", LANGUAGE);
+  static final IElementType COMMENT = new IElementType("COMMENT", LANGUAGE);
+  static final IElementType PUNCTUATION = new IElementType("PUNCTUATION", LANGUAGE);
+
+  private final Factory<Lexer> myLexerFactory;
+
+  TestParserDefinition(@NotNull Factory<Lexer> lexerFactory) {
+    myLexerFactory = lexerFactory;
+  }
+
+  @NotNull
+  @Override
+  public Lexer createLexer(@NotNull LanguageVersion languageVersion) {
+    return myLexerFactory.create();
+  }
+
+  @NotNull
+  @Override
+  public PsiParser createParser(@NotNull LanguageVersion languageVersion) {
+    throw new UnsupportedOperationException();
+  }
+
+  @NotNull
+  @Override
+  public IFileElementType getFileNodeType() {
+    return FILE;
+  }
+
+  @NotNull
+  @Override
+  public TokenSet getWhitespaceTokens(@NotNull LanguageVersion languageVersion) {
+    return TokenSet.create(SPACE);
+  }
+
+  @NotNull
+  @Override
+  public TokenSet getCommentTokens(@NotNull LanguageVersion languageVersion) {
+    return TokenSet.create(COMMENT);
+  }
+
+  @NotNull
+  @Override
+  public TokenSet getStringLiteralElements(@NotNull LanguageVersion languageVersion) {
+    return TokenSet.EMPTY;
+  }
+
+  @Override
+  public PsiFile createFile(@NotNull FileViewProvider viewProvider) {
+    throw new UnsupportedOperationException();
+  }
+
+  @NotNull
+  @Override
+  public SpaceRequirements spaceExistanceTypeBetweenTokens(ASTNode left, ASTNode right) {
+    return SpaceRequirements.MAY;
+  }
+}
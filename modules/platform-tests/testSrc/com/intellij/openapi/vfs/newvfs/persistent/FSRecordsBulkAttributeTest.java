@@ -0,0 +1,133 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.newvfs.FileAttribute;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.util.io.IOUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class FSRecordsBulkAttributeTest extends PlatformTestCase {
+  private static final FileAttribute ATTRIBUTE = new FileAttribute("FSRecordsBulkAttributeTest.attribute", 2, false);
+  private static final FileAttribute OTHER_ATTRIBUTE = new FileAttribute("FSRecordsBulkAttributeTest.other", 1, false);
+
+  private final TIntArrayList myRoots = new TIntArrayList();
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      for (int i = 0; i < myRoots.size(); ++i) {
+        FSRecords.deleteRecordRecursively(myRoots.get(i));
+      }
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private int createRecord(int parent) {
+    int id = FSRecords.createRecord();
+    if (parent != 0) {
+      FSRecords.setParent(id, parent);
+    }
+    else {
+      myRoots.add(id);
+    }
+    FSRecords.setName(id, "file" + id);
+    return id;
+  }
+
+  private static void writeValue(int fileId, @NotNull FileAttribute attribute, @NotNull String value) throws IOException {
+    DataOutputStream stream = FSRecords.writeAttribute(fileId, attribute);
+    try {
+      IOUtil.writeUTF(stream, value);
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static String valueFor(int fileId) {
+    // inline (small) and separately stored attribute data
+    return fileId % 2 == 0 ? "v" + fileId : StringUtil.repeat("value" + fileId, 20);
+  }
+
+  public void testBulkReadOfFileIds() throws IOException {
+    int[] fileIds = new int[100];
+    for (int i = 0; i < fileIds.length; ++i) {
+      fileIds[i] = createRecord(0);
+      if (i % 10 == 0) continue; // no attribute
+      if (i % 5 == 0) writeValue(fileIds[i], OTHER_ATTRIBUTE, "other");
+      writeValue(fileIds[i], i % 7 == 0 ? ATTRIBUTE.newVersion(1) : ATTRIBUTE, valueFor(fileIds[i]));
+    }
+
+    TIntObjectHashMap<String> read = readInBulk(fileIds);
+    for (int i = 0; i < fileIds.length; ++i) {
+      String expected = i % 10 == 0 || i % 7 == 0 ? null : valueFor(fileIds[i]);
+      assertEquals(expected, read.get(fileIds[i]));
+      assertEquals(expected, readOneByOne(fileIds[i]));
+    }
+  }
+
+  public void testBulkReadOfInterleavedAttributes() throws IOException {
+    final int[] fileIds = new int[20000];
+    for (int i = 0; i < fileIds.length; ++i) {
+      fileIds[i] = createRecord(0);
+    }
+    // interleave attribute pages of files as it happens in a real VFS
+    for (int i = fileIds.length - 1; i >= 0; --i) {
+      writeValue(fileIds[i], ATTRIBUTE, valueFor(fileIds[i]));
+    }
+
+    TIntObjectHashMap<String> read = readInBulk(fileIds);
+    assertEquals(fileIds.length, read.size());
+    for (int fileId : fileIds) {
+      assertEquals(readOneByOne(fileId), read.get(fileId));
+    }
+  }
+
+  @NotNull
+  private static TIntObjectHashMap<String> readInBulk(@NotNull int[] fileIds) throws IOException {
+    final TIntObjectHashMap<String> read = new TIntObjectHashMap<String>();
+    FSRecords.processAttributeInBulk(fileIds, ATTRIBUTE, new FSRecords.BulkAttributeProcessor() {
+      @Override
+      public boolean process(int fileId, @NotNull DataInputStream attributeStream) throws IOException {
+        assertNull(read.put(fileId, IOUtil.readUTF(attributeStream)));
+        assertEquals(0, attributeStream.available());
+        return true;
+      }
+    });
+    return read;
+  }
+
+  private static String readOneByOne(int fileId) throws IOException {
+    DataInputStream stream = FSRecords.readAttributeWithLock(fileId, ATTRIBUTE);
+    if (stream == null) return null;
+    try {
+      return IOUtil.readUTF(stream);
+    }
+    finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.util.containers.ConcurrentIntObjectMap;
+import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.TIntArrayList;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FSRecordsConcurrencyTest extends PlatformTestCase {
+  private static final int DEPTH = 20;
+
+  private int myRoot;
+  private int myParentA;
+  private int myParentB;
+  private int myTop;
+  private int myLeaf;
+  private final TIntArrayList myCreated = new TIntArrayList();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = createChild(0, "root");
+    myParentA = createChild(myRoot, "a");
+    myParentB = createChild(myRoot, "b");
+    myTop = createChild(myParentA, "top");
+    myLeaf = myTop;
+    for (int i = 1; i < DEPTH; ++i) {
+      myLeaf = createChild(myLeaf, "dir" + i);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      for (int i = myCreated.size() - 1; i >= 0; --i) {
+        FSRecords.deleteRecordRecursively(myCreated.get(i));
+      }
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private int createChild(int parent, String name) {
+    int id = FSRecords.createRecord();
+    myCreated.add(id);
+    if (parent != 0) FSRecords.setParent(id, parent);
+    FSRecords.setName(id, name);
+    return id;
+  }
+
+  public void testReadersSeeConsistentRecordsWhileWriting() throws Exception {
+    final int readersCount = 4;
+    final int iterations = 50000;
+    final AtomicBoolean finished = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final ConcurrentIntObjectMap<Object> emptyCache = ContainerUtil.createConcurrentIntObjectMap();
+
+    Thread[] readers = new Thread[readersCount];
+    for (int t = 0; t < readersCount; ++t) {
+      readers[t] = new Thread("FSRecords reader " + t) {
+        @Override
+        public void run() {
+          try {
+            long lastLength = 0;
+            long lastTimestamp = 0;
+            while (!finished.get()) {
+              TIntArrayList parents = FSRecords.getParents(myLeaf, emptyCache);
+              assertEquals(DEPTH + 2, parents.size());
+              assertEquals(myRoot, parents.get(parents.size() - 1));
+              int middle = parents.get(DEPTH);
+              assertTrue(middle == myParentA || middle == myParentB);
+
+              int parent = FSRecords.getParent(myTop);
+              assertTrue(parent == myParentA || parent == myParentB);
+              assertEquals("top", FSRecords.getNameSequence(myTop).toString());
+
+              // both are updated with the same increasing value, length first
+              long timestamp = FSRecords.getTimestamp(myLeaf);
+              long length = FSRecords.getLength(myLeaf);
+              assertTrue(timestamp >= lastTimestamp);
+              assertTrue(length >= lastLength);
+              assertTrue(length >= timestamp);
+              lastLength = length;
+              lastTimestamp = timestamp;
+
+              int flags = FSRecords.getFlags(myLeaf);
+              assertTrue(flags == 0 || flags == PersistentFS.IS_DIRECTORY_FLAG);
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    try {
+      for (int i = 1; i <= iterations && failure.get() == null; ++i) {
+        FSRecords.setParent(myTop, i % 2 == 0 ? myParentA : myParentB);
+        FSRecords.setLength(myLeaf, i);
+        FSRecords.setTimestamp(myLeaf, i);
+        FSRecords.setFlags(myLeaf, i % 2 == 0 ? 0 : PersistentFS.IS_DIRECTORY_FLAG, false);
+      }
+    }
+    finally {
+      finished.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    assertEquals(iterations, FSRecords.getLength(myLeaf));
+    assertEquals(iterations, FSRecords.getTimestamp(myLeaf));
+  }
+
+  public void testConcurrentReadsWithWriterOfOtherRecords() throws Exception {
+    final ConcurrentIntObjectMap<Object> emptyCache = ContainerUtil.createConcurrentIntObjectMap();
+    final int leafParent = FSRecords.getParent(myLeaf);
+    final int leafFlags = FSRecords.getFlags(myLeaf);
+    final long leafTimestamp = FSRecords.getTimestamp(myLeaf);
+
+    for (int threads = 1; threads <= 16; threads *= 2) {
+      final int operationsPerThread = 400000 / threads;
+      final AtomicBoolean finished = new AtomicBoolean();
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] readers = new Thread[threads];
+
+      for (int t = 0; t < threads; ++t) {
+        readers[t] = new Thread("FSRecords reader " + t) {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < operationsPerThread; ++i) {
+                if (i % 16 == 0) {
+                  assertEquals(DEPTH + 2, FSRecords.getParents(myLeaf, emptyCache).size());
+                }
+                else {
+                  assertEquals(leafParent, FSRecords.getParent(myLeaf));
+                  assertEquals(leafFlags, FSRecords.getFlags(myLeaf));
+                  assertEquals(leafTimestamp, FSRecords.getTimestamp(myLeaf));
+                }
+              }
+            }
+            catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        };
+        readers[t].start();
+      }
+
+      // a background writer, like RefreshWorker, updating other records
+      Thread writer = new Thread("FSRecords writer") {
+        @Override
+        public void run() {
+          long i = 0;
+          while (!finished.get()) {
+            FSRecords.setTimestamp(myParentB, ++i);
+          }
+        }
+      };
+      writer.start();
+
+      start.countDown();
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      finished.set(true);
+      writer.join();
+
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+  }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.storage.AbstractStorage;
+import com.intellij.util.io.storage.RefCountingStorage;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FSRecordsWriteAheadLogTest extends TestCase {
+  private static final int VERSION = 42;
+  private static final long TIMESTAMP = 1234567890L;
+
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("records", ".log");
+    FileUtil.delete(myFile);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myFile);
+    super.tearDown();
+  }
+
+  public void testModificationsAreReplayedInOrder() throws IOException {
+    FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    assertFalse(log.isRecovered());
+    log.logCreateRecord(10);
+    log.logSetParent(10, 1);
+    log.logSetName(10, "name");
+    log.logSetFlags(10, 4, true);
+    assertEquals(4, log.commit());
+    log.logSetLength(10, Long.MAX_VALUE);
+    log.logSetTimestamp(10, -1);
+    log.logUpdateList(1, new int[]{10, 12});
+    log.logFindRootRecord("file:///", 2);
+    log.logDeleteRootRecord(2);
+    log.logWriteAttribute(10, "attr", true, new ByteSequence("xattrx".getBytes(), 1, 4));
+    log.logWriteContent(10, false, new ByteSequence("content".getBytes()), 1);
+    log.logStoreUnlinkedContent(7, "unlinked".getBytes(), 3);
+    log.logAcquireFileContent(10, 8, 2);
+    log.logReleaseContent(8, 1);
+    log.logDeleteRecordRecursively(10);
+    assertEquals(11, log.commit());
+    assertEquals(0, log.commit());
+    log.close();
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    try {
+      assertTrue(log.isRecovered());
+      assertEquals(Arrays.asList("create 10", "parent 10 1", "name 10 name", "flags 10 4 true", "length 10 " + Long.MAX_VALUE,
+                                 "timestamp 10 -1", "list 1 [10, 12]", "root file:/// 2", "delete root 2", "attribute 10 attr true attr",
+                                 "content 10 false content 1", "unlinked 7 unlinked 3", "acquire 10 8 2", "release 8 1", "delete 10"),
+                   replay(log));
+    }
+    finally {
+      log.close();
+    }
+  }
+
+  public void testUncommittedAndIncompleteModificationsAreLost() throws IOException {
+    FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    log.logCreateRecord(10);
+    log.commit();
+    log.logCreateRecord(11);
+    log.commit();
+    log.logCreateRecord(12);
+    log.close();
+
+    // a block which wasn't written completely when the process was killed
+    RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      file.seek(file.length());
+      file.writeInt(100);
+      file.writeInt(0);
+      file.write(new byte[10]);
+    }
+    finally {
+      file.close();
+    }
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    try {
+      assertEquals(Arrays.asList("create 10", "create 11"), replay(log));
+    }
+    finally {
+      log.close();
+    }
+  }
+
+  public void testCorruptedBlockEndsTheLog() throws IOException {
+    FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    log.logCreateRecord(10);
+    log.commit();
+    long size = log.getSize();
+    log.logSetName(10, "name");
+    log.commit();
+    log.logCreateRecord(11);
+    log.commit();
+    log.close();
+
+    RandomAccessFile file = new RandomAccessFile(myFile, "rw");
+    try {
+      file.seek(size + 9);
+      file.write(0xFF);
+    }
+    finally {
+      file.close();
+    }
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    try {
+      assertEquals(Arrays.asList("create 10"), replay(log));
+    }
+    finally {
+      log.close();
+    }
+  }
+
+  public void testCheckpointForgetsModifications() throws IOException {
+    FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    log.logCreateRecord(10);
+    log.commit();
+    log.logCreateRecord(11);
+    long size = log.getSize();
+    log.checkpoint();
+    assertTrue(log.getSize() < size);
+    assertEquals(0, log.commit());
+    log.logCreateRecord(12);
+    log.commit();
+    log.close();
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    try {
+      assertTrue(log.isRecovered());
+      assertEquals(Arrays.asList("create 12"), replay(log));
+    }
+    finally {
+      log.close();
+    }
+  }
+
+  public void testLogOfOtherStoragesIsDiscarded() throws IOException {
+    FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+    log.logCreateRecord(10);
+    log.commit();
+    log.close();
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP + 1);
+    try {
+      assertFalse(log.isRecovered());
+      assertEquals(0, replay(log).size());
+    }
+    finally {
+      log.close();
+    }
+
+    log = FSRecordsWriteAheadLog.open(myFile, VERSION + 1, TIMESTAMP + 1);
+    try {
+      assertFalse(log.isRecovered());
+    }
+    finally {
+      log.close();
+    }
+  }
+
+  public void testGroupCommit() throws IOException {
+    int modifications = 2000;
+    long previousSize = Long.MAX_VALUE;
+    for (int groupSize : new int[]{1, 10, 100, 1000}) {
+      FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+      try {
+        for (int i = 1; i <= modifications; ++i) {
+          log.logSetTimestamp(i, i);
+          if (i % groupSize == 0) assertEquals(groupSize, log.commit());
+        }
+        assertEquals(modifications, replay(log).size());
+        // a block per commit
+        assertTrue(groupSize + ": " + log.getSize(), log.getSize() < previousSize);
+        previousSize = log.getSize();
+      }
+      finally {
+        log.close();
+      }
+      FileUtil.delete(myFile);
+    }
+  }
+
+  // the content storage is flushed after some of the logged modifications, so replaying them must not acquire the contents again
+  public void testContentReferencesReplayedOnFlushedStorage() throws IOException {
+    File dir = FileUtil.createTempDirectory("contents", null);
+    try {
+      File flushed = new File(dir, "flushed");
+      RefCountingStorage storage = new RefCountingStorage(new File(dir, "contents").getPath());
+      FSRecordsWriteAheadLog log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+      int first;
+      int second;
+      try {
+        // the way FSRecords modifies the contents and logs them
+        first = storage.acquireNewRecord();
+        storage.writeBytes(first, new ByteSequence("first".getBytes()), false);
+        log.logStoreUnlinkedContent(first, "first".getBytes(), 1);
+        second = storage.acquireNewRecord();
+        storage.writeBytes(second, new ByteSequence("second".getBytes()), false);
+        log.logStoreUnlinkedContent(second, "second".getBytes(), 1);
+        storage.acquireRecord(first);
+        log.logAcquireFileContent(10, first, storage.getRefCount(first));
+        log.commit();
+
+        // the pages are flushed in background while the log isn't checkpointed, the process is killed afterwards
+        storage.force();
+        copyStorage(new File(dir, "contents"), flushed);
+
+        storage.acquireRecord(first);
+        log.logAcquireFileContent(11, first, storage.getRefCount(first));
+        storage.releaseRecord(second);
+        log.logReleaseContent(second, storage.getRefCount(second));
+        log.commit();
+        assertEquals(3, storage.getRefCount(first));
+        assertEquals(1, storage.getLiveRecordsCount());
+      }
+      finally {
+        log.close();
+        storage.dispose();
+      }
+
+      log = FSRecordsWriteAheadLog.open(myFile, VERSION, TIMESTAMP);
+      RefCountingStorage recovered = new RefCountingStorage(flushed.getPath());
+      try {
+        assertEquals(2, recovered.getRefCount(first));
+        // replaying twice, as after a crash during the replay, changes nothing either
+        for (int i = 0; i < 2; i++) {
+          assertEquals(5, replayContents(log, recovered));
+          assertEquals(3, recovered.getRefCount(first));
+          assertEquals(0, recovered.getRefCount(second));
+          assertEquals(1, recovered.getLiveRecordsCount());
+        }
+      }
+      finally {
+        log.close();
+        recovered.dispose();
+      }
+    }
+    finally {
+      FileUtil.delete(dir);
+    }
+  }
+
+  private static void copyStorage(@NotNull File from, @NotNull File to) throws IOException {
+    for (String extension : new String[]{AbstractStorage.INDEX_EXTENSION, AbstractStorage.DATA_EXTENSION}) {
+      FileUtil.copy(new File(from.getPath() + extension), new File(to.getPath() + extension));
+    }
+  }
+
+  // applies the logged reference counts the way FSRecords does, the contents themselves were flushed
+  private static int replayContents(@NotNull FSRecordsWriteAheadLog log, @NotNull final RefCountingStorage storage) throws IOException {
+    return log.replay(new ReplayerAdapter() {
+      @Override
+      public void storeUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) throws IOException {
+        storage.setRefCount(contentId, refCount, false);
+      }
+
+      @Override
+      public void acquireFileContent(int fileId, int contentId, int refCount) throws IOException {
+        storage.setRefCount(contentId, refCount, false);
+      }
+
+      @Override
+      public void releaseContent(int contentId, int refCount) throws IOException {
+        storage.setRefCount(contentId, refCount, true);
+      }
+    });
+  }
+
+  @NotNull
+  private static List<String> replay(@NotNull FSRecordsWriteAheadLog log) throws IOException {
+    final List<String> result = new ArrayList<String>();
+    int replayed = log.replay(new FSRecordsWriteAheadLog.Replayer() {
+      @Override
+      public void createRecord(int id) {
+        result.add("create " + id);
+      }
+
+      @Override
+      public void deleteRecordRecursively(int id) {
+        result.add("delete " + id);
+      }
+
+      @Override
+      public void setParent(int id, int parent) {
+        result.add("parent " + id + " " + parent);
+      }
+
+      @Override
+      public void setName(int id, @NotNull String name) {
+        result.add("name " + id + " " + name);
+      }
+
+      @Override
+      public void setFlags(int id, int flags, boolean markAsChange) {
+        result.add("flags " + id + " " + flags + " " + markAsChange);
+      }
+
+      @Override
+      public void setLength(int id, long length) {
+        result.add("length " + id + " " + length);
+      }
+
+      @Override
+      public void setTimestamp(int id, long timestamp) {
+        result.add("timestamp " + id + " " + timestamp);
+      }
+
+      @Override
+      public void updateList(int id, @NotNull int[] children) {
+        result.add("list " + id + " " + Arrays.toString(children));
+      }
+
+      @Override
+      public void findRootRecord(@NotNull String rootUrl, int id) {
+        result.add("root " + rootUrl + " " + id);
+      }
+
+      @Override
+      public void deleteRootRecord(int id) {
+        result.add("delete root " + id);
+      }
+
+      @Override
+      public void writeAttribute(int fileId, @NotNull String attributeId, boolean fixedSize, @NotNull ByteSequence bytes) {
+        result.add("attribute " + fileId + " " + attributeId + " " + fixedSize + " " + toString(bytes));
+      }
+
+      @Override
+      public void writeContent(int fileId, boolean readOnly, @NotNull ByteSequence bytes, int refCount) {
+        result.add("content " + fileId + " " + readOnly + " " + toString(bytes) + " " + refCount);
+      }
+
+      @Override
+      public void storeUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) {
+        result.add("unlinked " + contentId + " " + new String(bytes) + " " + refCount);
+      }
+
+      @Override
+      public void acquireFileContent(int fileId, int contentId, int refCount) {
+        result.add("acquire " + fileId + " " + contentId + " " + refCount);
+      }
+
+      @Override
+      public void releaseContent(int contentId, int refCount) {
+        result.add("release " + contentId + " " + refCount);
+      }
+
+      @NotNull
+      private String toString(@NotNull ByteSequence bytes) {
+        return new String(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+      }
+    });
+    assertEquals(result.size(), replayed);
+    return result;
+  }
+
+  private static class ReplayerAdapter implements FSRecordsWriteAheadLog.Replayer {
+    @Override
+    public void createRecord(int id) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void deleteRecordRecursively(int id) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void setParent(int id, int parent) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void setName(int id, @NotNull String name) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void setFlags(int id, int flags, boolean markAsChange) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void setLength(int id, long length) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void setTimestamp(int id, long timestamp) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void updateList(int id, @NotNull int[] children) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void findRootRecord(@NotNull String rootUrl, int id) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void deleteRootRecord(int id) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void writeAttribute(int fileId, @NotNull String attributeId, boolean fixedSize, @NotNull ByteSequence bytes) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void writeContent(int fileId, boolean readOnly, @NotNull ByteSequence bytes, int refCount) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void storeUnlinkedContent(int contentId, @NotNull byte[] bytes, int refCount) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void acquireFileContent(int fileId, int contentId, int refCount) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+
+    @Override
+    public void releaseContent(int contentId, int refCount) throws IOException {
+      throw new IOException("Unexpected modification");
+    }
+  }
+}
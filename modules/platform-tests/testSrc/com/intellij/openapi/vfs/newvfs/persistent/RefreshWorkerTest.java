@@ -0,0 +1,113 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.IoTestUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.util.Function;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class RefreshWorkerTest extends PlatformTestCase {
+  public void testParallelScanReportsSameEventsInSameOrder() throws IOException {
+    File top = createTempDirectory(false);
+    createTree(top, 3, 4, 5);
+    VirtualFile root = loadTree(top);
+
+    // a partially loaded directory is refreshed differently
+    File partial = IoTestUtil.createTestDir(top, "partial");
+    IoTestUtil.createTestFile(partial, "known.txt");
+    VirtualFile known = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(new File(partial, "known.txt"));
+    assertNotNull(known);
+
+    FileUtil.delete(new File(top, "dir0"));
+    FileUtil.delete(new File(top, "dir1/file0.txt"));
+    IoTestUtil.createTestFile(new File(top, "dir1"), "added.txt");
+    IoTestUtil.createTestDir(new File(top, "dir2/dir1"), "added");
+    assertTrue(new File(top, "dir2/dir1/file3.txt").setLastModified(System.currentTimeMillis() - 100000));
+    assertTrue(new File(top, "dir3/dir0/dir0/file1.txt").setLastModified(System.currentTimeMillis() - 100000));
+    FileUtil.writeToFile(new File(partial, "known.txt"), "changed");
+
+    List<String> sequential = scan(root, false);
+    List<String> parallel = scan(root, true);
+    assertTrue(sequential.toString(), sequential.size() >= 6);
+    assertEquals(sequential, parallel);
+  }
+
+  public void testUnchangedTreeScannedTheSameWay() throws IOException {
+    File top = createTempDirectory(false);
+    createTree(top, 3, 8, 10);
+    VirtualFile root = loadTree(top);
+
+    int[] scanned = new int[2];
+    for (int i = 0; i < 2; ++i) {
+      VfsUtil.markDirty(true, false, root);
+      RefreshWorker worker = new RefreshWorker((NewVirtualFile)root, true, i == 1);
+      worker.scan();
+      assertTrue(worker.getEvents().toString(), worker.getEvents().isEmpty());
+      scanned[i] = worker.getScannedFilesCount();
+    }
+    assertTrue(String.valueOf(scanned[0]), scanned[0] > 0);
+    assertEquals(scanned[0], scanned[1]);
+  }
+
+  private static void createTree(@NotNull File dir, int depth, int dirs, int files) throws IOException {
+    for (int i = 0; i < files; ++i) {
+      IoTestUtil.createTestFile(dir, "file" + i + ".txt", "content" + i);
+    }
+    if (depth == 0) return;
+    for (int i = 0; i < dirs; ++i) {
+      createTree(IoTestUtil.createTestDir(dir, "dir" + i), depth - 1, dirs / 2, files);
+    }
+  }
+
+  @NotNull
+  private static VirtualFile loadTree(@NotNull File top) {
+    VirtualFile root = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(top);
+    assertNotNull(root);
+    VfsUtilCore.processFilesRecursively(root, new Processor<VirtualFile>() {
+      @Override
+      public boolean process(VirtualFile file) {
+        return true;
+      }
+    });
+    return root;
+  }
+
+  @NotNull
+  private static List<String> scan(@NotNull VirtualFile root, boolean parallel) {
+    VfsUtil.markDirty(true, false, root);
+    RefreshWorker worker = new RefreshWorker((NewVirtualFile)root, true, parallel);
+    worker.scan();
+    return ContainerUtil.map(worker.getEvents(), new Function<Object, String>() {
+      @Override
+      public String fun(Object event) {
+        return event.toString();
+      }
+    });
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class DocumentCommitStatisticsTest extends TestCase {
+  public void testLatencyPercentiles() {
+    DocumentCommitStatistics statistics = new DocumentCommitStatistics();
+    assertEquals(0, statistics.getLatencyPercentile(50));
+
+    for (int i = 0; i < 90; i++) {
+      statistics.committed(TimeUnit.MICROSECONDS.toNanos(300));
+    }
+    for (int i = 0; i < 9; i++) {
+      statistics.committed(TimeUnit.MILLISECONDS.toNanos(5));
+    }
+    statistics.committed(TimeUnit.SECONDS.toNanos(2));
+
+    assertEquals(100, statistics.getCommittedCount());
+    assertEquals(1, statistics.getLatencyPercentile(50));
+    assertEquals(1, statistics.getLatencyPercentile(90));
+    assertEquals(8, statistics.getLatencyPercentile(99));
+    assertEquals(2048, statistics.getLatencyPercentile(100));
+    assertEquals(90, statistics.getLatencyHistogram()[0]);
+    assertEquals(9, statistics.getLatencyHistogram()[3]);
+  }
+
+  public void testQueueDepth() {
+    DocumentCommitStatistics statistics = new DocumentCommitStatistics();
+    statistics.queued(1);
+    statistics.queued(2);
+    statistics.queued(6);
+    statistics.failed();
+    statistics.cancelled();
+    statistics.cancelled();
+
+    assertEquals(3, statistics.getQueuedCount());
+    assertEquals(6, statistics.getMaxQueueDepth());
+    assertEquals(3.0, statistics.getAverageQueueDepth(), 0.001);
+    assertEquals(1, statistics.getFailedCount());
+    assertEquals(2, statistics.getCancelledCount());
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl;
+
+import com.intellij.lang.FileASTNode;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.Consumer;
+import com.intellij.util.Processor;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DocumentCommitThreadTest extends LightPlatformTestCase {
+  private static final String THREADS_PROPERTY = "idea.document.commit.threads";
+  private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+  private TestCommitThread myCommitThread;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // only the commits queued by the tests, by a thread of its own
+    ((PsiDocumentManagerBase)PsiDocumentManager.getInstance(getProject())).disableBackgroundCommit(getTestRootDisposable());
+    String threads = System.getProperty(THREADS_PROPERTY);
+    System.setProperty(THREADS_PROPERTY, "4");
+    try {
+      myCommitThread = new TestCommitThread();
+    }
+    finally {
+      if (threads == null) {
+        System.clearProperty(THREADS_PROPERTY);
+      }
+      else {
+        System.setProperty(THREADS_PROPERTY, threads);
+      }
+    }
+    Disposer.register(getTestRootDisposable(), myCommitThread);
+    UIUtil.dispatchAllInvocationEvents();
+    assertTrue(myCommitThread.isEnabled());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myCommitThread = null;
+    super.tearDown();
+  }
+
+  public void testCommitsFinishedInQueueOrder() throws Exception {
+    List<Document> documents = createDocuments(50);
+    Document first = documents.get(0);
+    Document second = documents.get(1);
+    CountDownLatch secondComputed = new CountDownLatch(1);
+    AtomicBoolean sequential = new AtomicBoolean();
+    // the second document is committed in parallel with the first one and is computed before it
+    myCommitThread.myBeforeCommit = task -> {
+      if (task.getDocument() == first && !await(secondComputed, task)) sequential.set(true);
+    };
+    myCommitThread.myAfterCommit = task -> {
+      if (task.getDocument() == second) secondComputed.countDown();
+    };
+
+    edit(documents);
+    List<Document> finished = queueCommits(documents);
+    waitForCommits(documents);
+
+    assertFalse(sequential.get());
+    assertEquals(documents, finished);
+    assertCommitted(documents);
+    assertEquals(documents.size(), myCommitThread.getStatistics().getCommittedCount());
+  }
+
+  public void testDocumentEditedWhileCommitted() throws Exception {
+    List<Document> documents = createDocuments(20);
+    Document edited = documents.get(5);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean cancelled = new AtomicBoolean();
+    myCommitThread.myBeforeCommit = task -> {
+      if (task.getDocument() == edited && started.getCount() > 0) {
+        started.countDown();
+        try {
+          await(new CountDownLatch(1), task);
+        }
+        catch (ProcessCanceledException e) {
+          cancelled.set(true);
+          throw e;
+        }
+      }
+    };
+
+    edit(documents);
+    queueCommits(documents);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> edited.insertString(0, "edited "));
+    assertTrue(cancelled.get());
+    myCommitThread.commitAsynchronously(getProject(), edited, "edited", null);
+    waitForCommits(documents);
+
+    assertCommitted(documents);
+    assertTrue(PsiDocumentManager.getInstance(getProject()).getPsiFile(edited).getText().startsWith("edited "));
+  }
+
+  public void testWriteActionCancelsRunningCommits() throws Exception {
+    List<Document> documents = createDocuments(10);
+    Set<Document> blocked = ContainerUtil.newConcurrentSet();
+    CountDownLatch started = new CountDownLatch(2);
+    AtomicInteger cancelled = new AtomicInteger();
+    myCommitThread.myBeforeCommit = task -> {
+      Document document = task.getDocument();
+      if ((document == documents.get(0) || document == documents.get(1)) && blocked.add(document)) {
+        started.countDown();
+        try {
+          await(new CountDownLatch(1), task);
+        }
+        catch (ProcessCanceledException e) {
+          cancelled.incrementAndGet();
+          throw e;
+        }
+      }
+    };
+
+    edit(documents);
+    queueCommits(documents);
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertTrue(myCommitThread.getRunningCount() >= 2);
+    ApplicationManager.getApplication().runWriteAction(EmptyRunnable.getInstance());
+    assertEquals(2, cancelled.get());
+    waitForCommits(documents);
+
+    assertCommitted(documents);
+    assertTrue(myCommitThread.getStatistics().getCancelledCount() >= 2);
+  }
+
+  @NotNull
+  private static List<Document> createDocuments(int count) {
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      PsiFile file = createFile("file" + i + ".txt", "text of file " + i);
+      documents.add(PsiDocumentManager.getInstance(getProject()).getDocument(file));
+    }
+    return documents;
+  }
+
+  private static void edit(@NotNull List<Document> documents) {
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      for (Document document : documents) {
+        document.insertString(document.getTextLength(), " changed");
+      }
+    });
+  }
+
+  // the documents in the order their commits are finished in EDT
+  @NotNull
+  private List<Document> queueCommits(@NotNull List<Document> documents) {
+    List<Document> finished = new ArrayList<>();
+    for (Document document : documents) {
+      PsiDocumentManager.getInstance(getProject()).performForCommittedDocument(document, () -> finished.add(document));
+      myCommitThread.commitAsynchronously(getProject(), document, "test", null);
+    }
+    return finished;
+  }
+
+  private void waitForCommits(@NotNull List<Document> documents) throws Exception {
+    PsiDocumentManager documentManager = PsiDocumentManager.getInstance(getProject());
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!ContainerUtil.and(documents, documentManager::isCommitted)) {
+      assertTrue("documents aren't committed in time", System.currentTimeMillis() < deadline);
+      myCommitThread.waitForAllCommits();
+    }
+  }
+
+  private static void assertCommitted(@NotNull List<Document> documents) {
+    PsiDocumentManager documentManager = PsiDocumentManager.getInstance(getProject());
+    for (Document document : documents) {
+      assertTrue(documentManager.isCommitted(document));
+      assertEquals(document.getText(), documentManager.getPsiFile(document).getText());
+    }
+  }
+
+  // waits in a background commit until the latch is released, a write action cancels the commit meanwhile
+  private static boolean await(@NotNull CountDownLatch latch, @NotNull DocumentCommitThread.CommitTask task) {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    try {
+      while (!latch.await(10, TimeUnit.MILLISECONDS)) {
+        task.indicator.checkCanceled();
+        if (System.currentTimeMillis() > deadline) return false;
+      }
+      return true;
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class TestCommitThread extends DocumentCommitThread {
+    private volatile Consumer<CommitTask> myBeforeCommit = task -> {};
+    private volatile Consumer<CommitTask> myAfterCommit = task -> {};
+
+    private TestCommitThread() {
+      super((ApplicationEx)ApplicationManager.getApplication());
+    }
+
+    @Override
+    public Processor<Document> doCommit(@NotNull CommitTask task, @NotNull PsiFile file, @NotNull FileASTNode oldFileNode) {
+      myBeforeCommit.consume(task);
+      Processor<Document> finishProcessor = super.doCommit(task, file, oldFileNode);
+      myAfterCommit.consume(task);
+      return finishProcessor;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.search;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.search.PsiSearchHelperImpl.ContentPrefetcher;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchHelper;
+import com.intellij.psi.search.UsageSearchContext;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.util.TimeoutUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TextSearchPrefetchTest extends LightPlatformTestCase {
+  public void testSearchResultsWithPrefetching() throws IOException {
+    Map<String, List<Integer>> expected = new TreeMap<>();
+    WriteAction.run(() -> {
+      for (int i = 0; i < 200; i++) {
+        String text = i % 3 == 0 ? "foo bar " + i + " foo" : "bar " + i;
+        VirtualFile file = getSourceRoot().createChildData(this, "file" + i + ".txt");
+        VfsUtil.saveText(file, text);
+        if (i % 3 == 0) {
+          expected.put(file.getName(), Arrays.asList(0, text.length() - 3));
+        }
+      }
+    });
+
+    PsiSearchHelperImpl helper = (PsiSearchHelperImpl)PsiSearchHelper.SERVICE.getInstance(getProject());
+    long scanned = helper.getStatistics().getFileCount();
+    Map<String, List<Integer>> found = new TreeMap<>();
+    assertTrue(helper.processElementsWithWord((element, offsetInElement) -> {
+      if (element instanceof PsiFile) {
+        synchronized (found) {
+          found.computeIfAbsent(((PsiFile)element).getName(), name -> new ArrayList<>()).add(offsetInElement);
+        }
+      }
+      return true;
+    }, GlobalSearchScope.projectScope(getProject()), "foo", UsageSearchContext.ANY, true));
+
+    // the occurrences of each file are still reported in the order of the text
+    assertEquals(expected, found);
+    assertEquals(scanned + expected.size(), helper.getStatistics().getFileCount());
+  }
+
+  public void testFilesPrefetchedInOrderAheadOfScanning() throws Exception {
+    List<VirtualFile> loaded = Collections.synchronizedList(new ArrayList<>());
+    List<VirtualFile> files = createFiles(200, loaded);
+    List<VirtualFile> copy = new ArrayList<>(files);
+    TextSearchStatistics statistics = new TextSearchStatistics();
+    ContentPrefetcher prefetcher = new ContentPrefetcher(files, new EmptyProgressIndicator(), statistics);
+    Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(prefetcher);
+
+    waitFor(loaded, list -> list.size() == ContentPrefetcher.PREFETCH_AHEAD);
+    TimeoutUtil.sleep(100);
+    assertEquals(ContentPrefetcher.PREFETCH_AHEAD, loaded.size());
+
+    for (int i = 0; i < files.size(); i++) {
+      prefetcher.fileProcessed();
+    }
+    future.get(10, TimeUnit.SECONDS);
+    assertEquals(copy, files);
+    assertEquals(files, loaded);
+    assertEquals(files.size(), statistics.getPrefetchedCount());
+  }
+
+  public void testPrefetchingStopsOnCancellation() throws Exception {
+    List<VirtualFile> loaded = Collections.synchronizedList(new ArrayList<>());
+    List<VirtualFile> files = createFiles(200, loaded);
+    ProgressIndicator progress = new EmptyProgressIndicator();
+    ContentPrefetcher prefetcher = new ContentPrefetcher(files, progress, new TextSearchStatistics());
+    Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(prefetcher);
+
+    waitFor(loaded, list -> list.size() == ContentPrefetcher.PREFETCH_AHEAD);
+    progress.cancel();
+    future.get(10, TimeUnit.SECONDS);
+    for (int i = 0; i < files.size(); i++) {
+      prefetcher.fileProcessed();
+    }
+    TimeoutUtil.sleep(100);
+    assertEquals(ContentPrefetcher.PREFETCH_AHEAD, loaded.size());
+  }
+
+  public void testPrefetchingStopsWhenSearchFinished() throws Exception {
+    List<VirtualFile> loaded = Collections.synchronizedList(new ArrayList<>());
+    List<VirtualFile> files = createFiles(200, loaded);
+    ContentPrefetcher prefetcher = new ContentPrefetcher(files, new EmptyProgressIndicator(), new TextSearchStatistics());
+    Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(prefetcher);
+
+    waitFor(loaded, list -> list.size() == ContentPrefetcher.PREFETCH_AHEAD);
+    prefetcher.stop();
+    future.get(10, TimeUnit.SECONDS);
+    assertEquals(ContentPrefetcher.PREFETCH_AHEAD, loaded.size());
+  }
+
+  @NotNull
+  private static List<VirtualFile> createFiles(int count, @NotNull List<VirtualFile> loaded) {
+    List<VirtualFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      files.add(new LightVirtualFile("file" + i + ".txt", "text " + i) {
+        @NotNull
+        @Override
+        public byte[] contentsToByteArray() {
+          loaded.add(this);
+          return getContent().toString().getBytes(CharsetToolkit.UTF8_CHARSET);
+        }
+      });
+    }
+    return files;
+  }
+
+  private static void waitFor(@NotNull List<VirtualFile> loaded, @NotNull Condition<List<VirtualFile>> condition) {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.value(loaded)) {
+      if (System.currentTimeMillis() > deadline) fail(loaded.size() + " files loaded");
+      TimeoutUtil.sleep(10);
+    }
+  }
+}
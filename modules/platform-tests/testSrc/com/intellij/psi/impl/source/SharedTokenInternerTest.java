@@ -0,0 +1,125 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source;
+
+import com.intellij.util.containers.ContainerUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class SharedTokenInternerTest extends TestCase {
+  public void testTablesShareTexts() {
+    SharedTokenInterner shared = new SharedTokenInterner(1024);
+    CharSequence first = new CharTableImpl(shared).intern("foo.identifier()", 4, 14);
+    CharSequence second = new CharTableImpl(shared).intern(new StringBuilder("identifier"));
+    assertEquals("identifier", first.toString());
+    assertSame(first, second);
+
+    CharSequence separate = new CharTableImpl(null).intern("identifier");
+    assertEquals("identifier", separate.toString());
+    assertNotSame(first, separate);
+  }
+
+  public void testStaticAndLongTextsNotShared() {
+    SharedTokenInterner shared = new SharedTokenInterner(1024);
+    new CharTableImpl(shared).intern("(");
+    new CharTableImpl(shared).intern("a text too long to be interned at all, even by a single table");
+    assertEquals(0, shared.size());
+  }
+
+  public void testCapacityBounded() {
+    SharedTokenInterner shared = new SharedTokenInterner(160);
+    List<CharSequence> retained = new ArrayList<>();
+    CharTableImpl table = new CharTableImpl(shared);
+    for (int i = 0; i < 10000; i++) {
+      retained.add(table.intern("name" + i));
+    }
+    assertTrue(String.valueOf(shared.size()), shared.size() <= 160);
+    // the texts evicted from the shared interner are still interned by the table itself
+    for (int i = 0; i < 10000; i++) {
+      assertSame(retained.get(i), table.intern("name" + i));
+    }
+  }
+
+  public void testUnreferencedTextsEvicted() {
+    SharedTokenInterner shared = new SharedTokenInterner(100000);
+    for (int i = 0; i < 1000; i++) {
+      new CharTableImpl(shared).intern("name" + i);
+    }
+    for (int attempt = 0; attempt < 10 && shared.size() > 0; attempt++) {
+      System.gc();
+    }
+    assertEquals(0, shared.size());
+  }
+
+  // the token texts retained by the trees of 10k files, interned by a table per file, with and without the shared interner
+  public void testSharedTextsRetainLessHeap() {
+    Histogram separate = internProject(null);
+    Histogram shared = internProject(new SharedTokenInterner(64 * 1024));
+    assertEquals(separate.myTokens, shared.myTokens);
+    assertTrue(shared + " vs " + separate, shared.myInstances < separate.myInstances);
+    assertTrue(shared + " vs " + separate, shared.myBytes < separate.myBytes);
+  }
+
+  @NotNull
+  private static Histogram internProject(@Nullable SharedTokenInterner shared) {
+    Random random = new Random(0);
+    List<CharTableImpl> tables = new ArrayList<>();
+    List<CharSequence[]> trees = new ArrayList<>();
+    for (int file = 0; file < 10000; file++) {
+      CharTableImpl table = new CharTableImpl(shared);
+      CharSequence[] tokens = new CharSequence[300];
+      for (int i = 0; i < tokens.length; i++) {
+        // a few identifiers are used everywhere and most of them rarely, about the way the names in a project are
+        int name = (int)Math.min(Math.abs(random.nextGaussian()) * Math.abs(random.nextGaussian()) * 2000, 50000);
+        tokens[i] = table.intern(new StringBuilder("identifier").append(name));
+      }
+      tables.add(table);
+      trees.add(tokens);
+    }
+
+    Histogram histogram = new Histogram();
+    Set<CharSequence> instances = ContainerUtil.newIdentityTroveSet();
+    for (CharSequence[] tokens : trees) {
+      for (CharSequence token : tokens) {
+        histogram.myTokens++;
+        if (instances.add(token)) {
+          histogram.myInstances++;
+          // String header, hash and char[] reference, then the char[] header and characters, about a 64-bit VM with compressed oops
+          histogram.myBytes += 24 + 16 + 2 * token.length();
+        }
+      }
+    }
+    assertEquals(10000, tables.size());
+    return histogram;
+  }
+
+  private static class Histogram {
+    private int myTokens;
+    private int myInstances;
+    private long myBytes;
+
+    @Override
+    public String toString() {
+      return myTokens + " tokens, " + myInstances + " String instances, " + myBytes / 1024 + " KB";
+    }
+  }
+}
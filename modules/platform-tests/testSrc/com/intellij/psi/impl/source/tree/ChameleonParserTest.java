@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.tree;
+
+import com.intellij.concurrency.AsyncFuture;
+import com.intellij.concurrency.Job;
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.IFileElementType;
+import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.Consumer;
+import com.intellij.util.Processor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChameleonParserTest extends LightPlatformTestCase {
+  private static final IElementType LETTER = new IElementType("LETTER", Language.ANY);
+  private static final IElementType PARENTHESIS = new IElementType("PARENTHESIS", Language.ANY);
+  private static final AtomicInteger ourParsedGroups = new AtomicInteger();
+
+  // the groups in parentheses are chameleons, the nested ones are revealed by parsing the outer one
+  private static final ILazyParseableElementType GROUP = new ILazyParseableElementType("GROUP", Language.ANY) {
+    @Override
+    public ASTNode parseContents(ASTNode chameleon) {
+      ourParsedGroups.incrementAndGet();
+      CharSequence text = chameleon.getChars();
+      CompositeElement holder = new CompositeElement(GROUP);
+      holder.rawAddChildren(new LeafPsiElement(PARENTHESIS, "("));
+      parse(text, 1, text.length() - 1, holder);
+      holder.rawAddChildren(new LeafPsiElement(PARENTHESIS, ")"));
+      return holder.getFirstChildNode();
+    }
+  };
+  private static final IFileElementType ROOT = new IFileElementType("ROOT", Language.ANY) {
+    @Override
+    public ASTNode parseContents(ASTNode chameleon) {
+      CharSequence text = chameleon.getChars();
+      CompositeElement holder = new CompositeElement(ROOT);
+      parse(text, 0, text.length(), holder);
+      return holder.getFirstChildNode();
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ourParsedGroups.set(0);
+  }
+
+  public void testCollectingParsesNothing() {
+    FileElement file = new FileElement(ROOT, createText(3, 2, 1));
+    file.getFirstChildNode();
+    List<LazyParseableElement> chameleons = new ArrayList<>();
+    ChameleonParser.collectCollapsed(file, chameleons);
+    assertEquals(0, ourParsedGroups.get());
+    assertEquals(3, chameleons.size());
+
+    chameleons.get(0).getFirstChildNode();
+    chameleons.clear();
+    ChameleonParser.collectCollapsed(file, chameleons);
+    assertEquals(1, ourParsedGroups.get());
+    assertEquals(4, chameleons.size());
+    for (LazyParseableElement chameleon : chameleons) {
+      assertFalse(chameleon.isParsed());
+    }
+  }
+
+  public void testNestedChameleonsParsed() {
+    String text = createText(4, 3, 2);
+    FileElement file = new FileElement(ROOT, text);
+    ChameleonParser.parseAll(file, new EmptyProgressIndicator());
+    assertEquals(4 * 15, ourParsedGroups.get());
+    assertNoneCollapsed(file);
+    assertEquals(dumpParsedLazily(text), dump(file));
+  }
+
+  public void testSingleLargeChameleonParsed() {
+    String text = createText(1, 2, 10000);
+    FileElement file = new FileElement(ROOT, text);
+    ChameleonParser.parseAll(file, new EmptyProgressIndicator());
+    assertEquals(7, ourParsedGroups.get());
+    assertNoneCollapsed(file);
+    assertEquals(dumpParsedLazily(text), dump(file));
+  }
+
+  public void testConcurrentlyParsedSameAsLazily() {
+    // the first level is over the concurrent parsing threshold in total, the nested ones are parsed concurrently as well
+    String text = createText(200, 3, 20);
+    FileElement file = new FileElement(ROOT, text);
+    ChameleonParser.parseAll(file, new EmptyProgressIndicator());
+    assertEquals(200 * 15, ourParsedGroups.get());
+    assertNoneCollapsed(file);
+    assertEquals(dumpParsedLazily(text), dump(file));
+  }
+
+  public void testInterruptedParsingLeavesRestCollapsed() {
+    String text = createText(200, 3, 20);
+    FileElement file = new FileElement(ROOT, text);
+    ChameleonParser.parseAll(file, new EmptyProgressIndicator(), new InterruptingLauncher());
+    assertEquals(100, ourParsedGroups.get());
+
+    List<LazyParseableElement> collapsed = new ArrayList<>();
+    ChameleonParser.collectCollapsed(file, collapsed);
+    // the rest of the first level and the chameleons revealed in the parsed half of it
+    assertEquals(100 + 100 * 2, collapsed.size());
+    for (LazyParseableElement chameleon : collapsed) {
+      assertFalse(chameleon.isParsed());
+    }
+    assertEquals(text, file.getText());
+    assertEquals(dumpParsedLazily(text), dump(file));
+  }
+
+  @NotNull
+  private static String createText(int groups, int depth, int letters) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < groups; i++) {
+      text.append("x ");
+      appendGroup(text, depth, letters);
+    }
+    return text.toString();
+  }
+
+  private static void appendGroup(@NotNull StringBuilder text, int depth, int letters) {
+    text.append('(');
+    for (int i = 0; i < letters; i++) {
+      text.append((char)('a' + i % 26));
+    }
+    if (depth > 0) {
+      appendGroup(text, depth - 1, letters);
+      appendGroup(text, depth - 1, letters);
+    }
+    text.append(')');
+  }
+
+  private static void parse(@NotNull CharSequence text, int start, int end, @NotNull CompositeElement parent) {
+    int i = start;
+    while (i < end) {
+      if (text.charAt(i) == '(') {
+        int groupEnd = i + 1;
+        for (int depth = 1; depth > 0; groupEnd++) {
+          if (text.charAt(groupEnd) == '(') depth++;
+          if (text.charAt(groupEnd) == ')') depth--;
+        }
+        parent.rawAddChildren(new LazyParseableElement(GROUP, text.subSequence(i, groupEnd)));
+        i = groupEnd;
+      }
+      else {
+        parent.rawAddChildren(new LeafPsiElement(LETTER, text.subSequence(i, i + 1)));
+        i++;
+      }
+    }
+  }
+
+  private static void assertNoneCollapsed(@NotNull FileElement file) {
+    List<LazyParseableElement> collapsed = new ArrayList<>();
+    ChameleonParser.collectCollapsed(file, collapsed);
+    assertEquals(0, collapsed.size());
+  }
+
+  @NotNull
+  private static String dumpParsedLazily(@NotNull String text) {
+    int parsed = ourParsedGroups.get();
+    String dump = dump(new FileElement(ROOT, text));
+    ourParsedGroups.set(parsed);
+    return dump;
+  }
+
+  // walks the tree the usual way, parsing the chameleons still collapsed
+  @NotNull
+  private static String dump(@NotNull ASTNode root) {
+    StringBuilder result = new StringBuilder();
+    dump(root, 0, result);
+    return result.toString();
+  }
+
+  private static void dump(@NotNull ASTNode node, int indent, @NotNull StringBuilder result) {
+    for (int i = 0; i < indent; i++) {
+      result.append("  ");
+    }
+    result.append(node.getElementType());
+    if (node instanceof LeafElement) {
+      result.append(" '").append(node.getChars()).append("'");
+    }
+    result.append('\n');
+    for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+      dump(child, indent + 1, result);
+    }
+  }
+
+  // parses the first half of the chameleons and reports the rest not processed, the way a write action interrupts the parsing
+  private static class InterruptingLauncher extends JobLauncher {
+    @Override
+    public <T> boolean invokeConcurrentlyUnderProgress(@NotNull List<T> things,
+                                                       ProgressIndicator progress,
+                                                       boolean runInReadAction,
+                                                       boolean failFastOnAcquireReadAction,
+                                                       @NotNull Processor<? super T> thingProcessor) {
+      for (T thing : things.subList(0, things.size() / 2)) {
+        thingProcessor.process(thing);
+      }
+      return false;
+    }
+
+    @NotNull
+    @Override
+    public <T> AsyncFuture<Boolean> invokeConcurrentlyUnderProgressAsync(@NotNull List<T> things,
+                                                                         ProgressIndicator progress,
+                                                                         boolean failFastOnAcquireReadAction,
+                                                                         @NotNull Processor<? super T> thingProcessor) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Job<Void> submitToJobThread(@NotNull Runnable action, Consumer<Future> onDoneCallback) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.RecentStringInterner;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.IOUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+public class FileLocalStringTableTest extends TestCase {
+  public void testStringsAreReadInAllFormats() throws Exception {
+    String[] strings = {"foo", "", "bar", "фу", StringUtil.repeat("x", 300), "foo"};
+
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    DataInputOutputUtil.writeINT(out, strings.length);
+    byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
+    for (String string : strings) {
+      IOUtil.writeUTFFast(buffer, out, string);
+    }
+    DataInputOutputUtil.writeINT(out, 42); // the stubs
+    out.close();
+
+    UnsyncByteArrayInputStream stream = new UnsyncByteArrayInputStream(bytes.getInternalBuffer(), 0, bytes.size());
+    DataInputStream data = new DataInputStream(stream);
+    StubSerializationHelper.FileLocalStringTable table = new StubSerializationHelper.FileLocalStringTable(new RecentStringInterner());
+    table.read(stream, data);
+    assertEquals(42, DataInputOutputUtil.readINT(data));
+
+    assertNull(table.valueOf(0));
+    for (int i = strings.length - 1; i >= 0; i--) {
+      assertEquals(strings[i], table.valueOf(i + 1));
+    }
+    assertSame(table.valueOf(1), table.valueOf(1));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+public class StubUpdatingIndexKeysTest extends TestCase {
+  public void testStubTreeHashIsStored() throws Exception {
+    Collection<Integer> read = saveAndRead(createKeys(42, new byte[]{1, 2, 3}));
+    assertEquals(ContainerUtil.set(42), read);
+    assertTrue(StubUpdatingIndex.isSameStubTree(read, createKeys(42, new byte[]{1, 2, 3})));
+    assertFalse(StubUpdatingIndex.isSameStubTree(read, createKeys(42, new byte[]{1, 2, 4})));
+    assertFalse(StubUpdatingIndex.isSameStubTree(read, createKeys(43, new byte[]{1, 2, 3})));
+  }
+
+  public void testTreeWithoutHashIsNeverSame() throws Exception {
+    Collection<Integer> read = saveAndRead(createKeys(42, null));
+    assertFalse(StubUpdatingIndex.isSameStubTree(read, createKeys(42, null)));
+    assertFalse(StubUpdatingIndex.isSameStubTree(null, createKeys(42, new byte[]{1})));
+    assertFalse(StubUpdatingIndex.isSameStubTree(ContainerUtil.set(42), createKeys(42, new byte[]{1})));
+  }
+
+  @NotNull
+  private static Collection<Integer> saveAndRead(@NotNull Collection<Integer> keys) throws IOException {
+    DataExternalizer<Collection<Integer>> externalizer = new StubUpdatingIndex().createExternalizer();
+    BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      externalizer.save(out, keys);
+    }
+    return externalizer.read(new DataInputStream(new UnsyncByteArrayInputStream(bytes.getInternalBuffer(), 0, bytes.size())));
+  }
+
+  @NotNull
+  private static StubUpdatingIndex.StubUpdatingIndexKeys createKeys(int fileId, @Nullable byte[] stubTreeHash) {
+    StubUpdatingIndex.StubUpdatingIndexKeys keys = new StubUpdatingIndex.StubUpdatingIndexKeys(ContainerUtil.set(fileId));
+    keys.myStubTreeHash = stubTreeHash;
+    return keys;
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongLongHashMap;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * The off-heap maps against Trove maps of 10M entries: memory footprint and put/get time.
+ */
+public class OffHeapHashMapPerformanceTest extends TestCase {
+  private static final int SIZE = 10000000;
+  // bytes per slot of Trove maps: key, value and state arrays
+  private static final int TROVE_LONG_LONG_SLOT = 8 + 8 + 1;
+  private static final int TROVE_INT_LONG_SLOT = 4 + 8 + 1;
+
+  private long[] myKeys;
+  private int[] myIntKeys;
+  private long myChecksum;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myKeys = new long[SIZE];
+    Random random = new Random(0);
+    for (int i = 0; i < SIZE; i++) {
+      myKeys[i] = random.nextLong();
+    }
+    // distinct and scattered: the multiplier is odd
+    myIntKeys = new int[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      myIntKeys[i] = i * 0x9E3779B1;
+      myChecksum += i;
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myKeys = null;
+    myIntKeys = null;
+    super.tearDown();
+  }
+
+  public void testFootprintComparedToTrove() {
+    TroveLongLongMap trove = new TroveLongLongMap();
+    for (int i = 0; i < SIZE; i++) trove.put(myKeys[i], i);
+    long troveFootprint = (long)trove.capacity() * TROVE_LONG_LONG_SLOT;
+    trove = null;
+
+    OffHeapLongLongHashMap offHeap = new OffHeapLongLongHashMap();
+    try {
+      for (int i = 0; i < SIZE; i++) offHeap.put(myKeys[i], i);
+      assertTrue(offHeap.getMemoryFootprint() + " vs " + troveFootprint, offHeap.getMemoryFootprint() < troveFootprint);
+    }
+    finally {
+      offHeap.dispose();
+    }
+
+    ConcurrentOffHeapLongLongHashMap concurrent = new ConcurrentOffHeapLongLongHashMap();
+    try {
+      for (int i = 0; i < SIZE; i++) concurrent.put(myKeys[i], i);
+      assertTrue(concurrent.getMemoryFootprint() + " vs " + troveFootprint, concurrent.getMemoryFootprint() < troveFootprint);
+    }
+    finally {
+      concurrent.dispose();
+    }
+
+    TroveIntLongMap troveInt = new TroveIntLongMap();
+    for (int i = 0; i < SIZE; i++) troveInt.put(myIntKeys[i], i);
+    long troveIntFootprint = (long)troveInt.capacity() * TROVE_INT_LONG_SLOT;
+    troveInt = null;
+
+    OffHeapIntLongHashMap offHeapInt = new OffHeapIntLongHashMap();
+    try {
+      for (int i = 0; i < SIZE; i++) offHeapInt.put(myIntKeys[i], i);
+      assertTrue(offHeapInt.getMemoryFootprint() + " vs " + troveIntFootprint, offHeapInt.getMemoryFootprint() < troveIntFootprint);
+    }
+    finally {
+      offHeapInt.dispose();
+    }
+  }
+
+  public void testTroveLongLongMap() {
+    PlatformTestUtil.startPerformanceTest("TLongLongHashMap put and get of 10M entries", 5000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        TLongLongHashMap map = new TLongLongHashMap();
+        for (int i = 0; i < SIZE; i++) map.put(myKeys[i], i);
+        long sum = 0;
+        for (int i = SIZE - 1; i >= 0; i--) sum += map.get(myKeys[i]);
+        assertEquals(myChecksum, sum);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  public void testOffHeapLongLongMap() {
+    PlatformTestUtil.startPerformanceTest("OffHeapLongLongHashMap put and get of 10M entries", 4000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        OffHeapLongLongHashMap map = new OffHeapLongLongHashMap();
+        try {
+          for (int i = 0; i < SIZE; i++) map.put(myKeys[i], i);
+          long sum = 0;
+          for (int i = SIZE - 1; i >= 0; i--) sum += map.get(myKeys[i]);
+          assertEquals(myChecksum, sum);
+        }
+        finally {
+          map.dispose();
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  public void testConcurrentOffHeapLongLongMap() {
+    PlatformTestUtil.startPerformanceTest("ConcurrentOffHeapLongLongHashMap put and get of 10M entries", 4500, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        ConcurrentOffHeapLongLongHashMap map = new ConcurrentOffHeapLongLongHashMap();
+        try {
+          for (int i = 0; i < SIZE; i++) map.put(myKeys[i], i);
+          long sum = 0;
+          for (int i = SIZE - 1; i >= 0; i--) sum += map.get(myKeys[i]);
+          assertEquals(myChecksum, sum);
+        }
+        finally {
+          map.dispose();
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  public void testTroveIntLongMap() {
+    PlatformTestUtil.startPerformanceTest("TIntLongHashMap put and get of 10M entries", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        TIntLongHashMap map = new TIntLongHashMap();
+        for (int i = 0; i < SIZE; i++) map.put(myIntKeys[i], i);
+        long sum = 0;
+        for (int i = SIZE - 1; i >= 0; i--) sum += map.get(myIntKeys[i]);
+        assertEquals(myChecksum, sum);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  public void testOffHeapIntLongMap() {
+    PlatformTestUtil.startPerformanceTest("OffHeapIntLongHashMap put and get of 10M entries", 4000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        OffHeapIntLongHashMap map = new OffHeapIntLongHashMap();
+        try {
+          for (int i = 0; i < SIZE; i++) map.put(myIntKeys[i], i);
+          long sum = 0;
+          for (int i = SIZE - 1; i >= 0; i--) sum += map.get(myIntKeys[i]);
+          assertEquals(myChecksum, sum);
+        }
+        finally {
+          map.dispose();
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private static class TroveLongLongMap extends TLongLongHashMap {
+    @Override
+    public int capacity() {
+      return super.capacity();
+    }
+  }
+
+  private static class TroveIntLongMap extends TIntLongHashMap {
+    @Override
+    public int capacity() {
+      return super.capacity();
+    }
+  }
+}
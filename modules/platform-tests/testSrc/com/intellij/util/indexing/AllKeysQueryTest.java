@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.impl.cache.impl.id.IdIndex;
+import com.intellij.psi.impl.cache.impl.id.IdIndexEntry;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.indexing.FileBasedIndex.AllKeysQuery;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+
+public class AllKeysQueryTest extends LightPlatformTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    WriteAction.run(() -> {
+      addFile("foo.txt", "alpha beta");
+      addFile("bar.txt", "alpha beta gamma");
+      addFile("baz.txt", "alpha");
+      addFile("qux.txt", "beta gamma");
+    });
+  }
+
+  public void testIntersectionAcrossIndices() {
+    assertEquals(Collections.singletonList("bar.txt"), find(words("alpha", "beta"), names("bar.txt")));
+    assertEquals(Collections.singletonList("baz.txt"), find(names("baz.txt"), words("alpha")));
+    assertEquals(Collections.emptyList(), find(words("alpha", "beta"), names("qux.txt")));
+    assertEquals(Collections.emptyList(), find(words("gamma"), names("foo.txt")));
+  }
+
+  public void testQueriesAgainstSameIndexIntersected() {
+    assertEquals(Arrays.asList("bar.txt", "foo.txt"), find(words("alpha"), words("beta")));
+    assertEquals(Collections.singletonList("bar.txt"), find(words("alpha"), words("gamma"), words("beta")));
+  }
+
+  public void testSameAsSingleIndexQuery() {
+    List<String> found = new ArrayList<>();
+    assertTrue(FileBasedIndex.getInstance().processFilesContainingAllKeys(IdIndex.NAME, words("beta", "gamma").getDataKeys(), getScope(),
+                                                                          null, file -> found.add(file.getName())));
+    Collections.sort(found);
+    assertEquals(Arrays.asList("bar.txt", "qux.txt"), found);
+  }
+
+  public void testNoKeys() {
+    assertEquals(Collections.emptyList(), find(words()));
+    assertEquals(Collections.emptyList(), find(words("alpha"), names()));
+    assertEquals(Collections.emptyList(), find());
+  }
+
+  public void testMissingKey() {
+    assertEquals(Collections.emptyList(), find(words("alpha", "missing")));
+    assertEquals(Collections.emptyList(), find(words("alpha"), names("missing.txt")));
+    assertEquals(Collections.emptyList(), find(names("missing.txt"), words("alpha", "beta")));
+  }
+
+  public void testProcessingStopped() {
+    List<String> found = new ArrayList<>();
+    assertFalse(FileBasedIndex.getInstance().processFilesContainingAllKeys(Arrays.asList(words("alpha"), words("beta")), getScope(), file -> {
+      found.add(file.getName());
+      return false;
+    }));
+    assertEquals(1, found.size());
+  }
+
+  @NotNull
+  private static List<String> find(@NotNull AllKeysQuery<?, ?>... queries) {
+    List<String> found = new ArrayList<>();
+    assertTrue(FileBasedIndex.getInstance().processFilesContainingAllKeys(Arrays.asList(queries), getScope(), file -> found.add(file.getName())));
+    Collections.sort(found);
+    return found;
+  }
+
+  @NotNull
+  private static AllKeysQuery<IdIndexEntry, Integer> words(@NotNull String... words) {
+    List<IdIndexEntry> entries = new ArrayList<>();
+    for (String word : words) {
+      entries.add(new IdIndexEntry(word, true));
+    }
+    return new AllKeysQuery<>(IdIndex.NAME, entries, null);
+  }
+
+  @NotNull
+  private static AllKeysQuery<String, Void> names(@NotNull String... names) {
+    return new AllKeysQuery<>(FilenameIndex.NAME, Arrays.asList(names), null);
+  }
+
+  @NotNull
+  private static GlobalSearchScope getScope() {
+    return GlobalSearchScope.projectScope(getProject());
+  }
+
+  private static void addFile(@NotNull String name, @NotNull String text) throws IOException {
+    VirtualFile file = getSourceRoot().createChildData(null, name);
+    VfsUtil.saveText(file, text);
+  }
+}
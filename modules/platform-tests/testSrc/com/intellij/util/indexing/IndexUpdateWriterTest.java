@@ -0,0 +1,88 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.project.IndexingQueueStatistics;
+import gnu.trove.TIntArrayList;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexUpdateWriterTest extends TestCase {
+  private static final int THREADS = 8;
+  private static final int UPDATES = 3000;
+
+  public void testUpdatesAreAppliedInOrderByOneWriterAtATime() throws Exception {
+    final AtomicInteger maxBatchSize = new AtomicInteger();
+    final IndexUpdateWriter<Runnable> writer = new IndexUpdateWriter<>((indexId, updates) -> {
+      maxBatchSize.accumulateAndGet(updates.size(), Math::max);
+      for (Runnable update : updates) update.run();
+    });
+    final List<ID<?, ?>> indices = new ArrayList<>();
+    final List<TIntArrayList[]> applied = new ArrayList<>();
+    final List<AtomicInteger> writers = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      indices.add(ID.create(IndexUpdateWriterTest.class.getSimpleName() + i));
+      TIntArrayList[] perThread = new TIntArrayList[THREADS];
+      for (int t = 0; t < THREADS; t++) perThread[t] = new TIntArrayList();
+      applied.add(perThread);
+      writers.add(new AtomicInteger());
+    }
+    final AtomicInteger concurrentWrites = new AtomicInteger();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      threads.add(new Thread(() -> {
+        for (int update = 0; update < UPDATES; update++) {
+          int index = update % indices.size();
+          final int sequence = update;
+          writer.write(indices.get(index), () -> {
+            if (writers.get(index).incrementAndGet() > 1) concurrentWrites.incrementAndGet();
+            applied.get(index)[thread].add(sequence);
+            writers.get(index).decrementAndGet();
+          });
+        }
+      }));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    writer.flush();
+
+    assertEquals(0, concurrentWrites.get());
+    assertTrue(maxBatchSize.get() <= 64);
+    for (int index = 0; index < indices.size(); index++) {
+      for (int t = 0; t < THREADS; t++) {
+        TIntArrayList sequences = applied.get(index)[t];
+        assertEquals(UPDATES / indices.size(), sequences.size());
+        for (int i = 1; i < sequences.size(); i++) {
+          assertTrue(sequences.get(i - 1) < sequences.get(i));
+        }
+      }
+    }
+
+    List<IndexingQueueStatistics> statistics = writer.getStatistics();
+    assertEquals(indices.size(), statistics.size());
+    for (IndexingQueueStatistics queue : statistics) {
+      assertEquals(0, queue.getDepth());
+      assertEquals(THREADS * UPDATES / indices.size(), queue.getAddedCount());
+      assertTrue(queue.getMaxDepth() >= 1);
+    }
+    assertTrue(statistics.get(0).getMaxDepth() >= statistics.get(statistics.size() - 1).getMaxDepth());
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.persistent.ContentHashesUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SharedIndexChunkTest extends TestCase {
+  private static final ID<String, Integer> INDEX_ID = ID.create(SharedIndexChunkTest.class.getSimpleName());
+
+  private File myRoot;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("chunks", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      FileUtil.delete(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testRecordedChunkIsReadBack() throws Exception {
+    Map<String, Integer> data = new HashMap<>();
+    data.put("foo", 1);
+    data.put("bar", 1);
+    data.put("baz", 2);
+
+    SharedIndexChunk<String, Integer> output = SharedIndexChunk.create(myRoot, new Extension(1));
+    output.put(hash("a"), data);
+    output.put(hash("b"), Collections.emptyMap());
+    output.close();
+
+    SharedIndexChunk<String, Integer> chunk = SharedIndexChunk.open(myRoot, new Extension(1));
+    assertNotNull(chunk);
+    try {
+      assertEquals(data, chunk.get(hash("a")));
+      assertEquals(Collections.emptyMap(), chunk.get(hash("b")));
+      assertNull(chunk.get(hash("c")));
+    }
+    finally {
+      chunk.close();
+    }
+  }
+
+  public void testChunkOfOtherIndexVersionIsIgnored() throws Exception {
+    SharedIndexChunk<String, Integer> output = SharedIndexChunk.create(myRoot, new Extension(1));
+    output.put(hash("a"), Collections.singletonMap("foo", 1));
+    output.close();
+
+    assertNull(SharedIndexChunk.open(myRoot, new Extension(2)));
+
+    // recording for the new version starts over
+    output = SharedIndexChunk.create(myRoot, new Extension(2));
+    output.close();
+    SharedIndexChunk<String, Integer> chunk = SharedIndexChunk.open(myRoot, new Extension(2));
+    assertNotNull(chunk);
+    try {
+      assertNull(chunk.get(hash("a")));
+    }
+    finally {
+      chunk.close();
+    }
+  }
+
+  @NotNull
+  private static byte[] hash(@NotNull String content) {
+    return ContentHashesUtil.createHashDigest().digest(content.getBytes());
+  }
+
+  private static class Extension extends FileBasedIndexExtension<String, Integer> {
+    private final int myVersion;
+
+    private Extension(int version) {
+      myVersion = version;
+    }
+
+    @NotNull
+    @Override
+    public ID<String, Integer> getName() {
+      return INDEX_ID;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, Integer, FileContent> getIndexer() {
+      return inputData -> Collections.emptyMap();
+    }
+
+    @NotNull
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+      return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public DataExternalizer<Integer> getValueExternalizer() {
+      return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+      return (project, file) -> true;
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+      return true;
+    }
+
+    @Override
+    public int getVersion() {
+      return myVersion;
+    }
+  }
+}
@@ -11,6 +11,10 @@ import junit.framework.TestCase;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.intellij.util.io.StringEnumeratorTest.createRandomString;
 
@@ -210,6 +214,78 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testBackgroundCompaction() throws Exception {
+    final int stringsCount = 2000;
+    Map<String, String> expected = new LinkedHashMap<String, String>(stringsCount);
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = createRandomString();
+      expected.put(key, key + "_value");
+      myMap.put(key, key + "_value");
+    }
+
+    // create some garbage
+    for (String key : expected.keySet()) {
+      expected.put(key, key + "_value2");
+      myMap.put(key, key + "_value2");
+    }
+    assertTrue(myMap.getGarbageRatio() > 0);
+
+    Future<?> compaction = myMap.compactInBackground();
+
+    // map is available for modifications during compaction
+    int i = 0;
+    for (String key : expected.keySet()) {
+      if (i++ % 3 == 0) {
+        expected.put(key, key + "_value3");
+        myMap.put(key, key + "_value3");
+      }
+      assertEquals(expected.get(key), myMap.get(key));
+    }
+
+    compaction.get();
+    assertEquals(-1.0, myMap.getBackgroundCompactionProgress());
+
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testBackgroundCompactionStartedAfterOpening() throws Exception {
+    final String value = StringUtil.repeat("v", 20000);
+    for (int version = 0; version <= 2; ++version) {
+      for (int i = 0; i < 300; ++i) {
+        myMap.put("key" + i, value + version);
+      }
+    }
+    myMap.close();
+
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertTrue(myMap.makesSenseToCompact());
+    double garbageRatio = myMap.getGarbageRatio();
+    assertTrue(garbageRatio > 0);
+    // nothing is started until the map is used
+    assertEquals(-1.0, myMap.getBackgroundCompactionProgress());
+    assertEquals(garbageRatio, myMap.getGarbageRatio());
+
+    // the first read starts it
+    assertEquals(value + 2, myMap.get("key0"));
+    long deadline = System.currentTimeMillis() + 60000;
+    while (myMap.getGarbageRatio() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0.0, myMap.getGarbageRatio());
+    for (int i = 0; i < 300; ++i) {
+      assertEquals(value + 2, myMap.get("key" + i));
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
@@ -338,6 +414,105 @@ public class PersistentMapTest extends TestCase {
       .printf("Data file size = %d bytes\n", new File(myDataFile.getParentFile(), myDataFile.getName() + Storage.DATA_EXTENSION).length());
   }
 
+  public void testConcurrentGetPutThroughput() throws Exception {
+    final int keysCount = 20000;
+    final List<String> keys = new ArrayList<String>(keysCount);
+    for (int i = 0; i < keysCount; ++i) {
+      String key = createRandomString();
+      keys.add(key);
+      myMap.put(key, key + "_value");
+    }
+    myMap.force();
+
+    for (int threads = 1; threads <= 32; threads *= 2) {
+      final int operationsPerThread = 200000 / threads;
+      final int threadsCount = threads;
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] workers = new Thread[threadsCount];
+
+      for (int t = 0; t < threadsCount; ++t) {
+        final Random random = new Random(t);
+        workers[t] = new Thread("PersistentHashMap worker " + t) {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < operationsPerThread; ++i) {
+                String key = keys.get(random.nextInt(keysCount));
+                if (i % 10 == 0) {
+                  myMap.put(key, key + "_value");
+                }
+                else {
+                  assertEquals(key + "_value", myMap.get(key));
+                }
+              }
+            }
+            catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        };
+        workers[t].start();
+      }
+
+      start.countDown();
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+    }
+  }
+
+  public void testCompactWaitsForValueReads() throws Exception {
+    final int keysCount = 5000;
+    final List<String> keys = new ArrayList<String>(keysCount);
+    for (int i = 0; i < keysCount; ++i) {
+      String key = createRandomString();
+      keys.add(key);
+      myMap.put(key, key + "_value");
+    }
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicBoolean stop = new AtomicBoolean();
+    Thread[] readers = new Thread[4];
+    for (int t = 0; t < readers.length; ++t) {
+      final Random random = new Random(t);
+      readers[t] = new Thread("PersistentHashMap reader " + t) {
+        @Override
+        public void run() {
+          try {
+            while (!stop.get()) {
+              String key = keys.get(random.nextInt(keysCount));
+              assertEquals(key + "_value", myMap.get(key));
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    try {
+      for (int i = 0; i < 20 && failure.get() == null; ++i) {
+        for (int j = 0; j < 500; ++j) {
+          String key = keys.get(j);
+          myMap.put(key, key + "_value");
+        }
+        myMap.compact();
+      }
+    }
+    finally {
+      stop.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+  }
+
   private static final boolean DO_SLOW_TEST = false;
 
   public void test2GLimit() throws IOException {
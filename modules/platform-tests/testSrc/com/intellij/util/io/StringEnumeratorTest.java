@@ -7,10 +7,13 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.IntObjectCache;
+import com.intellij.util.text.ByteArrayCharSequence;
 import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
 
 public class StringEnumeratorTest extends TestCase {
@@ -106,6 +109,77 @@ public class StringEnumeratorTest extends TestCase {
     assertEquals(new HashSet<String>(Arrays.asList(UTF_1, UTF_2)), new HashSet<String>(myEnumerator.getAllDataObjects(null)));
   }
 
+  public void testValueOfAsCharSequence() throws Exception {
+    String longAscii = UTF_2 + UTF_2;
+    int id1 = myEnumerator.enumerate("IntelliJ IDEA");
+    int id2 = myEnumerator.enumerate(UTF_1);
+    int id3 = myEnumerator.enumerate(longAscii);
+    int id4 = myEnumerator.enumerate("");
+
+    CharSequence ascii = myEnumerator.valueOfAsCharSequence(id1);
+    assertTrue(ascii instanceof ByteArrayCharSequence);
+    assertEquals("IntelliJ IDEA", ascii.toString());
+    assertEquals("IntelliJ IDEA".hashCode(), ascii.hashCode());
+    assertEquals(UTF_1, myEnumerator.valueOfAsCharSequence(id2).toString());
+    CharSequence longValue = myEnumerator.valueOfAsCharSequence(id3);
+    assertTrue(longValue instanceof ByteArrayCharSequence);
+    assertEquals(longAscii, longValue.toString());
+    assertEquals("", myEnumerator.valueOfAsCharSequence(id4).toString());
+
+    myEnumerator.close();
+    myEnumerator = new PersistentStringEnumerator(myFile);
+    assertEquals("IntelliJ IDEA", myEnumerator.valueOfAsCharSequence(id1).toString());
+    assertEquals(UTF_1, myEnumerator.valueOfAsCharSequence(id2).toString());
+  }
+
+  // FileNameCache used to keep ByteArrayCharSequence.convertToBytesIfAsciiString(valueOf(id)), so the retained names are the same,
+  // reading them as sequences saves the intermediate String and char[] of every name read
+  public void testNamesReadWithoutIntermediateStrings() throws IOException {
+    final int namesCount = 20000;
+    int[] ids = new int[namesCount];
+    for (int i = 0; i < namesCount; ++i) {
+      ids[i] = myEnumerator.enumerate(createFileName(i));
+    }
+    myEnumerator.force();
+
+    CharSequence[] names = new CharSequence[namesCount];
+    long before = allocatedBytes();
+    for (int i = 0; i < namesCount; ++i) {
+      names[i] = ByteArrayCharSequence.convertToBytesIfAsciiString(myEnumerator.valueOf(ids[i]));
+    }
+    long converted = allocatedBytes() - before;
+
+    CharSequence[] sequences = new CharSequence[namesCount];
+    before = allocatedBytes();
+    for (int i = 0; i < namesCount; ++i) {
+      sequences[i] = myEnumerator.valueOfAsCharSequence(ids[i]);
+    }
+    long read = allocatedBytes() - before;
+
+    for (int i = 0; i < namesCount; ++i) {
+      assertTrue(names[i] instanceof ByteArrayCharSequence);
+      assertTrue(sequences[i] instanceof ByteArrayCharSequence);
+      assertEquals(names[i].toString(), sequences[i].toString());
+      assertEquals(createFileName(i), sequences[i].toString());
+    }
+    if (allocatedBytes() >= 0) {
+      assertTrue(read + " vs " + converted, read < converted);
+    }
+  }
+
+  private static String createFileName(int i) {
+    return (i % 3 == 0 ? "SomeComponent" : i % 3 == 1 ? "test_data_" : "module-") + i + (i % 2 == 0 ? ".java" : ".xml");
+  }
+
+  // -1 if the VM doesn't count allocations
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+    if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) return -1;
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
   public void testOpeningClosing() throws IOException {
     ArrayList<String> strings = new ArrayList<String>(2000);
     for (int i = 0; i < 2000; ++i) {
@@ -34,6 +34,15 @@ public class BufferExposingByteArrayOutputStream extends UnsyncByteArrayOutputSt
     return myBuffer;
   }
 
+  // moves forward the written bytes pointer by {@link #size}, returns offset in internal buffer of the reserved bytes to be filled in
+  public int reserve(int size) {
+    assert size >= 0 : size;
+    int offset = myCount;
+    ensureCapacity(myCount + size);
+    myCount += size;
+    return offset;
+  }
+
   // moves back the written bytes pointer by {@link #size}, to "unwrite" last {@link #size} bytes
   public int backOff(int size) {
     assert size >= 0 : size;
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import com.intellij.openapi.Disposable;
+import gnu.trove.TLongLongProcedure;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread safe long -> long map which keeps its entries outside of java heap.
+ * The keys are spread over segments, {@link OffHeapLongLongHashMap}s guarded by their own read-write locks, so readers
+ * don't block each other and writers block only the readers of the same segment.
+ */
+public class ConcurrentOffHeapLongLongHashMap implements Disposable {
+  private static final int SEGMENTS = 16; // power of 2
+
+  private final OffHeapLongLongHashMap[] mySegments = new OffHeapLongLongHashMap[SEGMENTS];
+  private final ReentrantReadWriteLock[] myLocks = new ReentrantReadWriteLock[SEGMENTS];
+  private final long myNoEntryValue;
+
+  public ConcurrentOffHeapLongLongHashMap() {
+    this(0);
+  }
+
+  public ConcurrentOffHeapLongLongHashMap(int expectedSize) {
+    this(expectedSize, -1);
+  }
+
+  /**
+   * @param noEntryValue the value returned for absent keys
+   */
+  public ConcurrentOffHeapLongLongHashMap(int expectedSize, long noEntryValue) {
+    myNoEntryValue = noEntryValue;
+    for (int i = 0; i < SEGMENTS; i++) {
+      mySegments[i] = new OffHeapLongLongHashMap(expectedSize / SEGMENTS, noEntryValue);
+      myLocks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  // segments use the low bits of the hash, so take the high ones here
+  private static int segmentIndex(long key) {
+    long h = key * 0xC2B2AE3D27D4EB4FL;
+    return (int)(h >>> 60) & (SEGMENTS - 1);
+  }
+
+  public long get(long key) {
+    int index = segmentIndex(key);
+    ReentrantReadWriteLock.ReadLock lock = myLocks[index].readLock();
+    lock.lock();
+    try {
+      return mySegments[index].get(key);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean containsKey(long key) {
+    int index = segmentIndex(key);
+    ReentrantReadWriteLock.ReadLock lock = myLocks[index].readLock();
+    lock.lock();
+    try {
+      return mySegments[index].containsKey(key);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the previous value or the no entry value
+   */
+  public long put(long key, long value) {
+    int index = segmentIndex(key);
+    ReentrantReadWriteLock.WriteLock lock = myLocks[index].writeLock();
+    lock.lock();
+    try {
+      return mySegments[index].put(key, value);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the existing value, or the no entry value if the value was put
+   */
+  public long putIfAbsent(long key, long value) {
+    int index = segmentIndex(key);
+    ReentrantReadWriteLock.WriteLock lock = myLocks[index].writeLock();
+    lock.lock();
+    try {
+      OffHeapLongLongHashMap segment = mySegments[index];
+      if (segment.containsKey(key)) return segment.get(key);
+      segment.put(key, value);
+      return myNoEntryValue;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the removed value or the no entry value
+   */
+  public long remove(long key) {
+    int index = segmentIndex(key);
+    ReentrantReadWriteLock.WriteLock lock = myLocks[index].writeLock();
+    lock.lock();
+    try {
+      return mySegments[index].remove(key);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Iterates the segments one by one holding the read lock of the current one, the procedure must not modify the map.
+   */
+  public boolean forEachEntry(@NotNull TLongLongProcedure procedure) {
+    for (int i = 0; i < SEGMENTS; i++) {
+      ReentrantReadWriteLock.ReadLock lock = myLocks[i].readLock();
+      lock.lock();
+      try {
+        if (!mySegments[i].forEachEntry(procedure)) return false;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return approximate number of entries when the map is modified concurrently
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < SEGMENTS; i++) {
+      ReentrantReadWriteLock.ReadLock lock = myLocks[i].readLock();
+      lock.lock();
+      try {
+        size += mySegments[i].size();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public void clear() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      ReentrantReadWriteLock.WriteLock lock = myLocks[i].writeLock();
+      lock.lock();
+      try {
+        mySegments[i].clear();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return the number of bytes allocated outside of java heap
+   */
+  public long getMemoryFootprint() {
+    long footprint = 0;
+    for (int i = 0; i < SEGMENTS; i++) {
+      ReentrantReadWriteLock.ReadLock lock = myLocks[i].readLock();
+      lock.lock();
+      try {
+        footprint += mySegments[i].getMemoryFootprint();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    return footprint;
+  }
+
+  /**
+   * Frees the memory, the map can't be used after that.
+   */
+  @Override
+  public void dispose() {
+    for (int i = 0; i < SEGMENTS; i++) {
+      ReentrantReadWriteLock.WriteLock lock = myLocks[i].writeLock();
+      lock.lock();
+      try {
+        mySegments[i].dispose();
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import com.intellij.openapi.Disposable;
+import consulo.util.io.DirectBufferReflect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Open addressing hash table of primitive keys (int or long) and long values, stored in a direct byte buffer:
+ * the entries don't occupy java heap and aren't traversed by GC. Linear probing, removal shifts the following entries back,
+ * so there are no tombstones. Key 0 marks a free slot and the value of key 0 is kept in a field.
+ * <p/>
+ * The memory is freed by {@link #dispose()} or, if the map isn't disposed, when the map is garbage collected.
+ * Not thread safe.
+ */
+abstract class OffHeapHashMapBase implements Disposable {
+  private static final int VALUE_BYTES = 8;
+  private static final int MIN_CAPACITY = 16;
+  private static final int MAX_LOAD_PERCENT = 66;
+
+  private final int myKeyBytes;
+  private final int mySlotBytes;
+  private final int myMaxCapacity;
+  protected final long myNoEntryValue;
+
+  private ByteBuffer myBuffer;
+  private int myMask;
+  private int myThreshold;
+  private int mySize;
+  private boolean myHasZeroKey;
+  private long myZeroKeyValue;
+
+  OffHeapHashMapBase(int keyBytes, int expectedSize, long noEntryValue) {
+    myKeyBytes = keyBytes;
+    mySlotBytes = keyBytes + VALUE_BYTES;
+    myMaxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / mySlotBytes);
+    myNoEntryValue = noEntryValue;
+    allocate(capacityFor(expectedSize));
+  }
+
+  private int capacityFor(int size) {
+    long required = Math.max(MIN_CAPACITY, (long)size * 100 / MAX_LOAD_PERCENT + 1);
+    if (required > myMaxCapacity) throw new IllegalArgumentException("Too many entries: " + size);
+    return Integer.highestOneBit((int)required - 1) << 1;
+  }
+
+  private void allocate(int capacity) {
+    myBuffer = ByteBuffer.allocateDirect(capacity * mySlotBytes).order(ByteOrder.nativeOrder());
+    myMask = capacity - 1;
+    myThreshold = (int)((long)capacity * MAX_LOAD_PERCENT / 100);
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private long keyAt(int slot) {
+    int offset = slot * mySlotBytes;
+    return myKeyBytes == 8 ? myBuffer.getLong(offset) : myBuffer.getInt(offset);
+  }
+
+  private void setKeyAt(int slot, long key) {
+    int offset = slot * mySlotBytes;
+    if (myKeyBytes == 8) {
+      myBuffer.putLong(offset, key);
+    }
+    else {
+      myBuffer.putInt(offset, (int)key);
+    }
+  }
+
+  private long valueAt(int slot) {
+    return myBuffer.getLong(slot * mySlotBytes + myKeyBytes);
+  }
+
+  private void setValueAt(int slot, long value) {
+    myBuffer.putLong(slot * mySlotBytes + myKeyBytes, value);
+  }
+
+  // slot of the key or -(free slot for the key) - 1
+  private int indexOf(long key) {
+    int slot = hash(key) & myMask;
+    while (true) {
+      long slotKey = keyAt(slot);
+      if (slotKey == key) return slot;
+      if (slotKey == 0) return -slot - 1;
+      slot = (slot + 1) & myMask;
+    }
+  }
+
+  protected long doGet(long key) {
+    if (key == 0) return myHasZeroKey ? myZeroKeyValue : myNoEntryValue;
+    int index = indexOf(key);
+    return index < 0 ? myNoEntryValue : valueAt(index);
+  }
+
+  protected boolean doContainsKey(long key) {
+    return key == 0 ? myHasZeroKey : indexOf(key) >= 0;
+  }
+
+  protected long doPut(long key, long value) {
+    if (key == 0) {
+      long previous = myHasZeroKey ? myZeroKeyValue : myNoEntryValue;
+      if (!myHasZeroKey) mySize++;
+      myHasZeroKey = true;
+      myZeroKeyValue = value;
+      return previous;
+    }
+
+    int index = indexOf(key);
+    if (index >= 0) {
+      long previous = valueAt(index);
+      setValueAt(index, value);
+      return previous;
+    }
+
+    index = -index - 1;
+    setKeyAt(index, key);
+    setValueAt(index, value);
+    if (++mySize > myThreshold) rehash(capacity() << 1);
+    return myNoEntryValue;
+  }
+
+  protected long doRemove(long key) {
+    if (key == 0) {
+      if (!myHasZeroKey) return myNoEntryValue;
+      myHasZeroKey = false;
+      mySize--;
+      return myZeroKeyValue;
+    }
+
+    int index = indexOf(key);
+    if (index < 0) return myNoEntryValue;
+    long previous = valueAt(index);
+
+    // shift back the following entries which can't be found past the freed slot otherwise
+    int gap = index;
+    int slot = index;
+    while (true) {
+      slot = (slot + 1) & myMask;
+      long slotKey = keyAt(slot);
+      if (slotKey == 0) break;
+      int home = hash(slotKey) & myMask;
+      if (((slot - home) & myMask) >= ((slot - gap) & myMask)) {
+        setKeyAt(gap, slotKey);
+        setValueAt(gap, valueAt(slot));
+        gap = slot;
+      }
+    }
+    setKeyAt(gap, 0);
+    mySize--;
+    return previous;
+  }
+
+  private void rehash(int newCapacity) {
+    if (newCapacity > myMaxCapacity) throw new IllegalStateException("Too many entries: " + mySize);
+    ByteBuffer oldBuffer = myBuffer;
+    int oldMask = myMask;
+    allocate(newCapacity);
+
+    for (int slot = 0; slot <= oldMask; slot++) {
+      int offset = slot * mySlotBytes;
+      long key = myKeyBytes == 8 ? oldBuffer.getLong(offset) : oldBuffer.getInt(offset);
+      if (key != 0) {
+        int index = -indexOf(key) - 1;
+        setKeyAt(index, key);
+        setValueAt(index, oldBuffer.getLong(offset + myKeyBytes));
+      }
+    }
+    DirectBufferReflect.clean(oldBuffer);
+  }
+
+  protected interface EntryProcessor {
+    boolean process(long key, long value);
+  }
+
+  protected boolean doForEachEntry(EntryProcessor processor) {
+    if (myHasZeroKey && !processor.process(0, myZeroKeyValue)) return false;
+    for (int slot = 0; slot <= myMask; slot++) {
+      long key = keyAt(slot);
+      if (key != 0 && !processor.process(key, valueAt(slot))) return false;
+    }
+    return true;
+  }
+
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  public void clear() {
+    for (int slot = 0; slot <= myMask; slot++) {
+      setKeyAt(slot, 0);
+    }
+    myHasZeroKey = false;
+    mySize = 0;
+  }
+
+  private int capacity() {
+    return myMask + 1;
+  }
+
+  /**
+   * @return the number of bytes allocated outside of java heap
+   */
+  public long getMemoryFootprint() {
+    return myBuffer == null ? 0 : myBuffer.capacity();
+  }
+
+  /**
+   * Frees the memory, the map can't be used after that.
+   */
+  @Override
+  public void dispose() {
+    if (myBuffer != null) {
+      DirectBufferReflect.clean(myBuffer);
+      myBuffer = null;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.TIntLongProcedure;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * int -> long map which keeps its entries outside of java heap, 12 bytes per slot, see {@link OffHeapHashMapBase}.
+ * Suitable for large long-lived caches (e.g. file id -> timestamp) which would otherwise put pressure on GC.
+ * Not thread safe.
+ */
+public class OffHeapIntLongHashMap extends OffHeapHashMapBase {
+  public OffHeapIntLongHashMap() {
+    this(0);
+  }
+
+  public OffHeapIntLongHashMap(int expectedSize) {
+    this(expectedSize, -1);
+  }
+
+  /**
+   * @param noEntryValue the value returned for absent keys
+   */
+  public OffHeapIntLongHashMap(int expectedSize, long noEntryValue) {
+    super(4, expectedSize, noEntryValue);
+  }
+
+  public long get(int key) {
+    return doGet(key);
+  }
+
+  public boolean containsKey(int key) {
+    return doContainsKey(key);
+  }
+
+  /**
+   * @return the previous value or the no entry value
+   */
+  public long put(int key, long value) {
+    return doPut(key, value);
+  }
+
+  /**
+   * @return the removed value or the no entry value
+   */
+  public long remove(int key) {
+    return doRemove(key);
+  }
+
+  public boolean forEachEntry(@NotNull final TIntLongProcedure procedure) {
+    return doForEachEntry(new EntryProcessor() {
+      @Override
+      public boolean process(long key, long value) {
+        return procedure.execute((int)key, value);
+      }
+    });
+  }
+
+  @NotNull
+  public int[] keys() {
+    final int[] keys = new int[size()];
+    forEachEntry(new TIntLongProcedure() {
+      int index;
+
+      @Override
+      public boolean execute(int key, long value) {
+        keys[index++] = key;
+        return true;
+      }
+    });
+    return keys;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.TLongLongProcedure;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * long -> long map which keeps its entries outside of java heap, 16 bytes per slot, see {@link OffHeapHashMapBase}.
+ * Suitable for large long-lived caches (e.g. content hash -> id) which would otherwise put pressure on GC.
+ * Not thread safe, see {@link ConcurrentOffHeapLongLongHashMap}.
+ */
+public class OffHeapLongLongHashMap extends OffHeapHashMapBase {
+  public OffHeapLongLongHashMap() {
+    this(0);
+  }
+
+  public OffHeapLongLongHashMap(int expectedSize) {
+    this(expectedSize, -1);
+  }
+
+  /**
+   * @param noEntryValue the value returned for absent keys
+   */
+  public OffHeapLongLongHashMap(int expectedSize, long noEntryValue) {
+    super(8, expectedSize, noEntryValue);
+  }
+
+  public long get(long key) {
+    return doGet(key);
+  }
+
+  public boolean containsKey(long key) {
+    return doContainsKey(key);
+  }
+
+  /**
+   * @return the previous value or the no entry value
+   */
+  public long put(long key, long value) {
+    return doPut(key, value);
+  }
+
+  /**
+   * @return the removed value or the no entry value
+   */
+  public long remove(long key) {
+    return doRemove(key);
+  }
+
+  public boolean forEachEntry(@NotNull final TLongLongProcedure procedure) {
+    return doForEachEntry(new EntryProcessor() {
+      @Override
+      public boolean process(long key, long value) {
+        return procedure.execute(key, value);
+      }
+    });
+  }
+
+  @NotNull
+  public long[] keys() {
+    final long[] keys = new long[size()];
+    forEachEntry(new TLongLongProcedure() {
+      int index;
+
+      @Override
+      public boolean execute(long key, long value) {
+        keys[index++] = key;
+        return true;
+      }
+    });
+    return keys;
+  }
+}
@@ -20,6 +20,8 @@ import com.intellij.openapi.util.Computable;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
 /**
  * @author Eugene Zhuravlev
  *         Date: Dec 24, 2007
@@ -34,6 +36,13 @@ public interface InvertedIndex<Key, Value, Input> {
   @NotNull
   Computable<Boolean> update(int inputId, @Nullable Input content);
 
+  /**
+   * Applies several updates returned by {@link #update(int, Object)} of this index at once: readers see either none or all of them.
+   *
+   * @return false if the updates failed and the index is to be rebuilt
+   */
+  boolean applyUpdates(@NotNull List<Computable<Boolean>> updates);
+
   void flush() throws StorageException;
 
   void clear() throws StorageException;
@@ -17,12 +17,15 @@ package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.util.containers.EmptyIntHashSet;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import gnu.trove.TIntHashSet;
-import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 public class InvertedIndexUtil {
   @NotNull
@@ -32,50 +35,129 @@ public class InvertedIndexUtil {
                                                                        @Nullable Condition<V> valueChecker,
                                                                        @Nullable ValueContainer.IntPredicate idChecker)
           throws StorageException {
-    TIntHashSet mainIntersection = null;
+    List<K> keys = new ArrayList<K>(dataKeys.size());
+    for (K dataKey : dataKeys) {
+      if (keyChecker == null || keyChecker.value(dataKey)) keys.add(dataKey);
+    }
+    // the sets are only read: they can be the id sets of the containers themselves
+    RoaringIdSet mainIntersection = intersectKeyIds(index, keys, valueChecker, null, false);
+    if (mainIntersection.isEmpty()) return EmptyIntHashSet.INSTANCE;
+
+    TIntHashSet result = new TIntHashSet(mainIntersection.size());
+    for (ValueContainer.IntIterator iterator = mainIntersection.intIterator(); iterator.hasNext(); ) {
+      final int id = iterator.next();
+      if (idChecker == null || idChecker.contains(id)) result.add(id);
+    }
+    return result.isEmpty() ? EmptyIntHashSet.INSTANCE : result;
+  }
 
+  /**
+   * @param restriction the ids to look the inputs up among, all of them if null
+   * @return the ids of the inputs having all the keys with a value accepted by the checker, none if there are no keys.
+   * The set is never one of the index itself, so it remains valid after the read lock of the index is released.
+   */
+  @NotNull
+  public static <K, V, I> RoaringIdSet collectInputIdSetContainingAllKeys(@NotNull InvertedIndex<K, V, I> index,
+                                                                          @NotNull Collection<? extends K> dataKeys,
+                                                                          @Nullable Condition<V> valueChecker,
+                                                                          @Nullable RoaringIdSet restriction)
+          throws StorageException {
+    return intersectKeyIds(index, dataKeys, valueChecker, restriction, true);
+  }
+
+  @NotNull
+  private static <K, V, I> RoaringIdSet intersectKeyIds(@NotNull InvertedIndex<K, V, I> index,
+                                                        @NotNull Collection<? extends K> dataKeys,
+                                                        @Nullable Condition<V> valueChecker,
+                                                        @Nullable RoaringIdSet restriction,
+                                                        boolean copy) throws StorageException {
+    if (dataKeys.isEmpty()) return new RoaringIdSet();
+
+    List<KeyInputs<V>> keys = new ArrayList<KeyInputs<V>>(dataKeys.size());
     for (K dataKey : dataKeys) {
-      if (keyChecker != null && !keyChecker.value(dataKey)) continue;
+      KeyInputs<V> key = new KeyInputs<V>(index.getData(dataKey), valueChecker);
+      // the rest of the keys aren't even read
+      if (key.myInputCount == 0) return new RoaringIdSet();
+      keys.add(key);
+    }
+    // the intersection is started from the key with the fewest inputs, so it's never larger than them
+    Collections.sort(keys);
 
-      final TIntHashSet copy = new TIntHashSet();
-      final ValueContainer<V> container = index.getData(dataKey);
+    RoaringIdSet mainIntersection = restriction;
+    for (KeyInputs<V> key : keys) {
+      // the ids of the key are already restricted to the previous keys, only the ids of a single key may need to be copied
+      mainIntersection = collectKeyIds(key.myContainer, valueChecker, mainIntersection, copy && mainIntersection == null && keys.size() == 1);
+      if (mainIntersection == null || mainIntersection.isEmpty()) return new RoaringIdSet();
+    }
+    return mainIntersection;
+  }
 
-      for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-        final V value = valueIt.next();
-        if (valueChecker != null && !valueChecker.value(value)) {
-          continue;
-        }
+  @Nullable
+  private static <V> RoaringIdSet collectKeyIds(@NotNull ValueContainer<V> container,
+                                                @Nullable Condition<V> valueChecker,
+                                                @Nullable RoaringIdSet mainIntersection,
+                                                boolean copy) {
+    RoaringIdSet keyIds = null;
+    for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      final V value = valueIt.next();
+      if (valueChecker != null && !valueChecker.value(value)) {
+        continue;
+      }
 
-        ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      ValueContainer.IntIterator iterator = valueIt.getInputIdsIterator();
+      RoaringIdSet valueIds = RoaringIdSet.getIteratedSet(iterator);
 
+      if (valueIds != null) {
+        if (mainIntersection != null) {
+          valueIds = RoaringIdSet.and(mainIntersection, valueIds);
+        }
+        else if (copy) {
+          valueIds = valueIds.clone();
+        }
+      }
+      else {
+        valueIds = new RoaringIdSet();
         final ValueContainer.IntPredicate predicate;
         if (mainIntersection == null || iterator.size() < mainIntersection.size() || (predicate = valueIt.getValueAssociationPredicate()) == null) {
           while (iterator.hasNext()) {
             final int id = iterator.next();
-            if (mainIntersection == null && (idChecker == null || idChecker.contains(id)) ||
-                mainIntersection != null && mainIntersection.contains(id)
-                    ) {
-              copy.add(id);
+            if (mainIntersection == null || mainIntersection.contains(id)) {
+              valueIds.add(id);
             }
           }
         }
         else {
-          mainIntersection.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int id) {
-              if (predicate.contains(id)) copy.add(id);
-              return true;
-            }
-          });
+          for (ValueContainer.IntIterator mainIterator = mainIntersection.intIterator(); mainIterator.hasNext(); ) {
+            final int id = mainIterator.next();
+            if (predicate.contains(id)) valueIds.add(id);
+          }
         }
       }
+      keyIds = keyIds == null ? valueIds : RoaringIdSet.or(keyIds, valueIds);
+    }
+    return keyIds;
+  }
 
-      mainIntersection = copy;
-      if (mainIntersection.isEmpty()) {
-        return EmptyIntHashSet.INSTANCE;
+  private static class KeyInputs<V> implements Comparable<KeyInputs<V>> {
+    private final ValueContainer<V> myContainer;
+    // the inputs of the accepted values, an input associated with several of them is counted for each
+    private final int myInputCount;
+
+    private KeyInputs(@NotNull ValueContainer<V> container, @Nullable Condition<V> valueChecker) {
+      myContainer = container;
+      int inputCount = 0;
+      for (ValueContainer.ValueIterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        final V value = valueIt.next();
+        if (valueChecker == null || valueChecker.value(value)) {
+          inputCount += valueIt.getInputIdsIterator().size();
+        }
       }
+      myInputCount = inputCount;
     }
 
-    return mainIntersection == null ? EmptyIntHashSet.INSTANCE : mainIntersection;
+    @Override
+    public int compareTo(@NotNull KeyInputs<V> o) {
+      return myInputCount < o.myInputCount ? -1 : myInputCount == o.myInputCount ? 0 : 1;
+    }
   }
 }
@@ -15,9 +15,11 @@
  */
 package com.intellij.util.indexing.containers;
 
+import com.intellij.util.SystemProperties;
 import com.intellij.util.indexing.impl.DebugAssertions;
 import com.intellij.util.indexing.ValueContainer;
 import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
 
@@ -34,6 +36,8 @@ import static com.intellij.util.indexing.impl.DebugAssertions.EXTRA_SANITY_CHECK
  */
 public class ChangeBufferingList implements Cloneable {
   static final int MAX_FILES = 20000; // less than Short.MAX_VALUE
+  // large sets are kept in RoaringIdSet instead of IdBitSet, and are saved in its format, see ValueContainerImpl#saveTo
+  public static final boolean ROARING_ID_SETS = SystemProperties.getBooleanProperty("idea.indices.roaring.id.sets", true);
   //static final int MAX_FILES = 100;
   private volatile int[] changes;
   private short length;
@@ -46,13 +50,26 @@ public class ChangeBufferingList implements Cloneable {
   public ChangeBufferingList() { this(3); }
   public ChangeBufferingList(int length) {
     if (length > MAX_FILES) {
-      randomAccessContainer = new IdBitSet(length);
+      randomAccessContainer = ROARING_ID_SETS ? new RoaringIdSet() : new IdBitSet(length);
     } else {
       changes = new int[length];
     }
     checkSet = EXTRA_SANITY_CHECKS ? new IdSet(length) : null;
   }
 
+  /**
+   * Creates the list of the ids, the set is used as is.
+   */
+  public ChangeBufferingList(@NotNull RoaringIdSet ids) {
+    randomAccessContainer = ids;
+    if (EXTRA_SANITY_CHECKS) {
+      checkSet = new IdSet(ids.size());
+      for (IntIdsIterator iterator = ids.intIterator(); iterator.hasNext(); ) {
+        checkSet.add(iterator.next());
+      }
+    }
+  }
+
   static int[] calcMinMax(int[] set, int length) {
     int max = Integer.MIN_VALUE;
     int min = Integer.MAX_VALUE;
@@ -142,10 +159,10 @@ public class ChangeBufferingList implements Cloneable {
           }
         }
         else if (!hasRemovals) {
-          idSet = new IdBitSet(changes, length, 0);
+          idSet = ROARING_ID_SETS ? new RoaringIdSet(changes, length) : new IdBitSet(changes, length, 0);
           copyChanges = false;
         } else {
-          idSet = new IdBitSet(calcMinMax(changes, length), 0);
+          idSet = ROARING_ID_SETS ? new RoaringIdSet() : new IdBitSet(calcMinMax(changes, length), 0);
         }
       } else if (checkSet != null) {
         idSet = (RandomAccessIntContainer)randomAccessContainer.clone();
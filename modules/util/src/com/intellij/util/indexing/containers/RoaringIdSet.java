@@ -0,0 +1,631 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.indexing.ValueContainer;
+import com.intellij.util.io.DataInputOutputUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compressed set of non-negative ids in the way of roaring bitmaps: ids are split into chunks by their high 16 bits,
+ * the low 16 bits of a chunk are kept in a sorted char array while there are at most {@link #ARRAY_LIMIT} of them,
+ * and in a 8K bitmap otherwise. Intersection and union work chunk by chunk without expanding the ids.
+ */
+public class RoaringIdSet implements Cloneable, RandomAccessIntContainer {
+  static final int ARRAY_LIMIT = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+  private static final char[] EMPTY_KEYS = new char[0];
+  private static final Object[] EMPTY_CONTAINERS = new Object[0];
+  private static final int[] EMPTY_CARDINALITIES = new int[0];
+
+  // sorted high halves of the ids, and for each of them: char[] of sorted low halves or long[BITMAP_WORDS] bitmap
+  private char[] myKeys = EMPTY_KEYS;
+  private Object[] myContainers = EMPTY_CONTAINERS;
+  private int[] myCardinalities = EMPTY_CARDINALITIES;
+  private int myChunkCount;
+  private int mySize;
+
+  public RoaringIdSet() {
+  }
+
+  RoaringIdSet(@NotNull int[] ids, int count) {
+    for (int i = 0; i < count; ++i) add(ids[i]);
+  }
+
+  RoaringIdSet(@NotNull RandomAccessIntContainer set) {
+    for (ValueContainer.IntIterator iterator = set.intIterator(); iterator.hasNext(); ) {
+      add(iterator.next());
+    }
+  }
+
+  @Override
+  public int size() {
+    return mySize;
+  }
+
+  public boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  private int chunkIndex(char key) {
+    // ids are added mostly in ascending order
+    if (myChunkCount > 0 && myKeys[myChunkCount - 1] == key) return myChunkCount - 1;
+    int low = 0;
+    int high = myChunkCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midKey = myKeys[mid];
+      if (midKey < key) {
+        low = mid + 1;
+      }
+      else if (midKey > key) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private static int arrayIndex(char[] array, int length, char value) {
+    if (length > 0 && array[length - 1] < value) return -(length + 1);
+    int low = 0;
+    int high = length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midValue = array[mid];
+      if (midValue < value) {
+        low = mid + 1;
+      }
+      else if (midValue > value) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  @Override
+  public boolean contains(int id) {
+    int chunk = chunkIndex((char)(id >>> 16));
+    if (chunk < 0) return false;
+    char low = (char)id;
+    Object container = myContainers[chunk];
+    if (container instanceof long[]) {
+      return (((long[])container)[low >>> 6] & (1L << low)) != 0;
+    }
+    return arrayIndex((char[])container, myCardinalities[chunk], low) >= 0;
+  }
+
+  @Override
+  public boolean add(int id) {
+    char key = (char)(id >>> 16);
+    char low = (char)id;
+    int chunk = chunkIndex(key);
+    if (chunk < 0) {
+      insertChunk(-chunk - 1, key, new char[]{low}, 1);
+      ++mySize;
+      return true;
+    }
+
+    Object container = myContainers[chunk];
+    int cardinality = myCardinalities[chunk];
+    if (container instanceof long[]) {
+      long[] bitmap = (long[])container;
+      long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) != 0) return false;
+      bitmap[low >>> 6] |= bit;
+    }
+    else {
+      char[] array = (char[])container;
+      int index = arrayIndex(array, cardinality, low);
+      if (index >= 0) return false;
+      index = -index - 1;
+      if (cardinality == ARRAY_LIMIT) {
+        long[] bitmap = toBitmap(array, cardinality);
+        bitmap[low >>> 6] |= 1L << low;
+        myContainers[chunk] = bitmap;
+      }
+      else {
+        if (cardinality == array.length) {
+          char[] newArray = new char[Math.min(ARRAY_LIMIT, Math.max(4, cardinality < 1024 ? cardinality << 1 : cardinality + cardinality / 4))];
+          System.arraycopy(array, 0, newArray, 0, index);
+          System.arraycopy(array, index, newArray, index + 1, cardinality - index);
+          array = newArray;
+          myContainers[chunk] = array;
+        }
+        else {
+          System.arraycopy(array, index, array, index + 1, cardinality - index);
+        }
+        array[index] = low;
+      }
+    }
+    myCardinalities[chunk] = cardinality + 1;
+    ++mySize;
+    return true;
+  }
+
+  @Override
+  public boolean remove(int id) {
+    int chunk = chunkIndex((char)(id >>> 16));
+    if (chunk < 0) return false;
+    char low = (char)id;
+    Object container = myContainers[chunk];
+    int cardinality = myCardinalities[chunk];
+    if (container instanceof long[]) {
+      long[] bitmap = (long[])container;
+      long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) == 0) return false;
+      bitmap[low >>> 6] &= ~bit;
+      if (cardinality - 1 == ARRAY_LIMIT) {
+        myContainers[chunk] = toArray(bitmap, ARRAY_LIMIT);
+      }
+    }
+    else {
+      char[] array = (char[])container;
+      int index = arrayIndex(array, cardinality, low);
+      if (index < 0) return false;
+      System.arraycopy(array, index + 1, array, index, cardinality - index - 1);
+    }
+    --mySize;
+    if (cardinality == 1) {
+      removeChunk(chunk);
+    }
+    else {
+      myCardinalities[chunk] = cardinality - 1;
+    }
+    return true;
+  }
+
+  private void insertChunk(int index, char key, Object container, int cardinality) {
+    if (myChunkCount == myKeys.length) {
+      int newLength = Math.max(4, myChunkCount << 1);
+      char[] keys = new char[newLength];
+      Object[] containers = new Object[newLength];
+      int[] cardinalities = new int[newLength];
+      System.arraycopy(myKeys, 0, keys, 0, myChunkCount);
+      System.arraycopy(myContainers, 0, containers, 0, myChunkCount);
+      System.arraycopy(myCardinalities, 0, cardinalities, 0, myChunkCount);
+      myKeys = keys;
+      myContainers = containers;
+      myCardinalities = cardinalities;
+    }
+    System.arraycopy(myKeys, index, myKeys, index + 1, myChunkCount - index);
+    System.arraycopy(myContainers, index, myContainers, index + 1, myChunkCount - index);
+    System.arraycopy(myCardinalities, index, myCardinalities, index + 1, myChunkCount - index);
+    myKeys[index] = key;
+    myContainers[index] = container;
+    myCardinalities[index] = cardinality;
+    ++myChunkCount;
+  }
+
+  private void removeChunk(int index) {
+    System.arraycopy(myKeys, index + 1, myKeys, index, myChunkCount - index - 1);
+    System.arraycopy(myContainers, index + 1, myContainers, index, myChunkCount - index - 1);
+    System.arraycopy(myCardinalities, index + 1, myCardinalities, index, myChunkCount - index - 1);
+    --myChunkCount;
+    myContainers[myChunkCount] = null;
+  }
+
+  // appends a chunk with a key greater than all others, the container isn't copied
+  private void appendChunk(char key, @NotNull Object container, int cardinality) {
+    insertChunk(myChunkCount, key, container, cardinality);
+    mySize += cardinality;
+  }
+
+  @NotNull
+  private static long[] toBitmap(@NotNull char[] array, int cardinality) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int i = 0; i < cardinality; i++) {
+      char value = array[i];
+      bitmap[value >>> 6] |= 1L << value;
+    }
+    return bitmap;
+  }
+
+  @NotNull
+  private static char[] toArray(@NotNull long[] bitmap, int cardinality) {
+    char[] array = new char[cardinality];
+    int index = 0;
+    for (int word = 0; word < BITMAP_WORDS; word++) {
+      long bits = bitmap[word];
+      while (bits != 0) {
+        array[index++] = (char)((word << 6) + Long.numberOfTrailingZeros(bits));
+        bits &= bits - 1;
+      }
+    }
+    return array;
+  }
+
+  @NotNull
+  private static Object toContainer(@NotNull long[] bitmap, int cardinality) {
+    return cardinality > ARRAY_LIMIT ? bitmap : toArray(bitmap, cardinality);
+  }
+
+  /**
+   * @return new set of the ids contained in both sets
+   */
+  @NotNull
+  public static RoaringIdSet and(@NotNull RoaringIdSet set1, @NotNull RoaringIdSet set2) {
+    RoaringIdSet result = new RoaringIdSet();
+    int i1 = 0;
+    int i2 = 0;
+    while (i1 < set1.myChunkCount && i2 < set2.myChunkCount) {
+      char key1 = set1.myKeys[i1];
+      char key2 = set2.myKeys[i2];
+      if (key1 < key2) {
+        i1++;
+      }
+      else if (key1 > key2) {
+        i2++;
+      }
+      else {
+        Object c1 = set1.myContainers[i1];
+        Object c2 = set2.myContainers[i2];
+        int n1 = set1.myCardinalities[i1];
+        int n2 = set2.myCardinalities[i2];
+        if (c1 instanceof long[] && c2 instanceof long[]) {
+          long[] b1 = (long[])c1;
+          long[] b2 = (long[])c2;
+          long[] bitmap = new long[BITMAP_WORDS];
+          int cardinality = 0;
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            cardinality += Long.bitCount(bitmap[w] = b1[w] & b2[w]);
+          }
+          if (cardinality > 0) result.appendChunk(key1, toContainer(bitmap, cardinality), cardinality);
+        }
+        else if (c1 instanceof long[] || c2 instanceof long[]) {
+          long[] bitmap = (long[])(c1 instanceof long[] ? c1 : c2);
+          char[] array = (char[])(c1 instanceof long[] ? c2 : c1);
+          int length = c1 instanceof long[] ? n2 : n1;
+          char[] values = new char[length];
+          int cardinality = 0;
+          for (int i = 0; i < length; i++) {
+            char value = array[i];
+            if ((bitmap[value >>> 6] & (1L << value)) != 0) values[cardinality++] = value;
+          }
+          if (cardinality > 0) result.appendChunk(key1, values, cardinality);
+        }
+        else {
+          char[] values = new char[Math.min(n1, n2)];
+          int cardinality = intersect((char[])c1, n1, (char[])c2, n2, values);
+          if (cardinality > 0) result.appendChunk(key1, values, cardinality);
+        }
+        i1++;
+        i2++;
+      }
+    }
+    return result;
+  }
+
+  private static int intersect(@NotNull char[] a1, int n1, @NotNull char[] a2, int n2, @NotNull char[] result) {
+    if (n1 > n2) return intersect(a2, n2, a1, n1, result);
+    int cardinality = 0;
+    if (n1 * 32 < n2) {
+      // much smaller array: binary searches from the last position
+      int from = 0;
+      for (int i = 0; i < n1 && from < n2; i++) {
+        int index = arrayIndex(a2, from, n2, a1[i]);
+        if (index >= 0) {
+          result[cardinality++] = a1[i];
+          from = index + 1;
+        }
+        else {
+          from = -index - 1;
+        }
+      }
+      return cardinality;
+    }
+
+    int i1 = 0;
+    int i2 = 0;
+    while (i1 < n1 && i2 < n2) {
+      char v1 = a1[i1];
+      char v2 = a2[i2];
+      if (v1 < v2) {
+        i1++;
+      }
+      else if (v1 > v2) {
+        i2++;
+      }
+      else {
+        result[cardinality++] = v1;
+        i1++;
+        i2++;
+      }
+    }
+    return cardinality;
+  }
+
+  private static int arrayIndex(char[] array, int from, int to, char value) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char midValue = array[mid];
+      if (midValue < value) {
+        low = mid + 1;
+      }
+      else if (midValue > value) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * @return new set of the ids contained in any of the sets
+   */
+  @NotNull
+  public static RoaringIdSet or(@NotNull RoaringIdSet set1, @NotNull RoaringIdSet set2) {
+    RoaringIdSet result = new RoaringIdSet();
+    int i1 = 0;
+    int i2 = 0;
+    while (i1 < set1.myChunkCount || i2 < set2.myChunkCount) {
+      char key1 = i1 < set1.myChunkCount ? set1.myKeys[i1] : Character.MAX_VALUE;
+      char key2 = i2 < set2.myChunkCount ? set2.myKeys[i2] : Character.MAX_VALUE;
+      if (i2 == set2.myChunkCount || i1 < set1.myChunkCount && key1 < key2) {
+        result.appendChunk(key1, copy(set1.myContainers[i1]), set1.myCardinalities[i1]);
+        i1++;
+      }
+      else if (i1 == set1.myChunkCount || key1 > key2) {
+        result.appendChunk(key2, copy(set2.myContainers[i2]), set2.myCardinalities[i2]);
+        i2++;
+      }
+      else {
+        Object c1 = set1.myContainers[i1];
+        Object c2 = set2.myContainers[i2];
+        int n1 = set1.myCardinalities[i1];
+        int n2 = set2.myCardinalities[i2];
+        if (c1 instanceof char[] && c2 instanceof char[] && n1 + n2 <= ARRAY_LIMIT) {
+          char[] values = new char[n1 + n2];
+          int cardinality = union((char[])c1, n1, (char[])c2, n2, values);
+          result.appendChunk(key1, values, cardinality);
+        }
+        else {
+          long[] bitmap = c1 instanceof long[] ? ((long[])c1).clone() : toBitmap((char[])c1, n1);
+          if (c2 instanceof long[]) {
+            long[] b2 = (long[])c2;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+              bitmap[w] |= b2[w];
+            }
+          }
+          else {
+            char[] a2 = (char[])c2;
+            for (int i = 0; i < n2; i++) {
+              bitmap[a2[i] >>> 6] |= 1L << a2[i];
+            }
+          }
+          int cardinality = 0;
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            cardinality += Long.bitCount(bitmap[w]);
+          }
+          result.appendChunk(key1, toContainer(bitmap, cardinality), cardinality);
+        }
+        i1++;
+        i2++;
+      }
+    }
+    return result;
+  }
+
+  private static int union(@NotNull char[] a1, int n1, @NotNull char[] a2, int n2, @NotNull char[] result) {
+    int i1 = 0;
+    int i2 = 0;
+    int cardinality = 0;
+    while (i1 < n1 && i2 < n2) {
+      char v1 = a1[i1];
+      char v2 = a2[i2];
+      if (v1 <= v2) {
+        result[cardinality++] = v1;
+        i1++;
+        if (v1 == v2) i2++;
+      }
+      else {
+        result[cardinality++] = v2;
+        i2++;
+      }
+    }
+    while (i1 < n1) result[cardinality++] = a1[i1++];
+    while (i2 < n2) result[cardinality++] = a2[i2++];
+    return cardinality;
+  }
+
+  @NotNull
+  private static Object copy(@NotNull Object container) {
+    return container instanceof long[] ? ((long[])container).clone() : ((char[])container).clone();
+  }
+
+  /**
+   * @return the set iterated by the iterator, if it's an iterator of a roaring set
+   */
+  @Nullable
+  public static RoaringIdSet getIteratedSet(@NotNull ValueContainer.IntIterator iterator) {
+    return iterator instanceof Iterator ? ((Iterator)iterator).getSet() : null;
+  }
+
+  @Override
+  public IntIdsIterator intIterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public ValueContainer.IntPredicate intPredicate() {
+    return new ValueContainer.IntPredicate() {
+      @Override
+      public boolean contains(int id) {
+        return RoaringIdSet.this.contains(id);
+      }
+    };
+  }
+
+  @Override
+  public void compact() {
+  }
+
+  @Override
+  public RandomAccessIntContainer ensureContainerCapacity(int diff) {
+    return this;
+  }
+
+  @Override
+  public RoaringIdSet clone() {
+    try {
+      RoaringIdSet clone = (RoaringIdSet)super.clone();
+      clone.myKeys = myKeys.clone();
+      clone.myCardinalities = myCardinalities.clone();
+      clone.myContainers = new Object[myContainers.length];
+      for (int i = 0; i < myChunkCount; i++) {
+        clone.myContainers[i] = copy(myContainers[i]);
+      }
+      return clone;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the set as chunks of delta encoded low halves or raw bitmaps, whichever the chunk is kept in.
+   */
+  public void writeTo(@NotNull DataOutput out) throws IOException {
+    DataInputOutputUtil.writeINT(out, myChunkCount);
+    for (int i = 0; i < myChunkCount; i++) {
+      DataInputOutputUtil.writeINT(out, myKeys[i]);
+      int cardinality = myCardinalities[i];
+      DataInputOutputUtil.writeINT(out, cardinality);
+      Object container = myContainers[i];
+      if (container instanceof long[]) {
+        for (long word : (long[])container) {
+          out.writeLong(word);
+        }
+      }
+      else {
+        char[] array = (char[])container;
+        int prev = 0;
+        for (int j = 0; j < cardinality; j++) {
+          DataInputOutputUtil.writeINT(out, array[j] - prev);
+          prev = array[j];
+        }
+      }
+    }
+  }
+
+  @NotNull
+  public static RoaringIdSet readFrom(@NotNull DataInput in) throws IOException {
+    RoaringIdSet set = new RoaringIdSet();
+    int chunkCount = DataInputOutputUtil.readINT(in);
+    for (int i = 0; i < chunkCount; i++) {
+      char key = (char)DataInputOutputUtil.readINT(in);
+      int cardinality = DataInputOutputUtil.readINT(in);
+      if (cardinality > ARRAY_LIMIT) {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          bitmap[w] = in.readLong();
+        }
+        set.appendChunk(key, bitmap, cardinality);
+      }
+      else {
+        char[] array = new char[cardinality];
+        int prev = 0;
+        for (int j = 0; j < cardinality; j++) {
+          prev += DataInputOutputUtil.readINT(in);
+          array[j] = (char)prev;
+        }
+        set.appendChunk(key, array, cardinality);
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Iterates the chunks in place, in ascending order of ids.
+   */
+  private class Iterator implements IntIdsIterator {
+    private int myChunk;
+    private int myPosition; // in the array, or the word of the bitmap
+    private long myWord; // remaining bits of the current bitmap word
+    private int myRemaining = mySize;
+
+    Iterator() {
+      if (myChunkCount > 0 && myContainers[0] instanceof long[]) {
+        myWord = ((long[])myContainers[0])[0];
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myRemaining > 0;
+    }
+
+    @Override
+    public int next() {
+      --myRemaining;
+      while (true) {
+        Object container = myContainers[myChunk];
+        int high = myKeys[myChunk] << 16;
+        if (container instanceof long[]) {
+          while (myWord == 0 && ++myPosition < BITMAP_WORDS) {
+            myWord = ((long[])container)[myPosition];
+          }
+          if (myWord != 0) {
+            int result = high | (myPosition << 6) + Long.numberOfTrailingZeros(myWord);
+            myWord &= myWord - 1;
+            return result;
+          }
+        }
+        else if (myPosition < myCardinalities[myChunk]) {
+          return high | ((char[])container)[myPosition++];
+        }
+
+        ++myChunk;
+        myPosition = 0;
+        myWord = myContainers[myChunk] instanceof long[] ? ((long[])myContainers[myChunk])[0] : 0;
+      }
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+
+    @Override
+    public boolean hasAscendingOrder() {
+      return true;
+    }
+
+    @Override
+    public IntIdsIterator createCopyInInitialState() {
+      return new Iterator();
+    }
+
+    @NotNull
+    RoaringIdSet getSet() {
+      return RoaringIdSet.this;
+    }
+  }
+}
@@ -208,7 +208,7 @@ public class SortedIdSet implements Cloneable, RandomAccessIntContainer {
     int newSize = mySetLength + count;
     if (newSize < mySet.length) return this;
     if (newSize > ChangeBufferingList.MAX_FILES) {
-      return new IdBitSet(this, count);
+      return ChangeBufferingList.ROARING_ID_SETS ? new RoaringIdSet(this) : new IdBitSet(this, count);
     }
 
     newSize = ChangeBufferingList.calcNextArraySize(mySet.length, newSize);
@@ -33,6 +33,12 @@ public interface IndexStorage<Key, Value> extends Flushable {
 
   void removeAllValues(@NotNull Key key, int inputId) throws StorageException;
 
+  /**
+   * Same as {@link #removeAllValues(Object, int)} and {@link #addValue(Object, int, Object)} calls for each of the changes,
+   * made at once.
+   */
+  void updateValues(@NotNull Key key, @NotNull ValueChanges<Value> changes) throws StorageException;
+
   void clear() throws StorageException;
 
   @NotNull
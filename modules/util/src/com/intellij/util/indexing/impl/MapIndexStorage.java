@@ -231,6 +231,35 @@ public abstract class MapIndexStorage<Key, Value> implements IndexStorage<Key, V
     }
   }
 
+  @Override
+  public void updateValues(@NotNull Key key, @NotNull ValueChanges<Value> changes) throws StorageException {
+    try {
+      myMap.markDirty();
+      if (myKeyIsUniqueForIndexedFile && !changes.hasRemovals()) {
+        ChangeTrackingValueContainer<Value> cached;
+        try {
+          l.lock();
+          cached = myCache.getIfCached(key);
+        }
+        finally {
+          l.unlock();
+        }
+
+        if (cached == null) {
+          // one append for all the inputs, see addValue
+          ChangeTrackingValueContainer<Value> valueContainer = new ChangeTrackingValueContainer<Value>(null);
+          changes.applyTo(valueContainer);
+          myMap.put(key, valueContainer);
+          return;
+        }
+      }
+      changes.applyTo(read(key));
+    }
+    catch (IOException e) {
+      throw new StorageException(e);
+    }
+  }
+
   @Override
   public void removeAllValues(@NotNull Key key, int inputId) throws StorageException {
     try {
@@ -27,13 +27,13 @@ import com.intellij.util.indexing.*;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -189,28 +189,64 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
   @NotNull
   @Override
   public final Computable<Boolean> update(final int inputId, @Nullable final Input content) {
-    final UpdateData<Key, Value> updateData = calculateUpdateData(inputId, content);
+    return new InputUpdate(inputId, calculateUpdateData(inputId, content));
+  }
 
-    return new Computable<Boolean>() {
-      @Override
-      public Boolean compute() {
-        try {
-          updateWithMap(inputId, updateData);
-        }
-        catch (StorageException ex) {
-          LOG.info("Exception during updateWithMap:" + ex);
-          requestRebuild(ex);
-          return Boolean.FALSE;
-        }
-        catch (ProcessCanceledException ex) {
-          LOG.info("Exception during updateWithMap:" + ex);
-          requestRebuild(ex);
-          return Boolean.FALSE;
-        }
+  private class InputUpdate implements Computable<Boolean> {
+    private final int myInputId;
+    private final UpdateData<Key, Value> myUpdateData;
+
+    private InputUpdate(int inputId, @NotNull UpdateData<Key, Value> updateData) {
+      myInputId = inputId;
+      myUpdateData = updateData;
+    }
 
-        return Boolean.TRUE;
+    @Override
+    public Boolean compute() {
+      try {
+        updateWithMap(myInputId, myUpdateData);
+      }
+      catch (StorageException ex) {
+        LOG.info("Exception during updateWithMap:" + ex);
+        requestRebuild(ex);
+        return Boolean.FALSE;
       }
-    };
+      catch (ProcessCanceledException ex) {
+        LOG.info("Exception during updateWithMap:" + ex);
+        requestRebuild(ex);
+        return Boolean.FALSE;
+      }
+
+      return Boolean.TRUE;
+    }
+  }
+
+  @Override
+  public boolean applyUpdates(@NotNull List<Computable<Boolean>> updates) {
+    if (updates.size() == 1) return updates.get(0).compute();
+
+    TIntArrayList inputIds = new TIntArrayList(updates.size());
+    List<UpdateData<Key, Value>> updateData = new ArrayList<UpdateData<Key, Value>>(updates.size());
+    for (Computable<Boolean> update : updates) {
+      //noinspection unchecked
+      InputUpdate inputUpdate = (InputUpdate)update;
+      inputIds.add(inputUpdate.myInputId);
+      updateData.add(inputUpdate.myUpdateData);
+    }
+    try {
+      updateWithMaps(inputIds, updateData);
+    }
+    catch (StorageException ex) {
+      LOG.info("Exception during updateWithMaps:" + ex);
+      requestRebuild(ex);
+      return false;
+    }
+    catch (ProcessCanceledException ex) {
+      LOG.info("Exception during updateWithMaps:" + ex);
+      requestRebuild(ex);
+      return false;
+    }
+    return true;
   }
 
   @NotNull
@@ -261,11 +297,18 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     return myModificationStamp.get();
   }
 
+  // the changes of the batch being applied, by key; accessed under the write lock
+  private Map<Key, ValueChanges<Value>> myBatchChanges;
+
   private final RemovedKeyProcessor<Key>
           myRemovedKeyProcessor = new RemovedKeyProcessor<Key>() {
     @Override
     public void process(Key key, int inputId) throws StorageException {
       myModificationStamp.incrementAndGet();
+      if (myBatchChanges != null) {
+        getBatchChanges(key).removeAllValues(inputId);
+        return;
+      }
       myStorage.removeAllValues(key, inputId);
     }
   };
@@ -274,6 +317,10 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     @Override
     public void process(Key key, Value value, int inputId) throws StorageException {
       myModificationStamp.incrementAndGet();
+      if (myBatchChanges != null) {
+        getBatchChanges(key).addValue(inputId, value);
+        return;
+      }
       myStorage.addValue(key, inputId, value);
     }
   };
@@ -282,11 +329,65 @@ public abstract class MapReduceIndex<Key,Value, Input> implements InvertedIndex<
     @Override
     public void process(Key key, Value value, int inputId) throws StorageException {
       myModificationStamp.incrementAndGet();
+      if (myBatchChanges != null) {
+        ValueChanges<Value> changes = getBatchChanges(key);
+        changes.removeAllValues(inputId);
+        changes.addValue(inputId, value);
+        return;
+      }
       myStorage.removeAllValues(key, inputId);
       myStorage.addValue(key, inputId, value);
     }
   };
 
+  @NotNull
+  private ValueChanges<Value> getBatchChanges(Key key) {
+    ValueChanges<Value> changes = myBatchChanges.get(key);
+    if (changes == null) {
+      changes = new ValueChanges<Value>();
+      myBatchChanges.put(key, changes);
+    }
+    return changes;
+  }
+
+  /**
+   * Applies the updates of several inputs under one acquisition of the write lock. The changes of the inputs to the same key
+   * are collected and passed to the storage together.
+   */
+  protected void updateWithMaps(@NotNull TIntArrayList inputIds,
+                                @NotNull List<UpdateData<Key, Value>> updateData) throws StorageException {
+    getWriteLock().lock();
+    try {
+      myBatchChanges = new LinkedHashMap<Key, ValueChanges<Value>>();
+      for (int i = 0; i < inputIds.size(); i++) {
+        updateWithMap(inputIds.get(i), updateData.get(i));
+      }
+
+      try {
+        ValueContainerImpl.ourDebugIndexInfo.set(myIndexId);
+        for (Map.Entry<Key, ValueChanges<Value>> entry : myBatchChanges.entrySet()) {
+          myStorage.updateValues(entry.getKey(), entry.getValue());
+        }
+      }
+      catch (ProcessCanceledException e) {
+        throw e;
+      }
+      catch (StorageException e) {
+        throw e;
+      }
+      catch (Throwable e) { // e.g. IOException, AssertionError
+        throw new StorageException(e);
+      }
+      finally {
+        ValueContainerImpl.ourDebugIndexInfo.set(null);
+      }
+    }
+    finally {
+      myBatchChanges = null;
+      getWriteLock().unlock();
+    }
+  }
+
   protected void updateWithMap(final int inputId,
                                @NotNull UpdateData<Key, Value> updateData) throws StorageException {
     getWriteLock().lock();
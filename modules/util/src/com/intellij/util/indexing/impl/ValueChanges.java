@@ -0,0 +1,82 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.util.indexing.StorageException;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the values of one key made by several inputs, in the order they are to be applied.
+ */
+public final class ValueChanges<Value> {
+  private static final Object REMOVED = new Object();
+
+  private final TIntArrayList myInputIds = new TIntArrayList();
+  private final List<Object> myValues = new ArrayList<Object>();
+  private boolean myHasRemovals;
+
+  public void addValue(int inputId, Value value) {
+    myInputIds.add(inputId);
+    myValues.add(value);
+  }
+
+  public void removeAllValues(int inputId) {
+    myInputIds.add(inputId);
+    myValues.add(REMOVED);
+    myHasRemovals = true;
+  }
+
+  public int size() {
+    return myInputIds.size();
+  }
+
+  public boolean hasRemovals() {
+    return myHasRemovals;
+  }
+
+  public void applyTo(@NotNull UpdatableValueContainer<Value> container) {
+    for (int i = 0; i < myInputIds.size(); i++) {
+      Object value = myValues.get(i);
+      if (value == REMOVED) {
+        container.removeAssociatedValue(myInputIds.get(i));
+      }
+      else {
+        //noinspection unchecked
+        container.addValue(myInputIds.get(i), (Value)value);
+      }
+    }
+  }
+
+  /**
+   * Applies the changes one by one, for the storages which can't do better.
+   */
+  public <Key> void applyTo(@NotNull Key key, @NotNull IndexStorage<Key, Value> storage) throws StorageException {
+    for (int i = 0; i < myInputIds.size(); i++) {
+      Object value = myValues.get(i);
+      if (value == REMOVED) {
+        storage.removeAllValues(key, myInputIds.get(i));
+      }
+      else {
+        //noinspection unchecked
+        storage.addValue(key, myInputIds.get(i), (Value)value);
+      }
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.util.indexing.ValueContainer;
 import com.intellij.util.indexing.containers.ChangeBufferingList;
 import com.intellij.util.indexing.containers.IdSet;
 import com.intellij.util.indexing.containers.IntIdsIterator;
+import com.intellij.util.indexing.containers.RoaringIdSet;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import gnu.trove.THashMap;
@@ -426,8 +427,13 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
         ChangeBufferingList originalInput = (ChangeBufferingList)fileSetObject;
         IntIdsIterator intIterator = originalInput.sortedIntIterator();
         if (DebugAssertions.DEBUG) DebugAssertions.assertTrue(intIterator.hasAscendingOrder());
+        RoaringIdSet roaringIds = RoaringIdSet.getIteratedSet(intIterator);
 
-        if (intIterator.size() == 1) {
+        if (roaringIds != null && intIterator.size() > 1) {
+          // large sets keep their chunks, 0 is neither an id nor a count
+          DataInputOutputUtil.writeINT(out, 0);
+          roaringIds.writeTo(out);
+        } else if (intIterator.size() == 1) {
           DataInputOutputUtil.writeINT(out, intIterator.next());
         } else {
           DataInputOutputUtil.writeINT(out, -intIterator.size());
@@ -484,6 +490,16 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
           if (idCountOrSingleValue > 0) {
             addValue(idCountOrSingleValue, value);
             if (mapping != null) mapping.associateFileIdToValue(idCountOrSingleValue, value);
+          } else if (idCountOrSingleValue == 0) {
+            RoaringIdSet ids = RoaringIdSet.readFrom(stream);
+            boolean newValue = getFileSetObject(value) == null;
+            if (newValue) attachFileSetForNewValue(value, new ChangeBufferingList(ids));
+
+            for (IntIdsIterator iterator = ids.intIterator(); (!newValue || mapping != null) && iterator.hasNext(); ) {
+              int id = iterator.next();
+              if (!newValue) addValue(id, value);
+              if (mapping != null) mapping.associateFileIdToValue(id, value);
+            }
           } else {
             idCountOrSingleValue = -idCountOrSingleValue;
             ChangeBufferingList changeBufferingList = ensureFileSetCapacityForValue(value, idCountOrSingleValue);
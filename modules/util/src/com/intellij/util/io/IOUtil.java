@@ -20,6 +20,7 @@ import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.util.SystemProperties;
+import com.intellij.util.text.ByteArrayCharSequence;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
@@ -159,6 +160,26 @@ public class IOUtil {
     return new String(chars, 0, len);
   }
 
+  /**
+   * Reads string written by {@link #writeUTF(DataOutput, String)} as {@link ByteArrayCharSequence} when it is ASCII,
+   * without creating intermediate char[] and String for short values.
+   */
+  @NotNull
+  public static CharSequence readUTFCharSequence(@NotNull DataInput storage) throws IOException {
+    int len = 0xFF & (int)storage.readByte();
+    if (len == 0xFF) {
+      String result = storage.readUTF();
+      if (LONGER_THAN_64K_MARKER.equals(result)) {
+        result = readString(storage);
+      }
+      return isAscii(result) ? ByteArrayCharSequence.convertToBytesIfAsciiString(result) : result;
+    }
+
+    byte[] bytes = new byte[len];
+    storage.readFully(bytes);
+    return ByteArrayCharSequence.createFromAsciiBytes(bytes); // short values are written only when they are ASCII
+  }
+
   public static boolean isAscii(@NotNull String str) {
     return isAscii((CharSequence)str);
   }
@@ -29,6 +29,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
@@ -48,6 +50,8 @@ public class PagedFileStorage implements Forceable {
 
   private static final int LOWER_LIMIT;
   private static final int UPPER_LIMIT;
+  private static final long ADAPTIVE_UPPER_LIMIT;
+  private static final boolean ADAPTIVE_CACHE_SIZE = SystemProperties.getBooleanProperty("idea.paged.storage.adaptive.cache", false);
 
   static {
     final int lower = 100;
@@ -57,10 +61,15 @@ public class PagedFileStorage implements Forceable {
     final long max = maxDirectMemory() - 2 * BUFFER_SIZE;
     LOWER_LIMIT = (int)Math.min(lower * MB, max);
     UPPER_LIMIT = (int)Math.min(Math.max(LOWER_LIMIT, SystemProperties.getIntProperty("idea.max.paged.storage.cache", upper) * MB), max);
+    ADAPTIVE_UPPER_LIMIT =
+      Math.min(Math.max(UPPER_LIMIT, (long)SystemProperties.getIntProperty("idea.max.adaptive.paged.storage.cache", 2 * upper) * MB), max);
 
-    LOG.info("lower=" + (LOWER_LIMIT / MB) + "; upper=" + (UPPER_LIMIT / MB) + "; buffer=" + (BUFFER_SIZE / MB) + "; max=" + (max / MB));
+    LOG.info("lower=" + (LOWER_LIMIT / MB) + "; upper=" + (UPPER_LIMIT / MB) + "; buffer=" + (BUFFER_SIZE / MB) + "; max=" + (max / MB) +
+             (ADAPTIVE_CACHE_SIZE ? "; adaptive upper=" + (ADAPTIVE_UPPER_LIMIT / MB) : ""));
   }
 
+  private static final long ourMaxDirectMemory = maxDirectMemory();
+
   private static long maxDirectMemory() {
     try {
       Class<?> aClass = Class.forName("sun.misc.VM");
@@ -80,6 +89,25 @@ public class PagedFileStorage implements Forceable {
     return Runtime.getRuntime().maxMemory();
   }
 
+  @Nullable private static final BufferPoolMXBean ourDirectBufferPool = directBufferPool();
+
+  @Nullable
+  private static BufferPoolMXBean directBufferPool() {
+    try {
+      for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+        if ("direct".equals(pool.getName())) return pool;
+      }
+    }
+    catch (Throwable ignore) { }
+    return null;
+  }
+
+  // called for page refaults under mySegmentsAccessLock, so the pool is looked up once
+  private static long freeDirectMemory() {
+    BufferPoolMXBean pool = ourDirectBufferPool;
+    return pool == null ? Long.MAX_VALUE : ourMaxDirectMemory - pool.getMemoryUsed();
+  }
+
   private static final int UNKNOWN_PAGE = -1;
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
@@ -103,6 +131,17 @@ public class PagedFileStorage implements Forceable {
   private int myStorageIndex;
   private final Object myLastAccessedBufferCacheLock = new Object();
 
+  // page cache statistics: recent hits are guarded by myLastAccessedBufferCacheLock, hits, evictions and mapped bytes by
+  // StorageLock.mySegmentsAccessLock, misses and mapping times by StorageLock.mySegmentsAllocationLock
+  private volatile long myRecentPageHits;
+  private volatile long myPageHits;
+  private volatile long myPageMisses;
+  private volatile long myPageEvictions;
+  private volatile long myMappedBytes;
+  private volatile long myMappingTimeNanos;
+  private volatile int myMappingFailures;
+  private volatile long myMappingFailureRecoveryNanos;
+
   private final byte[] myTypedIOBuffer;
   private volatile boolean isDirty;
   private final File myFile;
@@ -398,18 +437,21 @@ public class PagedFileStorage implements Forceable {
         ByteBuffer buf = myLastBuffer.getCachedBuffer();
         if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer);
+          myRecentPageHits++;
           return myLastBuffer;
         }
       } else if (myLastPage2 == page) {
         ByteBuffer buf = myLastBuffer2.getCachedBuffer();
         if (buf != null && myLastChangeCount2 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer2);
+          myRecentPageHits++;
           return myLastBuffer2;
         }
       } else if (myLastPage3 == page) {
         ByteBuffer buf = myLastBuffer3.getCachedBuffer();
         if (buf != null && myLastChangeCount3 == myStorageLockContext.myStorageLock.myMappingChangeCount) {
           if (modify) markDirty(myLastBuffer3);
+          myRecentPageHits++;
           return myLastBuffer3;
         }
       }
@@ -454,6 +496,24 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  @NotNull
+  public PageCacheStatistics getPageCacheStatistics() {
+    return new PageCacheStatistics(myFile, myRecentPageHits, myPageHits, myPageMisses, myPageEvictions, myMappedBytes, myMappingTimeNanos,
+                                   myMappingFailures, myMappingFailureRecoveryNanos);
+  }
+
+  /**
+   * @return statistics of the storages sharing the default page cache
+   */
+  @NotNull
+  public static List<PageCacheStatistics> getSharedPageCacheStatistics() {
+    return ourLock.getPageCacheStatistics();
+  }
+
+  public static long getSharedPageCacheSizeLimit() {
+    return ourLock.getCacheSizeLimit();
+  }
+
   private void markDirty(ByteBufferWrapper buffer) {
     if (!isDirty) isDirty = true;
     buffer.markDirty();
@@ -496,20 +556,56 @@ public class PagedFileStorage implements Forceable {
     private volatile long mySizeLimit;
     private volatile int myMappingChangeCount;
 
+    // adaptive cache size: the limit grows when recently evicted pages are mapped again and shrinks to the recent working set
+    private static final int ADAPTATION_PERIOD = 4096; // page requests
+    private static final int MAX_EVICTED_KEYS = 1024;
+    private final boolean myAdaptiveSize;
+    private final long myLowerLimit;
+    private final long myAdaptiveUpperLimit;
+    private final Map<Integer, Boolean> myRecentlyEvicted = new java.util.LinkedHashMap<Integer, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+        return size() > MAX_EVICTED_KEYS;
+      }
+    };
+    private boolean myEvicting;
+    private int myPeriodRequests;
+    private int myPeriodRefaults;
+    private int myWorkingSetPeriod = 1;
+    private long myWorkingSetSize;
+
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, ADAPTIVE_CACHE_SIZE, LOWER_LIMIT, UPPER_LIMIT, ADAPTIVE_UPPER_LIMIT);
+    }
+
+    StorageLock(boolean checkThreadAccess, boolean adaptiveSize, long lowerLimit, long sizeLimit, long adaptiveUpperLimit) {
       myDefaultStorageLockContext = new StorageLockContext(this, checkThreadAccess);
 
-      mySizeLimit = UPPER_LIMIT;
+      myAdaptiveSize = adaptiveSize;
+      myLowerLimit = Math.min(lowerLimit, sizeLimit);
+      myAdaptiveUpperLimit = Math.max(sizeLimit, adaptiveUpperLimit);
+      mySizeLimit = sizeLimit;
       mySegments = new LinkedHashMap<Integer, ByteBufferWrapper>(10, 0.75f, true) {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
           return mySize > mySizeLimit;
         }
 
+        @Override
+        public void doRemoveEldestEntry() {
+          myEvicting = true;
+          try {
+            super.doRemoveEldestEntry();
+          }
+          finally {
+            myEvicting = false;
+          }
+        }
+
         @Nullable
         @Override
         public ByteBufferWrapper remove(Object key) {
@@ -519,12 +615,78 @@ public class PagedFileStorage implements Forceable {
             ++myMappingChangeCount;
             mySegmentsToRemove.offer(wrapper);
             mySize -= wrapper.myLength;
+
+            PagedFileStorage owner = getRegisteredPagedFileStorageByIndex((Integer)key & FILE_INDEX_MASK);
+            if (owner != null) owner.myMappedBytes -= wrapper.myLength;
+            if (myEvicting) {
+              if (owner != null) owner.myPageEvictions++;
+              myRecentlyEvicted.put((Integer)key, Boolean.TRUE);
+            }
           }
           return wrapper;
         }
       };
     }
 
+    public long getCacheSizeLimit() {
+      return mySizeLimit;
+    }
+
+    public long getCacheSize() {
+      return mySize;
+    }
+
+    @NotNull
+    public List<PageCacheStatistics> getPageCacheStatistics() {
+      List<PageCacheStatistics> result = new ArrayList<PageCacheStatistics>();
+      for (PagedFileStorage storage : myIndex2Storage.values()) {
+        result.add(storage.getPageCacheStatistics());
+      }
+      return result;
+    }
+
+    // called under mySegmentsAccessLock for every page requested from the cache
+    private void pageRequested(@NotNull ByteBufferWrapper wrapper) {
+      if (wrapper.myWorkingSetPeriod != myWorkingSetPeriod) {
+        wrapper.myWorkingSetPeriod = myWorkingSetPeriod;
+        myWorkingSetSize += wrapper.myLength;
+      }
+
+      if (++myPeriodRequests < ADAPTATION_PERIOD) return;
+
+      if (myAdaptiveSize) {
+        long limit = mySizeLimit;
+        if (myPeriodRefaults == 0) {
+          long target = Math.max(myLowerLimit, myWorkingSetSize + myWorkingSetSize / 2);
+          if (limit > target) limit -= Math.max((limit - target) / 2, 1);
+        }
+        if (freeDirectMemory() < 2 * wrapper.myLength) {
+          limit -= wrapper.myLength;
+        }
+        limit = Math.max(myLowerLimit, limit);
+        if (limit != mySizeLimit) {
+          if (LOG.isDebugEnabled()) LOG.debug("page cache limit: " + mySizeLimit / MB + "MB -> " + limit / MB + "MB, working set: " + myWorkingSetSize / MB + "MB");
+          mySizeLimit = limit;
+        }
+      }
+
+      myPeriodRequests = 0;
+      myPeriodRefaults = 0;
+      myWorkingSetSize = 0;
+      ++myWorkingSetPeriod;
+    }
+
+    // called under mySegmentsAccessLock when the page was mapped
+    private void pageMapped(Integer key, @NotNull ByteBufferWrapper wrapper) {
+      if (myRecentlyEvicted.remove(key) == null) return;
+
+      // the page was evicted recently and is needed again: the working set doesn't fit into the cache
+      ++myPeriodRefaults;
+      if (myAdaptiveSize && mySizeLimit + wrapper.myLength <= myAdaptiveUpperLimit && freeDirectMemory() > 2 * wrapper.myLength) {
+        mySizeLimit += wrapper.myLength;
+      }
+    }
+
     public void lock() {
       myDefaultStorageLockContext.lock();
     }
@@ -554,11 +716,26 @@ public class PagedFileStorage implements Forceable {
       try {         // fast path
         mySegmentsAccessLock.lock();
         wrapper = mySegments.get(key);
-        if (wrapper != null) return wrapper;
+        if (wrapper != null) {
+          pageHit(key, wrapper);
+        }
       }
       finally {
         mySegmentsAccessLock.unlock();
       }
+      if (wrapper != null) {
+        if (mySize > mySizeLimit) {
+          // the limit was decreased
+          mySegmentsAllocationLock.lock();
+          try {
+            ensureSize(mySizeLimit);
+          }
+          finally {
+            mySegmentsAllocationLock.unlock();
+          }
+        }
+        return wrapper;
+      }
 
       mySegmentsAllocationLock.lock();
       try {
@@ -566,26 +743,39 @@ public class PagedFileStorage implements Forceable {
         mySegmentsAccessLock.lock();
         try {
           wrapper = mySegments.get(key);
-          if (wrapper != null) return wrapper;
+          if (wrapper != null) {
+            pageHit(key, wrapper);
+            return wrapper;
+          }
         } finally {
           mySegmentsAccessLock.unlock();
         }
 
-        long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
+        long started = System.nanoTime();
         wrapper = createValue(key);
+        long mappingTime = System.nanoTime() - started;
 
         if (IOStatistics.DEBUG) {
-          long finished = System.currentTimeMillis();
-          if (finished - started > IOStatistics.MIN_IO_TIME_TO_REPORT) {
+          long mappingTimeMs = mappingTime / 1000000;
+          if (mappingTimeMs > IOStatistics.MIN_IO_TIME_TO_REPORT) {
             IOStatistics.dump(
-                    "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
+                    "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + mappingTimeMs);
           }
         }
 
         mySegmentsAccessLock.lock();
         try {
+          pageMapped(key, wrapper);
           mySegments.put(key, wrapper);
           mySize += wrapper.myLength;
+
+          PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(key & FILE_INDEX_MASK);
+          if (owner != null) {
+            owner.myPageMisses++;
+            owner.myMappingTimeNanos += mappingTime;
+            owner.myMappedBytes += wrapper.myLength;
+          }
+          pageRequested(wrapper);
         }
         finally {
           mySegmentsAccessLock.unlock();
@@ -600,6 +790,12 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    private void pageHit(int key, @NotNull ByteBufferWrapper wrapper) {
+      PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(key & FILE_INDEX_MASK);
+      if (owner != null) owner.myPageHits++;
+      pageRequested(wrapper);
+    }
+
     private void disposeRemovedSegments() {
       if (mySegmentsToRemove.isEmpty()) return;
 
@@ -642,11 +838,13 @@ public class PagedFileStorage implements Forceable {
       int min = (int)Math.min(ownerLength - off, owner.myPageSize);
       ByteBufferWrapper wrapper = ByteBufferWrapper.readWriteDirect(owner.myFile, off, min);
       Throwable oome = null;
+      long recoveryStarted = 0;
       while (true) {
         try {
           // ensure it's allocated
           wrapper.getBuffer();
           if (oome != null) {
+            owner.myMappingFailureRecoveryNanos += System.nanoTime() - recoveryStarted;
             LOG.info("Successfully recovered OOME in memory mapping: -Xmx=" + Runtime.getRuntime().maxMemory() / MB + "MB " +
                      "new size limit: " + mySizeLimit / MB + "MB " +
                      "trying to allocate " + wrapper.myLength + " block");
@@ -657,12 +855,17 @@ public class PagedFileStorage implements Forceable {
           throw new MappingFailedException("Cannot map buffer", e);
         }
         catch (OutOfMemoryError e) {
+          if (oome == null) {
+            recoveryStarted = System.nanoTime();
+            owner.myMappingFailures++;
+          }
           oome = e;
-          if (mySizeLimit > LOWER_LIMIT) {
+          if (mySizeLimit > myLowerLimit) {
             mySizeLimit -= owner.myPageSize;
           }
           long newSize = mySize - owner.myPageSize;
           if (newSize < 0) {
+            owner.myMappingFailureRecoveryNanos += System.nanoTime() - recoveryStarted;
             LOG.info("Currently allocated:"+mySize);
             LOG.info("Mapping failed due to OOME. Current buffers: " + mySegments);
             LOG.info(oome);
@@ -816,4 +1019,84 @@ public class PagedFileStorage implements Forceable {
       myLock.unlock();
     }
   }
+
+  /**
+   * Snapshot of page cache usage by a storage file. Recent hits are served by the few last accessed pages of the storage,
+   * hits and misses are lookups in the shared cache, misses map (read) pages.
+   */
+  public static class PageCacheStatistics {
+    private final File myFile;
+    private final long myRecentHits;
+    private final long myHits;
+    private final long myMisses;
+    private final long myEvictions;
+    private final long myMappedBytes;
+    private final long myMappingTimeNanos;
+    private final int myMappingFailures;
+    private final long myMappingFailureRecoveryNanos;
+
+    PageCacheStatistics(@NotNull File file,
+                        long recentHits,
+                        long hits,
+                        long misses,
+                        long evictions,
+                        long mappedBytes,
+                        long mappingTimeNanos,
+                        int mappingFailures,
+                        long mappingFailureRecoveryNanos) {
+      myFile = file;
+      myRecentHits = recentHits;
+      myHits = hits;
+      myMisses = misses;
+      myEvictions = evictions;
+      myMappedBytes = mappedBytes;
+      myMappingTimeNanos = mappingTimeNanos;
+      myMappingFailures = mappingFailures;
+      myMappingFailureRecoveryNanos = mappingFailureRecoveryNanos;
+    }
+
+    @NotNull
+    public File getFile() {
+      return myFile;
+    }
+
+    public long getRecentHits() {
+      return myRecentHits;
+    }
+
+    public long getHits() {
+      return myHits;
+    }
+
+    public long getMisses() {
+      return myMisses;
+    }
+
+    public long getEvictions() {
+      return myEvictions;
+    }
+
+    public long getMappedBytes() {
+      return myMappedBytes;
+    }
+
+    public long getMappingTimeNanos() {
+      return myMappingTimeNanos;
+    }
+
+    public int getMappingFailures() {
+      return myMappingFailures;
+    }
+
+    public long getMappingFailureRecoveryNanos() {
+      return myMappingFailureRecoveryNanos;
+    }
+
+    @Override
+    public String toString() {
+      return myFile + ": recent hits=" + myRecentHits + ", hits=" + myHits + ", misses=" + myMisses + ", evictions=" + myEvictions +
+             ", mapped=" + myMappedBytes + ", mapping=" + myMappingTimeNanos / 1000000 + "ms" +
+             (myMappingFailures > 0 ? ", mapping failures=" + myMappingFailures + " recovered in " + myMappingFailureRecoveryNanos / 1000000 + "ms" : "");
+    }
+  }
 }
@@ -461,14 +461,19 @@ public abstract class PersistentEnumeratorBase<Data> implements Forceable, Close
   }
 
   public Data valueOf(int idx) throws IOException {
+    return valueOf(idx, myDataDescriptor);
+  }
+
+  // reads value with a descriptor of the same serialized format, e.g. to get a more compact in-memory representation
+  <T> T valueOf(int idx, @NotNull KeyDescriptor<T> descriptor) throws IOException {
     try {
 
       lockStorage();
       try {
         int addr = indexToAddr(idx);
 
-        if (myKeyStorage == null) return ((InlineKeyDescriptor<Data>)myDataDescriptor).fromInt(addr);
-        return myKeyStorage.read(addr, myDataDescriptor);
+        if (myKeyStorage == null) return ((InlineKeyDescriptor<T>)descriptor).fromInt(addr);
+        return myKeyStorage.read(addr, descriptor);
       }
       finally {
         unlockStorage();
@@ -25,8 +25,11 @@ import com.intellij.util.CommonProcessors;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.SystemProperties;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntLongHashMap;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -36,6 +39,10 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eugene Zhuravlev
@@ -56,6 +63,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // directly in storage used for offset and in case of btreeenumerator directly in btree leaf.
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.PersistentHashMap");
   private static final boolean myDoTrace = SystemProperties.getBooleanProperty("idea.trace.persistent.map", false);
+  private static final boolean ourBackgroundCompaction = SystemProperties.getBooleanProperty("idea.persistent.hash.map.background.compaction", true);
   private static final int DEAD_KEY_NUMBER_MASK = 0xFFFFFFFF;
 
   private final File myStorageFile;
@@ -86,7 +94,16 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int myLargeIndexWatermarkId;  // starting with this id we store offset in adjacent file in long format
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
-  private volatile boolean myBusyReading;
+  private final AtomicInteger myBusyReaders = new AtomicInteger();
+
+  // Value bytes are read and deserialized outside of enumerator monitor, so several threads can read the map concurrently.
+  // Reader registers itself under the monitor after value offset is resolved and unregisters without the monitor, so compaction / close
+  // (that replace or dispose value storage with the monitor held) only need to wait for already started value reads to finish.
+  private final AtomicInteger myValueStorageReaders = new AtomicInteger();
+  private final Object myValueStorageReadersLock = new Object(); // notified when the last value storage reader finishes
+  @Nullable private volatile BackgroundCompaction myBackgroundCompaction; // changed under myEnumerator
+  // set by constructor, background compaction is started by the first operation on the constructed map so this doesn't escape early
+  private volatile boolean myBackgroundCompactionPending;
 
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
@@ -190,7 +207,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (ourBackgroundCompaction) {
+          myBackgroundCompactionPending = true;
+        } else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -346,6 +367,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void put(Key key, Value value) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      startPendingBackgroundCompaction();
       doPut(key, value);
     }
   }
@@ -422,6 +444,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void appendData(Key key, @NotNull ValueDataAppender appender) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      startPendingBackgroundCompaction();
       doAppendData(key, appender);
     }
   }
@@ -477,90 +500,129 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   @Override
   public final Value get(Key key) throws IOException {
-    synchronized (myEnumerator) {
-      myBusyReading = true;
-      try {
-        return doGet(key);
-      } finally {
-        myBusyReading = false;
+    if (myBackgroundCompactionPending) {
+      synchronized (myEnumerator) {
+        startPendingBackgroundCompaction();
       }
     }
+    myBusyReaders.incrementAndGet();
+    try {
+      return doGet(key);
+    } finally {
+      myBusyReaders.decrementAndGet();
+    }
   }
 
   public boolean isBusyReading() {
-    return myBusyReading;
+    return myBusyReaders.get() > 0;
   }
 
   @Nullable
   protected Value doGet(Key key) throws IOException {
     final long valueOffset;
     final int id;
+    final PersistentHashMapValueStorage valueStorage;
 
-    myEnumerator.lockStorage();
-    try {
-      myAppendCache.remove(key);
+    synchronized (myEnumerator) {
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.remove(key);
 
-      if (myDirectlyStoreLongFileOffsetMode) {
-        valueOffset = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonnegativeValue(key);
-        if (myIntMapping) {
-          return (Value)(Integer)(int)valueOffset;
+        if (myDirectlyStoreLongFileOffsetMode) {
+          valueOffset = ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonnegativeValue(key);
+          if (myIntMapping) {
+            return (Value)(Integer)(int)valueOffset;
+          }
+          id = -1;
+        } else {
+          id = tryEnumerate(key);
+          if (id == PersistentEnumerator.NULL_ID) {
+            return null;
+          }
+
+          if (myIntMapping) {
+            return (Value)(Integer)myEnumerator.myStorage.getInt(id + myParentValueRefOffset);
+          }
+
+          valueOffset = readValueId(id);
         }
-        id = -1;
-      } else {
-        id = tryEnumerate(key);
-        if (id == PersistentEnumerator.NULL_ID) {
+
+        if (valueOffset == NULL_ADDR) {
           return null;
         }
+      } finally {
+        myEnumerator.unlockStorage();
+      }
+      valueStorage = myValueStorage;
+      myValueStorageReaders.incrementAndGet();
+    }
 
-        if (myIntMapping) {
-          return (Value)(Integer)myEnumerator.myStorage.getInt(id + myParentValueRefOffset);
-        }
+    final PersistentHashMapValueStorage.ReadResult readResult;
+    final Value valueRead;
+    try {
+      // .values file is append only, bytes at resolved offset stay intact until compaction that waits for us
+      readResult = valueStorage.readBytes(valueOffset);
 
-        valueOffset = readValueId(id);
+      DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
+      try {
+        valueRead = myValueExternalizer.read(input);
+      }
+      finally {
+        input.close();
       }
+    }
+    finally {
+      valueStorageReadFinished();
+    }
 
-      if (valueOffset == NULL_ADDR) {
-        return null;
+    if (valueStorage.performChunksCompaction(readResult.chunksCount, readResult.buffer.length)) {
+      synchronized (myEnumerator) {
+        compactChunksIfValueNotChanged(key, id, valueOffset, valueStorage, readResult, valueRead);
       }
-    } finally {
-      myEnumerator.unlockStorage();
     }
+    return valueRead;
+  }
 
-    final PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(valueOffset);
+  private void compactChunksIfValueNotChanged(Key key,
+                                              int id,
+                                              long valueOffset,
+                                              @NotNull PersistentHashMapValueStorage valueStorage,
+                                              @NotNull PersistentHashMapValueStorage.ReadResult readResult,
+                                              final Value valueRead) throws IOException {
+    if (valueStorage != myValueStorage) return; // map was compacted or closed meanwhile
 
-    DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
-    final Value valueRead;
+    myEnumerator.lockStorage();
     try {
-      valueRead = myValueExternalizer.read(input);
-    }
-    finally {
-      input.close();
+      // value could be rewritten by other thread while we were reading it, then it is not ours to compact
+      long currentValueOffset = myDirectlyStoreLongFileOffsetMode ?
+                                ((PersistentBTreeEnumerator<Key>)myEnumerator).getNonnegativeValue(key) :
+                                readValueId(id);
+      if (currentValueOffset != valueOffset) return;
+    } finally {
+      myEnumerator.unlockStorage();
     }
 
-    if (myValueStorage.performChunksCompaction(readResult.chunksCount, readResult.buffer.length)) {
-      long newValueOffset = myValueStorage.compactChunks(new ValueDataAppender() {
-        @Override
-        public void append(DataOutput out) throws IOException {
-          myValueExternalizer.save(out, valueRead);
-        }
-      }, readResult);
+    long newValueOffset = myValueStorage.compactChunks(new ValueDataAppender() {
+      @Override
+      public void append(DataOutput out) throws IOException {
+        myValueExternalizer.save(out, valueRead);
+      }
+    }, readResult);
 
-      myEnumerator.lockStorage();
-      try {
-        myEnumerator.markDirty(true);
+    myEnumerator.lockStorage();
+    try {
+      myEnumerator.markDirty(true);
 
-        if (myDirectlyStoreLongFileOffsetMode) {
-          ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonnegativeValue(key, newValueOffset);
-        } else {
-          updateValueId(id, newValueOffset, valueOffset, key, 0);
-        }
-        myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
-      } finally {
-        myEnumerator.unlockStorage();
+      if (myDirectlyStoreLongFileOffsetMode) {
+        ((PersistentBTreeEnumerator<Key>)myEnumerator).putNonnegativeValue(key, newValueOffset);
+      } else {
+        updateValueId(id, newValueOffset, valueOffset, key, 0);
       }
+      myLiveAndGarbageKeysCounter++;
+      myReadCompactionGarbageSize += readResult.buffer.length;
+    } finally {
+      myEnumerator.unlockStorage();
     }
-    return valueRead;
   }
 
   public final boolean containsMapping(Key key) throws IOException {
@@ -592,6 +654,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void remove(Key key) throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
+      startPendingBackgroundCompaction();
       doRemove(key);
     }
   }
@@ -662,6 +725,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public final void close() throws IOException {
     if(myDoTrace) LOG.info("Closed " + myStorageFile);
     synchronized (myEnumerator) {
+      myBackgroundCompactionPending = false;
+      abortBackgroundCompaction();
+      waitForValueStorageReaders();
       doClose();
     }
   }
@@ -708,80 +774,338 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   public void compact() throws IOException {
     if (myIsReadOnly) throw new IncorrectOperationException();
     synchronized (myEnumerator) {
-      force();
-      LOG.info("Compacting "+myEnumerator.myFile.getPath());
-      LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
-               ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
-               ", read compaction size:" + myReadCompactionGarbageSize);
+      myBackgroundCompactionPending = false;
+      abortBackgroundCompaction();
+      waitForValueStorageReaders();
+      doCompact();
+    }
+  }
 
-      final long now = System.currentTimeMillis();
+  // should be called under enumerator monitor, so no new value reads can start
+  private void waitForValueStorageReaders() {
+    boolean interrupted = false;
+    synchronized (myValueStorageReadersLock) {
+      while (myValueStorageReaders.get() > 0) {
+        try {
+          myValueStorageReadersLock.wait();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
 
-      final File oldDataFile = getDataFile(myEnumerator.myFile);
-      final String oldDataFileBaseName = oldDataFile.getName();
-      final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile, oldDataFileBaseName);
+  private void valueStorageReadFinished() {
+    if (myValueStorageReaders.decrementAndGet() == 0) {
+      synchronized (myValueStorageReadersLock) {
+        myValueStorageReadersLock.notifyAll();
+      }
+    }
+  }
 
-      final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath, myIsReadOnly);
-      myValueStorage.switchToCompactionMode();
-      myEnumerator.markDirty(true);
-      long sizeBefore = myValueStorage.getSize();
+  private void doCompact() throws IOException {
+    force();
+    LOG.info("Compacting "+myEnumerator.myFile.getPath());
+    LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
+             ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
+             ", read compaction size:" + myReadCompactionGarbageSize);
 
-      myLiveAndGarbageKeysCounter = 0;
-      myReadCompactionGarbageSize = 0;
+    final long now = System.currentTimeMillis();
 
-      try {
-        if (doNewCompact()) {
-          newCompact(newStorage);
-        } else {
-          traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-            @Override
-            public boolean process(final int keyId) throws IOException {
-              final long record = readValueId(keyId);
-              if (record != NULL_ADDR) {
-                PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
-                long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
-                updateValueId(keyId, value, record, null, getCurrentKey());
-                myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-              }
-              return true;
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String oldDataFileBaseName = oldDataFile.getName();
+    final File[] oldFiles = getFilesInDirectoryWithNameStartingWith(oldDataFile, oldDataFileBaseName);
+
+    final String newPath = getCompactedDataFilePath();
+    final PersistentHashMapValueStorage newStorage = myValueStorage.createWithSameOptions(newPath);
+    myValueStorage.switchToCompactionMode();
+    myEnumerator.markDirty(true);
+    long sizeBefore = myValueStorage.getSize();
+
+    myLiveAndGarbageKeysCounter = 0;
+    myReadCompactionGarbageSize = 0;
+
+    try {
+      if (doNewCompact()) {
+        newCompact(newStorage);
+      } else {
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            final long record = readValueId(keyId);
+            if (record != NULL_ADDR) {
+              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              long value = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+              updateValueId(keyId, value, record, null, getCurrentKey());
+              myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
             }
-          });
-        }
+            return true;
+          }
+        });
       }
-      finally {
-        newStorage.dispose();
+    }
+    finally {
+      newStorage.dispose();
+    }
+
+    replaceValueStorage(oldFiles, newPath);
+
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newStorage.getSize() + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+    myEnumerator.putMetaData2( myLargeIndexWatermarkId );
+    if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
+  }
+
+  @NotNull
+  private String getCompactedDataFilePath() {
+    return getDataFile(myEnumerator.myFile).getPath() + ".new";
+  }
+
+  private void replaceValueStorage(@Nullable File[] oldFiles, @NotNull String newPath) throws IOException {
+    myValueStorage.dispose();
+
+    if (oldFiles != null) {
+      for(File f:oldFiles) {
+        assert FileUtil.deleteWithRenaming(f);
       }
+    }
+
+    final File oldDataFile = getDataFile(myEnumerator.myFile);
+    final String oldDataFileBaseName = oldDataFile.getName();
+    File newDataFile = new File(newPath);
+    final String newBaseName = newDataFile.getName();
+    final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+
+    if (newFiles != null) {
+      File parentFile = newDataFile.getParentFile();
+
+      // newFiles should get the same names as oldDataFiles
+      for (File f : newFiles) {
+        String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
+        FileUtil.rename(f, new File(parentFile, nameAfterRename));
+      }
+    }
+
+    myValueStorage = myValueStorage.createWithSameOptions(oldDataFile.getPath());
+  }
+
+  private static class CompactionExecutorHolder {
+    private static final ExecutorService ourExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("PersistentHashMap compaction", 1);
+  }
+
+  private static class BackgroundCompactionCancelledException extends IOException {
+  }
 
-      myValueStorage.dispose();
+  private static class BackgroundCompaction {
+    private volatile boolean myCancelled;
+    private volatile long mySnapshotSize;
+    private volatile long myProcessedBytes;
+    private Future<?> myFuture;
+    private PersistentHashMapValueStorage myNewStorage;
+  }
 
-      if (oldFiles != null) {
-        for(File f:oldFiles) {
-          assert FileUtil.deleteWithRenaming(f);
+  /**
+   * Compacts value storage on background thread, the map stays available for reading and writing meanwhile.
+   * Live values present at compaction start are copied into new file slice by slice without holding the map lock; values that were
+   * changed during the copying are copied again under the lock right before the new file replaces the old one.
+   * Closing the map or calling {@link #compact()} aborts compaction in progress.
+   */
+  @NotNull
+  public Future<?> compactInBackground() {
+    if (myIsReadOnly) throw new IncorrectOperationException();
+    synchronized (myEnumerator) {
+      myBackgroundCompactionPending = false;
+      if (myBackgroundCompaction != null) return myBackgroundCompaction.myFuture;
+      final BackgroundCompaction compaction = new BackgroundCompaction();
+      myBackgroundCompaction = compaction;
+      compaction.myFuture = CompactionExecutorHolder.ourExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            doCompactInBackground(compaction);
+          }
+          catch (BackgroundCompactionCancelledException ignored) {
+          }
+          catch (Throwable t) {
+            LOG.info("Background compaction of " + myEnumerator.myFile.getPath() + " failed", t);
+            synchronized (myEnumerator) {
+              if (myBackgroundCompaction == compaction) abortBackgroundCompaction();
+            }
+            if (t instanceof Exception) throw (Exception)t;
+            throw (Error)t;
+          }
+          return null;
         }
+      });
+      return compaction.myFuture;
+    }
+  }
+
+  // should be called under enumerator monitor
+  private void startPendingBackgroundCompaction() {
+    if (myBackgroundCompactionPending) {
+      compactInBackground();
+    }
+  }
+
+  private void doCompactInBackground(@NotNull final BackgroundCompaction compaction) throws IOException {
+    final long started = System.currentTimeMillis();
+    final List<CompactionRecordInfo> infos = new ArrayList<CompactionRecordInfo>(10000);
+    final TIntLongHashMap snapshotValueAddresses = new TIntLongHashMap();
+    final PersistentHashMapValueStorage valueStorage;
+    final long sizeBefore;
+
+    synchronized (myEnumerator) {
+      if (compaction.myCancelled || myBackgroundCompaction != compaction) throw new BackgroundCompactionCancelledException();
+      force(); // values appended via appendData are in the file after this
+
+      sizeBefore = myValueStorage.getSize();
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            infos.add(new CompactionRecordInfo(getCurrentKey(), record, keyId));
+            snapshotValueAddresses.put(keyId, record);
+          }
+          return true;
+        }
+      });
+
+      String newPath = getCompactedDataFilePath();
+      deleteFilesStartingWith(new File(newPath));
+      compaction.myNewStorage = myValueStorage.createWithSameOptions(newPath);
+      compaction.mySnapshotSize = sizeBefore;
+      valueStorage = myValueStorage;
+      myValueStorageReaders.incrementAndGet();
+    }
+
+    LOG.info("Compacting " + myEnumerator.myFile.getPath() + " in background, snapshot of " + infos.size() + " keys, " + sizeBefore + " bytes");
+    try {
+      if (!infos.isEmpty()) {
+        valueStorage.compactValuesConcurrently(infos, compaction.myNewStorage, sizeBefore, new PersistentHashMapValueStorage.CompactionProgressListener() {
+          @Override
+          public void bytesProcessed(long processed, long total) throws IOException {
+            compaction.myProcessedBytes = processed;
+            if (compaction.myCancelled) throw new BackgroundCompactionCancelledException();
+          }
+        });
       }
+    }
+    finally {
+      valueStorageReadFinished();
+    }
 
-      final long newSize = newStorage.getSize();
+    final TIntObjectHashMap<CompactionRecordInfo> compactedInfos = new TIntObjectHashMap<CompactionRecordInfo>(infos.size());
+    for (CompactionRecordInfo info : infos) {
+      compactedInfos.put(info.address, info);
+    }
 
-      File newDataFile = new File(newPath);
-      final String newBaseName = newDataFile.getName();
-      final File[] newFiles = getFilesInDirectoryWithNameStartingWith(newDataFile, newBaseName);
+    synchronized (myEnumerator) {
+      if (compaction.myCancelled || myBackgroundCompaction != compaction) throw new BackgroundCompactionCancelledException();
+      force();
+      waitForValueStorageReaders();
 
-      if (newFiles != null) {
-        File parentFile = newDataFile.getParentFile();
+      final PersistentHashMapValueStorage newStorage = compaction.myNewStorage;
+      final List<CompactionRecordInfo> updates = new ArrayList<CompactionRecordInfo>(infos.size());
+      final int[] changedValues = new int[1];
 
-        // newFiles should get the same names as oldDataFiles
-        for (File f : newFiles) {
-          String nameAfterRename = StringUtil.replace(f.getName(), newBaseName, oldDataFileBaseName);
-          FileUtil.rename(f, new File(parentFile, nameAfterRename));
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        @Override
+        public boolean process(final int keyId) throws IOException {
+          final long record = readValueId(keyId);
+          if (record != NULL_ADDR) {
+            CompactionRecordInfo update = new CompactionRecordInfo(getCurrentKey(), record, keyId);
+            CompactionRecordInfo compacted = compactedInfos.get(keyId);
+            if (compacted != null && snapshotValueAddresses.get(keyId) == record) {
+              update.newValueAddress = compacted.newValueAddress;
+            } else { // value was changed after snapshot
+              PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(record);
+              update.newValueAddress = newStorage.appendBytes(readResult.buffer, 0, readResult.buffer.length, 0);
+              ++changedValues[0];
+            }
+            updates.add(update);
+          }
+          return true;
+        }
+      });
+      newStorage.dispose();
+      compaction.myNewStorage = null;
+
+      final File oldDataFile = getDataFile(myEnumerator.myFile);
+      final String newBaseName = new File(getCompactedDataFilePath()).getName();
+      final File[] oldFiles = oldDataFile.getParentFile().listFiles(new FileFilter() {
+        @Override
+        public boolean accept(File pathname) {
+          return pathname.getName().startsWith(oldDataFile.getName()) && !pathname.getName().startsWith(newBaseName);
         }
+      });
+
+      myEnumerator.markDirty(true);
+      myLiveAndGarbageKeysCounter = 0;
+      myReadCompactionGarbageSize = 0;
+
+      try {
+        myEnumerator.lockStorage();
+        for (CompactionRecordInfo update : updates) {
+          updateValueId(update.address, update.newValueAddress, update.valueAddress, null, update.key);
+          myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
+        }
+      }
+      finally {
+        myEnumerator.unlockStorage();
       }
 
-      myValueStorage = PersistentHashMapValueStorage.create(oldDataFile.getPath(), myIsReadOnly);
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize + " bytes in " + (System.currentTimeMillis() - now) + "ms.");
+      replaceValueStorage(oldFiles, getCompactedDataFilePath());
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
-      myEnumerator.putMetaData2( myLargeIndexWatermarkId );
-      if (myDoTrace) LOG.assertTrue(myEnumerator.isDirty());
+      myEnumerator.putMetaData2(myLargeIndexWatermarkId);
+      myBackgroundCompaction = null;
+
+      LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in background:" + sizeBefore + " bytes into " + newStorage.getSize() +
+               " bytes in " + (System.currentTimeMillis() - started) + "ms, values changed meanwhile:" + changedValues[0]);
+    }
+  }
+
+  // should be called under enumerator monitor
+  private void abortBackgroundCompaction() {
+    BackgroundCompaction compaction = myBackgroundCompaction;
+    if (compaction == null) return;
+    compaction.myCancelled = true;
+    waitForValueStorageReaders(); // background copying notices cancellation after the current slice
+
+    PersistentHashMapValueStorage newStorage = compaction.myNewStorage;
+    if (newStorage != null) {
+      newStorage.dispose();
+      compaction.myNewStorage = null;
     }
+    deleteFilesStartingWith(new File(getCompactedDataFilePath()));
+    myBackgroundCompaction = null;
+  }
+
+  /**
+   * @return estimated part of value storage occupied by removed or overwritten values, in [0, 1] range
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      double deadKeysRatio = liveKeys + deadKeys > 0 ? (double)deadKeys / (liveKeys + deadKeys) : 0;
+      long fileSize = myValueStorage.getSize();
+      double readCompactionRatio = fileSize > 0 ? (double)myReadCompactionGarbageSize / fileSize : 0;
+      return Math.min(1, Math.max(deadKeysRatio, readCompactionRatio));
+    }
+  }
+
+  /**
+   * @return progress of copying values by background compaction in [0, 1] range, or -1 if there is no background compaction running
+   */
+  public double getBackgroundCompactionProgress() {
+    BackgroundCompaction compaction = myBackgroundCompaction;
+    if (compaction == null) return -1;
+    long snapshotSize = compaction.mySnapshotSize;
+    return snapshotSize > 0 ? (double)compaction.myProcessedBytes / snapshotSize : 0;
   }
 
   private static File[] getFilesInDirectoryWithNameStartingWith(File fileFromDirectory, final String baseFileName) {
@@ -20,6 +20,7 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ThreadLocalCachedValue;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.util.SystemProperties;
@@ -185,11 +186,46 @@ public class PersistentHashMapValueStorage {
     dataOutputStream.write(data, offset, dataLength);
   }
 
-  private final byte[] myBuffer = new byte[1024];
+  private static final int READ_HEADER_BUFFER_LENGTH = 1024;
+  // used by compaction only, which runs exclusively
+  private final byte[] myBuffer = new byte[READ_HEADER_BUFFER_LENGTH];
   private final UnsyncByteArrayInputStream myBufferStreamWrapper = new UnsyncByteArrayInputStream(myBuffer);
   private final DataInputStream myBufferDataStreamWrapper = new DataInputStream(myBufferStreamWrapper);
 
   public long compactValues(List<PersistentHashMap.CompactionRecordInfo> infos, PersistentHashMapValueStorage storage) throws IOException {
+    return compactValues(infos, storage, myCompactionModeReader, mySize, null);
+  }
+
+  interface CompactionProgressListener {
+    /**
+     * Called after each read slice, may throw to stop compaction
+     */
+    void bytesProcessed(long processed, long total) throws IOException;
+  }
+
+  /**
+   * Same as {@link #compactValues(List, PersistentHashMapValueStorage)} but does not switch this storage to compaction mode: values
+   * preceding {@code snapshotSize} are read with the same (thread safe) accessors as {@link #readBytes(long)} use, so the storage can be
+   * read and appended by other threads meanwhile. Should not be called concurrently with another compaction of this storage.
+   */
+  long compactValuesConcurrently(List<PersistentHashMap.CompactionRecordInfo> infos,
+                                 PersistentHashMapValueStorage storage,
+                                 long snapshotSize,
+                                 @Nullable CompactionProgressListener listener) throws IOException {
+    RAReader reader = createConcurrentReader();
+    try {
+      return compactValues(infos, storage, reader, snapshotSize, listener);
+    }
+    finally {
+      reader.dispose();
+    }
+  }
+
+  private long compactValues(List<PersistentHashMap.CompactionRecordInfo> infos,
+                             PersistentHashMapValueStorage storage,
+                             RAReader reader,
+                             long size,
+                             @Nullable CompactionProgressListener listener) throws IOException {
     PriorityQueue<PersistentHashMap.CompactionRecordInfo> records = new PriorityQueue<PersistentHashMap.CompactionRecordInfo>(
             infos.size(), new Comparator<PersistentHashMap.CompactionRecordInfo>() {
       @Override
@@ -207,14 +243,14 @@ public class PersistentHashMapValueStorage {
     final byte[] buffer = new byte[fileBufferLength + maxRecordHeader];
     byte[] recordBuffer = {};
 
-    long lastReadOffset = mySize;
+    long lastReadOffset = size;
     long lastConsumedOffset = lastReadOffset;
     long allRecordsStart = 0;
     int fragments = 0;
     int newFragments = 0;
     int allRecordsLength = 0;
     byte[] stuffFromPreviousRecord = null;
-    int bytesRead = (int)(mySize - (mySize / fileBufferLength) * fileBufferLength);
+    int bytesRead = (int)(size - (size / fileBufferLength) * fileBufferLength);
     long retained = 0;
     final long softMaxRetainedLimit = 10 * 1024* 1024;
     final int blockSizeToWriteWhenSoftMaxRetainedLimitIsHit = 1024;
@@ -222,13 +258,13 @@ public class PersistentHashMapValueStorage {
 
     while(lastReadOffset != 0) {
       final long readStartOffset = lastReadOffset - bytesRead;
-      myCompactionModeReader.get(readStartOffset, buffer, 0, bytesRead); // buffer contains [readStartOffset, readStartOffset + bytesRead)
+      reader.get(readStartOffset, buffer, 0, bytesRead); // buffer contains [readStartOffset, readStartOffset + bytesRead)
 
       while(!records.isEmpty()) {
         final PersistentHashMap.CompactionRecordInfo info = records.peek();
         if (info.valueAddress >= readStartOffset) {
           if (info.valueAddress >= lastReadOffset) {
-            throw new IOException("Value storage is corrupted: value file size:" + mySize + ", readStartOffset:"+ readStartOffset + ", record address:"+info.valueAddress+"; file: "+myPath);
+            throw new IOException("Value storage is corrupted: value file size:" + size + ", readStartOffset:"+ readStartOffset + ", record address:"+info.valueAddress+"; file: "+myPath);
           }
           // record start is inside our buffer
 
@@ -242,7 +278,7 @@ public class PersistentHashMapValueStorage {
           if (stuffFromPreviousRecord != null && (fileBufferLength - recordStartInBuffer) < maxRecordHeader) {
             // add additional bytes to read offset / size
             if (allRecordsStart != 0) {
-              myCompactionModeReader.get(allRecordsStart, buffer, bytesRead, maxRecordHeader);
+              reader.get(allRecordsStart, buffer, bytesRead, maxRecordHeader);
             } else {
               final int maxAdditionalBytes = Math.min(stuffFromPreviousRecord.length, maxRecordHeader);
               for(int i = 0; i < maxAdditionalBytes; ++i) {
@@ -253,7 +289,7 @@ public class PersistentHashMapValueStorage {
 
           int available = myBufferStreamWrapper.available();
           chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
-          prevChunkAddress = readPrevChunkAddress(info.valueAddress);
+          prevChunkAddress = readPrevChunkAddress(info.valueAddress, myBufferDataStreamWrapper);
           dataOffset = available - myBufferStreamWrapper.available();
 
           byte[] b;
@@ -281,7 +317,7 @@ public class PersistentHashMapValueStorage {
                                                     Math.max((int)(info.valueAddress + dataOffset + chunkSize - lastReadOffset), 0));
           if (chunkSizeOutOfBuffer > 0) {
             if (allRecordsStart != 0) {
-              myCompactionModeReader.get(allRecordsStart, b, chunkSize - chunkSizeOutOfBuffer, chunkSizeOutOfBuffer);
+              reader.get(allRecordsStart, b, chunkSize - chunkSizeOutOfBuffer, chunkSizeOutOfBuffer);
             } else {
               int offsetInStuffFromPreviousRecord = Math.max((int)(info.valueAddress + dataOffset - lastReadOffset), 0);
               // stuffFromPreviousRecord starts from lastReadOffset
@@ -336,11 +372,25 @@ public class PersistentHashMapValueStorage {
 
       lastReadOffset -= bytesRead;
       bytesRead = fileBufferLength;
+      if (listener != null) listener.bytesProcessed(size - lastReadOffset, size);
     }
 
     return fragments | ((long)newFragments << 32);
   }
 
+  private static class ReadHeaderBuffer {
+    private final byte[] myBuffer = new byte[READ_HEADER_BUFFER_LENGTH];
+    private final UnsyncByteArrayInputStream myStreamWrapper = new UnsyncByteArrayInputStream(myBuffer);
+    private final DataInputStream myDataStreamWrapper = new DataInputStream(myStreamWrapper);
+  }
+
+  private static final ThreadLocalCachedValue<ReadHeaderBuffer> ourReadHeaderBuffer = new ThreadLocalCachedValue<ReadHeaderBuffer>() {
+    @Override
+    protected ReadHeaderBuffer create() {
+      return new ReadHeaderBuffer();
+    }
+  };
+
   public static class ReadResult {
     public final byte[] buffer;
     public final int chunksCount;
@@ -359,7 +409,9 @@ public class PersistentHashMapValueStorage {
   private int myLastReportedChunksCount;
 
   /**
-   * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
+   * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed.
+   * Safe to be called concurrently with other reads and appends: header buffer is per thread and file accessors are used with positional
+   * access under their own monitor.
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
     forceAppender(myPath);
@@ -370,6 +422,10 @@ public class PersistentHashMapValueStorage {
     int chunkCount = 0;
 
     byte[] result = null;
+    final ReadHeaderBuffer readHeaderBuffer = ourReadHeaderBuffer.getValue();
+    final byte[] headerBuffer = readHeaderBuffer.myBuffer;
+    final UnsyncByteArrayInputStream headerStreamWrapper = readHeaderBuffer.myStreamWrapper;
+    final DataInputStream headerDataStreamWrapper = readHeaderBuffer.myDataStreamWrapper;
     RAReader reader = myCompactionModeReader;
     FileAccessorCache.Handle<RAReader> readerHandle = null;
     if (reader == null) {
@@ -380,31 +436,31 @@ public class PersistentHashMapValueStorage {
     try {
       while (chunk != 0) {
         if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
-        int len = (int)Math.min(myBuffer.length, mySize - chunk);
+        int len = (int)Math.min(headerBuffer.length, mySize - chunk);
 
         if (myCompressedAppendableFile != null) {
           DataInputStream stream = myCompressedAppendableFile.getStream(chunk);
-          stream.readFully(myBuffer, 0, len);
+          stream.readFully(headerBuffer, 0, len);
           stream.close();
         } else {
-          reader.get(chunk, myBuffer, 0, len);
+          reader.get(chunk, headerBuffer, 0, len);
         }
-        myBufferStreamWrapper.init(myBuffer, 0, len);
+        headerStreamWrapper.init(headerBuffer, 0, len);
 
-        final int chunkSize = DataInputOutputUtil.readINT(myBufferDataStreamWrapper);
+        final int chunkSize = DataInputOutputUtil.readINT(headerDataStreamWrapper);
         if (chunkSize < 0) {
           throw new IOException("Value storage corrupted: negative chunk size: "+chunkSize);
         }
-        final long prevChunkAddress = readPrevChunkAddress(chunk);
-        final int headerOffset = len - myBufferStreamWrapper.available();
+        final long prevChunkAddress = readPrevChunkAddress(chunk, headerDataStreamWrapper);
+        final int headerOffset = len - headerStreamWrapper.available();
 
         byte[] b = new byte[(result != null ? result.length:0) + chunkSize];
         if (result != null) System.arraycopy(result, 0, b, b.length - result.length, result.length);
         result = b;
 
         checkPreconditions(result, chunkSize, 0);
-        if (chunkSize < myBuffer.length - headerOffset) {
-          System.arraycopy(myBuffer, headerOffset, result, 0, chunkSize);
+        if (chunkSize < headerBuffer.length - headerOffset) {
+          System.arraycopy(headerBuffer, headerOffset, result, 0, chunkSize);
         } else {
           if (myCompressedAppendableFile != null) {
             DataInputStream stream = myCompressedAppendableFile.getStream(chunk + headerOffset);
@@ -493,8 +549,8 @@ public class PersistentHashMapValueStorage {
     if (myExceptionalIOCancellationCallback != null) myExceptionalIOCancellationCallback.checkCancellation();
   }
 
-  private long readPrevChunkAddress(long chunk) throws IOException {
-    final long prevOffsetDiff = DataInputOutputUtil.readLONG(myBufferDataStreamWrapper);
+  private long readPrevChunkAddress(long chunk, DataInput headerInput) throws IOException {
+    final long prevOffsetDiff = DataInputOutputUtil.readLONG(headerInput);
     if(prevOffsetDiff >= chunk) {
       throw new IOException("readPrevChunkAddress:" + chunk + "," + prevOffsetDiff + "," + mySize + "," + myFile);
     }
@@ -566,6 +622,25 @@ public class PersistentHashMapValueStorage {
     }
   }
 
+  private RAReader createConcurrentReader() {
+    if (myCompressedAppendableFile != null) {
+      return new RAReader() {
+        @Override
+        public void get(long addr, byte[] dst, int off, int len) throws IOException {
+          DataInputStream stream = myCompressedAppendableFile.getStream(addr);
+          stream.readFully(dst, off, len);
+          stream.close();
+        }
+
+        @Override
+        public void dispose() {
+        }
+      };
+    }
+    forceAppender(myPath);
+    return useSingleFileDescriptor ? new ReaderOverRandomAccessFileCache(myPath) : new FileReader(myFile);
+  }
+
   public void switchToCompactionMode() {
     ourReadersCache.remove(myPath);
 
@@ -591,6 +666,22 @@ public class PersistentHashMapValueStorage {
     myCompactionMode = true;
   }
 
+  /**
+   * Creates storage for another file with the same creation time options as this one has
+   */
+  PersistentHashMapValueStorage createWithSameOptions(final String path) throws IOException {
+    ExceptionalIOCancellationCallback previousCallback = CreationTimeOptions.EXCEPTIONAL_IO_CANCELLATION.get();
+    Boolean previousCompactChunksWithValueDeserialization = CreationTimeOptions.COMPACT_CHUNKS_WITH_VALUE_DESERIALIZATION.get();
+    CreationTimeOptions.EXCEPTIONAL_IO_CANCELLATION.set(myExceptionalIOCancellationCallback);
+    CreationTimeOptions.COMPACT_CHUNKS_WITH_VALUE_DESERIALIZATION.set(myCompactChunksWithValueDeserialization ? Boolean.TRUE : null);
+    try {
+      return create(path, myReadOnly);
+    } finally {
+      CreationTimeOptions.EXCEPTIONAL_IO_CANCELLATION.set(previousCallback);
+      CreationTimeOptions.COMPACT_CHUNKS_WITH_VALUE_DESERIALIZATION.set(previousCompactChunksWithValueDeserialization);
+    }
+  }
+
   public static PersistentHashMapValueStorage create(final String path, boolean readOnly) throws IOException {
     if (readOnly) CreationTimeOptions.READONLY.set(Boolean.TRUE);
     try {
@@ -618,8 +709,11 @@ public class PersistentHashMapValueStorage {
 
       try {
         RandomAccessFileWithLengthAndSizeTracking file = fileAccessor.get();
-        file.seek(addr);
-        file.read(dst, off, len);
+        // the same file accessor is shared between concurrent readers and appender, seek + read must be atomic
+        synchronized (file) {
+          file.seek(addr);
+          file.read(dst, off, len);
+        }
       } finally {
         fileAccessor.release();
       }
@@ -643,7 +737,7 @@ public class PersistentHashMapValueStorage {
     }
 
     @Override
-    public void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
+    public synchronized void get(final long addr, final byte[] dst, final int off, final int len) throws IOException {
       myFile.seek(addr);
       myFile.read(dst, off, len);
     }
@@ -672,8 +766,10 @@ public class PersistentHashMapValueStorage {
       RandomAccessFileWithLengthAndSizeTracking file = fileAccessor.get();
 
       try {
-        file.seek(file.length());
-        file.write(b, off, len);
+        synchronized (file) {
+          file.seek(file.length());
+          file.write(b, off, len);
+        }
       }
       finally {
         fileAccessor.release();
@@ -15,9 +15,13 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.text.ByteArrayCharSequence;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 
@@ -76,6 +80,19 @@ public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<Str
     return myCache != null ? myCache.valueOf(idx) : super.valueOf(idx);
   }
 
+  /**
+   * Same as {@link #valueOf(int)}, but ASCII values are read directly into {@link ByteArrayCharSequence}
+   * without creating intermediate {@link String}, so callers keeping names in memory don't need to convert them.
+   */
+  @Nullable
+  public CharSequence valueOfAsCharSequence(int idx) throws IOException {
+    if (myCache != null) {
+      String value = myCache.valueOf(idx);
+      return value != null ? ByteArrayCharSequence.convertToBytesIfAsciiString(value) : null;
+    }
+    return myEnumerator.valueOf(idx, CharSequenceDescriptor.INSTANCE);
+  }
+
   @Override
   public void close() throws IOException {
     super.close();
@@ -86,4 +103,28 @@ public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<Str
   public void markCorrupted() {
     myEnumerator.markCorrupted();
   }
+
+  private static class CharSequenceDescriptor implements KeyDescriptor<CharSequence> {
+    private static final CharSequenceDescriptor INSTANCE = new CharSequenceDescriptor();
+
+    @Override
+    public void save(@NotNull DataOutput out, CharSequence value) throws IOException {
+      IOUtil.writeUTF(out, value.toString());
+    }
+
+    @Override
+    public CharSequence read(@NotNull DataInput in) throws IOException {
+      return IOUtil.readUTFCharSequence(in);
+    }
+
+    @Override
+    public int getHashCode(CharSequence value) {
+      return StringUtil.stringHashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(CharSequence val1, CharSequence val2) {
+      return StringUtil.equals(val1, val2);
+    }
+  }
 }
@@ -38,10 +38,7 @@ public class UnsyncByteArrayOutputStream extends OutputStream {
   @Override
   public void write(int b) {
     int newcount = myCount + 1;
-    if (newcount > myBuffer.length || myIsShared) {
-      myBuffer = Arrays.copyOf(myBuffer, newcount > myBuffer.length ? Math.max(myBuffer.length << 1, newcount):myBuffer.length);
-      myIsShared = false;
-    }
+    ensureCapacity(newcount);
     myBuffer[myCount] = (byte)b;
     myCount = newcount;
   }
@@ -55,12 +52,16 @@ public class UnsyncByteArrayOutputStream extends OutputStream {
       return;
     }
     int newcount = myCount + len;
+    ensureCapacity(newcount);
+    System.arraycopy(b, off, myBuffer, myCount, len);
+    myCount = newcount;
+  }
+
+  protected void ensureCapacity(int newcount) {
     if (newcount > myBuffer.length || myIsShared) {
-      myBuffer = Arrays.copyOf(myBuffer, newcount > myBuffer.length ? Math.max(myBuffer.length << 1, newcount): myBuffer.length);
+      myBuffer = Arrays.copyOf(myBuffer, newcount > myBuffer.length ? Math.max(myBuffer.length << 1, newcount) : myBuffer.length);
       myIsShared = false;
     }
-    System.arraycopy(b, off, myBuffer, myCount, len);
-    myCount = newcount;
   }
 
   public void writeTo(OutputStream out) throws IOException {
@@ -65,6 +65,12 @@ class RefCountingRecordsTable extends AbstractRecordsTable {
     return count == 0;
   }
 
+  public void setRefCount(int record, int count) {
+    markDirty();
+
+    myStorage.putInt(getOffset(record, REF_COUNT_OFFSET), count);
+  }
+
   public int getRefCount(int record) {
     return myStorage.getInt(getOffset(record, REF_COUNT_OFFSET));
   }
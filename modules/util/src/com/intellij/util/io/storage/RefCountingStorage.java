@@ -19,25 +19,21 @@
  */
 package com.intellij.util.io.storage;
 
-import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
-import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class RefCountingStorage extends AbstractStorage {
   private final Map<Integer, Future<?>> myPendingWriteRequests = ContainerUtil.newConcurrentMap();
@@ -50,7 +46,7 @@ public class RefCountingStorage extends AbstractStorage {
             .newNamedThreadFactory("RefCountingStorage write content helper"));
   }
 
-  private final boolean myDoNotZipCaches;
+  @Nullable private final StorageCompressionCodec myCodec;
   private static final int MAX_PENDING_WRITE_SIZE = 20 * 1024 * 1024;
 
   public RefCountingStorage(String path) throws IOException {
@@ -62,24 +58,40 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, boolean doNotZipCaches) throws IOException {
+    this(path, capacityAllocationPolicy, doNotZipCaches ? null : StorageCompressionCodec.DEFLATE);
+  }
+
+  /**
+   * @param codec compression of new records, records are stored as is (without codec id) if it is null
+   */
+  public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, @Nullable StorageCompressionCodec codec)
+    throws IOException {
     super(path, capacityAllocationPolicy);
-    myDoNotZipCaches = doNotZipCaches;
+    myCodec = codec;
+  }
+
+  @Nullable
+  public StorageCompressionCodec getCodec() {
+    return myCodec;
   }
 
   @Override
   public DataInputStream readStream(int record) throws IOException {
-    if (myDoNotZipCaches) return super.readStream(record);
-    BufferExposingByteArrayOutputStream stream = internalReadStream(record);
-    return new DataInputStream(new UnsyncByteArrayInputStream(stream.getInternalBuffer(), 0, stream.size()));
+    if (myCodec == null) return super.readStream(record);
+    ByteSequence bytes = internalReadBytes(record);
+    return new DataInputStream(new UnsyncByteArrayInputStream(bytes.getBytes(), bytes.getOffset(), bytes.getOffset() + bytes.getLength()));
   }
 
   @Override
   protected byte[] readBytes(int record) throws IOException {
-    if (myDoNotZipCaches) return super.readBytes(record);
-    return internalReadStream(record).toByteArray();
+    if (myCodec == null) return super.readBytes(record);
+    ByteSequence bytes = internalReadBytes(record);
+    if (bytes.getOffset() == 0 && bytes.getLength() == bytes.getBytes().length) return bytes.getBytes();
+    return Arrays.copyOfRange(bytes.getBytes(), bytes.getOffset(), bytes.getOffset() + bytes.getLength());
   }
 
-  private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
+  @NotNull
+  private ByteSequence internalReadBytes(int record) throws IOException {
     waitForPendingWriteForRecord(record);
     byte[] result;
 
@@ -87,37 +99,7 @@ public class RefCountingStorage extends AbstractStorage {
       result = super.readBytes(record);
     }
 
-    InflaterInputStream in = new CustomInflaterInputStream(result);
-    try {
-      final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
-      StreamUtil.copyStreamContent(in, outputStream);
-      return outputStream;
-    }
-    finally {
-      in.close();
-    }
-  }
-
-  private static class CustomInflaterInputStream extends InflaterInputStream {
-    public CustomInflaterInputStream(byte[] compressedData) {
-      super(new UnsyncByteArrayInputStream(compressedData), new Inflater(), 1);
-      // force to directly use compressed data, this ensures less round trips with native extraction code and copy streams
-      this.buf = compressedData;
-      this.len = -1;
-    }
-
-    @Override
-    protected void fill() throws IOException {
-      if (len >= 0) throw new EOFException();
-      len = buf.length;
-      inf.setInput(buf, 0, len);
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.close();
-      inf.end(); // custom inflater need explicit dispose
-    }
+    return StorageCompressionCodec.decode(result, 0, result.length);
   }
 
   private void waitForPendingWriteForRecord(int record) {
@@ -140,7 +122,7 @@ public class RefCountingStorage extends AbstractStorage {
   @Override
   public void writeBytes(final int record, final ByteSequence bytes, final boolean fixedSize) throws IOException {
 
-    if (myDoNotZipCaches) {
+    if (myCodec == null) {
       super.writeBytes(record, bytes, fixedSize);
       return;
     }
@@ -150,12 +132,12 @@ public class RefCountingStorage extends AbstractStorage {
     synchronized (myLock) {
       myPendingWriteRequestsSize += bytes.getLength();
       if (myPendingWriteRequestsSize > MAX_PENDING_WRITE_SIZE) {
-        zipAndWrite(bytes, record, fixedSize);
+        compressAndWrite(bytes, record, fixedSize);
       } else {
         myPendingWriteRequests.put(record, myPendingWriteRequestsExecutor.submit(new Callable<Object>() {
           @Override
           public Object call() throws IOException {
-            zipAndWrite(bytes, record, fixedSize);
+            compressAndWrite(bytes, record, fixedSize);
             return null;
           }
         }));
@@ -163,27 +145,17 @@ public class RefCountingStorage extends AbstractStorage {
     }
   }
 
-  private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
-    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    DeflaterOutputStream out = new DeflaterOutputStream(s);
-    try {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-    }
-    finally {
-      out.close();
-    }
+  private void compressAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
+    assert myCodec != null;
+    ByteSequence compressed = myCodec.encode(bytes);
 
     synchronized (myLock) {
-      doWrite(record, fixedSize, s);
+      super.writeBytes(record, compressed, fixedSize);
       myPendingWriteRequestsSize -= bytes.getLength();
       myPendingWriteRequests.remove(record);
     }
   }
 
-  private void doWrite(int record, boolean fixedSize, BufferExposingByteArrayOutputStream s) throws IOException {
-    super.writeBytes(record, new ByteSequence(s.getInternalBuffer(), 0, s.size()), fixedSize);
-  }
-
   @Override
   protected AbstractRecordsTable createRecordsTable(PagePool pool, File recordsFile) throws IOException {
     return new RefCountingRecordsTable(recordsFile, pool);
@@ -223,6 +195,20 @@ public class RefCountingStorage extends AbstractStorage {
     }
   }
 
+  /**
+   * Sets the reference count of the record, unlike acquiring and releasing it may be repeated, e.g. when replaying modifications
+   * which may have been flushed already. The record is deleted if the count is 0 and {@code completely} is true, unless it's deleted.
+   */
+  public void setRefCount(int record, int count, boolean completely) throws IOException {
+    waitForPendingWriteForRecord(record);
+    synchronized (myLock) {
+      ((RefCountingRecordsTable)myRecordsTable).setRefCount(record, count);
+      if (count == 0 && completely && myRecordsTable.getSize(record) != -1) {
+        doDeleteRecord(record);
+      }
+    }
+  }
+
   public int getRefCount(int record) {
     waitForPendingWriteForRecord(record);
     synchronized (myLock) {
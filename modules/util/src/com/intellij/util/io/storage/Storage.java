@@ -19,7 +19,9 @@
  */
 package com.intellij.util.io.storage;
 
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.util.io.PagePool;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +50,20 @@ public class Storage extends AbstractStorage {
     }
   }
 
+  // appends record bytes to the given buffer, returns the number of appended bytes
+  public int readBytes(int record, @NotNull BufferExposingByteArrayOutputStream out) throws IOException {
+    synchronized (myLock) {
+      final int length = myRecordsTable.getSize(record);
+      if (length == 0) return 0;
+      assert length > 0;
+
+      final long address = myRecordsTable.getAddress(record);
+      int offset = out.reserve(length);
+      myDataTable.readBytes(address, out.getInternalBuffer(), offset, length);
+      return length;
+    }
+  }
+
   public void deleteRecord(int record) throws IOException {
     assert record > 0;
     synchronized (myLock) {
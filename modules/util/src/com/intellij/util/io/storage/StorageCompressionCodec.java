@@ -0,0 +1,271 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.util.io.Bits;
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of {@link RefCountingStorage} records.
+ * <p/>
+ * Every encoded record starts with the id of the codec it was written with, so the codec of a storage may be changed without
+ * rebuilding it: old records stay readable and are recompressed with the new codec when rewritten.
+ * Ids (and the data format of the codec with the given id) must never change once released, add a new codec instead.
+ */
+public abstract class StorageCompressionCodec {
+  private static final int MIN_COMPRESSION_LENGTH = 64;
+  // no codec inflates a byte to more than this, deflate's limit is the highest: 258 bytes per 2 bits of the longest match
+  private static final int MAX_COMPRESSION_RATIO = 1032;
+
+  // encode and decode store and return the bytes as is right after the codec id, compression here is a plain copy
+  public static final StorageCompressionCodec NONE = new StorageCompressionCodec(0, "none") {
+    @Override
+    protected void compress(@NotNull ByteSequence bytes, @NotNull BufferExposingByteArrayOutputStream out) {
+      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+    }
+
+    @Override
+    protected void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull byte[] result) throws IOException {
+      if (length != result.length) throw new IOException("Unexpected uncompressed length " + length + " vs " + result.length);
+      System.arraycopy(bytes, offset, result, 0, length);
+    }
+  };
+
+  public static final StorageCompressionCodec DEFLATE = new DeflateCodec(1, "deflate", null);
+
+  public static final StorageCompressionCodec SNAPPY = new StorageCompressionCodec(2, "snappy") {
+    @Override
+    protected void compress(@NotNull ByteSequence bytes, @NotNull BufferExposingByteArrayOutputStream out) {
+      int maxLength = Snappy.maxCompressedLength(bytes.getLength());
+      int offset = out.reserve(maxLength);
+      int length = Snappy.compress(bytes.getBytes(), bytes.getOffset(), bytes.getLength(), out.getInternalBuffer(), offset);
+      out.backOff(maxLength - length);
+    }
+
+    @Override
+    protected void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull byte[] result) throws IOException {
+      try {
+        int resultLength = Snappy.uncompress(bytes, offset, length, result, 0);
+        if (resultLength != result.length) throw new IOException("Unexpected uncompressed length " + resultLength + " vs " + result.length);
+      }
+      catch (CorruptionException e) {
+        throw new IOException(e);
+      }
+    }
+  };
+
+  /**
+   * Deflate primed with a dictionary of common source text: a license header and frequent tokens of Java-like languages.
+   * Most of cached contents are small source files which are too short for deflate to find repetitions in, the dictionary
+   * gives it something to refer to from the very first bytes.
+   */
+  public static final StorageCompressionCodec DEFLATE_WITH_SOURCE_DICTIONARY = new DeflateCodec(3, "deflate-dictionary", createSourceDictionary());
+
+  private static final StorageCompressionCodec[] ourCodecs = {NONE, DEFLATE, SNAPPY, DEFLATE_WITH_SOURCE_DICTIONARY};
+
+  private final byte myId;
+  private final String myName;
+
+  protected StorageCompressionCodec(int id, @NotNull String name) {
+    myId = (byte)id;
+    myName = name;
+  }
+
+  public int getId() {
+    return myId;
+  }
+
+  @NotNull
+  public String getName() {
+    return myName;
+  }
+
+  @Override
+  public String toString() {
+    return myName;
+  }
+
+  // appends compressed representation of the bytes
+  protected abstract void compress(@NotNull ByteSequence bytes, @NotNull BufferExposingByteArrayOutputStream out) throws IOException;
+
+  // fills the result, its length is the length of uncompressed data
+  protected abstract void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull byte[] result) throws IOException;
+
+  @NotNull
+  public ByteSequence encode(@NotNull ByteSequence bytes) throws IOException {
+    int length = bytes.getLength();
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(length / 2 + 16);
+
+    if (this != NONE && length >= MIN_COMPRESSION_LENGTH) {
+      out.write(myId);
+      int lengthOffset = out.reserve(4);
+      Bits.putInt(out.getInternalBuffer(), lengthOffset, length);
+      compress(bytes, out);
+      if (out.size() < length) return new ByteSequence(out.getInternalBuffer(), 0, out.size());
+      out.reset();
+    }
+
+    // not worth compression
+    out.write(NONE.myId);
+    out.write(bytes.getBytes(), bytes.getOffset(), length);
+    return new ByteSequence(out.getInternalBuffer(), 0, out.size());
+  }
+
+  @NotNull
+  public static ByteSequence decode(@NotNull byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) return new ByteSequence(bytes, offset, 0);
+    StorageCompressionCodec codec = forId(bytes[offset]);
+    if (codec == null) throw new IOException("Unknown compression codec: " + bytes[offset]);
+    if (codec == NONE) return new ByteSequence(bytes, offset + 1, length - 1);
+
+    int headerLength = 5; // codec id and uncompressed length
+    if (length < headerLength) throw new IOException("Corrupted record of " + codec + " codec, length " + length);
+    int uncompressedLength = Bits.getInt(bytes, offset + 1);
+    if (uncompressedLength < 0 || uncompressedLength > (long)(length - headerLength) * MAX_COMPRESSION_RATIO) {
+      throw new IOException("Corrupted record of " + codec + " codec, length " + length + ", uncompressed length " + uncompressedLength);
+    }
+    byte[] result = new byte[uncompressedLength];
+    codec.decompress(bytes, offset + headerLength, length - headerLength, result);
+    return new ByteSequence(result);
+  }
+
+  @Nullable
+  public static StorageCompressionCodec forId(int id) {
+    for (StorageCompressionCodec codec : ourCodecs) {
+      if (codec.myId == id) return codec;
+    }
+    return null;
+  }
+
+  @Nullable
+  public static StorageCompressionCodec forName(@NotNull String name) {
+    for (StorageCompressionCodec codec : ourCodecs) {
+      if (codec.myName.equalsIgnoreCase(name)) return codec;
+    }
+    return null;
+  }
+
+  @NotNull
+  public static StorageCompressionCodec[] getCodecs() {
+    return ourCodecs.clone();
+  }
+
+  private static class DeflateCodec extends StorageCompressionCodec {
+    private final byte[] myDictionary;
+
+    DeflateCodec(int id, @NotNull String name, @Nullable byte[] dictionary) {
+      super(id, name);
+      myDictionary = dictionary;
+    }
+
+    @Override
+    protected void compress(@NotNull ByteSequence bytes, @NotNull BufferExposingByteArrayOutputStream out) {
+      Deflater deflater = new Deflater();
+      try {
+        if (myDictionary != null) deflater.setDictionary(myDictionary);
+        deflater.setInput(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+        deflater.finish();
+        while (!deflater.finished()) {
+          int chunk = Math.max(bytes.getLength() / 4, 512);
+          int offset = out.reserve(chunk);
+          out.backOff(chunk - deflater.deflate(out.getInternalBuffer(), offset, chunk));
+        }
+      }
+      finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    protected void decompress(@NotNull byte[] bytes, int offset, int length, @NotNull byte[] result) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(bytes, offset, length);
+        int resultLength = 0;
+        while (resultLength < result.length) {
+          int inflated = inflater.inflate(result, resultLength, result.length - resultLength);
+          if (inflated == 0) {
+            if (!inflater.needsDictionary()) break; // finished or truncated input, the length check below reports it
+            if (myDictionary == null) throw new IOException("Record of " + this + " codec requires a dictionary");
+            inflater.setDictionary(myDictionary);
+          }
+          resultLength += inflated;
+        }
+        if (resultLength != result.length) throw new IOException("Unexpected uncompressed length " + resultLength + " vs " + result.length);
+      }
+      catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      catch (IllegalArgumentException e) { // dictionary mismatch
+        throw new IOException(e);
+      }
+      finally {
+        inflater.end();
+      }
+    }
+  }
+
+  // deflate prefers the most frequent strings at the end of the dictionary
+  @NotNull
+  private static byte[] createSourceDictionary() {
+    String dictionary =
+      " * Copyright 2000-2017 JetBrains s.r.o.\n" +
+      " *\n" +
+      " * Licensed under the Apache License, Version 2.0 (the \"License\");\n" +
+      " * you may not use this file except in compliance with the License.\n" +
+      " * You may obtain a copy of the License at\n" +
+      " *\n" +
+      " * http://www.apache.org/licenses/LICENSE-2.0\n" +
+      " *\n" +
+      " * Unless required by applicable law or agreed to in writing, software\n" +
+      " * distributed under the License is distributed on an \"AS IS\" BASIS,\n" +
+      " * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.\n" +
+      " * See the License for the specific language governing permissions and\n" +
+      " * limitations under the License.\n" +
+      " */\n" +
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+      "<project xmlns=\"http://maven.apache.org/POM/4.0.0\" <dependency> <groupId> <artifactId> <version>\n" +
+      "function (var undefined def self None elif lambda typeof window document " +
+      "synchronized volatile transient abstract interface extends implements instanceof throws throw " +
+      "switch case default: break; continue; catch (Exception e) { finally { while (for (int i = 0; i < size(); i++) {" +
+      "StringBuilder Integer Object Override Deprecated Nullable NotNull IOException RuntimeException " +
+      "length() equals(Object hashCode() toString() get(set(add(isEmpty() " +
+      "java.util.List; java.util.Map; java.util.ArrayList; java.io.IOException; " +
+      "import java.util.*;\n" +
+      "import org.jetbrains.annotations.NotNull;\nimport org.jetbrains.annotations.Nullable;\n" +
+      "import com.intellij.openapi.\n" +
+      "import java.\n" +
+      "/**\n   * @param @return\n   */\n  " +
+      "  @Nullable\n  @NotNull\n  @Override\n  public String get" +
+      "    if (== null) {\n      return null;\n    }\n" +
+      "    } else {\n    return false;\n    return true;\n" +
+      "    }\n  }\n\n  private static final String final int new this.\n" +
+      "  protected void public void public static boolean " +
+      "  public static final class public class private final ";
+    return dictionary.getBytes(Charset.forName("UTF-8"));
+  }
+}
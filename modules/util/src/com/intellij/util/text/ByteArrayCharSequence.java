@@ -58,6 +58,14 @@ public class ByteArrayCharSequence implements CharSequenceWithStringHash {
     return StringFactory.createShared(CharArrayUtil.fromSequence(this, 0, length()));
   }
 
+  /**
+   * Wraps given 7-bit ASCII bytes without copying them, the array must not be modified afterwards.
+   */
+  @NotNull
+  public static CharSequence createFromAsciiBytes(@NotNull byte[] bytes) {
+    return bytes.length == 0 ? "" : new ByteArrayCharSequence(bytes);
+  }
+
   @NotNull
   public static CharSequence convertToBytesIfAsciiString(@NotNull String name) {
     return convertToBytesIfAsciiString((CharSequence)name);
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the occurrences of the patterns of several {@link StringSearcher}s in one pass over the text (Aho-Corasick automaton).
+ * The occurrences found are the same as the ones of {@link StringSearcher#findAllOccurrences(CharSequence)} of each searcher,
+ * the searchers are expected to be {@link #isApplicable(StringSearcher) applicable}.
+ */
+public class MultiStringSearcher {
+  private static final int ALPHABET = 128;
+
+  private final StringSearcher[] mySearchers;
+  private final boolean myFoldCase;
+  // transitions of the automaton, ALPHABET per state, the missing ones are resolved via the failure links
+  private final int[] myTransitions;
+  // indices of the searchers whose patterns end at the state, or null
+  private final int[][] myMatches;
+
+  public MultiStringSearcher(@NotNull List<StringSearcher> searchers) {
+    mySearchers = searchers.toArray(new StringSearcher[searchers.size()]);
+    boolean foldCase = false;
+    int maxStates = 1;
+    for (StringSearcher searcher : mySearchers) {
+      if (!isApplicable(searcher)) {
+        throw new IllegalArgumentException("Not applicable: " + searcher);
+      }
+      foldCase |= !searcher.isCaseSensitive();
+      maxStates += searcher.getPatternLength();
+    }
+    myFoldCase = foldCase;
+
+    int[] transitions = new int[maxStates * ALPHABET];
+    int[][] matches = new int[maxStates][];
+    int states = 1;
+    for (int i = 0; i < mySearchers.length; i++) {
+      String pattern = mySearchers[i].getPattern();
+      int state = 0;
+      for (int j = 0; j < pattern.length(); j++) {
+        int c = normalize(pattern.charAt(j));
+        int next = transitions[state * ALPHABET + c];
+        if (next == 0) {
+          next = states++;
+          transitions[state * ALPHABET + c] = next;
+        }
+        state = next;
+      }
+      matches[state] = append(matches[state], i);
+    }
+
+    // breadth-first, so the failure state is complete when a state is reached
+    int[] failures = new int[states];
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    for (int c = 0; c < ALPHABET; c++) {
+      int next = transitions[c];
+      if (next != 0) queue[tail++] = next;
+    }
+    while (head < tail) {
+      int state = queue[head++];
+      int[] inherited = matches[failures[state]];
+      if (inherited != null) {
+        for (int index : inherited) {
+          matches[state] = append(matches[state], index);
+        }
+      }
+      for (int c = 0; c < ALPHABET; c++) {
+        int next = transitions[state * ALPHABET + c];
+        int failureNext = transitions[failures[state] * ALPHABET + c];
+        if (next != 0) {
+          failures[next] = failureNext;
+          queue[tail++] = next;
+        }
+        else {
+          transitions[state * ALPHABET + c] = failureNext;
+        }
+      }
+    }
+
+    myTransitions = transitions;
+    myMatches = matches;
+  }
+
+  /**
+   * @return the searchers, in the order of the occurrences returned by {@link #findAllOccurrences}
+   */
+  @NotNull
+  public List<StringSearcher> getSearchers() {
+    return Arrays.asList(mySearchers);
+  }
+
+  /**
+   * @return whether the searcher can be a part of a multi searcher: it looks forward for an ASCII pattern
+   */
+  public static boolean isApplicable(@NotNull StringSearcher searcher) {
+    if (!searcher.isForwardDirection()) return false;
+    String pattern = searcher.getPattern();
+    for (int i = 0; i < pattern.length(); i++) {
+      if (pattern.charAt(i) >= ALPHABET) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the occurrences of the pattern of each searcher in the range of the text, in the order of the searchers
+   */
+  @NotNull
+  public int[][] findAllOccurrences(@NotNull CharSequence text, int start, int end) {
+    if (start > end || end > text.length()) {
+      throw new IllegalArgumentException("start: " + start + ", end: " + end + ", length: " + text.length());
+    }
+    TIntArrayList[] occurrences = new TIntArrayList[mySearchers.length];
+    for (int i = 0; i < occurrences.length; i++) {
+      occurrences[i] = new TIntArrayList();
+    }
+
+    char[] chars = CharArrayUtil.fromSequenceWithoutCopying(text);
+    int offset = 0;
+    if (chars == null) {
+      chars = CharArrayUtil.fromSequence(text, start, end);
+      offset = start;
+    }
+    scan(chars, start - offset, end - offset, offset, text, occurrences);
+
+    int[][] result = new int[occurrences.length][];
+    for (int i = 0; i < occurrences.length; i++) {
+      result[i] = occurrences[i].toNativeArray();
+    }
+    return result;
+  }
+
+  private void scan(@NotNull char[] chars, int start, int end, int offset, @NotNull CharSequence text, @NotNull TIntArrayList[] occurrences) {
+    int[] transitions = myTransitions;
+    int[][] matches = myMatches;
+    int state = 0;
+    if (myFoldCase) {
+      for (int i = start; i < end; i++) {
+        int c = normalize(chars[i]);
+        state = c < ALPHABET ? transitions[state * ALPHABET + c] : 0;
+        if (matches[state] != null) addMatches(matches[state], i + 1 + offset, text, occurrences);
+      }
+    }
+    else {
+      // the hot loop, kept free of calls
+      for (int i = start; i < end; i++) {
+        char c = chars[i];
+        state = c < ALPHABET ? transitions[state * ALPHABET + c] : 0;
+        if (matches[state] != null) addMatches(matches[state], i + 1 + offset, text, occurrences);
+      }
+    }
+  }
+
+  private void addMatches(@NotNull int[] searcherIndices, int matchEnd, @NotNull CharSequence text, @NotNull TIntArrayList[] occurrences) {
+    for (int index : searcherIndices) {
+      StringSearcher searcher = mySearchers[index];
+      int matchStart = matchEnd - searcher.getPatternLength();
+      // the automaton ignores case if any of the searchers does
+      if (myFoldCase && searcher.isCaseSensitive() && !StringUtil.startsWith(text, matchStart, searcher.getPattern())) continue;
+      occurrences[index].add(matchStart);
+    }
+  }
+
+  private int normalize(char c) {
+    return myFoldCase ? StringUtil.toLowerCase(StringUtil.toUpperCase(c)) : c;
+  }
+
+  @NotNull
+  private static int[] append(int[] array, int value) {
+    if (array == null) return new int[]{value};
+    int[] result = new int[array.length + 1];
+    System.arraycopy(array, 0, result, 0, array.length);
+    result[array.length] = value;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return mySearchers.length + " patterns";
+  }
+}
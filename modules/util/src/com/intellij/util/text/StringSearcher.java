@@ -68,13 +68,24 @@ public class StringSearcher {
     }
     myPatternArray = chars;
     myPatternLength = myPatternArray.length;
-    Arrays.fill(mySearchTable, -1);
+    fillSearchTable();
     myJavaIdentifier = lookForJavaIdentifiersOnlyIfPossible &&
                        (pattern.isEmpty() ||
                         Character.isJavaIdentifierPart(pattern.charAt(0)) &&
                         Character.isJavaIdentifierPart(pattern.charAt(pattern.length() - 1)));
   }
 
+  // the shift of the last pattern char to the next position, eagerly filled so the scan loop is free of writes
+  private void fillSearchTable() {
+    Arrays.fill(mySearchTable, myPatternLength);
+    for (int index = 0; index < myPatternLength - 1; index++) {
+      char c = myPatternArray[myForwardDirection ? index : myPatternLength - 1 - index];
+      if (c < 128) {
+        mySearchTable[c] = myPatternLength - index - 1;
+      }
+    }
+  }
+
   @NotNull
   public String getPattern(){
     return myPattern;
@@ -132,6 +143,9 @@ public class StringSearcher {
       }
       int start = _start;
       int end = _end - myPatternLength;
+      if (myCaseSensitive && textArray != null) {
+        return scanCaseSensitive(textArray, start, end);
+      }
 
       while (start <= end) {
         int i = myPatternLength - 1;
@@ -149,18 +163,7 @@ public class StringSearcher {
           }
         }
 
-        int step = lastChar < 128 ? mySearchTable[lastChar] : 1;
-
-        if (step <= 0) {
-          int index;
-          for (index = myPatternLength - 2; index >= 0; index--) {
-            if (myPatternArray[index] == lastChar) break;
-          }
-          step = myPatternLength - index - 1;
-          mySearchTable[lastChar] = step;
-        }
-
-        start += step;
+        start += lastChar < 128 ? mySearchTable[lastChar] : 1;
       }
       return -1;
     }
@@ -181,23 +184,30 @@ public class StringSearcher {
           if (i < 0) return end - start - myPatternLength + 1;
         }
 
-        int step = lastChar < 128 ? mySearchTable[lastChar] : 1;
-
-        if (step <= 0) {
-          int index;
-          for (index = myPatternLength - 2; index >= 0; index--) {
-            if (myPatternArray[myPatternLength - 1 - index] == lastChar) break;
-          }
-          step = myPatternLength - index - 1;
-          mySearchTable[lastChar] = step;
-        }
-
-        start += step;
+        start += lastChar < 128 ? mySearchTable[lastChar] : 1;
       }
       return -1;
     }
   }
 
+  // the plain array loop without the case normalization, which the JIT compiles best
+  private int scanCaseSensitive(@NotNull char[] text, int start, int end) {
+    char[] pattern = myPatternArray;
+    int[] searchTable = mySearchTable;
+    int last = myPatternLength - 1;
+    char lastPatternChar = pattern[last];
+    while (start <= end) {
+      char lastChar = text[start + last];
+      if (lastChar == lastPatternChar) {
+        int i = last - 1;
+        while (i >= 0 && text[start + i] == pattern[i]) i--;
+        if (i < 0) return start;
+      }
+      start += lastChar < 128 ? searchTable[lastChar] : 1;
+    }
+    return -1;
+  }
+
   private char normalizedCharAt(@NotNull CharSequence text, @Nullable char[] textArray, int index) {
     char lastChar = textArray != null ? textArray[index] : text.charAt(index);
     if (myCaseSensitive) {
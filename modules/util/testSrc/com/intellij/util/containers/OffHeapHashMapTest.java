@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.containers;
+
+import gnu.trove.*;
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OffHeapHashMapTest extends TestCase {
+  public void testLongLongMapAgreesWithTrove() {
+    OffHeapLongLongHashMap map = new OffHeapLongLongHashMap(0, Long.MIN_VALUE);
+    TLongLongHashMap expected = new TLongLongHashMap();
+    try {
+      Random random = new Random(0);
+      for (int i = 0; i < 200000; i++) {
+        // small key range to get collisions, removals and re-insertions; key 0 is special
+        long key = random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(5000) - 100;
+        long value = random.nextLong();
+        switch (random.nextInt(4)) {
+          case 0:
+          case 1:
+            assertEquals(expected.containsKey(key) ? expected.get(key) : Long.MIN_VALUE, map.put(key, value));
+            expected.put(key, value);
+            break;
+          case 2:
+            assertEquals(expected.containsKey(key) ? expected.get(key) : Long.MIN_VALUE, map.remove(key));
+            expected.remove(key);
+            break;
+          default:
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+            assertEquals(expected.containsKey(key) ? expected.get(key) : Long.MIN_VALUE, map.get(key));
+        }
+        assertEquals(expected.size(), map.size());
+      }
+
+      final TLongLongHashMap iterated = new TLongLongHashMap();
+      map.forEachEntry(new TLongLongProcedure() {
+        @Override
+        public boolean execute(long key, long value) {
+          assertFalse(iterated.containsKey(key));
+          iterated.put(key, value);
+          return true;
+        }
+      });
+      assertEquals(expected, iterated);
+      assertEquals(expected.size(), map.keys().length);
+
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertFalse(map.containsKey(0));
+      assertEquals(Long.MIN_VALUE, map.get(42));
+    }
+    finally {
+      map.dispose();
+    }
+    assertEquals(0, map.getMemoryFootprint());
+  }
+
+  public void testIntLongMapAgreesWithTrove() {
+    OffHeapIntLongHashMap map = new OffHeapIntLongHashMap(10);
+    TIntLongHashMap expected = new TIntLongHashMap();
+    try {
+      Random random = new Random(0);
+      for (int i = 0; i < 200000; i++) {
+        int key = random.nextInt(3) == 0 ? random.nextInt() : random.nextInt(5000) - 100;
+        long value = random.nextLong();
+        if (random.nextInt(3) == 0) {
+          assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.remove(key));
+          expected.remove(key);
+        }
+        else {
+          assertEquals(expected.containsKey(key) ? expected.get(key) : -1, map.put(key, value));
+          expected.put(key, value);
+        }
+        assertEquals(expected.size(), map.size());
+      }
+
+      for (int key : expected.keys()) {
+        assertEquals(expected.get(key), map.get(key));
+      }
+      for (int key : map.keys()) {
+        assertTrue(expected.containsKey(key));
+      }
+      OffHeapIntLongHashMap presized = new OffHeapIntLongHashMap(5000);
+      try {
+        assertEquals(12L * 8192, presized.getMemoryFootprint());
+      }
+      finally {
+        presized.dispose();
+      }
+    }
+    finally {
+      map.dispose();
+    }
+  }
+
+  public void testConcurrentMap() throws InterruptedException {
+    final ConcurrentOffHeapLongLongHashMap map = new ConcurrentOffHeapLongLongHashMap();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final int perThread = 50000;
+    Thread[] threads = new Thread[4];
+    try {
+      for (int t = 0; t < threads.length; t++) {
+        final int thread = t;
+        threads[t] = new Thread("OffHeapHashMapTest " + t) {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; i < perThread; i++) {
+                long key = (long)i * threads.length + thread;
+                assertEquals(-1, map.putIfAbsent(key, key * 2));
+                assertEquals(key * 2, map.putIfAbsent(key, 0));
+                if (i % 2 == 0) assertEquals(key * 2, map.remove(key));
+                assertEquals(i % 2 == 0 ? -1 : key * 2, map.get(key));
+              }
+            }
+            catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        };
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+      assertEquals(threads.length * perThread / 2, map.size());
+      final int[] count = {0};
+      map.forEachEntry(new TLongLongProcedure() {
+        @Override
+        public boolean execute(long key, long value) {
+          assertEquals(key * 2, value);
+          count[0]++;
+          return true;
+        }
+      });
+      assertEquals(map.size(), count[0]);
+    }
+    finally {
+      map.dispose();
+    }
+  }
+
+  // the maps grow through many rehashes, and their slots stay at least a third full
+  public void testLargeMapsAgreeWithTrove() {
+    int size = 1000000;
+    long[] keys = new long[size];
+    Random random = new Random(0);
+    for (int i = 0; i < size; i++) {
+      keys[i] = random.nextLong();
+    }
+
+    TLongLongHashMap trove = new TLongLongHashMap();
+    for (int i = 0; i < size; i++) trove.put(keys[i], i);
+    long expected = 0;
+    for (int i = size - 1; i >= 0; i--) expected += trove.get(keys[i]);
+
+    OffHeapLongLongHashMap offHeap = new OffHeapLongLongHashMap();
+    try {
+      for (int i = 0; i < size; i++) offHeap.put(keys[i], i);
+      assertEquals(trove.size(), offHeap.size());
+      long sum = 0;
+      for (int i = size - 1; i >= 0; i--) sum += offHeap.get(keys[i]);
+      assertEquals(expected, sum);
+      assertTrue(String.valueOf(offHeap.getMemoryFootprint()), offHeap.getMemoryFootprint() <= 16L * 3 * size);
+    }
+    finally {
+      offHeap.dispose();
+    }
+
+    TIntLongHashMap troveInt = new TIntLongHashMap();
+    for (int i = 0; i < size; i++) troveInt.put((int)keys[i], i);
+    long expectedInt = 0;
+    for (int i = size - 1; i >= 0; i--) expectedInt += troveInt.get((int)keys[i]);
+
+    OffHeapIntLongHashMap offHeapInt = new OffHeapIntLongHashMap();
+    try {
+      for (int i = 0; i < size; i++) offHeapInt.put((int)keys[i], i);
+      assertEquals(troveInt.size(), offHeapInt.size());
+      long sum = 0;
+      for (int i = size - 1; i >= 0; i--) sum += offHeapInt.get((int)keys[i]);
+      assertEquals(expectedInt, sum);
+      assertTrue(String.valueOf(offHeapInt.getMemoryFootprint()), offHeapInt.getMemoryFootprint() <= 12L * 3 * size);
+    }
+    finally {
+      offHeapInt.dispose();
+    }
+
+    ConcurrentOffHeapLongLongHashMap concurrent = new ConcurrentOffHeapLongLongHashMap();
+    try {
+      for (int i = 0; i < size; i++) concurrent.put(keys[i], i);
+      assertEquals(trove.size(), concurrent.size());
+      long sum = 0;
+      for (int i = size - 1; i >= 0; i--) sum += concurrent.get(keys[i]);
+      assertEquals(expected, sum);
+    }
+    finally {
+      concurrent.dispose();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.Condition;
+import com.intellij.util.indexing.containers.RoaringIdSet;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+public class InvertedIndexUtilTest extends TestCase {
+  private final Index myIndex = new Index();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // the words of the inputs 1..100 are their divisors below 10, the value is the input parity
+    for (int id = 1; id <= 100; id++) {
+      for (int divisor = 2; divisor < 10; divisor++) {
+        if (id % divisor == 0) myIndex.add("d" + divisor, id % 2, id);
+      }
+    }
+  }
+
+  public void testIntersection() throws StorageException {
+    assertIds(ids(6, 12, 18, 24, 30, 36, 42, 48, 54, 60, 66, 72, 78, 84, 90, 96), collect(Arrays.asList("d2", "d3"), null, null));
+    assertIds(ids(30, 60, 90), collect(Arrays.asList("d2", "d3", "d5"), null, null));
+    assertIds(ids(63), collect(Arrays.asList("d3", "d7", "d9"), null, null));
+  }
+
+  public void testValueChecker() throws StorageException {
+    Condition<Integer> odd = new Condition<Integer>() {
+      @Override
+      public boolean value(Integer value) {
+        return value == 1;
+      }
+    };
+    assertIds(ids(15, 45, 75), collect(Arrays.asList("d3", "d5"), odd, null));
+    assertIds(ids(), collect(Arrays.asList("d2", "d5"), odd, null));
+  }
+
+  public void testRestriction() throws StorageException {
+    assertIds(ids(30, 90), collect(Arrays.asList("d2", "d5"), null, set(30, 90, 7, 15)));
+    assertIds(ids(), collect(Arrays.asList("d2", "d5"), null, set(7, 11)));
+  }
+
+  public void testNoKeys() throws StorageException {
+    assertIds(ids(), collect(Collections.<String>emptyList(), null, null));
+    assertTrue(InvertedIndexUtil.collectInputIdsContainingAllKeys(myIndex, Collections.<String>emptyList(), null, null, null).isEmpty());
+  }
+
+  public void testMissingKeyStopsLookup() throws StorageException {
+    assertIds(ids(), collect(Arrays.asList("d2", "missing", "d3", "d5"), null, null));
+    // the keys after the one without inputs aren't read
+    assertEquals(Arrays.asList("d2", "missing"), myIndex.myRead);
+  }
+
+  public void testResultIsNotIndexData() throws StorageException {
+    RoaringIdSet ids = collect(Collections.singletonList("d9"), null, null);
+    assertIds(ids(9, 18, 27, 36, 45, 54, 63, 72, 81, 90, 99), ids);
+    ids.add(1);
+    assertIds(ids(9, 18, 27, 36, 45, 54, 63, 72, 81, 90, 99), collect(Collections.singletonList("d9"), null, null));
+  }
+
+  public void testHashSetSameAsIdSet() throws StorageException {
+    Condition<String> keyChecker = new Condition<String>() {
+      @Override
+      public boolean value(String key) {
+        return !key.equals("d2");
+      }
+    };
+    ValueContainer.IntPredicate idChecker = new ValueContainer.IntPredicate() {
+      @Override
+      public boolean contains(int id) {
+        return id > 50;
+      }
+    };
+    TIntHashSet ids = InvertedIndexUtil.collectInputIdsContainingAllKeys(myIndex, Arrays.asList("d2", "d3", "d5"), keyChecker, null, idChecker);
+    assertEquals(new TIntHashSet(new int[]{60, 75, 90}), ids);
+  }
+
+  @NotNull
+  private RoaringIdSet collect(@NotNull Collection<String> keys, @Nullable Condition<Integer> valueChecker, @Nullable RoaringIdSet restriction)
+    throws StorageException {
+    myIndex.myRead.clear();
+    return InvertedIndexUtil.collectInputIdSetContainingAllKeys(myIndex, keys, valueChecker, restriction);
+  }
+
+  @NotNull
+  private static List<Integer> ids(int... ids) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (int id : ids) result.add(id);
+    return result;
+  }
+
+  @NotNull
+  private static RoaringIdSet set(int... ids) {
+    RoaringIdSet result = new RoaringIdSet();
+    for (int id : ids) result.add(id);
+    return result;
+  }
+
+  private static void assertIds(@NotNull List<Integer> expected, @NotNull RoaringIdSet actual) {
+    List<Integer> ids = new ArrayList<Integer>();
+    for (ValueContainer.IntIterator iterator = actual.intIterator(); iterator.hasNext(); ) {
+      ids.add(iterator.next());
+    }
+    Collections.sort(ids);
+    assertEquals(expected, ids);
+    assertEquals(expected.size(), actual.size());
+  }
+
+  // the ids of each value are a set the iterators of which are recognized, so they could be changed by the lookup
+  private static class Index implements InvertedIndex<String, Integer, String> {
+    private final Map<String, Map<Integer, RoaringIdSet>> myData = new HashMap<String, Map<Integer, RoaringIdSet>>();
+    private final List<String> myRead = new ArrayList<String>();
+
+    private void add(@NotNull String key, int value, int inputId) {
+      Map<Integer, RoaringIdSet> values = myData.get(key);
+      if (values == null) myData.put(key, values = new TreeMap<Integer, RoaringIdSet>());
+      RoaringIdSet ids = values.get(value);
+      if (ids == null) values.put(value, ids = new RoaringIdSet());
+      ids.add(inputId);
+    }
+
+    @NotNull
+    @Override
+    public ValueContainer<Integer> getData(@NotNull String key) {
+      myRead.add(key);
+      final Map<Integer, RoaringIdSet> values = myData.containsKey(key) ? myData.get(key) : Collections.<Integer, RoaringIdSet>emptyMap();
+      return new ValueContainer<Integer>() {
+        @NotNull
+        @Override
+        public ValueIterator<Integer> getValueIterator() {
+          final Iterator<Map.Entry<Integer, RoaringIdSet>> iterator = values.entrySet().iterator();
+          return new ValueIterator<Integer>() {
+            private RoaringIdSet myIds;
+
+            @NotNull
+            @Override
+            public IntIterator getInputIdsIterator() {
+              return myIds.intIterator();
+            }
+
+            @Nullable
+            @Override
+            public IntPredicate getValueAssociationPredicate() {
+              return myIds.intPredicate();
+            }
+
+            @Override
+            public boolean hasNext() {
+              return iterator.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+              Map.Entry<Integer, RoaringIdSet> entry = iterator.next();
+              myIds = entry.getValue();
+              return entry.getKey();
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int size = 0;
+          for (RoaringIdSet ids : values.values()) size += ids.size();
+          return size;
+        }
+      };
+    }
+
+    @NotNull
+    @Override
+    public Computable<Boolean> update(int inputId, @Nullable String content) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean applyUpdates(@NotNull List<Computable<Boolean>> updates) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void clear() {
+      myData.clear();
+    }
+
+    @Override
+    public void dispose() {
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.containers;
+
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RoaringIdSetTest extends TestCase {
+  public void testAgreesWithTroveSet() {
+    Random random = new Random(0);
+    RoaringIdSet set = new RoaringIdSet();
+    TIntHashSet expected = new TIntHashSet();
+    for (int i = 0; i < 300000; i++) {
+      // a dense chunk which turns into a bitmap and back, and sparse ones
+      int id = random.nextInt(4) == 0 ? 1 + random.nextInt(5000000) : 70000 + random.nextInt(9000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(id), set.remove(id));
+      }
+      else {
+        assertEquals(expected.add(id), set.add(id));
+      }
+      if (i % 1000 == 0) assertEquals(expected.contains(i), set.contains(i));
+    }
+    assertSameIds(expected, set);
+    assertSameIds(expected, set.clone());
+
+    for (int id : expected.toArray()) {
+      assertTrue(set.remove(id));
+    }
+    assertTrue(set.isEmpty());
+    assertFalse(set.intIterator().hasNext());
+  }
+
+  public void testAndOr() {
+    Random random = new Random(0);
+    int[][] shapes = {{100, 1000000}, {3000, 70000}, {60000, 70000}, {20000, 3000000}, {0, 10}};
+    for (int[] shape1 : shapes) {
+      for (int[] shape2 : shapes) {
+        TIntHashSet expected1 = new TIntHashSet();
+        TIntHashSet expected2 = new TIntHashSet();
+        RoaringIdSet set1 = randomSet(random, shape1[0], shape1[1], expected1);
+        RoaringIdSet set2 = randomSet(random, shape2[0], shape2[1], expected2);
+
+        TIntHashSet and = new TIntHashSet();
+        TIntHashSet or = new TIntHashSet(expected1.toArray());
+        for (int id : expected2.toArray()) {
+          if (expected1.contains(id)) and.add(id);
+          or.add(id);
+        }
+        assertSameIds(and, RoaringIdSet.and(set1, set2));
+        assertSameIds(or, RoaringIdSet.or(set1, set2));
+        // the arguments are intact
+        assertSameIds(expected1, set1);
+        assertSameIds(expected2, set2);
+      }
+    }
+  }
+
+  public void testSerialization() throws IOException {
+    Random random = new Random(0);
+    TIntHashSet expected = new TIntHashSet();
+    RoaringIdSet set = randomSet(random, 200000, 300000, expected);
+    randomSet(random, 1000, 2000000, expected);
+    for (int id : expected.toArray()) set.add(id);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    set.writeTo(new DataOutputStream(bytes));
+    RoaringIdSet read = RoaringIdSet.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertSameIds(expected, read);
+
+    // the delta encoding of ValueContainerImpl
+    ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(deltas);
+    int prev = 0;
+    for (int id : sorted(expected)) {
+      DataInputOutputUtil.writeINT(out, id - prev);
+      prev = id;
+    }
+    assertTrue(bytes.size() + " vs " + deltas.size(), bytes.size() < deltas.size());
+  }
+
+  public void testLargeChangeBufferingListIsRoaring() {
+    ChangeBufferingList list = new ChangeBufferingList();
+    TIntHashSet expected = new TIntHashSet();
+    Random random = new Random(0);
+    for (int i = 0; i < 3 * ChangeBufferingList.MAX_FILES; i++) {
+      int id = 1 + random.nextInt(200000);
+      list.ensureCapacity(1);
+      if (random.nextInt(5) == 0) {
+        list.remove(id);
+        expected.remove(id);
+      }
+      else {
+        list.add(id);
+        expected.add(id);
+      }
+    }
+    IntIdsIterator iterator = list.intIterator();
+    assertEquals(ChangeBufferingList.ROARING_ID_SETS, RoaringIdSet.getIteratedSet(iterator) != null);
+    assertEquals(expected.size(), iterator.size());
+    int[] ids = new int[iterator.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = iterator.next();
+    }
+    assertFalse(iterator.hasNext());
+    assertTrue(Arrays.equals(sorted(expected), ids));
+  }
+
+  public void testIntersectionOfLargeSets() {
+    Random random = new Random(0);
+    TIntHashSet trove1 = new TIntHashSet();
+    TIntHashSet trove2 = new TIntHashSet();
+    RoaringIdSet set1 = randomSet(random, 300000, 2000000, trove1);
+    RoaringIdSet set2 = randomSet(random, 1000000, 2000000, trove2);
+
+    TIntHashSet expected = new TIntHashSet();
+    for (int id : trove1.toArray()) {
+      if (trove2.contains(id)) expected.add(id);
+    }
+    assertSameIds(expected, RoaringIdSet.and(set1, set2));
+    assertSameIds(expected, RoaringIdSet.and(set2, set1));
+  }
+
+  @NotNull
+  private static RoaringIdSet randomSet(@NotNull Random random, int count, int range, @NotNull TIntHashSet expected) {
+    RoaringIdSet set = new RoaringIdSet();
+    for (int i = 0; i < count; i++) {
+      int id = 1 + random.nextInt(range);
+      set.add(id);
+      expected.add(id);
+    }
+    return set;
+  }
+
+  @NotNull
+  private static int[] sorted(@NotNull TIntHashSet set) {
+    int[] ids = set.toArray();
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private static void assertSameIds(@NotNull TIntHashSet expected, @NotNull RoaringIdSet set) {
+    assertEquals(expected.size(), set.size());
+    int[] ids = new int[set.size()];
+    IntIdsIterator iterator = set.intIterator();
+    for (int i = 0; i < ids.length; i++) {
+      assertTrue(iterator.hasNext());
+      ids[i] = iterator.next();
+      assertTrue(set.contains(ids[i]));
+    }
+    assertFalse(iterator.hasNext());
+    assertTrue(Arrays.equals(sorted(expected), ids));
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing.impl;
+
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.*;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MapReduceIndexBatchingTest extends TestCase {
+  private static final int INPUTS = 10000;
+  private static final int WORDS_PER_INPUT = 30;
+  private static final int VOCABULARY = 5000;
+
+  private File myDir;
+  private final List<MapReduceIndex<String, Integer, String>> myIndices = new ArrayList<MapReduceIndex<String, Integer, String>>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("batching", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      for (MapReduceIndex<String, Integer, String> index : myIndices) {
+        index.dispose();
+      }
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testBatchedUpdatesGiveSameIndex() throws Exception {
+    Random random = new Random(0);
+    String[] corpus = createCorpus(random, 2000);
+    String[] changed = createCorpus(random, 2000);
+    for (int i = 0; i < changed.length; i += 3) changed[i] = null; // removed inputs
+
+    for (int batchSize : new int[]{1, 16, 256}) {
+      MapReduceIndex<String, Integer, String> index = createIndex("index" + batchSize);
+      index(index, corpus, batchSize);
+      assertIndexContent(index, corpus);
+      index(index, changed, batchSize);
+      assertIndexContent(index, changed);
+    }
+  }
+
+  public void testSameInputTwiceInBatch() throws Exception {
+    MapReduceIndex<String, Integer, String> index = createIndex("twice");
+    List<Computable<Boolean>> updates = new ArrayList<Computable<Boolean>>();
+    updates.add(index.update(1, "foo bar"));
+    updates.add(index.update(2, "bar baz"));
+    assertTrue(index.applyUpdates(updates));
+
+    // the diff of the second update of an input is calculated against the first one when the batch is applied
+    updates.clear();
+    updates.add(index.update(1, "qux"));
+    updates.add(index.update(1, "foo foo"));
+    assertTrue(index.applyUpdates(updates));
+    assertIndexContent(index, new String[]{null, "foo foo", "bar baz"});
+  }
+
+  public void testQueriesDuringBatchedIndexing() throws Exception {
+    String[] corpus = createCorpus(new Random(0), INPUTS);
+    for (int batchSize : new int[]{1, 256}) {
+      final MapReduceIndex<String, Integer, String> index = createIndex("queried" + batchSize);
+      // queries running meanwhile, which take the read lock in between the writes
+      final AtomicBoolean indexed = new AtomicBoolean();
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      List<Thread> readers = new ArrayList<Thread>();
+      for (int i = 0; i < 2; i++) {
+        readers.add(new Thread() {
+          @Override
+          public void run() {
+            Random random = new Random();
+            try {
+              while (!indexed.get()) {
+                index.getData("w" + random.nextInt(VOCABULARY)).size();
+              }
+            }
+            catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        });
+      }
+      for (Thread reader : readers) reader.start();
+
+      try {
+        index(index, corpus, batchSize);
+        index.flush();
+      }
+      finally {
+        indexed.set(true);
+        for (Thread reader : readers) reader.join();
+      }
+      if (failure.get() != null) throw new RuntimeException(failure.get());
+      assertIndexContent(index, corpus);
+    }
+  }
+
+  @NotNull
+  private static String[] createCorpus(@NotNull Random random, int inputs) {
+    String[] corpus = new String[inputs + 1];
+    for (int i = 1; i <= inputs; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < WORDS_PER_INPUT; j++) {
+        // the frequent words are in many inputs, as in source code
+        text.append("w").append(random.nextInt(1 + random.nextInt(VOCABULARY))).append(' ');
+      }
+      corpus[i] = text.toString();
+    }
+    return corpus;
+  }
+
+  private static void index(@NotNull MapReduceIndex<String, Integer, String> index, @NotNull String[] corpus, int batchSize) {
+    List<Computable<Boolean>> batch = new ArrayList<Computable<Boolean>>();
+    for (int inputId = 1; inputId < corpus.length; inputId++) {
+      batch.add(index.update(inputId, corpus[inputId]));
+      if (batch.size() == batchSize || inputId == corpus.length - 1) {
+        assertTrue(index.applyUpdates(batch));
+        batch = new ArrayList<Computable<Boolean>>();
+      }
+    }
+  }
+
+  private static void assertIndexContent(@NotNull MapReduceIndex<String, Integer, String> index, @NotNull String[] corpus)
+    throws StorageException {
+    Map<String, Map<Integer, Integer>> expected = new HashMap<String, Map<Integer, Integer>>();
+    for (int inputId = 1; inputId < corpus.length; inputId++) {
+      for (Map.Entry<String, Integer> entry : map(corpus[inputId]).entrySet()) {
+        Map<Integer, Integer> inputs = expected.get(entry.getKey());
+        if (inputs == null) expected.put(entry.getKey(), inputs = new HashMap<Integer, Integer>());
+        inputs.put(inputId, entry.getValue());
+      }
+    }
+
+    for (int word = 0; word < VOCABULARY; word++) {
+      Map<Integer, Integer> inputs = expected.get("w" + word);
+      Map<Integer, Integer> actual = new HashMap<Integer, Integer>();
+      for (ValueContainer.ValueIterator<Integer> valueIt = index.getData("w" + word).getValueIterator(); valueIt.hasNext(); ) {
+        Integer value = valueIt.next();
+        for (ValueContainer.IntIterator idIt = valueIt.getInputIdsIterator(); idIt.hasNext(); ) {
+          assertNull(actual.put(idIt.next(), value));
+        }
+      }
+      assertEquals("w" + word, inputs == null ? Collections.<Integer, Integer>emptyMap() : inputs, actual);
+    }
+  }
+
+  // word to the number of its occurrences
+  @NotNull
+  private static Map<String, Integer> map(String text) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    if (text == null) return result;
+    for (String word : text.split(" ")) {
+      if (word.isEmpty()) continue;
+      Integer count = result.get(word);
+      result.put(word, count == null ? 1 : count + 1);
+    }
+    return result;
+  }
+
+  @NotNull
+  private MapReduceIndex<String, Integer, String> createIndex(@NotNull final String name) throws IOException {
+    final ID<String, Integer> id = ID.create(MapReduceIndexBatchingTest.class.getSimpleName() + "." + name);
+    final IndexExtension<String, Integer, String> extension = new IndexExtension<String, Integer, String>() {
+      @NotNull
+      @Override
+      public ID<String, Integer> getName() {
+        return id;
+      }
+
+      @NotNull
+      @Override
+      public DataIndexer<String, Integer, String> getIndexer() {
+        return new DataIndexer<String, Integer, String>() {
+          @NotNull
+          @Override
+          public Map<String, Integer> map(String inputData) {
+            return MapReduceIndexBatchingTest.map(inputData);
+          }
+        };
+      }
+
+      @NotNull
+      @Override
+      public KeyDescriptor<String> getKeyDescriptor() {
+        return EnumeratorStringDescriptor.INSTANCE;
+      }
+
+      @NotNull
+      @Override
+      public DataExternalizer<Integer> getValueExternalizer() {
+        return EnumeratorIntegerDescriptor.INSTANCE;
+      }
+
+      @Override
+      public int getVersion() {
+        return 0;
+      }
+    };
+
+    MapIndexStorage<String, Integer> storage =
+      new MapIndexStorage<String, Integer>(new File(myDir, name), EnumeratorStringDescriptor.INSTANCE, EnumeratorIntegerDescriptor.INSTANCE,
+                                           1024, false) {
+        @Override
+        protected void checkCanceled() {
+        }
+      };
+    MapBasedForwardIndex<String, Integer> forwardIndex = new MapBasedForwardIndex<String, Integer>(extension) {
+      @NotNull
+      @Override
+      public PersistentHashMap<Integer, Collection<String>> createMap() throws IOException {
+        return new PersistentHashMap<Integer, Collection<String>>(new File(myDir, name + ".forward"), EnumeratorIntegerDescriptor.INSTANCE,
+                                                                   new DataExternalizer<Collection<String>>() {
+          @Override
+          public void save(@NotNull DataOutput out, Collection<String> value) throws IOException {
+            DataInputOutputUtil.writeINT(out, value.size());
+            for (String key : value) IOUtil.writeUTF(out, key);
+          }
+
+          @Override
+          public Collection<String> read(@NotNull DataInput in) throws IOException {
+            int size = DataInputOutputUtil.readINT(in);
+            List<String> keys = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) keys.add(IOUtil.readUTF(in));
+            return keys;
+          }
+        });
+      }
+    };
+    MapReduceIndex<String, Integer, String> index = new MapReduceIndex<String, Integer, String>(extension, storage, forwardIndex) {
+      @Override
+      public void checkCanceled() {
+      }
+
+      @Override
+      protected void requestRebuild(Exception e) {
+        throw new RuntimeException(e);
+      }
+    };
+    myIndices.add(index);
+    return index;
+  }
+}
@@ -16,11 +16,14 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.Function;
+import com.intellij.util.containers.ContainerUtil;
 import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 
@@ -118,6 +121,102 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testPageCacheStatistics() throws IOException {
+    int page = Page.PAGE_SIZE;
+    PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock(false, false, page, 2 * page, 2 * page);
+    PagedFileStorage storage = createStorage(lock, 4);
+    try {
+      PagedFileStorage.PageCacheStatistics before = storage.getPageCacheStatistics();
+      for (int round = 0; round < 3; ++round) {
+        for (int i = 0; i < 4; ++i) {
+          storage.get(i * page); // cyclic access to more pages than the cache can hold
+          storage.get(i * page + 1);
+        }
+      }
+
+      PagedFileStorage.PageCacheStatistics statistics = storage.getPageCacheStatistics();
+      assertEquals(12, statistics.getRecentHits() - before.getRecentHits());
+      assertEquals(0, statistics.getHits() - before.getHits());
+      assertEquals(12, statistics.getMisses() - before.getMisses());
+      assertEquals(12, statistics.getEvictions() - before.getEvictions());
+      assertEquals(2 * page, statistics.getMappedBytes());
+      assertEquals(2 * page, lock.getCacheSize());
+      assertEquals(2 * page, lock.getCacheSizeLimit());
+      assertEquals(Collections.singletonList(storage.getFile()), ContainerUtil.map(lock.getPageCacheStatistics(), STATISTICS_FILE));
+    }
+    finally {
+      closeStorage(storage);
+    }
+  }
+
+  public void testAdaptiveCacheSizeGrowsToWorkingSet() throws IOException {
+    int page = Page.PAGE_SIZE;
+    PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock(false, true, page, 2 * page, 8 * page);
+    PagedFileStorage storage = createStorage(lock, 8);
+    try {
+      accessPages(storage, 4, 10000);
+      // pages evicted while the file was filled with zeros may count as the working set too
+      long limit = lock.getCacheSizeLimit();
+      assertTrue(String.valueOf(limit / page), limit >= 4 * page && limit <= 6 * page);
+
+      long misses = storage.getPageCacheStatistics().getMisses();
+      accessPages(storage, 4, 10000);
+      assertEquals(misses, storage.getPageCacheStatistics().getMisses());
+
+      // never above the adaptive limit
+      accessPages(storage, 8, 10000);
+      accessPages(storage, 8, 10000);
+      assertEquals(8 * page, lock.getCacheSizeLimit());
+    }
+    finally {
+      closeStorage(storage);
+    }
+  }
+
+  public void testAdaptiveCacheSizeShrinksToWorkingSet() throws IOException {
+    int page = Page.PAGE_SIZE;
+    PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock(false, true, page, 16 * page, 16 * page);
+    PagedFileStorage storage = createStorage(lock, 16);
+    try {
+      accessPages(storage, 16, 100);
+      assertEquals(16 * page, lock.getCacheSize());
+
+      accessPages(storage, 4, 100000);
+      long limit = lock.getCacheSizeLimit();
+      assertTrue(String.valueOf(limit / page), limit >= 4 * page && limit <= 7 * page);
+      assertTrue(lock.getCacheSize() <= limit);
+    }
+    finally {
+      closeStorage(storage);
+    }
+  }
+
+  private static final Function<PagedFileStorage.PageCacheStatistics, File> STATISTICS_FILE =
+    new Function<PagedFileStorage.PageCacheStatistics, File>() {
+      @Override
+      public File fun(PagedFileStorage.PageCacheStatistics statistics) {
+        return statistics.getFile();
+      }
+    };
+
+  private static PagedFileStorage createStorage(PagedFileStorage.StorageLock lock, int pages) throws IOException {
+    File file = FileUtil.createTempFile("storage", ".tmp");
+    PagedFileStorage storage = new PagedFileStorage(file, lock.myDefaultStorageLockContext, Page.PAGE_SIZE, false);
+    storage.resize(pages * Page.PAGE_SIZE);
+    return storage;
+  }
+
+  private static void closeStorage(PagedFileStorage storage) {
+    storage.close();
+    FileUtil.delete(storage.getFile());
+  }
+
+  private static void accessPages(PagedFileStorage storage, int pages, int requests) {
+    for (int i = 0; i < requests; ++i) {
+      storage.get((long)(i % pages) * Page.PAGE_SIZE);
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.io.Bits;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class RefCountingStorageCodecTest extends TestCase {
+  private static final String SOURCE =
+    "/*\n * Copyright 2000-2017 JetBrains s.r.o.\n */\npackage com.intellij.util;\n\n" +
+    "import org.jetbrains.annotations.NotNull;\n\npublic class Foo {\n  @NotNull\n  public String getName() {\n    return \"foo\";\n  }\n}\n";
+
+  private String getFileName() {
+    return FileUtil.getTempDirectory() + File.separatorChar + getName();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    AbstractStorage.deleteFiles(getFileName());
+    super.tearDown();
+  }
+
+  public void testCodecsRoundTrip() throws IOException {
+    Random random = new Random(0);
+    byte[] randomBytes = new byte[10000];
+    random.nextBytes(randomBytes);
+    byte[][] samples = {new byte[0], "x".getBytes(), SOURCE.getBytes(), StringUtil.repeat(SOURCE, 100).getBytes(), randomBytes};
+
+    for (StorageCompressionCodec codec : StorageCompressionCodec.getCodecs()) {
+      assertSame(codec, StorageCompressionCodec.forId(codec.getId()));
+      assertSame(codec, StorageCompressionCodec.forName(codec.getName()));
+
+      for (byte[] sample : samples) {
+        ByteSequence encoded = codec.encode(new ByteSequence(sample));
+        // incompressible data is stored as is
+        assertTrue(codec + ": " + encoded.getLength(), encoded.getLength() <= sample.length + 1);
+        assertEquals(codec.getName(), new String(sample), new String(decode(encoded)));
+      }
+    }
+  }
+
+  public void testCodecChangeKeepsRecordsReadable() throws IOException {
+    StorageCompressionCodec[] codecs = StorageCompressionCodec.getCodecs();
+    int[] records = new int[codecs.length];
+
+    for (int i = 0; i < codecs.length; ++i) {
+      RefCountingStorage storage = new RefCountingStorage(getFileName(), CapacityAllocationPolicy.DEFAULT, codecs[i]);
+      try {
+        records[i] = storage.acquireNewRecord();
+        storage.writeBytes(records[i], new ByteSequence(contentFor(i).getBytes()), false);
+      }
+      finally {
+        Disposer.dispose(storage);
+      }
+    }
+
+    RefCountingStorage storage = new RefCountingStorage(getFileName(), CapacityAllocationPolicy.DEFAULT, StorageCompressionCodec.DEFLATE);
+    try {
+      for (int i = 0; i < codecs.length; ++i) {
+        assertEquals(contentFor(i), new String(storage.readBytes(records[i])));
+        assertEquals(contentFor(i), new String(FileUtil.loadBytes(storage.readStream(records[i]))));
+      }
+    }
+    finally {
+      Disposer.dispose(storage);
+    }
+  }
+
+  @NotNull
+  private static String contentFor(int i) {
+    return "record" + i + "\n" + SOURCE;
+  }
+
+  @NotNull
+  private static byte[] decode(@NotNull ByteSequence encoded) throws IOException {
+    ByteSequence decoded = StorageCompressionCodec.decode(encoded.getBytes(), encoded.getOffset(), encoded.getLength());
+    return Arrays.copyOfRange(decoded.getBytes(), decoded.getOffset(), decoded.getOffset() + decoded.getLength());
+  }
+
+  public void testRecordOfDictionaryCodecNotReadWithoutDictionary() throws IOException {
+    ByteSequence encoded = StorageCompressionCodec.DEFLATE_WITH_SOURCE_DICTIONARY.encode(new ByteSequence(StringUtil.repeat(SOURCE, 3).getBytes()));
+    byte[] bytes = Arrays.copyOfRange(encoded.getBytes(), encoded.getOffset(), encoded.getOffset() + encoded.getLength());
+    assertEquals(StorageCompressionCodec.DEFLATE_WITH_SOURCE_DICTIONARY.getId(), bytes[0]);
+    bytes[0] = (byte)StorageCompressionCodec.DEFLATE.getId();
+    try {
+      StorageCompressionCodec.decode(bytes, 0, bytes.length);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testCorruptedUncompressedLengthRejected() throws IOException {
+    ByteSequence encoded = StorageCompressionCodec.DEFLATE.encode(new ByteSequence(StringUtil.repeat(SOURCE, 3).getBytes()));
+    byte[] bytes = Arrays.copyOfRange(encoded.getBytes(), encoded.getOffset(), encoded.getOffset() + encoded.getLength());
+    for (int length : new int[]{-1, Integer.MIN_VALUE, Integer.MAX_VALUE, bytes.length * 2000}) {
+      Bits.putInt(bytes, 1, length);
+      try {
+        StorageCompressionCodec.decode(bytes, 0, bytes.length);
+        fail(String.valueOf(length));
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  public void testNoneCodecCopies() throws IOException {
+    byte[] bytes = SOURCE.getBytes();
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    StorageCompressionCodec.NONE.compress(new ByteSequence(bytes), out);
+    assertTrue(Arrays.equals(bytes, out.toByteArray()));
+
+    byte[] result = new byte[bytes.length];
+    StorageCompressionCodec.NONE.decompress(out.getInternalBuffer(), 0, out.size(), result);
+    assertTrue(Arrays.equals(bytes, result));
+  }
+
+  public void testSourceCorpusRoundTrip() throws IOException {
+    File root = new File(System.getProperty("idea.codec.benchmark.corpus", PathManager.getHomePath() + "/modules/util/src"));
+    final List<byte[]> corpus = new ArrayList<byte[]>();
+    final long[] corpusSize = {0};
+    FileUtil.processFilesRecursively(root, new Processor<File>() {
+      @Override
+      public boolean process(File file) {
+        if (file.isFile() && corpusSize[0] < 10 * 1024 * 1024) {
+          try {
+            byte[] bytes = FileUtil.loadFileBytes(file);
+            corpus.add(bytes);
+            corpusSize[0] += bytes.length;
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return true;
+      }
+    });
+    if (corpus.isEmpty()) return; // no sources in this installation
+
+    for (StorageCompressionCodec codec : StorageCompressionCodec.getCodecs()) {
+      long encodedSize = 0;
+      for (byte[] bytes : corpus) {
+        ByteSequence encoded = codec.encode(new ByteSequence(bytes));
+        encodedSize += encoded.getLength();
+        assertTrue(codec.getName(), Arrays.equals(bytes, decode(encoded)));
+      }
+      if (codec != StorageCompressionCodec.NONE) {
+        assertTrue(codec + ": " + encodedSize + " of " + corpusSize[0], encodedSize < corpusSize[0]);
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2017 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class MultiStringSearcherTest extends TestCase {
+  public void testOverlappingPatterns() {
+    List<StringSearcher> searchers = Arrays.asList(new StringSearcher("he", true, true),
+                                                   new StringSearcher("she", true, true),
+                                                   new StringSearcher("his", true, true),
+                                                   new StringSearcher("hers", true, true),
+                                                   new StringSearcher("HE", false, true));
+    int[][] occurrences = new MultiStringSearcher(searchers).findAllOccurrences("ushers shE his", 0, 14);
+    assertEquals("[2]", Arrays.toString(occurrences[0]));
+    assertEquals("[1]", Arrays.toString(occurrences[1]));
+    assertEquals("[11]", Arrays.toString(occurrences[2]));
+    assertEquals("[2]", Arrays.toString(occurrences[3]));
+    assertEquals("[2, 8]", Arrays.toString(occurrences[4]));
+  }
+
+  public void testSameOccurrencesAsStringSearcher() {
+    Random random = new Random(0);
+    for (int attempt = 0; attempt < 200; attempt++) {
+      String text = randomString(random, "abAB_ Kık", 1 + random.nextInt(300));
+      List<StringSearcher> searchers = new ArrayList<StringSearcher>();
+      for (int i = 0; i < 1 + random.nextInt(8); i++) {
+        searchers.add(new StringSearcher(randomString(random, "abABki_", 1 + random.nextInt(4)), random.nextBoolean(), true));
+      }
+
+      int start = random.nextInt(text.length());
+      int end = start + random.nextInt(text.length() - start + 1);
+      int[][] occurrences = new MultiStringSearcher(searchers).findAllOccurrences(new CharArrayCharSequence(text.toCharArray()), start, end);
+      for (int i = 0; i < searchers.size(); i++) {
+        assertEquals(text + " " + searchers.get(i), Arrays.toString(findAllOccurrences(searchers.get(i), text, start, end)),
+                     Arrays.toString(occurrences[i]));
+      }
+    }
+  }
+
+  public void testManyPatternsInLargeText() {
+    Random random = new Random(0);
+    StringBuilder text = new StringBuilder();
+    List<StringSearcher> searchers = new ArrayList<StringSearcher>();
+    for (int i = 0; i < 20; i++) {
+      searchers.add(new StringSearcher("method" + i + "Name", true, true));
+    }
+    while (text.length() < 1000000) {
+      text.append(random.nextInt(10) == 0 ? searchers.get(random.nextInt(searchers.size())).getPattern() : "identifier" + random.nextInt(100));
+      text.append(random.nextBoolean() ? "(" : " = ");
+    }
+    String string = text.toString();
+
+    int[][] occurrences = new MultiStringSearcher(searchers).findAllOccurrences(string, 0, string.length());
+    assertEquals(searchers.size(), occurrences.length);
+    for (int i = 0; i < searchers.size(); i++) {
+      assertTrue(Arrays.equals(findAllOccurrences(searchers.get(i), string, 0, string.length()), occurrences[i]));
+    }
+  }
+
+  @NotNull
+  private static int[] findAllOccurrences(@NotNull StringSearcher searcher, @NotNull String text, int start, int end) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (int index = start; index < end; index++) {
+      //noinspection AssignmentToForLoopParameter
+      index = searcher.scan(text, index, end);
+      if (index < 0) break;
+      result.add(index);
+    }
+    int[] array = new int[result.size()];
+    for (int i = 0; i < array.length; i++) array[i] = result.get(i);
+    return array;
+  }
+
+  @NotNull
+  private static String randomString(@NotNull Random random, @NotNull String alphabet, int length) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return result.toString();
+  }
+}